@@ -0,0 +1,84 @@
+package com.segment.analytics;
+
+import com.segment.analytics.messages.TrackMessage;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the throughput of {@link Analytics#enqueue} as the number of producer threads grows.
+ * Batches are uploaded to an {@link InProcessApi}, so once the queue is full the producers are held
+ * back by the looper and the upload path rather than by the network.
+ *
+ * <p>Each benchmark method runs a fixed number of threads; the score is the total throughput of all
+ * of them.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class EnqueueBenchmark {
+  @Param({"LINKED_BLOCKING_QUEUE", "RING_BUFFER"})
+  public QueueStrategy queueStrategy;
+
+  private Analytics analytics;
+
+  @Setup
+  public void setUp() {
+    analytics =
+        Analytics.builder("benchmarkWriteKey")
+            .client(new InProcessApi().client())
+            .queueStrategy(queueStrategy)
+            .build();
+  }
+
+  @TearDown
+  public void tearDown() {
+    analytics.shutdown();
+  }
+
+  private void enqueue() {
+    analytics.enqueue(
+        TrackMessage.builder("Product Viewed")
+            .userId("user")
+            .properties(Collections.singletonMap("path", "/products/1")));
+  }
+
+  @Benchmark
+  @Threads(1)
+  public void threads1() {
+    enqueue();
+  }
+
+  @Benchmark
+  @Threads(4)
+  public void threads4() {
+    enqueue();
+  }
+
+  @Benchmark
+  @Threads(16)
+  public void threads16() {
+    enqueue();
+  }
+
+  @Benchmark
+  @Threads(64)
+  public void threads64() {
+    enqueue();
+  }
+}
@@ -0,0 +1,72 @@
+package com.segment.analytics;
+
+import com.google.gson.Gson;
+import com.segment.analytics.http.SegmentService;
+import com.segment.analytics.internal.EncodedSegmentService;
+import java.io.IOException;
+import java.util.concurrent.atomic.LongAdder;
+import okhttp3.Interceptor;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import okio.BufferedSink;
+import okio.Okio;
+import retrofit2.Retrofit;
+import retrofit2.converter.gson.GsonConverterFactory;
+
+/**
+ * An in-process stand-in for the Segment API. It answers every upload with a success without
+ * touching the network, after writing the request body as OkHttp would, so that benchmarks measure
+ * the client rather than the network.
+ */
+public final class InProcessApi implements Interceptor {
+  private static final MediaType JSON = MediaType.get("application/json; charset=utf-8");
+
+  private final LongAdder uploads = new LongAdder();
+  private final LongAdder uploadedBytes = new LongAdder();
+
+  @Override
+  public Response intercept(Chain chain) throws IOException {
+    Request request = chain.request();
+    if (request.body() != null) {
+      BufferedSink sink = Okio.buffer(Okio.blackhole());
+      request.body().writeTo(sink);
+      uploadedBytes.add(sink.getBuffer().size());
+      sink.close();
+    }
+    uploads.increment();
+    return new Response.Builder()
+        .request(request)
+        .protocol(Protocol.HTTP_1_1)
+        .code(200)
+        .message("OK")
+        .body(ResponseBody.create("{\"success\":true}", JSON))
+        .build();
+  }
+
+  /** Returns a client that sends every request to this API. */
+  public OkHttpClient client() {
+    return new OkHttpClient.Builder().addInterceptor(this).build();
+  }
+
+  /** Returns a {@link SegmentService} backed by this API. */
+  public SegmentService service(Gson gson) {
+    return new Retrofit.Builder()
+        .addConverterFactory(GsonConverterFactory.create(gson))
+        .baseUrl("https://api.segment.io")
+        .client(client())
+        .build()
+        .create(EncodedSegmentService.class);
+  }
+
+  public long uploads() {
+    return uploads.sum();
+  }
+
+  public long uploadedBytes() {
+    return uploadedBytes.sum();
+  }
+}
@@ -0,0 +1,51 @@
+package com.segment.analytics.gson;
+
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures {@link Iso8601Utils#format(Date)} for dates in the same second, as when many events
+ * happen at once, and for dates a second apart each, which misses the per-thread cache every time.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class Iso8601Benchmark {
+  private final Date[] sameSecond = new Date[1000];
+  private final Date[] distinctSeconds = new Date[1000];
+  private int next;
+
+  @Setup
+  public void setUp() {
+    long start = 1700000000000L;
+    for (int i = 0; i < 1000; i++) {
+      sameSecond[i] = new Date(start + i);
+      distinctSeconds[i] = new Date(start + i * 1001L);
+    }
+  }
+
+  @Benchmark
+  public String sameSecond() {
+    next = (next + 1) % 1000;
+    return Iso8601Utils.format(sameSecond[next]);
+  }
+
+  @Benchmark
+  public String distinctSeconds() {
+    next = (next + 1) % 1000;
+    return Iso8601Utils.format(distinctSeconds[next]);
+  }
+}
@@ -0,0 +1,93 @@
+package com.segment.analytics.gson;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.segment.analytics.messages.Batch;
+import com.segment.analytics.messages.Message;
+import com.segment.analytics.messages.TrackMessage;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares serializing messages and batches with Gson's reflective adapters against the streaming
+ * adapters of {@link MessageTypeAdapterFactory}.
+ *
+ * <p>Run with {@code -prof gc} to see the bytes allocated per operation ({@code
+ * gc.alloc.rate.norm}) next to the time per operation.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SerializationBenchmark {
+  public enum Adapters {
+    REFLECTIVE,
+    STREAMING
+  }
+
+  @Param({"REFLECTIVE", "STREAMING"})
+  public Adapters adapters;
+
+  private Gson gson;
+  private TrackMessage message;
+  private Batch batch;
+
+  @Setup
+  public void setUp() {
+    GsonBuilder builder =
+        new GsonBuilder()
+            .registerTypeAdapterFactory(new AutoValueAdapterFactory())
+            .registerTypeAdapter(Date.class, new ISO8601DateAdapter());
+    if (adapters == Adapters.STREAMING) {
+      builder.registerTypeAdapterFactory(new MessageTypeAdapterFactory());
+    }
+    gson = builder.create();
+
+    List<Message> messages = new ArrayList<>();
+    for (int i = 0; i < 100; i++) {
+      Map<String, Object> properties = new LinkedHashMap<>();
+      properties.put("path", "/products/" + (i % 20));
+      properties.put("revenue", 19.99 + i);
+      properties.put("currency", "USD");
+      messages.add(
+          TrackMessage.builder("Product Viewed")
+              .userId("user-" + (i % 100))
+              .anonymousId("anonymous-" + i)
+              .properties(properties)
+              .context(Collections.singletonMap("ip", "10.0.0." + (i % 255)))
+              .build());
+    }
+    message = (TrackMessage) messages.get(0);
+    batch =
+        Batch.create(
+            Collections.singletonMap("library", "analytics-java"), messages, "benchmarkWriteKey");
+  }
+
+  @Benchmark
+  public String message() {
+    return gson.toJson(message);
+  }
+
+  @Benchmark
+  public String batch() {
+    return gson.toJson(batch);
+  }
+}
@@ -0,0 +1,112 @@
+package com.segment.analytics.internal;
+
+import com.google.gson.Gson;
+import com.segment.analytics.Compression;
+import com.segment.analytics.messages.Batch;
+import com.segment.analytics.messages.Message;
+import com.segment.analytics.messages.TrackMessage;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import okhttp3.RequestBody;
+import okio.Buffer;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the CPU cost and the bytes on the wire of uploading a batch with each {@link
+ * Compression} setting. Each invocation builds the request body for one batch, compresses it if
+ * required, and writes it once, which is what an upload without retries does.
+ *
+ * <p>The {@code wireBytes} and {@code batches} secondary results are totals per iteration; their
+ * ratio is the request body size of one batch.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CompressionBenchmark {
+  @Param({"NONE", "GZIP"})
+  public Compression compression;
+
+  @Param({"50", "250"})
+  public int messages;
+
+  private final Gson gson = new Gson();
+  private Batch batch;
+  private List<byte[]> encoded;
+
+  @AuxCounters(AuxCounters.Type.EVENTS)
+  @State(Scope.Thread)
+  public static class WireBytes {
+    public long wireBytes;
+    public long batches;
+
+    @Setup(Level.Iteration)
+    public void reset() {
+      wireBytes = 0;
+      batches = 0;
+    }
+  }
+
+  @Setup
+  public void setUp() {
+    List<Message> batchMessages = new ArrayList<>(messages);
+    encoded = new ArrayList<>(messages);
+    for (int i = 0; i < messages; i++) {
+      Map<String, Object> properties = new LinkedHashMap<>();
+      properties.put("path", "/products/" + (i % 20));
+      properties.put("referrer", "https://www.example.com/search?q=item" + (i % 7));
+      properties.put("revenue", 19.99 + i);
+      properties.put("currency", "USD");
+      Message message =
+          TrackMessage.builder("Product Viewed")
+              .userId("user-" + (i % 100))
+              .anonymousId("anonymous-" + i)
+              .properties(properties)
+              .context(Collections.singletonMap("ip", "10.0.0." + (i % 255)))
+              .build();
+      batchMessages.add(message);
+      encoded.add(gson.toJson(message).getBytes(StandardCharsets.UTF_8));
+    }
+    Map<String, Object> library = new LinkedHashMap<>();
+    library.put("name", "analytics-java");
+    library.put("version", "benchmark");
+    batch =
+        Batch.create(
+            Collections.<String, Object>singletonMap("library", library),
+            batchMessages,
+            "benchmarkWriteKey");
+  }
+
+  @Benchmark
+  public Buffer upload(WireBytes counters) throws IOException {
+    RequestBody body = new BatchRequestBody(gson, batch, encoded);
+    if (compression == Compression.GZIP) {
+      body = GzipRequestBody.compress(body);
+    }
+    Buffer wire = new Buffer();
+    body.writeTo(wire);
+    counters.wireBytes += wire.size();
+    counters.batches++;
+    return wire;
+  }
+}
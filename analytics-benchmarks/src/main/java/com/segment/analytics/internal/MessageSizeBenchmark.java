@@ -0,0 +1,99 @@
+package com.segment.analytics.internal;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.segment.analytics.InProcessApi;
+import com.segment.analytics.Log;
+import com.segment.analytics.gson.AutoValueAdapterFactory;
+import com.segment.analytics.gson.ISO8601DateAdapter;
+import com.segment.analytics.gson.MessageTypeAdapterFactory;
+import com.segment.analytics.messages.Message;
+import com.segment.analytics.messages.TrackMessage;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures {@link AnalyticsClient#messageSizeInBytes}, which runs once for every enqueued message
+ * to account for the queue and batch sizes.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MessageSizeBenchmark {
+  @Param({"1", "20"})
+  public int properties;
+
+  private ExecutorService networkExecutor;
+  private AnalyticsClient client;
+  private Message message;
+
+  @Setup
+  public void setUp() {
+    Gson gson =
+        new GsonBuilder()
+            .registerTypeAdapterFactory(new AutoValueAdapterFactory())
+            .registerTypeAdapterFactory(new MessageTypeAdapterFactory())
+            .registerTypeAdapter(Date.class, new ISO8601DateAdapter())
+            .create();
+    networkExecutor = Executors.newSingleThreadExecutor();
+    client =
+        AnalyticsClient.create(
+            null,
+            new InProcessApi().service(gson),
+            10000,
+            250,
+            10000,
+            3,
+            512 * 1024,
+            Log.NONE,
+            Executors.defaultThreadFactory(),
+            networkExecutor,
+            Collections.emptyList(),
+            "benchmarkWriteKey",
+            gson,
+            TimeUnit.HOURS.toMillis(12),
+            TimeUnit.HOURS.toMillis(12),
+            new ClientOptions());
+
+    Map<String, Object> messageProperties = new LinkedHashMap<>();
+    for (int i = 0; i < properties; i++) {
+      messageProperties.put("property" + i, "value " + i);
+    }
+    message =
+        TrackMessage.builder("Product Viewed")
+            .userId("user")
+            .properties(messageProperties)
+            .context(Collections.singletonMap("ip", "10.0.0.1"))
+            .build();
+  }
+
+  @TearDown
+  public void tearDown() {
+    client.shutdown();
+  }
+
+  @Benchmark
+  public int messageSizeInBytes() {
+    return client.messageSizeInBytes(message);
+  }
+}
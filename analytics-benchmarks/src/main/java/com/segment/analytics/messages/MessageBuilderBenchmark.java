@@ -0,0 +1,71 @@
+package com.segment.analytics.messages;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures {@link MessageBuilder#build()} for each message type, including the copies of the maps
+ * set on the builder.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MessageBuilderBenchmark {
+  private static final Map<String, Object> PROPERTIES =
+      Collections.<String, Object>singletonMap("path", "/products/1");
+  private static final Map<String, Object> CONTEXT =
+      Collections.<String, Object>singletonMap("ip", "10.0.0.1");
+
+  @Param({"identify", "group", "track", "screen", "page", "alias"})
+  public Message.Type type;
+
+  @Benchmark
+  public Message build() {
+    switch (type) {
+      case identify:
+        return IdentifyMessage.builder().userId("user").traits(PROPERTIES).context(CONTEXT).build();
+      case group:
+        return GroupMessage.builder("group")
+            .userId("user")
+            .traits(PROPERTIES)
+            .context(CONTEXT)
+            .build();
+      case track:
+        return TrackMessage.builder("Product Viewed")
+            .userId("user")
+            .properties(PROPERTIES)
+            .context(CONTEXT)
+            .build();
+      case screen:
+        return ScreenMessage.builder("Home")
+            .userId("user")
+            .properties(PROPERTIES)
+            .context(CONTEXT)
+            .build();
+      case page:
+        return PageMessage.builder("Home")
+            .userId("user")
+            .properties(PROPERTIES)
+            .context(CONTEXT)
+            .build();
+      case alias:
+        return AliasMessage.builder("previous").userId("user").context(CONTEXT).build();
+      default:
+        throw new AssertionError("Unknown message type " + type);
+    }
+  }
+}
@@ -17,6 +17,8 @@ package com.segment.analytics.gson;
 
 import com.google.gson.JsonParseException;
 import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
 import java.util.Calendar;
 import java.util.Date;
 import java.util.GregorianCalendar;
@@ -48,8 +50,67 @@ final class Iso8601Utils {
   /** The GMT timezone, prefetched to avoid more lookups. */
   static final TimeZone TIMEZONE_Z = TimeZone.getTimeZone(GMT_ID);
 
-  /** Returns {@code date} formatted as yyyy-MM-ddThh:mm:ss.sssZ */
+  /**
+   * Dates from 1583-01-01T00:00:00Z up to the end of year 9999 are formatted by {@link
+   * SecondCache}; the Julian dates before and the years that do not fit four digits are left to
+   * {@link GregorianCalendar}.
+   */
+  private static final long CACHED_MIN_MILLIS = -12212553600000L;
+
+  private static final long CACHED_MAX_MILLIS = 253402300800000L;
+
+  private static final ThreadLocal<SecondCache> SECOND_CACHE =
+      new ThreadLocal<SecondCache>() {
+        @Override
+        protected SecondCache initialValue() {
+          return new SecondCache();
+        }
+      };
+
+  /**
+   * The characters of the last date a thread formatted. Events are usually formatted close to when
+   * they happen, so consecutive dates mostly share their second and only the milliseconds have to
+   * be written again.
+   */
+  private static final class SecondCache {
+    final char[] chars = "yyyy-MM-ddThh:mm:ss.sssZ".toCharArray();
+    long epochSecond = Long.MIN_VALUE;
+
+    String format(long millis) {
+      long epochSecond = Math.floorDiv(millis, 1000);
+      if (epochSecond != this.epochSecond) {
+        LocalDateTime time = LocalDateTime.ofEpochSecond(epochSecond, 0, ZoneOffset.UTC);
+        writeDigits(chars, 0, time.getYear(), 4);
+        writeDigits(chars, 5, time.getMonthValue(), 2);
+        writeDigits(chars, 8, time.getDayOfMonth(), 2);
+        writeDigits(chars, 11, time.getHour(), 2);
+        writeDigits(chars, 14, time.getMinute(), 2);
+        writeDigits(chars, 17, time.getSecond(), 2);
+        this.epochSecond = epochSecond;
+      }
+      writeDigits(chars, 20, (int) Math.floorMod(millis, 1000), 3);
+      return new String(chars);
+    }
+
+    private static void writeDigits(char[] chars, int offset, int value, int length) {
+      for (int i = offset + length - 1; i >= offset; i--) {
+        chars[i] = (char) ('0' + value % 10);
+        value /= 10;
+      }
+    }
+  }
+
+  /**
+   * Returns {@code date} formatted as yyyy-MM-ddThh:mm:ss.sssZ
+   *
+   * <p>Apart from the returned string, this allocates nothing when the previous date formatted on
+   * the same thread was in the same second.
+   */
   static String format(Date date) {
+    long millis = date.getTime();
+    if (millis >= CACHED_MIN_MILLIS && millis < CACHED_MAX_MILLIS) {
+      return SECOND_CACHE.get().format(millis);
+    }
     Calendar calendar = new GregorianCalendar(TIMEZONE_Z, Locale.US);
     calendar.setTime(date);
 
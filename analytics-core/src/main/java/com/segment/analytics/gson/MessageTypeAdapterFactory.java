@@ -0,0 +1,283 @@
+package com.segment.analytics.gson;
+
+import com.google.gson.Gson;
+import com.google.gson.TypeAdapter;
+import com.google.gson.TypeAdapterFactory;
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+import com.segment.analytics.messages.AliasMessage;
+import com.segment.analytics.messages.Batch;
+import com.segment.analytics.messages.GroupMessage;
+import com.segment.analytics.messages.IdentifyMessage;
+import com.segment.analytics.messages.Message;
+import com.segment.analytics.messages.PageMessage;
+import com.segment.analytics.messages.ScreenMessage;
+import com.segment.analytics.messages.TrackMessage;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A {@link TypeAdapterFactory} that serializes messages and {@link Batch batches} field by field,
+ * without reflection.
+ *
+ * <p>The output is the same as that of Gson's reflective adapter for the AutoValue classes, except
+ * that the dates of the message envelope are always formatted with {@link Iso8601Utils}, as the
+ * {@link ISO8601DateAdapter} registered by the client does. Maps of properties, traits, context and
+ * integrations are written directly as far as they hold maps, collections, strings, booleans and
+ * numbers; other values, such as dates, are written by {@code gson}, so type adapters registered
+ * for them apply. Deserialization is left to the reflective adapter found through {@link
+ * AutoValueAdapterFactory}.
+ *
+ * <p>Register this factory after {@link AutoValueAdapterFactory}, so that it takes precedence.
+ */
+public final class MessageTypeAdapterFactory implements TypeAdapterFactory {
+  @SuppressWarnings("unchecked")
+  @Override
+  public <T> TypeAdapter<T> create(Gson gson, TypeToken<T> type) {
+    Class<? super T> rawType = type.getRawType();
+    // Match both the abstract types and their generated AutoValue_ subclasses, which Gson looks up
+    // when it serializes by runtime type.
+    if (TrackMessage.class.isAssignableFrom(rawType)) {
+      return (TypeAdapter<T>) new TrackAdapter(this, gson, type);
+    } else if (IdentifyMessage.class.isAssignableFrom(rawType)) {
+      return (TypeAdapter<T>) new IdentifyAdapter(this, gson, type);
+    } else if (PageMessage.class.isAssignableFrom(rawType)) {
+      return (TypeAdapter<T>) new PageAdapter(this, gson, type);
+    } else if (ScreenMessage.class.isAssignableFrom(rawType)) {
+      return (TypeAdapter<T>) new ScreenAdapter(this, gson, type);
+    } else if (GroupMessage.class.isAssignableFrom(rawType)) {
+      return (TypeAdapter<T>) new GroupAdapter(this, gson, type);
+    } else if (AliasMessage.class.isAssignableFrom(rawType)) {
+      return (TypeAdapter<T>) new AliasAdapter(this, gson, type);
+    } else if (Batch.class.isAssignableFrom(rawType)) {
+      return (TypeAdapter<T>) new BatchAdapter(this, gson, type);
+    }
+    return null;
+  }
+
+  /** Writes by hand and reads through the reflective adapter of the AutoValue class. */
+  private abstract static class StreamingAdapter<T> extends TypeAdapter<T> {
+    private final TypeAdapterFactory factory;
+    final Gson gson;
+    private final TypeToken<?> type;
+    private volatile TypeAdapter<T> reader;
+
+    StreamingAdapter(TypeAdapterFactory factory, Gson gson, TypeToken<?> type) {
+      this.factory = factory;
+      this.gson = gson;
+      this.type = type;
+    }
+
+    @Override
+    public final void write(JsonWriter out, T value) throws IOException {
+      if (value == null) {
+        out.nullValue();
+        return;
+      }
+      out.beginObject();
+      writeFields(out, value);
+      out.endObject();
+    }
+
+    abstract void writeFields(JsonWriter out, T value) throws IOException;
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public final T read(JsonReader in) throws IOException {
+      TypeAdapter<T> reader = this.reader;
+      if (reader == null) {
+        // Only needed to read spooled messages, so it is not resolved until then. An abstract
+        // type resolves to the adapter of its AutoValue class, and that one to Gson's reflective
+        // adapter.
+        reader = (TypeAdapter<T>) new AutoValueAdapterFactory().create(gson, type);
+        if (reader == null) {
+          reader = (TypeAdapter<T>) gson.getDelegateAdapter(factory, type);
+        }
+        this.reader = reader;
+      }
+      return reader.read(in);
+    }
+
+    static void writeDate(JsonWriter out, String name, Date date) throws IOException {
+      out.name(name);
+      if (date == null) {
+        out.nullValue();
+      } else {
+        out.value(Iso8601Utils.format(date));
+      }
+    }
+
+    void writeValue(JsonWriter out, String name, Object value) throws IOException {
+      out.name(name);
+      writeValue(out, value);
+    }
+
+    /**
+     * Writes maps, collections, strings, booleans and finite numbers directly, and any other value
+     * with the adapter {@code gson} has for its runtime type.
+     */
+    @SuppressWarnings("unchecked")
+    void writeValue(JsonWriter out, Object value) throws IOException {
+      if (value == null) {
+        out.nullValue();
+      } else if (value instanceof String) {
+        out.value((String) value);
+      } else if (value instanceof Map) {
+        out.beginObject();
+        for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+          // As Gson's map adapter writes keys, unless complex map key serialization is enabled.
+          out.name(String.valueOf(entry.getKey()));
+          writeValue(out, entry.getValue());
+        }
+        out.endObject();
+      } else if (value instanceof Collection) {
+        out.beginArray();
+        for (Object element : (Collection<?>) value) {
+          writeValue(out, element);
+        }
+        out.endArray();
+      } else if (value instanceof Boolean) {
+        out.value((Boolean) value);
+      } else if (value instanceof Integer || value instanceof Long) {
+        out.value(((Number) value).longValue());
+      } else if (value instanceof Double && Double.isFinite((Double) value)) {
+        out.value((Number) value);
+      } else {
+        // Dates, other numbers and objects, and non-finite values, which Gson may reject.
+        ((TypeAdapter<Object>) gson.getAdapter(value.getClass())).write(out, value);
+      }
+    }
+  }
+
+  private abstract static class MessageAdapter<T extends Message> extends StreamingAdapter<T> {
+    MessageAdapter(TypeAdapterFactory factory, Gson gson, TypeToken<?> type) {
+      super(factory, gson, type);
+    }
+
+    @Override
+    final void writeFields(JsonWriter out, T message) throws IOException {
+      // In the order of the AutoValue constructor, as the reflective adapter writes them.
+      out.name("type").value(message.type().name());
+      out.name("messageId").value(message.messageId());
+      writeDate(out, "sentAt", message.sentAt());
+      writeDate(out, "timestamp", message.timestamp());
+      writeValue(out, "context", message.context());
+      out.name("anonymousId").value(message.anonymousId());
+      out.name("userId").value(message.userId());
+      writeValue(out, "integrations", message.integrations());
+      writeTypeFields(out, message);
+    }
+
+    abstract void writeTypeFields(JsonWriter out, T message) throws IOException;
+  }
+
+  private static final class TrackAdapter extends MessageAdapter<TrackMessage> {
+    TrackAdapter(TypeAdapterFactory factory, Gson gson, TypeToken<?> type) {
+      super(factory, gson, type);
+    }
+
+    @Override
+    void writeTypeFields(JsonWriter out, TrackMessage message) throws IOException {
+      out.name("event").value(message.event());
+      writeValue(out, "properties", message.properties());
+    }
+  }
+
+  private static final class IdentifyAdapter extends MessageAdapter<IdentifyMessage> {
+    IdentifyAdapter(TypeAdapterFactory factory, Gson gson, TypeToken<?> type) {
+      super(factory, gson, type);
+    }
+
+    @Override
+    void writeTypeFields(JsonWriter out, IdentifyMessage message) throws IOException {
+      writeValue(out, "traits", message.traits());
+    }
+  }
+
+  private static final class PageAdapter extends MessageAdapter<PageMessage> {
+    PageAdapter(TypeAdapterFactory factory, Gson gson, TypeToken<?> type) {
+      super(factory, gson, type);
+    }
+
+    @Override
+    void writeTypeFields(JsonWriter out, PageMessage message) throws IOException {
+      out.name("name").value(message.name());
+      writeValue(out, "properties", message.properties());
+      out.name("category").value(message.category());
+    }
+  }
+
+  private static final class ScreenAdapter extends MessageAdapter<ScreenMessage> {
+    ScreenAdapter(TypeAdapterFactory factory, Gson gson, TypeToken<?> type) {
+      super(factory, gson, type);
+    }
+
+    @Override
+    void writeTypeFields(JsonWriter out, ScreenMessage message) throws IOException {
+      out.name("name").value(message.name());
+      writeValue(out, "properties", message.properties());
+    }
+  }
+
+  private static final class GroupAdapter extends MessageAdapter<GroupMessage> {
+    GroupAdapter(TypeAdapterFactory factory, Gson gson, TypeToken<?> type) {
+      super(factory, gson, type);
+    }
+
+    @Override
+    void writeTypeFields(JsonWriter out, GroupMessage message) throws IOException {
+      out.name("groupId").value(message.groupId());
+      writeValue(out, "traits", message.traits());
+    }
+  }
+
+  private static final class AliasAdapter extends MessageAdapter<AliasMessage> {
+    AliasAdapter(TypeAdapterFactory factory, Gson gson, TypeToken<?> type) {
+      super(factory, gson, type);
+    }
+
+    @Override
+    void writeTypeFields(JsonWriter out, AliasMessage message) throws IOException {
+      out.name("previousId").value(message.previousId());
+    }
+  }
+
+  private static final class BatchAdapter extends StreamingAdapter<Batch> {
+    BatchAdapter(TypeAdapterFactory factory, Gson gson, TypeToken<?> type) {
+      super(factory, gson, type);
+    }
+
+    @Override
+    void writeFields(JsonWriter out, Batch batch) throws IOException {
+      out.name("batch");
+      List<Message> messages = batch.batch();
+      if (messages == null) {
+        out.nullValue();
+      } else {
+        out.beginArray();
+        for (Message message : messages) {
+          writeMessage(out, message);
+        }
+        out.endArray();
+      }
+      writeDate(out, "sentAt", batch.sentAt());
+      writeValue(out, "context", batch.context());
+      out.name("sequence").value(batch.sequence());
+      out.name("writeKey").value(batch.writeKey());
+    }
+
+    @SuppressWarnings("unchecked")
+    private void writeMessage(JsonWriter out, Message message) throws IOException {
+      if (message == null) {
+        out.nullValue();
+      } else {
+        // Resolves to the adapters above for the built-in message types.
+        ((TypeAdapter<Message>) gson.getAdapter(message.getClass())).write(out, message);
+      }
+    }
+  }
+}
@@ -238,4 +238,27 @@ public abstract class MessageBuilder<T extends Message, V extends MessageBuilder
   public Message.Type type() {
     return type;
   }
+
+  /**
+   * Returns the messageId set on this builder, or null if none was, in which case a random one is
+   * generated on {@link #build()}.
+   */
+  public String messageId() {
+    return messageId;
+  }
+
+  /** Returns the timestamp set on this builder, or null if none was. */
+  public Date timestamp() {
+    return timestamp;
+  }
+
+  /** Returns the User ID set on this builder, or null if none was. */
+  public String userId() {
+    return userId;
+  }
+
+  /** Returns the Anonymous ID set on this builder, or null if none was. */
+  public String anonymousId() {
+    return anonymousId;
+  }
 }
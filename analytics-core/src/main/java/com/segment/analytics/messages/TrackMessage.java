@@ -70,6 +70,11 @@ public abstract class TrackMessage implements Message {
       return this;
     }
 
+    /** Returns the name of the event this builder is constructing. */
+    public String event() {
+      return event;
+    }
+
     @Override
     Builder self() {
       return this;
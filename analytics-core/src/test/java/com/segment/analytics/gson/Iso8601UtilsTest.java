@@ -5,6 +5,10 @@ import static com.segment.analytics.gson.Iso8601Utils.format;
 import static com.segment.analytics.gson.Iso8601Utils.parse;
 import static org.assertj.core.api.Assertions.assertThat;
 
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Random;
+import java.util.TimeZone;
 import org.junit.Test;
 
 public class Iso8601UtilsTest {
@@ -43,4 +47,26 @@ public class Iso8601UtilsTest {
     assertThat(format(newDate(1937, 1, 1, 12, 0, 27, 870, 20)))
         .isEqualTo("1937-01-01T11:40:27.870Z");
   }
+
+  @Test
+  public void toJsonWithinAndAcrossSeconds() {
+    assertThat(format(newDate(2024, 2, 29, 23, 59, 59, 1, 0)))
+        .isEqualTo("2024-02-29T23:59:59.001Z");
+    assertThat(format(newDate(2024, 2, 29, 23, 59, 59, 999, 0)))
+        .isEqualTo("2024-02-29T23:59:59.999Z");
+    assertThat(format(newDate(2024, 3, 1, 0, 0, 0, 0, 0))).isEqualTo("2024-03-01T00:00:00.000Z");
+    assertThat(format(new Date(-1))).isEqualTo("1969-12-31T23:59:59.999Z");
+  }
+
+  @Test
+  public void toJsonMatchesCalendarFormatting() {
+    SimpleDateFormat calendarFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+    calendarFormat.setTimeZone(TimeZone.getTimeZone("GMT"));
+    Random random = new Random(0);
+    for (int i = 0; i < 10_000; i++) {
+      // from the year 1 to 9999, including the Julian dates before 1583
+      Date date = new Date(-62135596800000L + (long) (random.nextDouble() * 3.15e14));
+      assertThat(format(date)).isEqualTo(calendarFormat.format(date));
+    }
+  }
 }
@@ -0,0 +1,121 @@
+package com.segment.analytics.gson;
+
+import static com.segment.analytics.TestUtils.newDate;
+import static org.assertj.core.api.Assertions.assertThat;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.segment.analytics.TestUtils;
+import com.segment.analytics.messages.Batch;
+import com.segment.analytics.messages.GroupMessage;
+import com.segment.analytics.messages.IdentifyMessage;
+import com.segment.analytics.messages.Message;
+import com.segment.analytics.messages.PageMessage;
+import com.segment.analytics.messages.ScreenMessage;
+import com.segment.analytics.messages.TrackMessage;
+import com.squareup.burst.BurstJUnit4;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+@RunWith(BurstJUnit4.class)
+public class MessageTypeAdapterFactoryTest {
+  private static final Gson REFLECTIVE = builder().create();
+  private static final Gson STREAMING =
+      builder().registerTypeAdapterFactory(new MessageTypeAdapterFactory()).create();
+
+  private static GsonBuilder builder() {
+    return new GsonBuilder()
+        .registerTypeAdapterFactory(new AutoValueAdapterFactory())
+        .registerTypeAdapter(Date.class, new ISO8601DateAdapter());
+  }
+
+  private static final Map<String, Object> PROPERTIES =
+      ImmutableMap.<String, Object>of(
+          "revenue",
+          19.99,
+          "tags",
+          Arrays.asList("a", "b"),
+          "purchasedAt",
+          newDate(2024, 5, 1, 12, 30, 0, 250, 0),
+          "nested",
+          ImmutableMap.of("key", "<value>"));
+
+  private static void assertSameJson(Object value) {
+    assertThat(STREAMING.toJson(value)).isEqualTo(REFLECTIVE.toJson(value));
+  }
+
+  @Test
+  public void writesCommonFieldsLikeReflection(TestUtils.MessageBuilderFactory factory) {
+    Message message =
+        factory
+            .get()
+            .userId("userId")
+            .anonymousId("anonymousId")
+            .messageId("messageId")
+            .sentAt(newDate(2024, 5, 1, 12, 0, 0, 0, 0))
+            .timestamp(newDate(2024, 5, 1, 11, 59, 59, 999, 0))
+            .context(PROPERTIES)
+            .enableIntegration("Amplitude", false)
+            .build();
+
+    assertSameJson(message);
+  }
+
+  @Test
+  public void skipsNullFieldsLikeReflection(TestUtils.MessageBuilderFactory factory) {
+    Message message = factory.get().userId("userId").build();
+
+    assertSameJson(message);
+    assertThat(STREAMING.toJson(message)).doesNotContain("anonymousId");
+  }
+
+  @Test
+  public void writesTypeFieldsLikeReflection() {
+    assertSameJson(TrackMessage.builder("event").userId("userId").properties(PROPERTIES).build());
+    assertSameJson(IdentifyMessage.builder().userId("userId").traits(PROPERTIES).build());
+    assertSameJson(GroupMessage.builder("groupId").userId("userId").traits(PROPERTIES).build());
+    assertSameJson(ScreenMessage.builder("name").userId("userId").properties(PROPERTIES).build());
+    assertSameJson(
+        PageMessage.builder("name")
+            .userId("userId")
+            .properties(PROPERTIES)
+            .category("category")
+            .build());
+  }
+
+  @Test
+  public void writesBatchLikeReflection() {
+    List<Message> messages =
+        ImmutableList.<Message>of(
+            TrackMessage.builder("event").userId("userId").properties(PROPERTIES).build(),
+            IdentifyMessage.builder().userId("userId").traits(PROPERTIES).build());
+    Batch batch = Batch.create(ImmutableMap.of("library", "analytics-java"), messages, "writeKey");
+
+    assertSameJson(batch);
+  }
+
+  @Test
+  public void readsWhatItWrites(TestUtils.MessageBuilderFactory factory) {
+    Message message =
+        factory.get().userId("userId").context(ImmutableMap.of("ip", "10.0.0.1")).build();
+
+    Message read = STREAMING.fromJson(STREAMING.toJson(message), message.getClass());
+
+    assertThat(read).isEqualTo(message);
+  }
+
+  @Test
+  public void readsAbstractMessageTypes() {
+    TrackMessage message = TrackMessage.builder("event").userId("userId").build();
+
+    TrackMessage read = STREAMING.fromJson(STREAMING.toJson(message), TrackMessage.class);
+
+    assertThat(read).isEqualTo(message);
+  }
+}
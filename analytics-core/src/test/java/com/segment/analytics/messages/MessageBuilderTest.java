@@ -31,6 +31,36 @@ public class MessageBuilderTest {
     assertThat(builder.get().type()).isNotNull();
   }
 
+  @Test
+  public void identities(TestUtils.MessageBuilderFactory builder) {
+    MessageBuilder messageBuilder = builder.get();
+    assertThat(messageBuilder.userId()).isNull();
+    assertThat(messageBuilder.anonymousId()).isNull();
+
+    messageBuilder.userId("foo").anonymousId("bar");
+    assertThat(messageBuilder.userId()).isEqualTo("foo");
+    assertThat(messageBuilder.anonymousId()).isEqualTo("bar");
+  }
+
+  @Test
+  public void messageIdIsReadable(TestUtils.MessageBuilderFactory builder) {
+    MessageBuilder messageBuilder = builder.get();
+    assertThat(messageBuilder.messageId()).isNull();
+
+    messageBuilder.messageId("foo");
+    assertThat(messageBuilder.messageId()).isEqualTo("foo");
+  }
+
+  @Test
+  public void timestampIsReadable(TestUtils.MessageBuilderFactory builder) {
+    MessageBuilder messageBuilder = builder.get();
+    assertThat(messageBuilder.timestamp()).isNull();
+
+    Date timestamp = new Date(1000);
+    messageBuilder.timestamp(timestamp);
+    assertThat(messageBuilder.timestamp()).isEqualTo(timestamp);
+  }
+
   @Test
   public void emptyStringMessageIdThrowsException(TestUtils.MessageBuilderFactory builder) {
     try {
@@ -26,6 +26,11 @@ public class TrackMessageTest {
     }
   }
 
+  @Test
+  public void event() {
+    assertThat(TrackMessage.builder("foo").event()).isEqualTo("foo");
+  }
+
   @Test
   public void toBuilder() {
     TrackMessage original =
@@ -1,50 +0,0 @@
-package sample;
-
-import java.io.IOException;
-import okhttp3.*;
-import okio.BufferedSink;
-import okio.GzipSink;
-import okio.Okio;
-
-/**
- * This interceptor compresses the HTTP request body. Copied from
- * https://github.com/square/okhttp/wiki/Interceptors#rewriting-requests
- */
-final class GzipRequestInterceptor implements Interceptor {
-  @Override
-  public Response intercept(Interceptor.Chain chain) throws IOException {
-    Request originalRequest = chain.request();
-    if (originalRequest.body() == null || originalRequest.header("Content-Encoding") != null) {
-      return chain.proceed(originalRequest);
-    }
-
-    Request compressedRequest =
-        originalRequest
-            .newBuilder()
-            .header("Content-Encoding", "gzip")
-            .method(originalRequest.method(), gzip(originalRequest.body()))
-            .build();
-    return chain.proceed(compressedRequest);
-  }
-
-  private RequestBody gzip(final RequestBody body) {
-    return new RequestBody() {
-      @Override
-      public MediaType contentType() {
-        return body.contentType();
-      }
-
-      @Override
-      public long contentLength() {
-        return -1; // We don't know the compressed length in advance!
-      }
-
-      @Override
-      public void writeTo(BufferedSink sink) throws IOException {
-        BufferedSink gzipSink = Okio.buffer(new GzipSink(sink));
-        body.writeTo(gzipSink);
-        gzipSink.close();
-      }
-    };
-  }
-}
@@ -1,7 +1,9 @@
 package sample;
 
 import com.segment.analytics.Analytics;
+import com.segment.analytics.Compression;
 import com.segment.analytics.messages.TrackMessage;
+import java.time.Duration;
 import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.UUID;
@@ -11,14 +13,12 @@ import okhttp3.OkHttpClient;
 
 public class Main {
   public static void main(String... args) throws Exception {
-    final BlockingFlush blockingFlush = BlockingFlush.create();
-
     // https://segment.com/segment-engineering/sources/test-java/debugger
     final Analytics analytics =
         Analytics.builder("xemyw6oe3n")
-            .plugin(blockingFlush.plugin())
             .plugin(new LoggingPlugin())
             .client(createClient())
+            .compression(Compression.GZIP)
             .build();
 
     final String userId = System.getProperty("user.name");
@@ -37,22 +37,21 @@ public class Main {
       }
     }
 
-    analytics.flush();
-    blockingFlush.block();
+    // Block until the messages are uploaded, then shut down.
+    analytics.flushAndWait(Duration.ofSeconds(30));
     analytics.shutdown();
   }
 
   /**
    * By default, the analytics client uses an HTTP client with sane defaults. However you can
-   * customize the client to your needs. For instance, this client is configured to automatically
-   * gzip outgoing requests.
+   * customize the client to your needs. Request compression doesn't need a custom client, it is
+   * configured with {@link Analytics.Builder#compression}.
    */
   private static OkHttpClient createClient() {
     return new OkHttpClient.Builder()
         .connectTimeout(15, TimeUnit.SECONDS)
         .readTimeout(15, TimeUnit.SECONDS)
         .writeTimeout(15, TimeUnit.SECONDS)
-        .addInterceptor(new GzipRequestInterceptor())
         .build();
   }
 }
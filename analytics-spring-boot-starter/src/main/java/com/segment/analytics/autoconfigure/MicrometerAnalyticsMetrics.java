@@ -0,0 +1,130 @@
+package com.segment.analytics.autoconfigure;
+
+import com.segment.analytics.AnalyticsMetrics;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Exports the measurements of a Segment Analytics client to a Micrometer {@link MeterRegistry}.
+ *
+ * <p>Every meter is registered up front, so recording a measurement only updates it.
+ */
+public class MicrometerAnalyticsMetrics implements AnalyticsMetrics {
+  private static final String PREFIX = "segment.analytics.";
+
+  private final MeterRegistry registry;
+  private final Counter messagesEnqueued;
+  private final DistributionSummary messageBytes;
+  private final Counter[] messagesDropped;
+  private final DistributionSummary batchMessages;
+  private final DistributionSummary batchBytes;
+  private final Timer batchUploads;
+  private final Counter messagesUploaded;
+  private final Counter uploadRetries;
+  private final Timer rateLimited;
+
+  public MicrometerAnalyticsMetrics(MeterRegistry registry) {
+    this.registry = registry;
+    this.messagesEnqueued =
+        Counter.builder(PREFIX + "messages.enqueued")
+            .description("Messages put on the queue")
+            .register(registry);
+    this.messageBytes =
+        DistributionSummary.builder(PREFIX + "message.size")
+            .description("Encoded size of enqueued messages")
+            .baseUnit("bytes")
+            .register(registry);
+    DropReason[] reasons = DropReason.values();
+    this.messagesDropped = new Counter[reasons.length];
+    for (DropReason reason : reasons) {
+      messagesDropped[reason.ordinal()] =
+          Counter.builder(PREFIX + "messages.dropped")
+              .description("Messages dropped without being uploaded")
+              .tag("reason", reason.name().toLowerCase(Locale.ROOT))
+              .register(registry);
+    }
+    this.batchMessages =
+        DistributionSummary.builder(PREFIX + "batch.messages")
+            .description("Messages per submitted batch")
+            .register(registry);
+    this.batchBytes =
+        DistributionSummary.builder(PREFIX + "batch.size")
+            .description("Encoded size of submitted batches")
+            .baseUnit("bytes")
+            .register(registry);
+    this.batchUploads =
+        Timer.builder(PREFIX + "batch.upload")
+            .description("Time to upload a batch, retries included")
+            .register(registry);
+    this.messagesUploaded =
+        Counter.builder(PREFIX + "messages.uploaded")
+            .description("Messages in batches the API accepted")
+            .register(registry);
+    this.uploadRetries =
+        Counter.builder(PREFIX + "upload.retries")
+            .description("Upload attempts that were retried")
+            .register(registry);
+    this.rateLimited =
+        Timer.builder(PREFIX + "rate.limited")
+            .description("Periods during which uploads were rate-limited")
+            .register(registry);
+  }
+
+  @Override
+  public void bind(Gauges gauges) {
+    Gauge.builder(PREFIX + "queue.depth", gauges, Gauges::queueDepth)
+        .description("Messages waiting in the queue")
+        .register(registry);
+    Gauge.builder(PREFIX + "queue.size", gauges, Gauges::queueSizeInBytes)
+        .description("Bytes of messages waiting in the queue")
+        .baseUnit("bytes")
+        .register(registry);
+    Gauge.builder(PREFIX + "batches.in.flight", gauges, Gauges::inFlightBatches)
+        .description("Batches being uploaded")
+        .register(registry);
+    Gauge.builder(PREFIX + "batch.size.limit", gauges, Gauges::batchSizeLimit)
+        .description("Messages at which a batch is submitted")
+        .register(registry);
+    Gauge.builder(PREFIX + "messages.spilled", gauges, Gauges::spilledMessages)
+        .description("Messages spilled to disk while rate-limited")
+        .register(registry);
+  }
+
+  @Override
+  public void messageEnqueued(int bytes) {
+    messagesEnqueued.increment();
+    messageBytes.record(bytes);
+  }
+
+  @Override
+  public void messagesDropped(DropReason reason, int messages) {
+    messagesDropped[reason.ordinal()].increment(messages);
+  }
+
+  @Override
+  public void batchSubmitted(int messages, long bytes) {
+    batchMessages.record(messages);
+    batchBytes.record(bytes);
+  }
+
+  @Override
+  public void batchUploaded(int messages, long uploadNanos) {
+    batchUploads.record(uploadNanos, TimeUnit.NANOSECONDS);
+    messagesUploaded.increment(messages);
+  }
+
+  @Override
+  public void uploadRetried() {
+    uploadRetries.increment();
+  }
+
+  @Override
+  public void rateLimited(long durationNanos) {
+    rateLimited.record(durationNanos, TimeUnit.NANOSECONDS);
+  }
+}
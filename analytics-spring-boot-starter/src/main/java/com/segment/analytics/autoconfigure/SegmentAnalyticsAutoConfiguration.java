@@ -1,7 +1,14 @@
 package com.segment.analytics.autoconfigure;
 
 import com.segment.analytics.Analytics;
+import com.segment.analytics.AnalyticsMetrics;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.ObjectProvider;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.AutoConfigureAfter;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnBean;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnClass;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnMissingBean;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.boot.context.properties.EnableConfigurationProperties;
 import org.springframework.context.annotation.Bean;
@@ -10,17 +17,41 @@ import org.springframework.context.annotation.Configuration;
 /**
  * Spring Boot autoconfiguration class for Segment Analytics.
  *
+ * <p>With Micrometer on the classpath and a {@link MeterRegistry} bean, the client reports its
+ * metrics there, unless another {@link AnalyticsMetrics} bean is defined.
+ *
  * @author Christopher Smith
  */
 @Configuration
 @EnableConfigurationProperties(SegmentProperties.class)
 @ConditionalOnProperty("segment.analytics.writeKey")
+@AutoConfigureAfter(
+  name =
+      "org.springframework.boot.actuate.autoconfigure.metrics.CompositeMeterRegistryAutoConfiguration"
+)
 public class SegmentAnalyticsAutoConfiguration {
 
   @Autowired private SegmentProperties properties;
 
   @Bean
-  public Analytics segmentAnalytics() {
-    return Analytics.builder(properties.getWriteKey()).build();
+  public Analytics segmentAnalytics(ObjectProvider<AnalyticsMetrics> metrics) {
+    Analytics.Builder builder = Analytics.builder(properties.getWriteKey());
+    AnalyticsMetrics analyticsMetrics = metrics.getIfUnique();
+    if (analyticsMetrics != null) {
+      builder.metrics(analyticsMetrics);
+    }
+    return builder.build();
+  }
+
+  @Configuration
+  @ConditionalOnClass(MeterRegistry.class)
+  @ConditionalOnBean(MeterRegistry.class)
+  static class MicrometerMetricsConfiguration {
+
+    @Bean
+    @ConditionalOnMissingBean(AnalyticsMetrics.class)
+    public MicrometerAnalyticsMetrics segmentAnalyticsMetrics(MeterRegistry registry) {
+      return new MicrometerAnalyticsMetrics(registry);
+    }
   }
 }
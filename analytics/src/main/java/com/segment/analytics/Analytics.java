@@ -5,20 +5,30 @@ import com.google.gson.GsonBuilder;
 import com.segment.analytics.gson.AutoValueAdapterFactory;
 import com.segment.analytics.gson.ISO8601DateAdapter;
 import com.segment.analytics.gson.ISO8601InstantAdapter;
+import com.segment.analytics.gson.MessageTypeAdapterFactory;
 import com.segment.analytics.http.SegmentService;
 import com.segment.analytics.internal.AnalyticsClient;
 import com.segment.analytics.internal.AnalyticsVersion;
+import com.segment.analytics.internal.ClientOptions;
+import com.segment.analytics.internal.EncodedSegmentService;
 import com.segment.analytics.messages.Message;
 import com.segment.analytics.messages.MessageBuilder;
+import java.io.File;
+import java.time.Duration;
 import java.time.Instant;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import okhttp3.ConnectionSpec;
 import okhttp3.HttpUrl;
 import okhttp3.OkHttpClient;
@@ -47,16 +57,34 @@ public class Analytics {
   private final List<MessageTransformer> messageTransformers;
   private final List<MessageInterceptor> messageInterceptors;
   private final Log log;
+  private final Deliveries deliveries;
+  // Drops messages enqueued again with the same messageId, or null.
+  private final DuplicateFilter duplicateFilter;
+  // Drops messages by event, user and rate before they are built, or null.
+  private final Sampler sampler;
+  // Builds messages on worker threads instead of the caller's, or null.
+  private final AsyncIngest ingest;
 
   Analytics(
       AnalyticsClient client,
       List<MessageTransformer> messageTransformers,
       List<MessageInterceptor> messageInterceptors,
-      Log log) {
+      Log log,
+      Deliveries deliveries,
+      DuplicateFilter duplicateFilter,
+      Sampler sampler,
+      AsyncIngest ingest) {
     this.client = client;
     this.messageTransformers = messageTransformers;
     this.messageInterceptors = messageInterceptors;
     this.log = log;
+    this.deliveries = deliveries;
+    this.duplicateFilter = duplicateFilter;
+    this.sampler = sampler;
+    this.ingest = ingest;
+    if (ingest != null) {
+      ingest.start(this::ingest);
+    }
   }
 
   /**
@@ -70,11 +98,47 @@ public class Analytics {
 
   /** Enqueue the given message to be uploaded to Segment's servers. */
   public void enqueue(MessageBuilder builder) {
+    if (ingest != null) {
+      ingest.append(builder, null, false);
+      return;
+    }
     Message message = buildMessage(builder);
     if (message == null) {
       return;
     }
-    client.enqueue(message);
+    if (client.enqueue(message)) {
+      queued(builder, message);
+    }
+  }
+
+  /**
+   * Enqueue the given message to be uploaded to Segment's servers, and return a future that tells
+   * whether it was.
+   *
+   * <p>The future completes once the message was uploaded or the library gave up on it, after
+   * {@link Callback callbacks} have been notified, and never completes exceptionally. A message
+   * above the size limit fails the future instead of throwing. Futures are completed on background
+   * threads, so dependent actions should not block.
+   */
+  public CompletableFuture<DeliveryResult> enqueueAsync(MessageBuilder builder) {
+    if (ingest != null) {
+      CompletableFuture<DeliveryResult> result = new CompletableFuture<>();
+      ingest.append(builder, result, false);
+      return result;
+    }
+    Message message = buildMessage(builder);
+    if (message == null) {
+      return CompletableFuture.completedFuture(DeliveryResult.skipped());
+    }
+    CompletableFuture<DeliveryResult> result = deliveries.track(message);
+    try {
+      if (client.enqueue(message)) {
+        queued(builder, message);
+      }
+    } catch (IllegalArgumentException e) {
+      deliveries.failure(message, e);
+    }
+    return result;
   }
 
   /**
@@ -85,21 +149,127 @@ public class Analytics {
    * @param builder
    */
   public boolean offer(MessageBuilder builder) {
+    if (ingest != null) {
+      return ingest.append(builder, null, true);
+    }
     Message message = buildMessage(builder);
     if (message == null) {
       return false;
     }
-    return client.offer(message);
+    if (!client.offer(message)) {
+      return false;
+    }
+    queued(builder, message);
+    return true;
   }
 
   /** Flush events in the message queue. */
   public void flush() {
+    if (ingest != null) {
+      ingest.barrier().thenRun(client::flush);
+      return;
+    }
     client.flush();
   }
 
+  /**
+   * Flush events in the message queue, and block until every message enqueued before this call has
+   * been uploaded or given up on, or until {@code timeout} has passed.
+   *
+   * <p>This lets short-lived processes, such as serverless functions and batch jobs, wait for their
+   * events before they exit, without guessing how long that takes.
+   *
+   * @return true if all the messages were processed, false if {@code timeout} passed first.
+   */
+  public boolean flushAndWait(Duration timeout) throws InterruptedException {
+    if (timeout == null) {
+      throw new NullPointerException("Null timeout");
+    }
+    CompletableFuture<Void> flushed =
+        ingest == null
+            ? client.flushWithAcknowledgement()
+            : ingest.barrier().thenCompose(ignored -> client.flushWithAcknowledgement());
+    try {
+      flushed.get(timeout.toNanos(), TimeUnit.NANOSECONDS);
+      return true;
+    } catch (TimeoutException e) {
+      return false;
+    } catch (ExecutionException e) {
+      throw new AssertionError("Flushes are never acknowledged exceptionally", e);
+    }
+  }
+
+  /** Returns a snapshot of the timings of batch uploads so far. */
+  public UploadStats uploadStats() {
+    return new UploadStats(
+        client.uploadMetrics(),
+        client.inFlightBatches(),
+        client.batchSizeLimit(),
+        client.adaptiveBatchSize());
+  }
+
+  /** Returns a snapshot of the messages dropped by sampling so far. */
+  public SamplingStats samplingStats() {
+    return new SamplingStats(sampler);
+  }
+
   /** Stops this instance from processing further requests. */
   public void shutdown() {
+    if (ingest != null) {
+      ingest.shutdown();
+    }
     client.shutdown();
+    deliveries.close();
+  }
+
+  /**
+   * Builds and queues a message taken from the ingest buffer, on an ingest worker. Unless it has a
+   * timestamp, the message is timestamped when it was enqueued rather than when it is built.
+   */
+  private void ingest(
+      MessageBuilder builder,
+      Date enqueuedAt,
+      CompletableFuture<DeliveryResult> result,
+      boolean offer) {
+    Message message;
+    try {
+      if (builder.timestamp() == null) {
+        builder.timestamp(enqueuedAt);
+      }
+      message = buildMessage(builder);
+    } catch (RuntimeException e) {
+      log.print(Log.Level.ERROR, e, "Could not build message %s.", builder);
+      if (result != null) {
+        result.complete(DeliveryResult.failed(null, e));
+      }
+      return;
+    }
+    if (message == null) {
+      if (result != null) {
+        result.complete(DeliveryResult.skipped());
+      }
+      return;
+    }
+    if (offer) {
+      if (client.offer(message)) {
+        queued(builder, message);
+      } else {
+        // The caller was told the message was taken, so call back for it instead.
+        client.notifyDropped(message, new IllegalStateException("Message could not be queued."));
+      }
+      return;
+    }
+    if (result != null) {
+      deliveries.track(message).thenAccept(result::complete);
+    }
+    try {
+      if (client.enqueue(message)) {
+        queued(builder, message);
+      }
+    } catch (IllegalArgumentException e) {
+      // Logged by the client; there is no caller left to throw to.
+      deliveries.failure(message, e);
+    }
   }
 
   /**
@@ -116,6 +286,10 @@ public class Analytics {
         return null;
       }
     }
+    if (sampler != null && !sampler.sample(builder)) {
+      log.print(Log.Level.VERBOSE, "Skipping sampled message %s.", builder);
+      return null;
+    }
     Message message = builder.build();
     for (MessageInterceptor messageInterceptor : messageInterceptors) {
       message = messageInterceptor.intercept(message);
@@ -124,21 +298,45 @@ public class Analytics {
         return null;
       }
     }
+    // Only an explicit messageId can repeat; a generated one would only risk a false positive.
+    if (duplicateFilter != null
+        && builder.messageId() != null
+        && duplicateFilter.mightContain(message.messageId())) {
+      log.print(Log.Level.VERBOSE, "Skipping duplicate message %s.", message.messageId());
+      return null;
+    }
     return message;
   }
 
+  /**
+   * Remembers the explicit messageId of {@code message}, built from {@code builder}, once the
+   * client queued it, so that a message it rejected may be enqueued again.
+   */
+  private void queued(MessageBuilder builder, Message message) {
+    if (duplicateFilter != null && builder.messageId() != null) {
+      duplicateFilter.add(message.messageId());
+    }
+  }
+
   /** Fluent API for creating {@link Analytics} instances. */
   public static class Builder {
     private static final String DEFAULT_ENDPOINT = "https://api.segment.io";
     private static final String DEFAULT_PATH = "/v1/import/";
     private static final String DEFAULT_USER_AGENT = "analytics-java/" + AnalyticsVersion.get();
     private static final int MESSAGE_QUEUE_MAX_BYTE_SIZE = 1024 * 500;
+    private static final long DEFAULT_SPOOL_MAX_BYTES = 64 * 1024 * 1024;
+    private static final long DEFAULT_OVERFLOW_MAX_BYTES = 128 * 1024 * 1024;
+    private static final long MIN_SPOOL_MAX_BYTES = 64 * 1024;
+    private static final int DEFAULT_VIRTUAL_THREAD_MAX_IN_FLIGHT_BATCHES = 64;
+    private static final int MAX_RING_BUFFER_CAPACITY = 1 << 24;
 
     private final String writeKey;
     private OkHttpClient client;
     private Log log;
     public HttpUrl endpoint;
     public HttpUrl uploadURL;
+    private List<HttpUrl> uploadURLs;
+    private EndpointSelection endpointSelection;
     private String userAgent = DEFAULT_USER_AGENT;
     private List<MessageTransformer> messageTransformers;
     private List<MessageInterceptor> messageInterceptors;
@@ -149,11 +347,38 @@ public class Analytics {
     private int maximumQueueSizeInBytes;
     private long flushIntervalInMillis;
     private List<Callback> callbacks;
+    private List<BatchCallback> batchCallbacks;
     private int queueCapacity;
     private boolean forceTlsV1 = false;
     private GsonBuilder gsonBuilder;
     private long maxTotalBackoffDurationMs;
     private long maxRateLimitDurationMs;
+    private boolean preEncodeMessages;
+    private Compression compression;
+    private QueueStrategy queueStrategy;
+    private int maxInFlightBatches;
+    private boolean virtualThreads;
+    private boolean asyncUploads;
+    private boolean preserveUserOrder;
+    private File spoolDirectory;
+    private long spoolMaxBytes;
+    private FsyncPolicy spoolFsyncPolicy;
+    private File overflowDirectory;
+    private long overflowMaxBytes;
+    private int minFlushQueueSize;
+    private long lingerMillis;
+    private double batchFillRatio;
+    private AnalyticsMetrics metrics;
+    private int deduplicateMaxMessageIds;
+    private double deduplicateFalsePositiveRate;
+    private Map<String, Double> eventSampleRates;
+    private double userSampleRate;
+    private int maxEventsPerSecond;
+    private double maxUploadsPerSecond;
+    private int circuitBreakerFailures;
+    private long circuitBreakerOpenMillis;
+    private int maxFlushQueueSize;
+    private int ingestWorkers;
 
     Builder(String writeKey) {
       if (writeKey == null || writeKey.trim().length() == 0) {
@@ -204,6 +429,38 @@ public class Analytics {
       return this;
     }
 
+    /**
+     * Upload to several endpoints (host and prefix, as with {@link #setUploadURL(String)}) instead
+     * of one, such as regional proxies, picking one for each upload attempt with {@code selection}.
+     *
+     * <p>An attempt that fails without a response or with a server error is retried at once on
+     * another endpoint, and an endpoint that fails three attempts in a row is skipped for 30
+     * seconds. This replaces {@link #endpoint(String)} and {@link #setUploadURL(String)}.
+     */
+    @Beta
+    public Builder uploadURLs(EndpointSelection selection, String... uploadURLs) {
+      if (selection == null) {
+        throw new NullPointerException("Null selection");
+      }
+      if (uploadURLs == null || uploadURLs.length == 0) {
+        throw new IllegalArgumentException("uploadURLs must not be empty.");
+      }
+      List<HttpUrl> urls = new ArrayList<>(uploadURLs.length);
+      for (String uploadURL : uploadURLs) {
+        if (uploadURL == null || uploadURL.trim().length() == 0) {
+          throw new NullPointerException("Upload URL cannot be null or empty.");
+        }
+        HttpUrl url = HttpUrl.parse(uploadURL);
+        if (url == null) {
+          throw new IllegalArgumentException("Invalid upload URL: " + uploadURL);
+        }
+        urls.add(url);
+      }
+      this.uploadURLs = Collections.unmodifiableList(urls);
+      this.endpointSelection = selection;
+      return this;
+    }
+
     /** Sets a user agent for HTTP requests. */
     public Builder userAgent(String userAgent) {
       if (userAgent == null || userAgent.trim().length() == 0) {
@@ -277,6 +534,136 @@ public class Analytics {
       return this;
     }
 
+    /**
+     * Let the number of messages per batch adapt to how long uploads take, between {@code
+     * minFlushQueueSize} and {@code maxFlushQueueSize}, starting from the {@link
+     * #flushQueueSize(int) flushQueueSize}.
+     *
+     * <p>Batches grow while the fixed cost of a request dominates upload times, and shrink when
+     * uploads stay slow or fail. {@link Analytics#uploadStats()} reports the current size and how
+     * often it changed.
+     */
+    @Beta
+    public Builder adaptiveFlushQueueSize(int minFlushQueueSize, int maxFlushQueueSize) {
+      if (minFlushQueueSize < 1) {
+        throw new IllegalArgumentException("minFlushQueueSize must not be less than 1.");
+      }
+      if (maxFlushQueueSize < minFlushQueueSize) {
+        throw new IllegalArgumentException(
+            "maxFlushQueueSize must not be less than minFlushQueueSize.");
+      }
+      this.minFlushQueueSize = minFlushQueueSize;
+      this.maxFlushQueueSize = maxFlushQueueSize;
+      return this;
+    }
+
+    /**
+     * Set how full batches are packed, as a fraction of the API's limit of 500 KB per batch. The
+     * size of each batch is computed exactly as it is filled, envelope included, so the default of
+     * 1 packs batches up to the limit without going over it.
+     */
+    @Beta
+    public Builder batchFillRatio(double batchFillRatio) {
+      if (!(batchFillRatio > 0 && batchFillRatio <= 1)) {
+        throw new IllegalArgumentException(
+            "batchFillRatio must be greater than 0 and not greater than 1.");
+      }
+      this.batchFillRatio = batchFillRatio;
+      return this;
+    }
+
+    /**
+     * Drop messages whose explicit {@link MessageBuilder#messageId(String) messageId} was already
+     * enqueued among roughly the last {@code maxMessageIds} such messages, before they are
+     * serialized and queued. Messages without an explicit messageId get a random one and are never
+     * checked.
+     *
+     * <p>The messageIds are remembered in Bloom filters, which take about {@code 0.52 *
+     * maxMessageIds * -ln(falsePositiveRate)} bytes: 2.4 MB for a million messageIds at 1%. A new
+     * explicit messageId is mistaken for a duplicate, and its message dropped, with about twice the
+     * {@code falsePositiveRate}.
+     */
+    @Beta
+    public Builder deduplicate(int maxMessageIds, double falsePositiveRate) {
+      if (maxMessageIds < 1) {
+        throw new IllegalArgumentException("maxMessageIds must not be less than 1.");
+      }
+      if (!(falsePositiveRate > 0 && falsePositiveRate < 1)) {
+        throw new IllegalArgumentException(
+            "falsePositiveRate must be greater than 0 and less than 1.");
+      }
+      this.deduplicateMaxMessageIds = maxMessageIds;
+      this.deduplicateFalsePositiveRate = falsePositiveRate;
+      return this;
+    }
+
+    /**
+     * Keep track messages for {@code event} with probability {@code eventSampleRate}, dropping the
+     * others before they are built. Use 0 to drop the event entirely.
+     *
+     * <p>Like the other sampling settings, this runs after {@link MessageTransformer message
+     * transformers}, and the messages it drops are counted in {@link Analytics#samplingStats()}.
+     */
+    @Beta
+    public Builder eventSampleRate(String event, double eventSampleRate) {
+      if (event == null || event.isEmpty()) {
+        throw new IllegalArgumentException("event cannot be null or empty.");
+      }
+      if (!(eventSampleRate >= 0 && eventSampleRate <= 1)) {
+        throw new IllegalArgumentException(
+            "eventSampleRate must not be less than 0 or greater than 1.");
+      }
+      if (eventSampleRates == null) {
+        eventSampleRates = new HashMap<>();
+      }
+      eventSampleRates.put(event, eventSampleRate);
+      return this;
+    }
+
+    /**
+     * Keep the messages of a fraction {@code userSampleRate} of users, dropping the others before
+     * they are built.
+     *
+     * <p>Users are picked by a hash of their userId, or of their anonymousId without one, so all
+     * the messages of a kept user are sent, and every client with the same rate keeps the same
+     * users.
+     */
+    @Beta
+    public Builder userSampleRate(double userSampleRate) {
+      if (!(userSampleRate > 0 && userSampleRate <= 1)) {
+        throw new IllegalArgumentException(
+            "userSampleRate must be greater than 0 and not greater than 1.");
+      }
+      this.userSampleRate = userSampleRate;
+      return this;
+    }
+
+    /**
+     * Drop messages, before they are built, beyond {@code maxEventsPerSecond} per second. Up to a
+     * second's worth of messages is let through at once after a quiet period.
+     */
+    @Beta
+    public Builder maxEventsPerSecond(int maxEventsPerSecond) {
+      if (maxEventsPerSecond < 1) {
+        throw new IllegalArgumentException("maxEventsPerSecond must not be less than 1.");
+      }
+      this.maxEventsPerSecond = maxEventsPerSecond;
+      return this;
+    }
+
+    /**
+     * Report measurements of the queue and of batch uploads to {@code metrics}: queue depth and
+     * bytes, batch sizes, upload latency, retries, time spent rate-limited and dropped messages.
+     */
+    @Beta
+    public Builder metrics(AnalyticsMetrics metrics) {
+      if (metrics == null) {
+        throw new NullPointerException("Null metrics");
+      }
+      this.metrics = metrics;
+      return this;
+    }
+
     /** Set the queueSize at which flushes should be triggered. */
     @Beta
     public Builder maximumQueueSizeInBytes(int bytes) {
@@ -299,6 +686,27 @@ public class Analytics {
       return this;
     }
 
+    /**
+     * Flush once the oldest queued message has waited {@code linger}, or once the queue holds
+     * {@link #flushQueueSize(int) flushQueueSize} messages, instead of every {@link
+     * #flushInterval(long, TimeUnit) flushInterval}.
+     *
+     * <p>Messages are not held longer than needed under a light load, and no timer runs while
+     * nothing is queued.
+     */
+    @Beta
+    public Builder linger(long linger, TimeUnit unit) {
+      if (unit == null) {
+        throw new NullPointerException("Null unit");
+      }
+      long lingerMillis = unit.toMillis(linger);
+      if (lingerMillis < 1) {
+        throw new IllegalArgumentException("linger must not be less than 1 millisecond.");
+      }
+      this.lingerMillis = lingerMillis;
+      return this;
+    }
+
     /**
      * Set how many retries should happen before getting exhausted. Default is 10 retries with
      * exponential backoff starting at 500ms (capped at 1 minute per attempt).
@@ -330,6 +738,61 @@ public class Analytics {
       return this;
     }
 
+    /**
+     * Upload each batch on its own virtual thread, on Java 21 and later, instead of on the single
+     * platform thread of the default network executor. A batch waiting on the network or on a retry
+     * then no longer holds up the others, and at most 64 batches are uploaded at once unless {@link
+     * #maxInFlightBatches(int)} is set. Batching still runs on one platform thread.
+     *
+     * <p>On older JVMs, or when a {@link #networkExecutor(ExecutorService) network executor} is
+     * set, this has no effect.
+     */
+    @Beta
+    public Builder virtualThreads() {
+      this.virtualThreads = true;
+      return this;
+    }
+
+    /**
+     * Transform, build, size-check and encode messages on {@code workers} threads of the {@link
+     * #threadFactory(ThreadFactory) thread factory}, instead of on the threads that enqueue them.
+     * The {@code enqueue} methods then only append the message builder to a lock-free buffer, which
+     * must not be changed afterwards; a message without a timestamp is timestamped when it was
+     * enqueued.
+     *
+     * <p>Messages enqueued together may be queued in a different order when there is more than one
+     * worker, so more than one worker cannot be combined with {@link #preserveUserOrder()}. A
+     * message that cannot be built or is above the size limit is logged rather than thrown, and
+     * fails the future of {@link Analytics#enqueueAsync}. Up to {@link #queueCapacity(int)
+     * queueCapacity} messages wait in the buffer; beyond that they are dropped instead of blocking
+     * the caller. Messages are {@link #preEncodeMessages() pre-encoded}, as the workers serialize
+     * them anyway.
+     */
+    @Beta
+    public Builder asyncIngest(int workers) {
+      if (workers < 1) {
+        throw new IllegalArgumentException("workers must not be less than 1.");
+      }
+      this.ingestWorkers = workers;
+      return this;
+    }
+
+    /**
+     * Upload batches with OkHttp's asynchronous calls instead of blocking a network thread for each
+     * upload, and wait for retries on a timer instead of a sleeping thread. A few threads then keep
+     * any number of batches in flight, for example while the API is rate-limiting uploads; use
+     * {@link #maxInFlightBatches(int)} to bound them.
+     *
+     * <p>The network executor only prepares each batch. Requests run on the {@link
+     * okhttp3.Dispatcher dispatcher} of the {@link #client(OkHttpClient) client}, which limits how
+     * many run at once.
+     */
+    @Beta
+    public Builder asyncUploads() {
+      this.asyncUploads = true;
+      return this;
+    }
+
     /** Add a {@link Callback} to be notified when an event is processed. */
     public Builder callback(Callback callback) {
       if (callback == null) {
@@ -345,6 +808,24 @@ public class Analytics {
       return this;
     }
 
+    /**
+     * Add a {@link BatchCallback} to be notified once per batch when it is processed. Unlike a
+     * {@link Callback}, it is not called for each message of the batch.
+     */
+    public Builder batchCallback(BatchCallback batchCallback) {
+      if (batchCallback == null) {
+        throw new NullPointerException("Null batchCallback");
+      }
+      if (batchCallbacks == null) {
+        batchCallbacks = new ArrayList<>();
+      }
+      if (batchCallbacks.contains(batchCallback)) {
+        throw new IllegalStateException("BatchCallback is already registered.");
+      }
+      batchCallbacks.add(batchCallback);
+      return this;
+    }
+
     /** Use a {@link Plugin} to configure the builder. */
     @Beta
     public Builder plugin(Plugin plugin) {
@@ -387,6 +868,192 @@ public class Analytics {
       return this;
     }
 
+    /**
+     * Serialize each message exactly once, when it is enqueued, and reuse those bytes for batch
+     * sizing and for the upload body. By default messages are serialized on enqueue for size checks
+     * and serialized again when the batch is uploaded.
+     */
+    @Beta
+    public Builder preEncodeMessages() {
+      preEncodeMessages = true;
+      return this;
+    }
+
+    /**
+     * Set the compression applied to batch uploads. Batches are uploaded uncompressed ({@link
+     * Compression#NONE}) by default. Compressed batches are compressed once and sent with an exact
+     * {@code Content-Length}; retries reuse the compressed bytes.
+     */
+    public Builder compression(Compression compression) {
+      if (compression == null) {
+        throw new NullPointerException("Null compression");
+      }
+      this.compression = compression;
+      return this;
+    }
+
+    /**
+     * Set the queue that buffers messages until they are batched. Uses {@link
+     * QueueStrategy#LINKED_BLOCKING_QUEUE} by default; {@link QueueStrategy#RING_BUFFER} avoids
+     * lock contention when many threads enqueue concurrently.
+     */
+    @Beta
+    public Builder queueStrategy(QueueStrategy queueStrategy) {
+      if (queueStrategy == null) {
+        throw new NullPointerException("Null queueStrategy");
+      }
+      this.queueStrategy = queueStrategy;
+      return this;
+    }
+
+    /**
+     * Set the maximum number of batches uploaded at once. Once the limit is reached, batching waits
+     * for an upload to finish, which bounds the memory held by pending uploads. There is no limit
+     * by default.
+     *
+     * <p>Uploads run on the {@link #networkExecutor(ExecutorService) network executor}. If none is
+     * set, the default executor has one thread per in-flight batch instead of a single thread.
+     */
+    public Builder maxInFlightBatches(int maxInFlightBatches) {
+      if (maxInFlightBatches < 1) {
+        throw new IllegalArgumentException("maxInFlightBatches must be at least 1.");
+      }
+      this.maxInFlightBatches = maxInFlightBatches;
+      return this;
+    }
+
+    /**
+     * Pace batch uploads at up to {@code maxUploadsPerSecond}, so they stay under the API's rate
+     * limit instead of being rejected in flight and sent again.
+     *
+     * <p>The pace adapts to the API: it is halved when an upload is rate-limited, down to a batch
+     * every ten seconds, and grows back by one batch per second for every second's worth of batches
+     * accepted. Batches wait in memory for their turn; on shutdown, they are all sent at once.
+     */
+    @Beta
+    public Builder maxUploadsPerSecond(double maxUploadsPerSecond) {
+      if (!(maxUploadsPerSecond > 0)) {
+        throw new IllegalArgumentException("maxUploadsPerSecond must be greater than 0.");
+      }
+      this.maxUploadsPerSecond = maxUploadsPerSecond;
+      return this;
+    }
+
+    /**
+     * Stop uploading once {@code failureThreshold} upload attempts in a row failed without a
+     * response or with a server error, instead of letting every batch retry against a host that is
+     * down.
+     *
+     * <p>While the circuit is open, new batches are held in memory, or on disk with {@link
+     * #overflowToDisk(File)}, and batches already in flight wait before their next attempt. After
+     * {@code openDuration}, a single attempt probes the host: if it gets an answer, every batch is
+     * let through again; otherwise the circuit stays open for another {@code openDuration}. Time
+     * spent waiting counts towards {@link #maxTotalBackoffDuration(long, TimeUnit)}.
+     */
+    @Beta
+    public Builder circuitBreaker(int failureThreshold, long openDuration, TimeUnit unit) {
+      if (failureThreshold < 1) {
+        throw new IllegalArgumentException("failureThreshold must not be less than 1.");
+      }
+      if (unit == null) {
+        throw new NullPointerException("Null unit");
+      }
+      long openMillis = unit.toMillis(openDuration);
+      if (openMillis < 1) {
+        throw new IllegalArgumentException("openDuration must not be less than 1 millisecond.");
+      }
+      this.circuitBreakerFailures = failureThreshold;
+      this.circuitBreakerOpenMillis = openMillis;
+      return this;
+    }
+
+    /**
+     * Upload batches that contain messages of the same user (by userId, or anonymousId when there
+     * is none) one at a time, so each user's messages reach Segment in the order they were enqueued
+     * even when several batches are uploaded concurrently. Batches of other users are still
+     * uploaded in parallel: a batch waiting for an earlier batch of one of its users does not hold
+     * up the batches after it.
+     */
+    @Beta
+    public Builder preserveUserOrder() {
+      this.preserveUserOrder = true;
+      return this;
+    }
+
+    /**
+     * Persist enqueued messages in {@code directory} until they have been uploaded, so that they
+     * survive a crash or restart. Messages left in the spool are enqueued again when the next
+     * client using the same directory is built. Only one client may use a directory at a time;
+     * building a second one fails while the first holds the directory's lock.
+     *
+     * <p>A message is removed from the spool once its batch was accepted or rejected for good by
+     * the API. Batches that exhaust their retries, and messages still queued when the client is
+     * shut down, stay in the spool and are uploaded again after a restart. Once the spool is full,
+     * the oldest of the batches that exhausted their retries are dropped to make room.
+     */
+    @Beta
+    public Builder spool(File directory) {
+      if (directory == null) {
+        throw new NullPointerException("Null directory");
+      }
+      this.spoolDirectory = directory;
+      return this;
+    }
+
+    /**
+     * Set the maximum disk space used by the {@link #spool(File) spool}. Once it is full, further
+     * messages are only kept in memory until space is freed. Defaults to 64 MB.
+     */
+    @Beta
+    public Builder spoolMaxBytes(long bytes) {
+      if (bytes < MIN_SPOOL_MAX_BYTES) {
+        throw new IllegalArgumentException("spoolMaxBytes must not be less than 65536.");
+      }
+      this.spoolMaxBytes = bytes;
+      return this;
+    }
+
+    /**
+     * Set when the {@link #spool(File) spool} forces messages to disk. Defaults to {@link
+     * FsyncPolicy#ON_FLUSH}.
+     */
+    @Beta
+    public Builder spoolFsyncPolicy(FsyncPolicy fsyncPolicy) {
+      if (fsyncPolicy == null) {
+        throw new NullPointerException("Null fsyncPolicy");
+      }
+      this.spoolFsyncPolicy = fsyncPolicy;
+      return this;
+    }
+
+    /**
+     * While the API is rate-limiting uploads, keep at most one batch of messages in memory and
+     * write the rest to temporary files in {@code directory}, so a long rate limit does not grow
+     * the heap. The messages written to disk are uploaded in the order they were enqueued once the
+     * rate limit is over. Files left in the directory by an earlier process are deleted.
+     */
+    @Beta
+    public Builder overflowToDisk(File directory) {
+      if (directory == null) {
+        throw new NullPointerException("Null directory");
+      }
+      this.overflowDirectory = directory;
+      return this;
+    }
+
+    /**
+     * Set the maximum disk space used by {@link #overflowToDisk(File) overflow files}. Once it is
+     * full, further messages are failed until the rate limit is over. Defaults to 128 MB.
+     */
+    @Beta
+    public Builder overflowMaxBytes(long bytes) {
+      if (bytes < MIN_SPOOL_MAX_BYTES) {
+        throw new IllegalArgumentException("overflowMaxBytes must not be less than 65536.");
+      }
+      this.overflowMaxBytes = bytes;
+      return this;
+    }
+
     /** Create a {@link Analytics} client. */
     public Analytics build() {
       if (gsonBuilder == null) {
@@ -395,6 +1062,7 @@ public class Analytics {
 
       gsonBuilder
           .registerTypeAdapterFactory(new AutoValueAdapterFactory())
+          .registerTypeAdapterFactory(new MessageTypeAdapterFactory())
           .registerTypeAdapter(Instant.class, new ISO8601InstantAdapter())
           .registerTypeAdapter(Date.class, new ISO8601DateAdapter());
 
@@ -418,6 +1086,14 @@ public class Analytics {
       if (flushIntervalInMillis == 0) {
         flushIntervalInMillis = Platform.get().defaultFlushIntervalInMillis();
       }
+      if (queueStrategy == QueueStrategy.RING_BUFFER && queueCapacity > MAX_RING_BUFFER_CAPACITY) {
+        throw new IllegalArgumentException(
+            "queueCapacity must not be greater than 16777216 with a ring buffer.");
+      }
+      if (preserveUserOrder && ingestWorkers > 1) {
+        throw new IllegalArgumentException(
+            "asyncIngest must not use more than 1 worker with preserveUserOrder.");
+      }
       if (queueCapacity == 0) {
         queueCapacity = Integer.MAX_VALUE;
       }
@@ -430,6 +1106,12 @@ public class Analytics {
       if (maximumFlushAttempts == 0) {
         maximumFlushAttempts = 10;
       }
+      if (batchFillRatio == 0) {
+        batchFillRatio = 1;
+      }
+      if (metrics == null) {
+        metrics = AnalyticsMetrics.NONE;
+      }
       if (messageTransformers == null) {
         messageTransformers = Collections.emptyList();
       } else {
@@ -440,8 +1122,21 @@ public class Analytics {
       } else {
         messageInterceptors = Collections.unmodifiableList(messageInterceptors);
       }
+      if (networkExecutor == null && virtualThreads) {
+        networkExecutor = Platform.get().virtualThreadNetworkExecutor();
+        if (networkExecutor == null) {
+          log.print(
+              Log.Level.DEBUG,
+              "Virtual threads are not available on this JVM, uploading on platform threads.");
+        } else if (maxInFlightBatches == 0) {
+          maxInFlightBatches = DEFAULT_VIRTUAL_THREAD_MAX_IN_FLIGHT_BATCHES;
+        }
+      }
       if (networkExecutor == null) {
-        networkExecutor = Platform.get().defaultNetworkExecutor();
+        networkExecutor =
+            maxInFlightBatches > 1
+                ? Platform.get().defaultNetworkExecutor(maxInFlightBatches)
+                : Platform.get().defaultNetworkExecutor();
       }
       if (threadFactory == null) {
         threadFactory = Platform.get().defaultThreadFactory();
@@ -451,12 +1146,32 @@ public class Analytics {
       } else {
         callbacks = Collections.unmodifiableList(callbacks);
       }
+      // Called back last, so that enqueueAsync futures complete after the other callbacks ran.
+      Deliveries deliveries = new Deliveries();
+      List<BatchCallback> clientBatchCallbacks =
+          batchCallbacks == null ? new ArrayList<>() : new ArrayList<>(batchCallbacks);
+      clientBatchCallbacks.add(deliveries);
       if (maxTotalBackoffDurationMs == 0) {
         maxTotalBackoffDurationMs = 43200 * 1000L; // 12 hours
       }
       if (maxRateLimitDurationMs == 0) {
         maxRateLimitDurationMs = 43200 * 1000L; // 12 hours
       }
+      if (compression == null) {
+        compression = Compression.NONE;
+      }
+      if (queueStrategy == null) {
+        queueStrategy = QueueStrategy.LINKED_BLOCKING_QUEUE;
+      }
+      if (spoolMaxBytes == 0) {
+        spoolMaxBytes = DEFAULT_SPOOL_MAX_BYTES;
+      }
+      if (spoolFsyncPolicy == null) {
+        spoolFsyncPolicy = FsyncPolicy.ON_FLUSH;
+      }
+      if (overflowMaxBytes == 0) {
+        overflowMaxBytes = DEFAULT_OVERFLOW_MAX_BYTES;
+      }
 
       HttpLoggingInterceptor interceptor =
           new HttpLoggingInterceptor(
@@ -494,7 +1209,7 @@ public class Analytics {
               .client(client)
               .build();
 
-      SegmentService segmentService = restAdapter.create(SegmentService.class);
+      SegmentService segmentService = restAdapter.create(EncodedSegmentService.class);
 
       AnalyticsClient analyticsClient =
           AnalyticsClient.create(
@@ -512,9 +1227,59 @@ public class Analytics {
               writeKey,
               gson,
               maxTotalBackoffDurationMs,
-              maxRateLimitDurationMs);
+              maxRateLimitDurationMs,
+              new ClientOptions()
+                  .preEncodeMessages(preEncodeMessages || ingestWorkers > 0)
+                  .compression(compression)
+                  .queueStrategy(queueStrategy)
+                  .maxInFlightBatches(maxInFlightBatches)
+                  .maxUploadsPerSecond(maxUploadsPerSecond)
+                  .circuitBreaker(circuitBreakerFailures, circuitBreakerOpenMillis)
+                  .uploadUrls(
+                      uploadURLs == null ? Collections.<HttpUrl>emptyList() : uploadURLs,
+                      endpointSelection == null
+                          ? EndpointSelection.WEIGHTED_ROUND_ROBIN
+                          : endpointSelection)
+                  .preserveUserOrder(preserveUserOrder)
+                  .asyncUploads(asyncUploads)
+                  .spool(spoolDirectory, spoolMaxBytes, spoolFsyncPolicy)
+                  .overflowToDisk(overflowDirectory, overflowMaxBytes)
+                  .adaptiveBatchSize(minFlushQueueSize, maxFlushQueueSize)
+                  .linger(lingerMillis)
+                  .batchFillRatio(batchFillRatio)
+                  .metrics(metrics)
+                  .batchCallbacks(Collections.unmodifiableList(clientBatchCallbacks)));
+
+      DuplicateFilter duplicateFilter =
+          deduplicateMaxMessageIds > 0
+              ? new DuplicateFilter(deduplicateMaxMessageIds, deduplicateFalsePositiveRate)
+              : null;
+
+      Sampler sampler = null;
+      if (eventSampleRates != null || userSampleRate > 0 || maxEventsPerSecond > 0) {
+        sampler =
+            new Sampler(
+                eventSampleRates == null
+                    ? Collections.<String, Double>emptyMap()
+                    : new HashMap<>(eventSampleRates),
+                userSampleRate == 0 ? 1 : userSampleRate,
+                maxEventsPerSecond);
+      }
+
+      AsyncIngest ingest =
+          ingestWorkers > 0
+              ? new AsyncIngest(ingestWorkers, queueCapacity, threadFactory, log, metrics)
+              : null;
 
-      return new Analytics(analyticsClient, messageTransformers, messageInterceptors, log);
+      return new Analytics(
+          analyticsClient,
+          messageTransformers,
+          messageInterceptors,
+          log,
+          deliveries,
+          duplicateFilter,
+          sampler,
+          ingest);
     }
   }
 }
@@ -0,0 +1,72 @@
+package com.segment.analytics;
+
+/**
+ * Receives measurements of the client's queue and uploads, to export them to a metrics system.
+ *
+ * <p>Counters and histograms are updated from the threads that enqueue messages, from the looper
+ * and from the network threads, so implementations must be thread-safe and fast; none of the
+ * methods allocate on the client's side. Gauges are read on demand through the {@link Gauges}
+ * passed to {@link #bind(Gauges)}. Every method does nothing by default.
+ */
+public interface AnalyticsMetrics {
+  /** Why messages were dropped without being uploaded. */
+  enum DropReason {
+    /** The message was larger than the API's limit of 32 KB. */
+    TOO_LARGE,
+    /** The message queue was full. */
+    QUEUE_FULL,
+    /** The API rejected the batch with a status that is not retried, or the upload failed. */
+    REJECTED,
+    /** The batch was retried for as long or as often as the client allows. */
+    RETRIES_EXHAUSTED,
+    /** The client shut down before the batch could be uploaded. */
+    SHUTDOWN,
+    /** The message could not be written to or read back from the overflow directory. */
+    OVERFLOW_FAILED
+  }
+
+  /** The state of a client, read when a metrics system samples it. */
+  interface Gauges {
+    /** Returns the number of messages, flushes included, waiting in the message queue. */
+    int queueDepth();
+
+    /** Returns the encoded bytes of the messages waiting in the message queue. */
+    long queueSizeInBytes();
+
+    /** Returns the number of batches being uploaded. */
+    int inFlightBatches();
+
+    /** Returns the number of messages at which a batch is submitted. */
+    int batchSizeLimit();
+
+    /** Returns the number of messages spilled to disk and waiting to be uploaded. */
+    int spilledMessages();
+  }
+
+  /** Called once the client is created, with the gauges of its state. */
+  default void bind(Gauges gauges) {}
+
+  /** Called when a message of {@code bytes} encoded bytes is put on the queue. */
+  default void messageEnqueued(int bytes) {}
+
+  /** Called when {@code messages} messages are dropped for {@code reason}. */
+  default void messagesDropped(DropReason reason, int messages) {}
+
+  /** Called when the looper submits a batch of {@code messages} messages for upload. */
+  default void batchSubmitted(int messages, long bytes) {}
+
+  /**
+   * Called when a batch of {@code messages} messages has been uploaded, {@code uploadNanos} after
+   * its upload started, retries included.
+   */
+  default void batchUploaded(int messages, long uploadNanos) {}
+
+  /** Called before an upload attempt is retried, after a failure or as told by the API. */
+  default void uploadRetried() {}
+
+  /** Called when uploads are no longer rate-limited, with how long they had been. */
+  default void rateLimited(long durationNanos) {}
+
+  /** An {@link AnalyticsMetrics} implementation which does nothing. */
+  AnalyticsMetrics NONE = new AnalyticsMetrics() {};
+}
@@ -0,0 +1,261 @@
+package com.segment.analytics;
+
+import static com.segment.analytics.Log.Level.ERROR;
+
+import com.segment.analytics.AnalyticsMetrics.DropReason;
+import com.segment.analytics.messages.MessageBuilder;
+import java.util.Date;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Builds enqueued messages on a pool of worker threads, instead of on the threads that enqueue
+ * them. See {@link Analytics.Builder#asyncIngest(int)}.
+ *
+ * <p>Callers only append the message builder to a lock-free buffer, and wake a worker if one is
+ * idle. Workers take builders from the buffer in turn and hand them to the {@link Handler}, which
+ * transforms and builds the message, then has the client check its size, encode it and queue it.
+ *
+ * <p>A {@link #barrier() barrier} completes once every builder appended before it has been handed
+ * over, so that flushes cover the messages still in the buffer.
+ */
+final class AsyncIngest {
+  // How long a worker at a barrier waits before checking on the other workers again.
+  private static final long BARRIER_POLL_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+  private static final long SHUTDOWN_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(5);
+
+  /** Builds and queues the messages taken from the buffer. */
+  interface Handler {
+    /**
+     * Builds and queues the message of {@code builder}, timestamped {@code enqueuedAt} unless it
+     * has a timestamp, completing {@code result} if it is not null, offering the message to the
+     * queue instead of waiting for room if {@code offer} is set.
+     */
+    void handle(
+        MessageBuilder builder,
+        Date enqueuedAt,
+        CompletableFuture<DeliveryResult> result,
+        boolean offer);
+  }
+
+  private final Queue<Entry> buffer = new ConcurrentLinkedQueue<>();
+  private final Queue<Worker> idleWorkers = new ConcurrentLinkedQueue<>();
+  // Builders in the buffer, barriers excluded.
+  private final AtomicInteger size = new AtomicInteger();
+  private final int capacity;
+  private final Worker[] workers;
+  private final ThreadFactory threadFactory;
+  private final Log log;
+  private final AnalyticsMetrics metrics;
+  private Handler handler;
+  private volatile boolean stopped;
+
+  AsyncIngest(
+      int workers, int capacity, ThreadFactory threadFactory, Log log, AnalyticsMetrics metrics) {
+    if (workers < 1) {
+      throw new IllegalArgumentException("workers must not be less than 1.");
+    }
+    this.workers = new Worker[workers];
+    this.capacity = capacity;
+    this.threadFactory = threadFactory;
+    this.log = log;
+    this.metrics = metrics;
+  }
+
+  /** Starts the workers, which hand the builders they take from the buffer to {@code handler}. */
+  void start(Handler handler) {
+    this.handler = handler;
+    for (int i = 0; i < workers.length; i++) {
+      workers[i] = new Worker();
+      workers[i].thread = threadFactory.newThread(workers[i]);
+    }
+    for (Worker worker : workers) {
+      worker.thread.start();
+    }
+  }
+
+  /**
+   * Appends {@code builder} to the buffer, along with the time it was enqueued, and returns false
+   * if it is full or shut down, in which case {@code result}, if not null, is failed.
+   */
+  boolean append(MessageBuilder builder, CompletableFuture<DeliveryResult> result, boolean offer) {
+    if (stopped) {
+      log.print(ERROR, "Attempt to enqueue a message when shutdown has been called %s.", builder);
+      fail(result, Deliveries.shutDown());
+      return false;
+    }
+    if (size.incrementAndGet() > capacity) {
+      size.decrementAndGet();
+      if (!offer) {
+        log.print(ERROR, "Ingest buffer is full, dropping message %s.", builder);
+      }
+      metrics.messagesDropped(DropReason.QUEUE_FULL, 1);
+      fail(result, new IllegalStateException("Ingest buffer is full."));
+      return false;
+    }
+    append(new Entry(builder, new Date(), result, offer, null));
+    return true;
+  }
+
+  /**
+   * Returns a future that completes once every builder appended before this call has been handed to
+   * the handler. It completes right away once shut down, as {@link #shutdown()} hands over the
+   * builders still in the buffer.
+   */
+  CompletableFuture<Void> barrier() {
+    CompletableFuture<Void> barrier = new CompletableFuture<>();
+    if (stopped) {
+      barrier.complete(null);
+    } else {
+      append(new Entry(null, null, null, false, barrier));
+    }
+    return barrier;
+  }
+
+  private void append(Entry entry) {
+    buffer.offer(entry);
+    Worker idle = idleWorkers.poll();
+    if (idle != null) {
+      LockSupport.unpark(idle.thread);
+    }
+    if (stopped && buffer.remove(entry)) {
+      // Raced with shutdown(), which may not have seen this entry.
+      reject(entry);
+    }
+  }
+
+  /**
+   * Lets the workers hand over the builders left in the buffer, for up to 5 seconds, then stops
+   * them. Builders appended from now on are rejected.
+   */
+  void shutdown() {
+    stopped = true;
+    for (Worker worker : workers) {
+      LockSupport.unpark(worker.thread);
+    }
+    long deadline = System.nanoTime() + SHUTDOWN_TIMEOUT_NANOS;
+    try {
+      for (Worker worker : workers) {
+        TimeUnit.NANOSECONDS.timedJoin(worker.thread, deadline - System.nanoTime());
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    int dropped = 0;
+    for (Entry entry = buffer.poll(); entry != null; entry = buffer.poll()) {
+      if (reject(entry)) {
+        dropped++;
+      }
+    }
+    if (dropped > 0) {
+      log.print(ERROR, "%s buffered message(s) dropped on shutdown.", dropped);
+      metrics.messagesDropped(DropReason.SHUTDOWN, dropped);
+    }
+  }
+
+  /** Fails {@code entry}, and returns true if it held a builder rather than a barrier. */
+  private boolean reject(Entry entry) {
+    if (entry.barrier != null) {
+      entry.barrier.complete(null);
+      return false;
+    }
+    size.decrementAndGet();
+    fail(entry.result, Deliveries.shutDown());
+    return true;
+  }
+
+  private static void fail(CompletableFuture<DeliveryResult> result, Throwable error) {
+    if (result != null) {
+      result.complete(DeliveryResult.failed(null, error));
+    }
+  }
+
+  /** A builder, when it was enqueued and how to queue its message, or a barrier. */
+  private static final class Entry {
+    final MessageBuilder builder;
+    final Date enqueuedAt;
+    final CompletableFuture<DeliveryResult> result;
+    final boolean offer;
+    final CompletableFuture<Void> barrier;
+
+    Entry(
+        MessageBuilder builder,
+        Date enqueuedAt,
+        CompletableFuture<DeliveryResult> result,
+        boolean offer,
+        CompletableFuture<Void> barrier) {
+      this.builder = builder;
+      this.enqueuedAt = enqueuedAt;
+      this.result = result;
+      this.offer = offer;
+      this.barrier = barrier;
+    }
+  }
+
+  private final class Worker implements Runnable {
+    Thread thread;
+    // Set before taking an entry from the buffer, and cleared once it was handed over, so a
+    // barrier knows which workers may still hold an entry appended before it.
+    volatile boolean busy;
+    volatile long handled;
+
+    @Override
+    public void run() {
+      while (true) {
+        busy = true;
+        Entry entry = buffer.poll();
+        if (entry != null) {
+          handle(entry);
+          handled++;
+          busy = false;
+          continue;
+        }
+        busy = false;
+        if (stopped) {
+          return;
+        }
+        idleWorkers.offer(this);
+        // Check again, as an entry appended before this worker was idle woke no one.
+        if (buffer.isEmpty() && !stopped) {
+          LockSupport.park(this);
+        }
+        idleWorkers.remove(this);
+      }
+    }
+
+    private void handle(Entry entry) {
+      if (entry.barrier != null) {
+        // Holds no builder meanwhile, so that workers at other barriers do not wait on this one.
+        busy = false;
+        awaitOtherWorkers();
+        entry.barrier.complete(null);
+        return;
+      }
+      size.decrementAndGet();
+      try {
+        handler.handle(entry.builder, entry.enqueuedAt, entry.result, entry.offer);
+      } catch (RuntimeException e) {
+        log.print(ERROR, e, "Could not ingest message %s.", entry.builder);
+        fail(entry.result, e);
+      }
+    }
+
+    /** Waits for the entries the other workers took before this one took its barrier. */
+    private void awaitOtherWorkers() {
+      for (Worker worker : workers) {
+        if (worker == this || !worker.busy) {
+          continue;
+        }
+        long handled = worker.handled;
+        while (worker.busy && worker.handled == handled) {
+          LockSupport.parkNanos(BARRIER_POLL_NANOS);
+        }
+      }
+    }
+  }
+}
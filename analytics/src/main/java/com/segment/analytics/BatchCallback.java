@@ -0,0 +1,36 @@
+package com.segment.analytics;
+
+import com.segment.analytics.messages.Batch;
+
+/**
+ * Callback invoked once per batch when the client library is done processing it, instead of once
+ * per message and {@link Callback}.
+ *
+ * <p>Every message the client takes ends up in exactly one batch it calls back for. Messages
+ * dropped before an upload was attempted, for instance when the client shuts down while rate-
+ * limited, are called back for in a batch of their own, with no attempts.
+ *
+ * <p>Methods may be called on background threads, implementations must implement their own
+ * synchronization if needed. Implementations should also take care to make the methods
+ * non-blocking.
+ */
+public interface BatchCallback {
+  /**
+   * Invoked when the batch is successfully uploaded to Segment.
+   *
+   * @param statusCode the HTTP status of the successful attempt.
+   * @param attempts the number of upload attempts, the successful one included.
+   * @see Callback#success
+   */
+  void success(Batch batch, int statusCode, int attempts);
+
+  /**
+   * Invoked when the library gives up on sending a batch.
+   *
+   * @param statusCode the HTTP status of the last attempt, or 0 if it got no response or no upload
+   *     was attempted.
+   * @param attempts the number of upload attempts, which may be 0.
+   * @see Callback#failure
+   */
+  void failure(Batch batch, int statusCode, int attempts, Throwable throwable);
+}
@@ -0,0 +1,12 @@
+package com.segment.analytics;
+
+/** Compression applied to batch upload request bodies. */
+public enum Compression {
+  /** Upload batches uncompressed. This is the default. */
+  NONE,
+  /**
+   * Compress each batch with gzip and send it with {@code Content-Encoding: gzip}. The batch is
+   * compressed once and the compressed bytes are reused for retries.
+   */
+  GZIP
+}
@@ -0,0 +1,108 @@
+package com.segment.analytics;
+
+import com.segment.analytics.messages.Batch;
+import com.segment.analytics.messages.Message;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Completes the futures returned by {@link Analytics#enqueueAsync} when the client calls back for
+ * their messages.
+ *
+ * <p>Messages are matched by their messageId rather than by identity, as messages spilled to disk
+ * are read back as new instances. It is called back once per batch, so batches of messages enqueued
+ * without a future only cost a check of an empty map.
+ */
+final class Deliveries implements BatchCallback, Callback {
+  private final Map<String, Delivery> pending = new ConcurrentHashMap<>();
+  private volatile boolean closed;
+
+  /**
+   * Returns a future that completes once the client has called back for {@code message}. A message
+   * whose messageId is already pending shares the future of the earlier one.
+   */
+  CompletableFuture<DeliveryResult> track(Message message) {
+    Delivery future = new Delivery(message);
+    Delivery earlier = pending.putIfAbsent(message.messageId(), future);
+    if (earlier != null) {
+      return earlier;
+    }
+    if (closed) {
+      // Raced with close(), which may not have seen this message.
+      failure(message, shutDown());
+    }
+    return future;
+  }
+
+  @Override
+  public void success(Batch batch, int statusCode, int attempts) {
+    if (pending.isEmpty()) {
+      return;
+    }
+    for (Message message : batch.batch()) {
+      success(message);
+    }
+  }
+
+  @Override
+  public void failure(Batch batch, int statusCode, int attempts, Throwable throwable) {
+    if (pending.isEmpty()) {
+      return;
+    }
+    for (Message message : batch.batch()) {
+      failure(message, throwable);
+    }
+  }
+
+  @Override
+  public void success(Message message) {
+    if (pending.isEmpty()) {
+      return;
+    }
+    Delivery future = pending.remove(message.messageId());
+    if (future != null) {
+      future.complete(DeliveryResult.delivered(message));
+    }
+  }
+
+  @Override
+  public void failure(Message message, Throwable throwable) {
+    if (pending.isEmpty()) {
+      return;
+    }
+    Delivery future = pending.remove(message.messageId());
+    if (future != null) {
+      future.complete(DeliveryResult.failed(message, throwable));
+    }
+  }
+
+  /**
+   * Fails the messages the client has not called back for, once it has shut down, as well as any
+   * message tracked from now on.
+   */
+  void close() {
+    closed = true;
+    IOException error = shutDown();
+    Iterator<Delivery> futures = pending.values().iterator();
+    while (futures.hasNext()) {
+      Delivery future = futures.next();
+      futures.remove();
+      future.complete(DeliveryResult.failed(future.message, error));
+    }
+  }
+
+  static IOException shutDown() {
+    return new IOException("Client shut down before the message was uploaded");
+  }
+
+  private static final class Delivery extends CompletableFuture<DeliveryResult> {
+    final Message message;
+
+    Delivery(Message message) {
+      this.message = message;
+    }
+  }
+}
@@ -0,0 +1,80 @@
+package com.segment.analytics;
+
+import com.segment.analytics.messages.Message;
+
+/**
+ * What became of a message enqueued with {@link Analytics#enqueueAsync}.
+ *
+ * <p>As with {@link Callback#success}, a delivered message has been accepted by the Segment API,
+ * which sends it to integrations at a later time.
+ */
+public final class DeliveryResult {
+  /** How processing of a message ended. */
+  public enum Status {
+    /** The message was uploaded to Segment. */
+    DELIVERED,
+    /** The library gave up on sending the message; see {@link #error()}. */
+    FAILED,
+    /**
+     * A {@link MessageTransformer} or {@link MessageInterceptor} dropped the message before it was
+     * queued, it was a duplicate (see {@link Analytics.Builder#deduplicate(int, double)}), or it
+     * was sampled out (see {@link Analytics#samplingStats()}).
+     */
+    SKIPPED
+  }
+
+  private static final DeliveryResult SKIPPED = new DeliveryResult(Status.SKIPPED, null, null);
+
+  private final Status status;
+  private final Message message;
+  private final Throwable error;
+
+  private DeliveryResult(Status status, Message message, Throwable error) {
+    this.status = status;
+    this.message = message;
+    this.error = error;
+  }
+
+  static DeliveryResult delivered(Message message) {
+    return new DeliveryResult(Status.DELIVERED, message, null);
+  }
+
+  static DeliveryResult failed(Message message, Throwable error) {
+    return new DeliveryResult(Status.FAILED, message, error);
+  }
+
+  static DeliveryResult skipped() {
+    return SKIPPED;
+  }
+
+  public Status status() {
+    return status;
+  }
+
+  /** Returns true if the message was uploaded to Segment. */
+  public boolean isDelivered() {
+    return status == Status.DELIVERED;
+  }
+
+  /** Returns the message as it was queued, or null if it was skipped. */
+  public Message message() {
+    return message;
+  }
+
+  /** Returns why the message could not be sent, or null unless it {@link Status#FAILED}. */
+  public Throwable error() {
+    return error;
+  }
+
+  @Override
+  public String toString() {
+    return "DeliveryResult{"
+        + "status="
+        + status
+        + ", message="
+        + message
+        + ", error="
+        + error
+        + "}";
+  }
+}
@@ -0,0 +1,124 @@
+package com.segment.analytics;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Remembers recent messageIds in Bloom filters, to drop messages enqueued again with the same
+ * messageId. A messageId is looked up before its message is queued, and only added once it was, so
+ * that a message the queue rejected can be enqueued again.
+ *
+ * <p>Two filters sized for {@code capacity} messageIds each are kept: the current one, which
+ * messageIds are added to, and the previous one. Once the current filter holds {@code capacity}
+ * messageIds, it becomes the previous one and an empty filter takes its place, so a messageId is
+ * remembered for at least {@code capacity} and at most twice as many messages, in constant memory.
+ *
+ * <p>A messageId seen before is always recognized within that window. A new messageId is mistaken
+ * for one seen before with about twice the {@code falsePositiveRate}, as it is looked up in two
+ * filters. Two threads enqueuing the same messageId at the same time may both see it as new, in
+ * which case the API still deduplicates it.
+ */
+final class DuplicateFilter {
+  private final int capacity;
+  private final int bits;
+  private final int hashes;
+  private volatile Generation current;
+  private volatile Generation previous;
+
+  DuplicateFilter(int capacity, double falsePositiveRate) {
+    this.capacity = capacity;
+    // The optimal number of bits and hash functions for the capacity and false positive rate.
+    double optimalBits = -capacity * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2));
+    this.bits = (int) Math.max(64, Math.min(Integer.MAX_VALUE - 63, Math.ceil(optimalBits)));
+    this.hashes = Math.max(1, (int) Math.round((double) bits / capacity * Math.log(2)));
+    this.current = new Generation(bits);
+    this.previous = new Generation(bits);
+  }
+
+  /** Returns the number of bytes the filters take. */
+  long sizeInBytes() {
+    return 2L * ((bits + 63) / 64) * 8;
+  }
+
+  /** Returns true if {@code messageId} was probably added within the window. */
+  boolean mightContain(String messageId) {
+    long hash = hash(messageId);
+    return current.contains(hash, hashes) || previous.contains(hash, hashes);
+  }
+
+  /** Adds {@code messageId}, whose message was queued. */
+  void add(String messageId) {
+    Generation current = this.current;
+    current.add(hash(messageId), hashes);
+    if (current.count.incrementAndGet() == capacity) {
+      rotate(current);
+    }
+  }
+
+  private synchronized void rotate(Generation full) {
+    if (current == full) {
+      previous = full;
+      current = new Generation(bits);
+    }
+  }
+
+  /** Returns the 64-bit FNV-1a hash of {@code value}, with its bits mixed as in MurmurHash3. */
+  static long hash(String value) {
+    long hash = 0xcbf29ce484222325L;
+    for (int i = 0, length = value.length(); i < length; i++) {
+      hash ^= value.charAt(i);
+      hash *= 0x100000001b3L;
+    }
+    hash ^= hash >>> 33;
+    hash *= 0xff51afd7ed558ccdL;
+    hash ^= hash >>> 33;
+    hash *= 0xc4ceb9fe1a85ec53L;
+    hash ^= hash >>> 33;
+    return hash;
+  }
+
+  /** A Bloom filter, indexed by combining the two halves of a hash. */
+  private static final class Generation {
+    final AtomicLongArray words;
+    final int bits;
+    final AtomicInteger count = new AtomicInteger();
+
+    Generation(int bits) {
+      this.words = new AtomicLongArray((bits + 63) / 64);
+      this.bits = bits;
+    }
+
+    /** Sets the bits of {@code hash}. */
+    void add(long hash, int hashes) {
+      int hash1 = (int) hash;
+      int hash2 = (int) (hash >>> 32);
+      for (int i = 1; i <= hashes; i++) {
+        int bit = index(hash1 + i * hash2);
+        int word = bit >>> 6;
+        long mask = 1L << bit;
+        long value;
+        while (((value = words.get(word)) & mask) == 0) {
+          if (words.compareAndSet(word, value, value | mask)) {
+            break;
+          }
+        }
+      }
+    }
+
+    boolean contains(long hash, int hashes) {
+      int hash1 = (int) hash;
+      int hash2 = (int) (hash >>> 32);
+      for (int i = 1; i <= hashes; i++) {
+        int bit = index(hash1 + i * hash2);
+        if ((words.get(bit >>> 6) & (1L << bit)) == 0) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    private int index(int combined) {
+      return (combined & Integer.MAX_VALUE) % bits;
+    }
+  }
+}
@@ -0,0 +1,23 @@
+package com.segment.analytics;
+
+/**
+ * How each upload attempt picks one of several upload URLs; see {@link
+ * Analytics.Builder#uploadURLs(EndpointSelection, String...)}.
+ *
+ * <p>Either way, an endpoint that failed three attempts in a row is skipped for 30 seconds, unless
+ * every endpoint is, and an attempt that failed without a response or with a server error is
+ * retried at once on another endpoint.
+ */
+public enum EndpointSelection {
+  /**
+   * Spread attempts over the endpoints in turn, in proportion to their health: the weight of an
+   * endpoint halves with each failure in a row, and is restored by an attempt that succeeds.
+   */
+  WEIGHTED_ROUND_ROBIN,
+  /**
+   * Send attempts to the endpoint that has been answering the fastest, trying each endpoint once
+   * first to measure it. Latencies are averaged over recent attempts, and count double for each
+   * failure in a row.
+   */
+  LEAST_LATENCY
+}
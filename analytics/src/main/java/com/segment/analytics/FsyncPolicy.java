@@ -0,0 +1,17 @@
+package com.segment.analytics;
+
+/**
+ * When the disk spool forces written messages to the storage device. See {@link
+ * Analytics.Builder#spool(java.io.File)}.
+ *
+ * <p>Spooled messages are written to memory-mapped files, so they survive a crash of the process
+ * under every policy. The policy only decides how much can be lost if the machine itself goes down.
+ */
+public enum FsyncPolicy {
+  /** Leave writing to the operating system. The fastest, and the least durable. */
+  NEVER,
+  /** Force spooled messages to disk on every flush. This is the default. */
+  ON_FLUSH,
+  /** Force every message to disk as it is enqueued. The slowest, and the most durable. */
+  ALWAYS
+}
@@ -18,7 +18,12 @@ class Platform {
   }
 
   private static Platform findPlatform() {
-    return new Platform();
+    try {
+      Thread.class.getMethod("ofVirtual");
+      return new VirtualThreads();
+    } catch (NoSuchMethodException ignored) {
+      return new Platform();
+    }
   }
 
   OkHttpClient defaultClient() {
@@ -35,6 +40,18 @@ class Platform {
     return Executors.newSingleThreadExecutor(defaultThreadFactory());
   }
 
+  ExecutorService defaultNetworkExecutor(int threads) {
+    return Executors.newFixedThreadPool(threads, defaultThreadFactory());
+  }
+
+  /**
+   * Returns an executor that runs each upload on a new virtual thread, or null if this JVM has no
+   * virtual threads.
+   */
+  ExecutorService virtualThreadNetworkExecutor() {
+    return null;
+  }
+
   ThreadFactory defaultThreadFactory() {
     return new ThreadFactory() {
       @Override
@@ -59,4 +76,24 @@ class Platform {
   public int defaultFlushQueueSize() {
     return 250;
   }
+
+  /** Java 21 and later, where virtual threads are looked up reflectively to still run on Java 8. */
+  static class VirtualThreads extends Platform {
+    @Override
+    ExecutorService virtualThreadNetworkExecutor() {
+      try {
+        Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+        Class<?> builderType = Class.forName("java.lang.Thread$Builder");
+        builder = builderType.getMethod("name", String.class).invoke(builder, THREAD_NAME);
+        ThreadFactory threadFactory =
+            (ThreadFactory) builderType.getMethod("factory").invoke(builder);
+        return (ExecutorService)
+            Executors.class
+                .getMethod("newThreadPerTaskExecutor", ThreadFactory.class)
+                .invoke(null, threadFactory);
+      } catch (ReflectiveOperationException e) {
+        return null;
+      }
+    }
+  }
 }
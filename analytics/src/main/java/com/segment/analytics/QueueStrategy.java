@@ -0,0 +1,18 @@
+package com.segment.analytics;
+
+/** The in-memory queue that buffers messages between callers and the batching thread. */
+public enum QueueStrategy {
+  /**
+   * A {@link java.util.concurrent.LinkedBlockingQueue}. Unbounded unless a queue capacity is set.
+   * This is the default.
+   */
+  LINKED_BLOCKING_QUEUE,
+  /**
+   * A bounded, lock-free multi-producer ring buffer, for many threads enqueueing concurrently.
+   * Enqueueing takes no lock and allocates nothing, and the batching thread drains it in bulk. Its
+   * size is the queue capacity rounded up to a power of two, or 65536 messages if no capacity is
+   * set. A capacity above 16777216 messages is rejected when the client is built. {@link
+   * Analytics#enqueue} blocks while it is full.
+   */
+  RING_BUFFER
+}
@@ -0,0 +1,118 @@
+package com.segment.analytics;
+
+import com.segment.analytics.messages.Message;
+import com.segment.analytics.messages.MessageBuilder;
+import com.segment.analytics.messages.TrackMessage;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Decides which messages to keep before they are built, so the ones it drops are never serialized
+ * or queued.
+ *
+ * <p>Messages are checked in three steps, and counted against the first one that drops them:
+ *
+ * <ol>
+ *   <li>Track messages whose event has a rate are kept at random with that rate.
+ *   <li>Messages are kept if the hash of their userId, or of their anonymousId without one, falls
+ *       under the user rate, so a user's messages are either all kept or all dropped, by every
+ *       client configured with the same rate.
+ *   <li>Messages are kept if a token bucket, refilled at {@code maxEventsPerSecond} and holding as
+ *       many tokens, has one left.
+ * </ol>
+ */
+final class Sampler {
+  private static final long NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+  private final Map<String, Double> eventRates;
+  private final double userRate;
+  // The time between tokens, or 0 for no cap.
+  private final long intervalNanos;
+  private final LongSupplier nanoTime;
+  // When the bucket is full again: the bucket is empty while this is a second or more ahead.
+  private final AtomicLong fullAtNanos;
+  private final LongAdder droppedByEvent = new LongAdder();
+  private final LongAdder droppedByUser = new LongAdder();
+  private final LongAdder droppedByRateLimit = new LongAdder();
+
+  Sampler(Map<String, Double> eventRates, double userRate, int maxEventsPerSecond) {
+    this(eventRates, userRate, maxEventsPerSecond, System::nanoTime);
+  }
+
+  Sampler(
+      Map<String, Double> eventRates,
+      double userRate,
+      int maxEventsPerSecond,
+      LongSupplier nanoTime) {
+    this.eventRates = eventRates;
+    this.userRate = userRate;
+    this.intervalNanos =
+        maxEventsPerSecond == 0 ? 0 : Math.max(1, NANOS_PER_SECOND / maxEventsPerSecond);
+    this.nanoTime = nanoTime;
+    this.fullAtNanos = new AtomicLong(nanoTime.getAsLong());
+  }
+
+  /** Returns true to keep the message {@code builder} is constructing, false to drop it. */
+  boolean sample(MessageBuilder builder) {
+    if (!eventRates.isEmpty() && builder.type() == Message.Type.track) {
+      Double rate = eventRates.get(((TrackMessage.Builder) builder).event());
+      if (rate != null && ThreadLocalRandom.current().nextDouble() >= rate) {
+        droppedByEvent.increment();
+        return false;
+      }
+    }
+    if (userRate < 1 && !keepsUser(builder)) {
+      droppedByUser.increment();
+      return false;
+    }
+    if (intervalNanos > 0 && !acquire()) {
+      droppedByRateLimit.increment();
+      return false;
+    }
+    return true;
+  }
+
+  private boolean keepsUser(MessageBuilder builder) {
+    String id = builder.userId();
+    if (id == null || id.isEmpty()) {
+      id = builder.anonymousId();
+      if (id == null || id.isEmpty()) {
+        // Left for build() to reject.
+        return true;
+      }
+    }
+    // The top 53 bits of the hash, as a double between 0 and 1.
+    return (DuplicateFilter.hash(id) >>> 11) * 0x1.0p-53 < userRate;
+  }
+
+  /** Takes a token from the bucket, and returns false if it was empty. */
+  private boolean acquire() {
+    long now = nanoTime.getAsLong();
+    while (true) {
+      long fullAt = fullAtNanos.get();
+      long next = (fullAt - now < 0 ? now : fullAt) + intervalNanos;
+      if (next - now > NANOS_PER_SECOND) {
+        return false;
+      }
+      if (fullAtNanos.compareAndSet(fullAt, next)) {
+        return true;
+      }
+    }
+  }
+
+  long droppedByEvent() {
+    return droppedByEvent.sum();
+  }
+
+  long droppedByUser() {
+    return droppedByUser.sum();
+  }
+
+  long droppedByRateLimit() {
+    return droppedByRateLimit.sum();
+  }
+}
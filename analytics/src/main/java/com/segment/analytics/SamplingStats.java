@@ -0,0 +1,61 @@
+package com.segment.analytics;
+
+/**
+ * A snapshot of the messages dropped by sampling, returned by {@link Analytics#samplingStats()}.
+ *
+ * <p>Each message is counted once, against the first sampling step that dropped it: its event rate,
+ * its user rate, then the cap on events per second. Every count is 0 when sampling is not
+ * configured.
+ */
+public final class SamplingStats {
+  private final long droppedByEvent;
+  private final long droppedByUser;
+  private final long droppedByRateLimit;
+
+  SamplingStats(Sampler sampler) {
+    this.droppedByEvent = sampler == null ? 0 : sampler.droppedByEvent();
+    this.droppedByUser = sampler == null ? 0 : sampler.droppedByUser();
+    this.droppedByRateLimit = sampler == null ? 0 : sampler.droppedByRateLimit();
+  }
+
+  /**
+   * Returns the number of track messages dropped by the rate of their event; see {@link
+   * Analytics.Builder#eventSampleRate(String, double)}.
+   */
+  public long droppedByEvent() {
+    return droppedByEvent;
+  }
+
+  /**
+   * Returns the number of messages dropped by the rate of their user; see {@link
+   * Analytics.Builder#userSampleRate(double)}.
+   */
+  public long droppedByUser() {
+    return droppedByUser;
+  }
+
+  /**
+   * Returns the number of messages dropped by the cap on events per second; see {@link
+   * Analytics.Builder#maxEventsPerSecond(int)}.
+   */
+  public long droppedByRateLimit() {
+    return droppedByRateLimit;
+  }
+
+  /** Returns the number of messages dropped by sampling. */
+  public long dropped() {
+    return droppedByEvent + droppedByUser + droppedByRateLimit;
+  }
+
+  @Override
+  public String toString() {
+    return "SamplingStats{"
+        + "droppedByEvent="
+        + droppedByEvent
+        + ", droppedByUser="
+        + droppedByUser
+        + ", droppedByRateLimit="
+        + droppedByRateLimit
+        + "}";
+  }
+}
@@ -0,0 +1,113 @@
+package com.segment.analytics;
+
+import com.segment.analytics.internal.AdaptiveBatchSize;
+import com.segment.analytics.internal.UploadMetrics;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A snapshot of batch upload timings, returned by {@link Analytics#uploadStats()}.
+ *
+ * <p>The queue wait of a batch is the time between it being created and a network thread starting
+ * to upload it, which grows when uploads are limited by {@link
+ * Analytics.Builder#maxInFlightBatches(int)} or the network executor is busy. The upload time runs
+ * from there until the batch succeeded or was given up on, including retries.
+ *
+ * <p>With {@link Analytics.Builder#adaptiveFlushQueueSize(int, int)}, the snapshot also tells the
+ * current batch size and how often the client changed it.
+ */
+public final class UploadStats {
+  private final long batches;
+  private final int inFlightBatches;
+  private final long totalQueueWaitNanos;
+  private final long maxQueueWaitNanos;
+  private final long totalUploadNanos;
+  private final long maxUploadNanos;
+  private final int batchSizeLimit;
+  private final long batchSizeIncreases;
+  private final long batchSizeDecreases;
+
+  UploadStats(
+      UploadMetrics metrics,
+      int inFlightBatches,
+      int batchSizeLimit,
+      AdaptiveBatchSize adaptiveBatchSize) {
+    this.batches = metrics.batches();
+    this.inFlightBatches = inFlightBatches;
+    this.totalQueueWaitNanos = metrics.totalQueueWaitNanos();
+    this.maxQueueWaitNanos = metrics.maxQueueWaitNanos();
+    this.totalUploadNanos = metrics.totalUploadNanos();
+    this.maxUploadNanos = metrics.maxUploadNanos();
+    this.batchSizeLimit = batchSizeLimit;
+    this.batchSizeIncreases = adaptiveBatchSize == null ? 0 : adaptiveBatchSize.increases();
+    this.batchSizeDecreases = adaptiveBatchSize == null ? 0 : adaptiveBatchSize.decreases();
+  }
+
+  /** Returns the number of batches whose upload has finished, successfully or not. */
+  public long batches() {
+    return batches;
+  }
+
+  /** Returns the number of batches being uploaded when this snapshot was taken. */
+  public int inFlightBatches() {
+    return inFlightBatches;
+  }
+
+  /** Returns the average queue wait of finished batches, or 0 if none have finished. */
+  public long averageQueueWait(TimeUnit unit) {
+    return unit.convert(batches == 0 ? 0 : totalQueueWaitNanos / batches, TimeUnit.NANOSECONDS);
+  }
+
+  /** Returns the longest queue wait of a finished batch. */
+  public long maxQueueWait(TimeUnit unit) {
+    return unit.convert(maxQueueWaitNanos, TimeUnit.NANOSECONDS);
+  }
+
+  /** Returns the average upload time of finished batches, or 0 if none have finished. */
+  public long averageUploadTime(TimeUnit unit) {
+    return unit.convert(batches == 0 ? 0 : totalUploadNanos / batches, TimeUnit.NANOSECONDS);
+  }
+
+  /** Returns the longest upload time of a finished batch. */
+  public long maxUploadTime(TimeUnit unit) {
+    return unit.convert(maxUploadNanos, TimeUnit.NANOSECONDS);
+  }
+
+  /** Returns the number of messages at which a batch is uploaded. */
+  public int batchSizeLimit() {
+    return batchSizeLimit;
+  }
+
+  /** Returns how often the adaptive batch size grew, or 0 if the batch size is fixed. */
+  public long batchSizeIncreases() {
+    return batchSizeIncreases;
+  }
+
+  /** Returns how often the adaptive batch size shrank, or 0 if the batch size is fixed. */
+  public long batchSizeDecreases() {
+    return batchSizeDecreases;
+  }
+
+  @Override
+  public String toString() {
+    return "UploadStats{"
+        + "batches="
+        + batches
+        + ", inFlightBatches="
+        + inFlightBatches
+        + ", averageQueueWaitMs="
+        + averageQueueWait(TimeUnit.MILLISECONDS)
+        + ", maxQueueWaitMs="
+        + maxQueueWait(TimeUnit.MILLISECONDS)
+        + ", averageUploadTimeMs="
+        + averageUploadTime(TimeUnit.MILLISECONDS)
+        + ", maxUploadTimeMs="
+        + maxUploadTime(TimeUnit.MILLISECONDS)
+        + ", batchSizeLimit="
+        + batchSizeLimit
+        + ", batchSizeIncreases="
+        + batchSizeIncreases
+        + ", batchSizeDecreases="
+        + batchSizeDecreases
+        + "}";
+  }
+}
@@ -0,0 +1,115 @@
+package com.segment.analytics.internal;
+
+/**
+ * Adapts the number of messages per batch to how long uploads take.
+ *
+ * <p>The fastest upload of a batch at least half the limit recently seen stands for the fixed cost
+ * of a request: connection, TLS and the API's own overhead. Smaller batches, flushed on the
+ * interval or after lingering, are left out, as full batches could never be that fast. While full
+ * batches upload in less than twice that, the fixed cost dominates and the limit grows by a
+ * quarter, so the same requests carry more messages. When the smoothed upload time exceeds four
+ * times that, or an upload fails and has to back off, the limit is halved. In between it holds, so
+ * the limit settles where the transfer costs about as much as the request.
+ *
+ * <p>Upload times are smoothed as TCP smooths round trips, each moving the average by an eighth,
+ * and counted as at most eight times the fastest upload, so a single slow one, such as a new TLS
+ * handshake or a GC pause, does not halve the limit. The fastest upload is taken from the current
+ * and the previous window of {@value #MIN_RTT_WINDOW} uploads, so the controller follows a network
+ * that gets slower for good. Rate-limited uploads are left to the rate limiting and do not change
+ * the limit; batches also never exceed the API's size limit, whatever the limit.
+ */
+public final class AdaptiveBatchSize {
+  static final int MIN_RTT_WINDOW = 64;
+  private static final int OVERHEAD_FACTOR = 2;
+  private static final int SLOW_FACTOR = 4;
+  // Upload times count as at most this many times the fastest one.
+  private static final int MAX_SAMPLE_FACTOR = 8;
+  // Each upload moves the smoothed upload time by 1/SMOOTHING of the difference.
+  private static final int SMOOTHING = 8;
+
+  private final int min;
+  private final int max;
+  private volatile int limit;
+  private volatile long increases;
+  private volatile long decreases;
+  // The fastest upload of the previous window, and of the current one.
+  private long minRttNanos = Long.MAX_VALUE;
+  private long windowMinRttNanos = Long.MAX_VALUE;
+  private int windowSamples;
+  // The smoothed upload time of batches at least half the limit, or 0 before the first one.
+  private long smoothedRttNanos;
+
+  AdaptiveBatchSize(int min, int max, int initial) {
+    if (min < 1 || max < min) {
+      throw new IllegalArgumentException("min must be at least 1 and not greater than max.");
+    }
+    this.min = min;
+    this.max = max;
+    this.limit = Math.max(min, Math.min(max, initial));
+  }
+
+  /** Returns the number of messages at which the looper submits a batch. */
+  public int limit() {
+    return limit;
+  }
+
+  /** Returns how often the limit has been raised. */
+  public long increases() {
+    return increases;
+  }
+
+  /** Returns how often the limit has been lowered. */
+  public long decreases() {
+    return decreases;
+  }
+
+  /** Records a batch of {@code messages} that was uploaded at its first attempt. */
+  synchronized void onUploaded(int messages, long rttNanos) {
+    if (messages < limit / 2) {
+      return;
+    }
+    windowMinRttNanos = Math.min(windowMinRttNanos, rttNanos);
+    long baseline = Math.min(minRttNanos, windowMinRttNanos);
+    if (++windowSamples >= MIN_RTT_WINDOW) {
+      minRttNanos = windowMinRttNanos;
+      windowMinRttNanos = Long.MAX_VALUE;
+      windowSamples = 0;
+    }
+
+    long sample = Math.min(rttNanos, MAX_SAMPLE_FACTOR * baseline);
+    smoothedRttNanos =
+        smoothedRttNanos == 0 ? sample : smoothedRttNanos + (sample - smoothedRttNanos) / SMOOTHING;
+
+    if (smoothedRttNanos > SLOW_FACTOR * baseline) {
+      decrease();
+      // A batch half as large takes about half as long to transfer.
+      smoothedRttNanos = (smoothedRttNanos + baseline) / 2;
+    } else if (messages >= limit
+        && rttNanos < OVERHEAD_FACTOR * baseline
+        && smoothedRttNanos < OVERHEAD_FACTOR * baseline) {
+      // Only a full batch shows that a larger one would have been sent.
+      increase();
+    }
+  }
+
+  /** Records an upload attempt that timed out or failed and backs off. */
+  synchronized void onFailed() {
+    decrease();
+  }
+
+  private void increase() {
+    int next = Math.min(max, Math.max(limit + 1, limit + limit / 4));
+    if (next != limit) {
+      limit = next;
+      increases++;
+    }
+  }
+
+  private void decrease() {
+    int next = Math.max(min, limit / 2);
+    if (next != limit) {
+      limit = next;
+      decreases++;
+    }
+  }
+}
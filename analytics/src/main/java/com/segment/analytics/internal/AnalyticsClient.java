@@ -5,14 +5,27 @@ import static com.segment.analytics.Log.Level.ERROR;
 import static com.segment.analytics.Log.Level.VERBOSE;
 
 import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import com.segment.analytics.AnalyticsMetrics;
+import com.segment.analytics.AnalyticsMetrics.DropReason;
+import com.segment.analytics.BatchCallback;
 import com.segment.analytics.Callback;
+import com.segment.analytics.Compression;
 import com.segment.analytics.Log;
+import com.segment.analytics.QueueStrategy;
 import com.segment.analytics.http.SegmentService;
 import com.segment.analytics.http.UploadResponse;
+import com.segment.analytics.messages.AliasMessage;
 import com.segment.analytics.messages.Batch;
+import com.segment.analytics.messages.GroupMessage;
+import com.segment.analytics.messages.IdentifyMessage;
 import com.segment.analytics.messages.Message;
+import com.segment.analytics.messages.PageMessage;
+import com.segment.analytics.messages.ScreenMessage;
+import com.segment.analytics.messages.TrackMessage;
 import com.segment.backo.Backo;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
 import java.time.Duration;
@@ -20,14 +33,20 @@ import java.time.Instant;
 import java.time.ZonedDateTime;
 import java.time.format.DateTimeFormatter;
 import java.time.format.DateTimeParseException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
@@ -37,12 +56,13 @@ import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import okhttp3.HttpUrl;
+import okhttp3.RequestBody;
 import retrofit2.Call;
 import retrofit2.Response;
 
-public class AnalyticsClient {
+public class AnalyticsClient implements AnalyticsMetrics.Gauges {
   public static final ThreadLocal<Integer> RETRY_COUNT = new ThreadLocal<>();
 
   private static final Map<String, ?> CONTEXT;
@@ -56,6 +76,10 @@ public class AnalyticsClient {
   private static final int NETWORK_TERMINATION_TIMEOUT_S =
       75; // base Retry-After cap is 60s + headroom
   private static final long MAX_RATE_LIMITED_SECONDS = 300L;
+  private static final int DEFAULT_RING_BUFFER_CAPACITY = 1 << 16;
+  private static final int MAX_RING_BUFFER_CAPACITY = 1 << 24;
+  private static final int LOOPER_DRAIN_SIZE = 256;
+  private static final long SPOOL_FULL_LOG_INTERVAL_NANOS = TimeUnit.MINUTES.toNanos(1);
 
   static {
     Map<String, String> library = new LinkedHashMap<>();
@@ -68,24 +92,58 @@ public class AnalyticsClient {
   }
 
   private final BlockingQueue<Message> messageQueue;
-  private final HttpUrl uploadUrl;
+  private final Endpoints endpoints;
   private final SegmentService service;
+  // The same service if it uploads encoded batches, or null to upload every batch as a Batch.
+  private final EncodedSegmentService encodedService;
   private final int size;
   private final int maximumRetries;
-  private final int maximumQueueByteSize;
-  private int currentQueueSizeInBytes;
+  // The bytes of messages at which the looper submits a batch.
+  private final int flushThresholdInBytes;
+  // Encoded bytes of the messages in the queue, added on enqueue and subtracted once the looper
+  // takes them.
+  private final AtomicLong queuedBytes = new AtomicLong();
   private final Log log;
-  private final List<Callback> callbacks;
+  // The per-message callbacks, adapted, and then the batch callbacks.
+  private final List<BatchCallback> callbacks;
   private final ExecutorService networkExecutor;
   private final ExecutorService looperExecutor;
   private final ScheduledExecutorService flushScheduler;
+  // How long a message may wait in the looper's buffer before it is flushed, or 0 to flush on the
+  // flush interval instead.
+  private final long lingerNanos;
+  // Schedules the retries of asynchronous uploads, or null if uploads block a network thread.
+  final ScheduledExecutorService retryScheduler;
   private final AtomicBoolean isShutDown;
   private final String writeKey;
+  private final boolean preEncodeMessages;
+  private final Compression compression;
+  private final boolean preserveUserOrder;
+  private final InFlightBatches inFlightBatches;
+  // Adapts the batch size to upload times, or null to batch flushQueueSize messages.
+  private final AdaptiveBatchSize adaptiveBatchSize;
+  // Paces batch submissions under the API's rate limit, or null to submit them right away.
+  private final UploadPacer uploadPacer;
+  // Stops uploads while the host keeps failing, or null to always upload.
+  private final CircuitBreaker circuitBreaker;
+  private final BatchSizer batchSizer;
+  private final AnalyticsMetrics metrics;
+  private final UploadMetrics uploadMetrics = new UploadMetrics();
+  // Batches handed to the network executor whose upload has not finished yet.
+  private final Set<BatchUploadTask> uploads = ConcurrentHashMap.newKeySet();
+  private final Spool spool;
+  // Messages not spooled since the spool was last reported full, and when that was.
+  private final AtomicLong unspooledMessages = new AtomicLong();
+  private final AtomicLong spoolFullLoggedAt =
+      new AtomicLong(System.nanoTime() - SPOOL_FULL_LOG_INTERVAL_NANOS);
+  private final DiskQueue overflow;
   final long maxTotalBackoffDurationMs;
   final long maxRateLimitDurationMs;
   private volatile Future<?> looperFuture;
   private volatile boolean rateLimited;
   private volatile long rateLimitWaitUntil;
+  // Notified to wake the looper waiting for uploads to resume.
+  private final Object heldBackLock = new Object();
   private volatile long rateLimitStartTime;
 
   public static AnalyticsClient create(
@@ -104,8 +162,44 @@ public class AnalyticsClient {
       Gson gsonInstance,
       long maxTotalBackoffDurationMs,
       long maxRateLimitDurationMs) {
+    return create(
+        uploadUrl,
+        segmentService,
+        queueCapacity,
+        flushQueueSize,
+        flushIntervalInMillis,
+        maximumRetries,
+        maximumQueueSizeInBytes,
+        log,
+        threadFactory,
+        networkExecutor,
+        callbacks,
+        writeKey,
+        gsonInstance,
+        maxTotalBackoffDurationMs,
+        maxRateLimitDurationMs,
+        new ClientOptions());
+  }
+
+  public static AnalyticsClient create(
+      HttpUrl uploadUrl,
+      SegmentService segmentService,
+      int queueCapacity,
+      int flushQueueSize,
+      long flushIntervalInMillis,
+      int maximumRetries,
+      int maximumQueueSizeInBytes,
+      Log log,
+      ThreadFactory threadFactory,
+      ExecutorService networkExecutor,
+      List<Callback> callbacks,
+      String writeKey,
+      Gson gsonInstance,
+      long maxTotalBackoffDurationMs,
+      long maxRateLimitDurationMs,
+      ClientOptions options) {
     return new AnalyticsClient(
-        new LinkedBlockingQueue<Message>(queueCapacity),
+        newQueue(options.queueStrategy, queueCapacity),
         uploadUrl,
         segmentService,
         flushQueueSize,
@@ -120,7 +214,21 @@ public class AnalyticsClient {
         writeKey,
         gsonInstance,
         maxTotalBackoffDurationMs,
-        maxRateLimitDurationMs);
+        maxRateLimitDurationMs,
+        options);
+  }
+
+  static BlockingQueue<Message> newQueue(QueueStrategy strategy, int queueCapacity) {
+    switch (strategy) {
+      case RING_BUFFER:
+        return new RingBufferQueue(
+            queueCapacity > MAX_RING_BUFFER_CAPACITY
+                ? DEFAULT_RING_BUFFER_CAPACITY
+                : queueCapacity);
+      case LINKED_BLOCKING_QUEUE:
+      default:
+        return new LinkedBlockingQueue<Message>(queueCapacity);
+    }
   }
 
   public AnalyticsClient(
@@ -140,14 +248,58 @@ public class AnalyticsClient {
       Gson gsonInstance,
       long maxTotalBackoffDurationMs,
       long maxRateLimitDurationMs) {
+    this(
+        messageQueue,
+        uploadUrl,
+        service,
+        maxQueueSize,
+        flushIntervalInMillis,
+        maximumRetries,
+        maximumQueueSizeInBytes,
+        log,
+        threadFactory,
+        networkExecutor,
+        callbacks,
+        isShutDown,
+        writeKey,
+        gsonInstance,
+        maxTotalBackoffDurationMs,
+        maxRateLimitDurationMs,
+        new ClientOptions());
+  }
+
+  public AnalyticsClient(
+      BlockingQueue<Message> messageQueue,
+      HttpUrl uploadUrl,
+      SegmentService service,
+      int maxQueueSize,
+      long flushIntervalInMillis,
+      int maximumRetries,
+      int maximumQueueSizeInBytes,
+      Log log,
+      ThreadFactory threadFactory,
+      ExecutorService networkExecutor,
+      List<Callback> callbacks,
+      AtomicBoolean isShutDown,
+      String writeKey,
+      Gson gsonInstance,
+      long maxTotalBackoffDurationMs,
+      long maxRateLimitDurationMs,
+      ClientOptions options) {
     this.messageQueue = messageQueue;
-    this.uploadUrl = uploadUrl;
+    this.endpoints =
+        new Endpoints(
+            options.uploadUrls.isEmpty()
+                ? Collections.singletonList(uploadUrl)
+                : options.uploadUrls,
+            options.endpointSelection);
     this.service = service;
+    this.encodedService =
+        service instanceof EncodedSegmentService ? (EncodedSegmentService) service : null;
     this.size = maxQueueSize;
     this.maximumRetries = maximumRetries;
-    this.maximumQueueByteSize = maximumQueueSizeInBytes;
     this.log = log;
-    this.callbacks = callbacks;
+    this.callbacks = batchCallbacks(callbacks, options.batchCallbacks);
     this.looperExecutor = Executors.newSingleThreadExecutor(threadFactory);
     this.networkExecutor = networkExecutor;
     this.isShutDown = isShutDown;
@@ -155,37 +307,290 @@ public class AnalyticsClient {
     this.gsonInstance = gsonInstance;
     this.maxTotalBackoffDurationMs = maxTotalBackoffDurationMs;
     this.maxRateLimitDurationMs = maxRateLimitDurationMs;
-
-    this.currentQueueSizeInBytes = 0;
+    this.preEncodeMessages = options.preEncodeMessages;
+    this.compression = options.compression;
+    this.preserveUserOrder = options.preserveUserOrder;
+    this.inFlightBatches = new InFlightBatches(options.maxInFlightBatches);
+    this.adaptiveBatchSize =
+        options.maxBatchSize > 0
+            ? new AdaptiveBatchSize(options.minBatchSize, options.maxBatchSize, maxQueueSize)
+            : null;
+    this.uploadPacer =
+        options.maxUploadsPerSecond > 0 ? new UploadPacer(options.maxUploadsPerSecond) : null;
+    this.circuitBreaker =
+        options.circuitBreakerFailures > 0
+            ? new CircuitBreaker(
+                options.circuitBreakerFailures,
+                TimeUnit.MILLISECONDS.toNanos(options.circuitBreakerOpenMillis))
+            : null;
+    this.batchSizer =
+        new BatchSizer(
+            gsonInstance, CONTEXT, writeKey, (int) (BATCH_MAX_SIZE * options.batchFillRatio));
+    this.lingerNanos = TimeUnit.MILLISECONDS.toNanos(options.lingerMillis);
+    this.metrics = options.metrics;
+    this.retryScheduler =
+        options.asyncUploads ? Executors.newSingleThreadScheduledExecutor(threadFactory) : null;
+    this.flushThresholdInBytes = maximumQueueSizeInBytes;
+    this.spool = openSpool(options);
+    this.overflow = openOverflow(options);
+    metrics.bind(this);
 
     if (!isShutDown.get()) {
       this.looperFuture = looperExecutor.submit(new Looper());
+      if (spool != null) {
+        replaySpool();
+      }
     }
 
     flushScheduler = Executors.newScheduledThreadPool(1, threadFactory);
-    flushScheduler.scheduleAtFixedRate(
-        new Runnable() {
-          @Override
-          public void run() {
-            flush();
-          }
-        },
-        flushIntervalInMillis,
-        flushIntervalInMillis,
-        TimeUnit.MILLISECONDS);
+    if (lingerNanos == 0) {
+      flushScheduler.scheduleAtFixedRate(
+          new Runnable() {
+            @Override
+            public void run() {
+              flush();
+            }
+          },
+          flushIntervalInMillis,
+          flushIntervalInMillis,
+          TimeUnit.MILLISECONDS);
+    }
+  }
+
+  private static Spool openSpool(ClientOptions options) {
+    if (options.spoolDirectory == null) {
+      return null;
+    }
+    try {
+      return Spool.open(
+          options.spoolDirectory,
+          (int) Math.min(Spool.DEFAULT_SEGMENT_BYTES, options.spoolMaxBytes),
+          options.spoolMaxBytes,
+          options.spoolFsyncPolicy);
+    } catch (IOException e) {
+      throw new UncheckedIOException(
+          "Could not open spool in " + options.spoolDirectory.getAbsolutePath(), e);
+    }
+  }
+
+  private static DiskQueue openOverflow(ClientOptions options) {
+    if (options.overflowDirectory == null) {
+      return null;
+    }
+    try {
+      return DiskQueue.open(
+          options.overflowDirectory,
+          (int) Math.min(DiskQueue.DEFAULT_SEGMENT_BYTES, options.overflowMaxBytes),
+          options.overflowMaxBytes);
+    } catch (IOException e) {
+      throw new UncheckedIOException(
+          "Could not open overflow queue in " + options.overflowDirectory.getAbsolutePath(), e);
+    }
+  }
+
+  /** Enqueues the messages that were left in the spool by a previous client. */
+  private void replaySpool() {
+    List<Spool.Record> records = spool.replay();
+    if (!records.isEmpty()) {
+      log.print(VERBOSE, "Replaying %s message(s) from the spool.", records.size());
+    }
+    for (Spool.Record record : records) {
+      Message message = decode(record.bytes);
+      if (message == null) {
+        log.print(ERROR, "Dropping a spooled message that could not be read.");
+        spool.acknowledge(record.address);
+        continue;
+      }
+      enqueue(new EncodedMessage(message, record.bytes, record.address));
+    }
+  }
+
+  /** Reads a message serialized by {@link #gsonInstance}, or returns null if it is not valid. */
+  private Message decode(byte[] bytes) {
+    try {
+      JsonObject json = gsonInstance.fromJson(new String(bytes, ENCODING), JsonObject.class);
+      return gsonInstance.fromJson(json, messageClass(json.get("type").getAsString()));
+    } catch (RuntimeException e) {
+      return null;
+    }
+  }
+
+  private static Class<? extends Message> messageClass(String type) {
+    switch (Message.Type.valueOf(type)) {
+      case identify:
+        return IdentifyMessage.class;
+      case group:
+        return GroupMessage.class;
+      case track:
+        return TrackMessage.class;
+      case screen:
+        return ScreenMessage.class;
+      case page:
+        return PageMessage.class;
+      case alias:
+        return AliasMessage.class;
+      default:
+        throw new IllegalArgumentException("Unknown message type " + type);
+    }
+  }
+
+  private static List<BatchCallback> batchCallbacks(
+      List<Callback> callbacks, List<BatchCallback> batchCallbacks) {
+    List<BatchCallback> all = new ArrayList<>(batchCallbacks.size() + 1);
+    if (!callbacks.isEmpty()) {
+      all.add(new MessageCallbacks(callbacks));
+    }
+    all.addAll(batchCallbacks);
+    return Collections.unmodifiableList(all);
+  }
+
+  private void notifySuccess(Batch batch, int statusCode, int attempts) {
+    for (BatchCallback callback : callbacks) {
+      callback.success(batch, statusCode, attempts);
+    }
+  }
+
+  private void notifyFailure(Batch batch, int statusCode, int attempts, Throwable error) {
+    for (BatchCallback callback : callbacks) {
+      callback.failure(batch, statusCode, attempts, error);
+    }
+  }
+
+  /** Calls back for {@code message}, which was dropped before it was queued. */
+  public void notifyDropped(Message message, Throwable error) {
+    notifyDropped(Collections.singletonList(message), error);
+  }
+
+  /** Calls back for {@code messages}, which were dropped before an upload was attempted. */
+  private void notifyDropped(List<Message> messages, Throwable error) {
+    if (callbacks.isEmpty()) {
+      return;
+    }
+    List<Message> unwrapped = new ArrayList<>(messages.size());
+    for (Message message : messages) {
+      unwrapped.add(EncodedMessage.unwrap(message));
+    }
+    notifyFailure(Batch.create(CONTEXT, unwrapped, writeKey), 0, 0, error);
   }
 
   public int messageSizeInBytes(Message message) {
+    if (message instanceof EncodedMessage) {
+      return ((EncodedMessage) message).bytes().length;
+    }
     String stringifiedMessage = gsonInstance.toJson(message);
 
     return stringifiedMessage.getBytes(ENCODING).length;
   }
 
-  private Boolean isBackPressuredAfterSize(int incomingSize) {
-    int POISON_BYTE_SIZE = messageSizeInBytes(FlushMessage.POISON);
-    int sizeAfterAdd = this.currentQueueSizeInBytes + incomingSize + POISON_BYTE_SIZE;
-    // Leave a 10% buffer since the unsynchronized enqueue could add multiple at a time
-    return sizeAfterAdd >= Math.min(this.maximumQueueByteSize, BATCH_MAX_SIZE) * 0.9;
+  /**
+   * Returns the message to put on the queue: the message itself, or when pre-encoding or the spool
+   * is enabled an {@link EncodedMessage} holding its one and only serialization.
+   */
+  private Message prepare(Message message) {
+    if ((!preEncodeMessages && spool == null) || message instanceof EncodedMessage) {
+      return message;
+    }
+    return new EncodedMessage(message, gsonInstance.toJson(message).getBytes(ENCODING));
+  }
+
+  /**
+   * Appends {@code message} to the spool if it is enabled, and returns the message to put on the
+   * queue. Messages replayed from the spool are not appended again.
+   */
+  private Message persist(Message message) {
+    if (spool == null || !(message instanceof EncodedMessage)) {
+      return message;
+    }
+    EncodedMessage encoded = (EncodedMessage) message;
+    if (encoded.spoolAddress() != Spool.NO_ADDRESS) {
+      return message;
+    }
+    long address;
+    try {
+      address = spool.append(encoded.bytes());
+    } catch (IOException e) {
+      log.print(ERROR, e, "Could not spool message %s.", message.messageId());
+      return message;
+    }
+    if (address == Spool.NO_ADDRESS) {
+      reportSpoolFull();
+      return message;
+    }
+    return new EncodedMessage(encoded.message(), encoded.bytes(), address);
+  }
+
+  /** Counts a message the full spool could not take, and logs the count at most once a minute. */
+  private void reportSpoolFull() {
+    unspooledMessages.incrementAndGet();
+    long now = System.nanoTime();
+    long loggedAt = spoolFullLoggedAt.get();
+    if (now - loggedAt >= SPOOL_FULL_LOG_INTERVAL_NANOS
+        && spoolFullLoggedAt.compareAndSet(loggedAt, now)) {
+      log.print(
+          ERROR,
+          "Spool is full, %s message(s) are only kept in memory.",
+          unspooledMessages.getAndSet(0));
+    }
+  }
+
+  /** Removes the spooled messages at {@code addresses} from the spool. */
+  void acknowledge(long[] addresses) {
+    if (spool == null || addresses == null) {
+      return;
+    }
+    for (long address : addresses) {
+      spool.acknowledge(address);
+    }
+  }
+
+  /**
+   * Marks the spooled messages at {@code addresses}, which could not be delivered, as ones the
+   * spool may drop once it is full.
+   */
+  void giveUp(long[] addresses) {
+    if (spool == null || addresses == null) {
+      return;
+    }
+    for (long address : addresses) {
+      spool.giveUp(address);
+    }
+  }
+
+  /** Returns the timings of finished batch uploads. */
+  public UploadMetrics uploadMetrics() {
+    return uploadMetrics;
+  }
+
+  /** Returns the number of messages at which a batch is submitted. */
+  @Override
+  public int batchSizeLimit() {
+    return adaptiveBatchSize == null ? size : adaptiveBatchSize.limit();
+  }
+
+  /** Returns the controller adapting the batch size, or null if it is fixed. */
+  public AdaptiveBatchSize adaptiveBatchSize() {
+    return adaptiveBatchSize;
+  }
+
+  /** Returns the number of batches currently being uploaded. */
+  @Override
+  public int inFlightBatches() {
+    return inFlightBatches.inFlight();
+  }
+
+  @Override
+  public int queueDepth() {
+    return messageQueue.size();
+  }
+
+  @Override
+  public long queueSizeInBytes() {
+    return queuedBytes.get();
+  }
+
+  @Override
+  public int spilledMessages() {
+    return overflow == null ? 0 : overflow.size();
   }
 
   public boolean offer(Message message) {
@@ -194,71 +599,234 @@ public class AnalyticsClient {
       return false;
     }
 
+    message = prepare(message);
     int messageByteSize = messageSizeInBytes(message);
     if (messageByteSize > MSG_MAX_SIZE) {
       log.print(ERROR, "Message was above individual limit. MessageId: %s", message.messageId());
+      metrics.messagesDropped(DropReason.TOO_LARGE, 1);
       return false;
     }
 
+    message = persist(message);
+    queuedBytes.addAndGet(messageByteSize);
     if (!messageQueue.offer(message)) {
+      queuedBytes.addAndGet(-messageByteSize);
+      acknowledge(spoolAddresses(Collections.singletonList(message)));
+      metrics.messagesDropped(DropReason.QUEUE_FULL, 1);
       return false;
     }
-    if (isBackPressuredAfterSize(messageByteSize)) {
-      this.currentQueueSizeInBytes = messageByteSize;
-      messageQueue.offer(FlushMessage.POISON);
-      log.print(VERBOSE, "Maximum storage size has been hit Flushing...");
-    } else {
-      this.currentQueueSizeInBytes += messageByteSize;
-    }
+    metrics.messageEnqueued(messageByteSize);
     return true;
   }
 
-  public void enqueue(Message message) {
+  /**
+   * Puts {@code message} on the queue, waiting for room, and returns whether it was queued.
+   *
+   * @throws IllegalArgumentException if the message is above the size limit.
+   */
+  public boolean enqueue(Message message) {
     if (message != StopMessage.STOP && isShutDown.get()) {
       log.print(ERROR, "Attempt to enqueue a message when shutdown has been called %s.", message);
-      return;
+      return false;
     }
 
     try {
       // @jorgen25 message here could be regular msg, POISON or STOP. Only do regular logic if its
       // valid message
       if (message != StopMessage.STOP && message != FlushMessage.POISON) {
+        message = prepare(message);
         int messageByteSize = messageSizeInBytes(message);
 
         // @jorgen25 check if message is below 32kb limit for individual messages, no need to check
         // for extra characters
         if (messageByteSize <= MSG_MAX_SIZE) {
-          if (isBackPressuredAfterSize(messageByteSize)) {
-            this.currentQueueSizeInBytes = messageByteSize;
-            messageQueue.put(FlushMessage.POISON);
-            messageQueue.put(message);
-
-            log.print(VERBOSE, "Maximum storage size has been hit Flushing...");
-          } else {
+          message = persist(message);
+          queuedBytes.addAndGet(messageByteSize);
+          try {
             messageQueue.put(message);
-            this.currentQueueSizeInBytes += messageByteSize;
+          } catch (InterruptedException e) {
+            queuedBytes.addAndGet(-messageByteSize);
+            throw e;
           }
+          metrics.messageEnqueued(messageByteSize);
         } else {
           log.print(
               ERROR, "Message was above individual limit. MessageId: %s", message.messageId());
+          metrics.messagesDropped(DropReason.TOO_LARGE, 1);
           throw new IllegalArgumentException(
               "Message was above individual limit. MessageId: " + message.messageId());
         }
       } else {
         messageQueue.put(message);
       }
+      return true;
     } catch (InterruptedException e) {
       log.print(ERROR, e, "Interrupted while adding message %s.", message);
       Thread.currentThread().interrupt();
+      return false;
     }
   }
 
   public void flush() {
     if (!isShutDown.get()) {
+      if (spool != null) {
+        spool.sync();
+      }
       enqueue(FlushMessage.POISON);
     }
   }
 
+  /**
+   * Flushes the queue, and returns a future that completes once every message queued before this
+   * call has been uploaded or given up on, at which point its callbacks have been notified.
+   *
+   * <p>The future may complete later than that, as it also waits for batches that were uploading
+   * when the looper reached the flush. If the client shuts down first, it completes once the
+   * batches submitted until then have finished.
+   */
+  public CompletableFuture<Void> flushWithAcknowledgement() {
+    if (isShutDown.get()) {
+      // The looper takes no more messages; shutdown() waits for the batches it submitted.
+      return whenUploaded();
+    }
+    if (spool != null) {
+      spool.sync();
+    }
+    FlushMessage flush = FlushMessage.acknowledged();
+    try {
+      messageQueue.put(flush);
+    } catch (InterruptedException e) {
+      log.print(ERROR, e, "Interrupted while adding message %s.", flush);
+      Thread.currentThread().interrupt();
+    }
+    return flush.acknowledged;
+  }
+
+  /** Returns a future that completes once the batches being uploaded now have finished. */
+  private CompletableFuture<Void> whenUploaded() {
+    List<CompletableFuture<Void>> finished = new ArrayList<>();
+    for (BatchUploadTask task : uploads) {
+      finished.add(task.finished);
+    }
+    return CompletableFuture.allOf(finished.toArray(new CompletableFuture<?>[0]));
+  }
+
+  /** Lets the batch size adapt to a batch of {@code messages} uploaded at its first attempt. */
+  void onUploaded(int messages, long rttNanos) {
+    if (adaptiveBatchSize == null) {
+      return;
+    }
+    int limit = adaptiveBatchSize.limit();
+    adaptiveBatchSize.onUploaded(messages, rttNanos);
+    logBatchSizeChange(limit);
+  }
+
+  /** Lets the batch size adapt to an upload attempt that failed and backs off. */
+  void onUploadFailed() {
+    if (adaptiveBatchSize == null) {
+      return;
+    }
+    int limit = adaptiveBatchSize.limit();
+    adaptiveBatchSize.onFailed();
+    logBatchSizeChange(limit);
+  }
+
+  /** Lets the upload pace grow after a batch was accepted. */
+  void onUploadAccepted() {
+    if (uploadPacer != null) {
+      uploadPacer.onAccepted();
+    }
+  }
+
+  /**
+   * Slows the upload pace down after an attempt started at {@code attemptStartNanos} was
+   * rate-limited.
+   */
+  void onUploadRateLimited(long attemptStartNanos) {
+    if (uploadPacer != null && uploadPacer.onRateLimited(attemptStartNanos)) {
+      log.print(
+          DEBUG, "Rate-limited. Pacing uploads at %.2f batches per second.", uploadPacer.rate());
+    }
+  }
+
+  /**
+   * Lets an upload attempt start and returns 0, or returns how many nanoseconds to wait before
+   * asking again while the circuit is open.
+   */
+  long acquireCircuit() {
+    return circuitBreaker == null ? 0 : circuitBreaker.acquire();
+  }
+
+  /**
+   * Records whether an upload attempt to {@code endpoint}, which took {@code latencyNanos}, failed
+   * on the host's side, updating the endpoint's health and opening or closing the circuit.
+   */
+  void onAttemptFinished(Endpoints.Endpoint endpoint, boolean hostFailed, long latencyNanos) {
+    if (!hostFailed) {
+      endpoints.onAnswered(endpoint, latencyNanos);
+    } else if (endpoints.onFailed(endpoint)) {
+      log.print(
+          ERROR,
+          "Upload endpoint %s failed %s times in a row. Skipping it for %s seconds.",
+          endpoint.url,
+          Endpoints.EJECT_FAILURES,
+          TimeUnit.NANOSECONDS.toSeconds(Endpoints.EJECT_NANOS));
+    }
+    if (circuitBreaker == null) {
+      return;
+    }
+    if (!hostFailed) {
+      if (circuitBreaker.onSuccess()) {
+        log.print(DEBUG, "Upload circuit closed. Resuming uploads.");
+        // Wake the looper so it submits the batches it held back.
+        messageQueue.offer(FlushMessage.POISON);
+        wakeHeldBackLooper();
+      }
+    } else if (circuitBreaker.onFailure()) {
+      log.print(ERROR, "Upload circuit opened. Holding batches back until the host recovers.");
+    }
+  }
+
+  /**
+   * Returns whether the looper holds batches back instead of submitting them: while rate-limited,
+   * or while the circuit is open.
+   */
+  boolean isHeldBack() {
+    return isRateLimited() || (circuitBreaker != null && !circuitBreaker.allowsBatches());
+  }
+
+  /**
+   * Blocks the looper until uploads may resume, or until woken because they did or the client shut
+   * down.
+   */
+  private void awaitHeldBack() throws InterruptedException {
+    long waitNanos =
+        rateLimited
+            ? TimeUnit.MILLISECONDS.toNanos(rateLimitWaitUntil - System.currentTimeMillis())
+            : 0;
+    if (circuitBreaker != null) {
+      waitNanos = Math.max(waitNanos, circuitBreaker.heldBackNanos());
+    }
+    synchronized (heldBackLock) {
+      if (waitNanos > 0 && !isShutDown.get()) {
+        TimeUnit.NANOSECONDS.timedWait(heldBackLock, waitNanos);
+      }
+    }
+  }
+
+  private void wakeHeldBackLooper() {
+    synchronized (heldBackLock) {
+      heldBackLock.notifyAll();
+    }
+  }
+
+  private void logBatchSizeChange(int previousLimit) {
+    int limit = adaptiveBatchSize.limit();
+    if (limit != previousLimit) {
+      log.print(DEBUG, "Batch size changed from %s to %s messages.", previousLimit, limit);
+    }
+  }
+
   synchronized void setRateLimitState(long retryAfterSeconds) {
     long now = System.currentTimeMillis();
     if (rateLimitStartTime == 0) {
@@ -280,9 +848,21 @@ public class AnalyticsClient {
   }
 
   synchronized void clearRateLimitState() {
+    boolean wasRateLimited = rateLimited;
+    if (wasRateLimited && rateLimitStartTime > 0) {
+      metrics.rateLimited(
+          TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis() - rateLimitStartTime));
+    }
     rateLimited = false;
     rateLimitWaitUntil = 0;
     rateLimitStartTime = 0;
+    if (wasRateLimited) {
+      wakeHeldBackLooper();
+    }
+    if (wasRateLimited && overflow != null && !overflow.isEmpty()) {
+      // Wake the looper so it uploads the messages spilled to disk.
+      messageQueue.offer(FlushMessage.POISON);
+    }
   }
 
   synchronized boolean isRateLimited() {
@@ -300,20 +880,76 @@ public class AnalyticsClient {
 
       // first let's tell the system to stop
       enqueue(StopMessage.STOP);
+      // and keep the looper from waiting for uploads to finish before it reaches it
+      inFlightBatches.close();
+      if (uploadPacer != null) {
+        uploadPacer.close();
+      }
+      wakeHeldBackLooper();
 
       // we can shutdown the flush scheduler without worrying
       flushScheduler.shutdownNow();
 
       // Wait for the looper to complete processing before shutting down executors
       waitForLooperCompletion();
+      awaitParkedUploads();
       shutdownAndWait(looperExecutor, "looper");
       shutdownAndWait(networkExecutor, "network");
+      if (retryScheduler != null) {
+        awaitAsyncUploads();
+        // Retries already scheduled still run; later ones are rejected and fail their batch.
+        retryScheduler.shutdown();
+      }
+      if (spool != null) {
+        spool.close();
+      }
+      if (overflow != null) {
+        try {
+          overflow.close();
+        } catch (IOException e) {
+          log.print(ERROR, e, "Could not delete the overflow queue.");
+        }
+      }
 
       log.print(
           VERBOSE, "Analytics client shut down in %s ms", (System.currentTimeMillis() - start));
     }
   }
 
+  /**
+   * Waits for the batches parked behind an earlier batch of the same user to be handed to the
+   * network executor, which rejects them once it is shut down.
+   */
+  private void awaitParkedUploads() {
+    try {
+      if (!inFlightBatches.awaitNoneParked(
+          TimeUnit.SECONDS.toMillis(NETWORK_TERMINATION_TIMEOUT_S))) {
+        log.print(
+            VERBOSE,
+            "Batches still waiting for earlier batches of their users after %d seconds.",
+            NETWORK_TERMINATION_TIMEOUT_S);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /** Waits for the asynchronous uploads that are still in flight, including their retries. */
+  private void awaitAsyncUploads() {
+    try {
+      if (!inFlightBatches.awaitNoneInFlight(
+          TimeUnit.SECONDS.toMillis(NETWORK_TERMINATION_TIMEOUT_S))) {
+        log.print(
+            VERBOSE,
+            "%s upload(s) still in flight after %d seconds.",
+            inFlightBatches.inFlight(),
+            NETWORK_TERMINATION_TIMEOUT_S);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
   /**
    * Wait for the looper to complete processing all messages before proceeding with shutdown. This
    * prevents the race condition where the network executor is shut down before the looper finishes
@@ -394,127 +1030,482 @@ public class AnalyticsClient {
     }
   }
 
-  /**
+  /** Hands {@code task}, which holds {@code permit}, to the network executor. */
+  private void startUpload(BatchUploadTask task, InFlightBatches.Permit permit) {
+    task.permit = permit;
+    try {
+      networkExecutor.submit(task);
+    } catch (RejectedExecutionException e) {
+      inFlightBatches.release(task.permit);
+      uploads.remove(task);
+      task.finished.complete(null);
+      log.print(
+          ERROR,
+          e,
+          spool == null
+              ? "Failed to submit batch %s to network executor during shutdown. Batch will be lost."
+              : "Failed to submit batch %s to network executor during shutdown. Batch will be replayed from the spool.",
+          task.batch.sequence());
+      // Notify callbacks about the failure
+      metrics.messagesDropped(DropReason.SHUTDOWN, task.batch.batch().size());
+      notifyFailure(task.batch, 0, 0, e);
+    }
+  }
+
+  /**
    * Looper runs on a background thread and takes messages from the queue. Once it collects enough
    * messages, it triggers a flush.
    */
   class Looper implements Runnable {
     private boolean stop;
+    // Messages drained in bulk from a RingBufferQueue but not yet processed.
+    private final ArrayDeque<Message> drained = new ArrayDeque<>();
+    // Acknowledged flushes waiting for the messages taken before them to be submitted.
+    private final ArrayDeque<PendingFlush> pendingFlushes = new ArrayDeque<>();
+    // Messages put in the local buffer or spilled to disk, and how many of those have since been
+    // submitted in a batch or dropped. Both only ever grow, in the order messages were taken.
+    private long held;
+    private long released;
+    // The oldest message in the local buffer, and when it became the oldest.
+    private Message oldest;
+    private long oldestSinceNanos;
 
     public Looper() {
       this.stop = false;
     }
 
+    /**
+     * Returns the next message, blocking until one is available or, unless {@code timeoutNanos} is
+     * negative, until it has passed, in which case it returns null. A {@link RingBufferQueue} is
+     * drained in bulk so the looper touches the shared queue once per run of messages.
+     */
+    private Message next(long timeoutNanos) throws InterruptedException {
+      Message message = drained.poll();
+      if (message != null) {
+        return message;
+      }
+      if (messageQueue instanceof RingBufferQueue
+          && messageQueue.drainTo(drained, LOOPER_DRAIN_SIZE) > 0) {
+        return drained.poll();
+      }
+      return timeoutNanos < 0
+          ? messageQueue.take()
+          : messageQueue.poll(timeoutNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Returns how long to wait for the next message before the buffer lingered long enough to be
+     * flushed, or -1 to wait indefinitely: without a linger time, or with nothing to flush.
+     */
+    private long lingerTimeoutNanos(List<Message> messages) {
+      if (lingerNanos == 0) {
+        return -1;
+      }
+      if (!messages.isEmpty()) {
+        return Math.max(0, oldestSinceNanos + lingerNanos - System.nanoTime());
+      }
+      if (isSpilling()) {
+        // Nothing in memory, but check now and then whether uploads may resume.
+        return lingerNanos;
+      }
+      return -1;
+    }
+
+    /**
+     * Hands {@code messages}, of about {@code bytes} encoded, to the network executor as one batch.
+     */
+    private void submit(List<Message> messages, long bytes) throws InterruptedException {
+      List<Message> batchMessages = new ArrayList<>(messages.size());
+      List<byte[]> encodedMessages = new ArrayList<>(messages.size());
+      for (Message msg : messages) {
+        if (msg instanceof EncodedMessage) {
+          encodedMessages.add(((EncodedMessage) msg).bytes());
+        }
+        batchMessages.add(EncodedMessage.unwrap(msg));
+      }
+      if (encodedMessages.size() != batchMessages.size()) {
+        encodedMessages = null;
+      }
+      Batch batch = Batch.create(CONTEXT, batchMessages, writeKey);
+      log.print(
+          VERBOSE, "Batching %s message(s) into batch %s.", batch.batch().size(), batch.sequence());
+      BatchUploadTask task =
+          BatchUploadTask.create(AnalyticsClient.this, batch, encodedMessages, maximumRetries);
+      task.spoolAddresses = spoolAddresses(messages);
+      if (uploadPacer != null && !isShutDown.get()) {
+        // Spaces batches at the pace the API accepts; on shutdown, they are all sent at once.
+        uploadPacer.acquire();
+      }
+      // Added before a parked batch may be started, and finished, from another thread.
+      uploads.add(task);
+      // Blocks while the maximum number of batches is in flight; the maximum is lifted on
+      // shutdown. The messages stay in the local buffer until a permit is acquired. A batch of a
+      // user with an earlier batch in flight is parked, and started once that one has finished.
+      InFlightBatches.Permit permit;
+      try {
+        permit =
+            inFlightBatches.acquire(
+                preserveUserOrder ? orderingKeys(batchMessages) : Collections.<String>emptySet(),
+                parked -> startUpload(task, parked));
+      } catch (InterruptedException e) {
+        uploads.remove(task);
+        throw e;
+      }
+      released += messages.size();
+      metrics.batchSubmitted(messages.size(), bytes);
+      if (permit != null) {
+        startUpload(task, permit);
+      }
+    }
+
+    private boolean isSpilling() {
+      return overflow != null && !overflow.isEmpty();
+    }
+
+    /**
+     * Writes {@code message} to the end of the overflow queue on disk, or fails it if the overflow
+     * queue is full.
+     */
+    private void spill(Message message) {
+      if (write(message)) {
+        held++;
+      }
+    }
+
+    private boolean write(Message message) {
+      byte[] bytes;
+      long spoolAddress = Spool.NO_ADDRESS;
+      if (message instanceof EncodedMessage) {
+        bytes = ((EncodedMessage) message).bytes();
+        spoolAddress = ((EncodedMessage) message).spoolAddress();
+      } else {
+        bytes = gsonInstance.toJson(message).getBytes(ENCODING);
+      }
+      IOException error;
+      try {
+        if (overflow.offer(spoolAddress, bytes)) {
+          return true;
+        }
+        error = new IOException("Message dropped: rate-limited and the overflow queue is full");
+      } catch (IOException e) {
+        error = e;
+      }
+      log.print(ERROR, error, "Could not spill message %s to disk.", message.messageId());
+      if (spool != null && spoolAddress != Spool.NO_ADDRESS) {
+        spool.giveUp(spoolAddress);
+      }
+      metrics.messagesDropped(DropReason.OVERFLOW_FAILED, 1);
+      notifyDropped(Collections.singletonList(message), error);
+      return false;
+    }
+
+    /**
+     * Uploads the messages spilled to disk in batches, in the order they were spilled, until the
+     * overflow queue is empty or uploads are rate-limited again.
+     *
+     * @param force drain everything even if rate-limited, as on shutdown.
+     */
+    private void drainOverflow(boolean force) throws InterruptedException {
+      log.print(VERBOSE, "Draining %s message(s) spilled to disk.", overflow.size());
+      List<Message> batch = new ArrayList<>();
+      BatchSizer.Tally tally = batchSizer.newBatch();
+      try {
+        drainOverflow(force, batch, tally);
+      } catch (InterruptedException e) {
+        // The batch was already taken off the disk.
+        dropUnsubmitted(batch);
+        throw e;
+      }
+    }
+
+    private void drainOverflow(boolean force, List<Message> batch, BatchSizer.Tally tally)
+        throws InterruptedException {
+      try {
+        DiskQueue.Record record;
+        while ((record = overflow.peek()) != null) {
+          boolean full =
+              !batch.isEmpty()
+                  && (batch.size() >= batchSizeLimit()
+                      || tally.messageBytes() >= flushThresholdInBytes);
+          Message message = null;
+          if (!full) {
+            message = decode(record.bytes);
+            if (message == null) {
+              overflow.poll();
+              log.print(ERROR, "Dropping a spilled message that could not be read.");
+              metrics.messagesDropped(DropReason.OVERFLOW_FAILED, 1);
+              released++;
+              if (spool != null && record.spoolAddress != Spool.NO_ADDRESS) {
+                spool.acknowledge(record.spoolAddress);
+              }
+              continue;
+            }
+            full = !tally.add(message, record.bytes.length);
+          }
+          if (full) {
+            // The record stays on disk for the next batch.
+            submit(batch, tally.bytes());
+            batch.clear();
+            tally.clear();
+            if (!force && isHeldBack()) {
+              return;
+            }
+            continue;
+          }
+          overflow.poll();
+          batch.add(new EncodedMessage(message, record.bytes, record.spoolAddress));
+        }
+      } catch (IOException e) {
+        log.print(
+            ERROR, e, "Could not read spilled messages; %s message(s) lost.", overflow.size());
+        metrics.messagesDropped(DropReason.OVERFLOW_FAILED, overflow.size());
+        released += overflow.size();
+        try {
+          overflow.close();
+        } catch (IOException ignored) {
+          // the files are deleted on the next start
+        }
+      }
+      if (!batch.isEmpty()) {
+        submit(batch, tally.bytes());
+        batch.clear();
+      }
+    }
+
     @Override
     public void run() {
       LinkedList<Message> messages = new LinkedList<>();
-      AtomicInteger currentBatchSize = new AtomicInteger();
+      BatchSizer.Tally tally = batchSizer.newBatch();
       boolean batchSizeLimitReached = false;
-      int contextSize = gsonInstance.toJson(CONTEXT).getBytes(ENCODING).length;
+      int rejectedBytes = 0;
       try {
         while (!stop) {
-          Message message = messageQueue.take();
+          Message message = next(lingerTimeoutNanos(messages));
+          boolean lingered = message == null;
+          if (lingered) {
+            // The oldest message lingered long enough: flush, as the flush interval would.
+            if (spool != null) {
+              spool.sync();
+            }
+            message = FlushMessage.POISON;
+          }
 
           if (message == StopMessage.STOP) {
             log.print(VERBOSE, "Stopping the Looper");
             stop = true;
-          } else if (message == FlushMessage.POISON) {
+          } else if (message instanceof FlushMessage) {
             if (!messages.isEmpty()) {
               log.print(VERBOSE, "Flushing messages.");
             }
+            CompletableFuture<Void> acknowledged = ((FlushMessage) message).acknowledged;
+            if (acknowledged != null) {
+              pendingFlushes.add(new PendingFlush(acknowledged, held));
+            }
           } else {
-            // we do  +1 because we are accounting for this new message we just took from the queue
-            // which is not in list yet
-            // need to check if this message is going to make us go over the limit considering
-            // default batch size as well
-            int defaultBatchSize =
-                BatchUtility.getBatchDefaultSize(contextSize, messages.size() + 1);
             int msgSize = messageSizeInBytes(message);
-            if (currentBatchSize.get() + msgSize + defaultBatchSize <= BATCH_MAX_SIZE) {
+            queuedBytes.addAndGet(-msgSize);
+            if (isSpilling()) {
+              // Messages spilled to disk arrived before this one; keep the order by queueing it
+              // behind them.
+              spill(message);
+            } else if (tally.add(message, msgSize)) {
+              // The message still fits in the batch, envelope included.
               messages.add(message);
-              currentBatchSize.addAndGet(msgSize);
+              held++;
             } else {
               // put message that did not make the cut this time back on the queue, we already took
               // this message if we dont put it back its lost
               // we take care of that after submitting the batch
               batchSizeLimitReached = true;
+              rejectedBytes = msgSize;
             }
           }
 
-          Boolean isBlockingSignal = message == FlushMessage.POISON || message == StopMessage.STOP;
-          Boolean isOverflow = messages.size() >= size;
+          Boolean isBlockingSignal = message instanceof FlushMessage || message == StopMessage.STOP;
+          // The batch holds as many messages, or as many bytes of messages, as flush it.
+          Boolean isOverflow =
+              messages.size() >= batchSizeLimit() || tally.messageBytes() >= flushThresholdInBytes;
 
           if (!messages.isEmpty() && (isOverflow || isBlockingSignal || batchSizeLimitReached)) {
-            // Skip submission if rate-limited (unless this is a StopMessage — always flush on
-            // shutdown)
-            if (isRateLimited() && message != StopMessage.STOP) {
-              log.print(DEBUG, "Rate-limited. Deferring batch submission.");
+            // Skip submission if rate-limited or the circuit is open (unless this is a
+            // StopMessage — always flush on shutdown)
+            if (isHeldBack() && message != StopMessage.STOP) {
+              log.print(DEBUG, "Rate-limited or circuit open. Deferring batch submission.");
               // Don't clear messages — they'll be picked up on the next flush trigger
               if (batchSizeLimitReached) {
-                // Preserve overflow message while deferring submission due to rate limiting.
+                // Preserve overflow message while deferring submission.
                 // This message was consumed from the queue but not added to the current batch.
-                if (!messageQueue.offer(message)) {
+                if (overflow != null) {
+                  // The in-memory batch is full; this and every later message go to disk until
+                  // uploads resume.
+                  spill(message);
+                } else if (messageQueue.offer(message)) {
+                  queuedBytes.addAndGet(rejectedBytes);
+                  // The batch is full, so the message would only be taken again at once.
+                  awaitHeldBack();
+                } else {
                   log.print(
                       ERROR,
                       "Failed to preserve overflow message while rate-limited; message may be dropped.");
+                  metrics.messagesDropped(DropReason.QUEUE_FULL, 1);
                 }
                 batchSizeLimitReached = false;
               }
             } else {
-              Batch batch = Batch.create(CONTEXT, new ArrayList<>(messages), writeKey);
-              log.print(
-                  VERBOSE,
-                  "Batching %s message(s) into batch %s.",
-                  batch.batch().size(),
-                  batch.sequence());
               try {
-                networkExecutor.submit(
-                    BatchUploadTask.create(AnalyticsClient.this, batch, maximumRetries));
-              } catch (RejectedExecutionException e) {
-                log.print(
-                    ERROR,
-                    e,
-                    "Failed to submit batch %s to network executor during shutdown. Batch will be lost.",
-                    batch.sequence());
-                // Notify callbacks about the failure
-                for (Message msg : batch.batch()) {
-                  for (Callback callback : callbacks) {
-                    callback.failure(msg, e);
-                  }
+                submit(messages, tally.bytes());
+              } catch (InterruptedException e) {
+                if (batchSizeLimitReached) {
+                  // Left over with the batch, so that it is failed along with it.
+                  messages.add(message);
                 }
+                throw e;
               }
-
-              currentBatchSize.set(0);
+              tally.clear();
               messages.clear();
               if (batchSizeLimitReached) {
                 // If this is true that means the last message that would make us go over the limit
                 // was not added,
                 // add it to the now cleared messages list so its not lost
+                tally.add(message, rejectedBytes);
                 messages.add(message);
+                held++;
               }
               batchSizeLimitReached = false;
             }
           }
+
+          if (isSpilling() && (message == StopMessage.STOP || !isHeldBack())) {
+            // Upload the messages held in memory, then those spilled to disk, in arrival order.
+            if (!messages.isEmpty()) {
+              submit(messages, tally.bytes());
+              tally.clear();
+              messages.clear();
+            }
+            drainOverflow(message == StopMessage.STOP);
+          }
+
+          acknowledgeFlushes();
+
+          if (messages.isEmpty()) {
+            oldest = null;
+          } else if (messages.getFirst() != oldest || lingered) {
+            // A new oldest message, or one that could not be flushed while rate-limited and
+            // lingers once more.
+            oldest = messages.getFirst();
+            oldestSinceNanos = System.nanoTime();
+          }
         }
       } catch (InterruptedException e) {
         log.print(DEBUG, "Looper interrupted while polling for messages.");
         Thread.currentThread().interrupt();
       }
-      // Any messages still held in the local buffer were deferred due to rate-limiting and
-      // never flushed. Fire failure callbacks so callers are not silently left waiting.
-      if (!messages.isEmpty()) {
-        IOException stalledError =
-            new IOException(
-                messages.size() + " message(s) dropped: rate-limited when Looper stopped");
-        log.print(ERROR, stalledError.getMessage());
-        for (Message msg : messages) {
-          for (Callback callback : callbacks) {
-            callback.failure(msg, stalledError);
-          }
-        }
+      // Messages still in the local buffer, or still queued, if the looper was interrupted before
+      // it reached the stop message, or queued behind it, are never uploaded. Fire failure
+      // callbacks so callers are not silently left waiting.
+      List<Message> leftOver = new ArrayList<>(messages);
+      for (Message message : drained) {
+        addLeftOver(leftOver, message);
+      }
+      for (Message message : messageQueue) {
+        addLeftOver(leftOver, message);
+      }
+      dropUnsubmitted(leftOver);
+      // Everything the looper will ever submit has been submitted; flushes queued behind the stop
+      // message are acknowledged as well, as no message ahead of them is uploaded anymore.
+      released = held;
+      acknowledgeFlushes();
+      for (Message message : drained) {
+        acknowledgeLeftOver(message);
+      }
+      for (Message message : messageQueue) {
+        acknowledgeLeftOver(message);
       }
       log.print(VERBOSE, "Looper stopped");
     }
+
+    private void addLeftOver(List<Message> leftOver, Message message) {
+      if (message != StopMessage.STOP && !(message instanceof FlushMessage)) {
+        leftOver.add(message);
+      }
+    }
+
+    /** Fails {@code messages}, which the looper took or left queued but never submitted. */
+    private void dropUnsubmitted(List<Message> messages) {
+      if (messages.isEmpty()) {
+        return;
+      }
+      IOException error =
+          new IOException(
+              messages.size() + " message(s) dropped: the looper stopped before uploading them");
+      log.print(ERROR, error.getMessage());
+      metrics.messagesDropped(DropReason.SHUTDOWN, messages.size());
+      if (spool != null) {
+        log.print(ERROR, "The dropped messages will be replayed from the spool on restart.");
+      }
+      notifyDropped(messages, error);
+    }
+
+    /**
+     * Acknowledges the flushes whose messages have all been submitted, once the batches holding
+     * them have finished.
+     */
+    private void acknowledgeFlushes() {
+      while (!pendingFlushes.isEmpty() && pendingFlushes.peek().held <= released) {
+        completeWhenUploaded(pendingFlushes.poll().acknowledged);
+      }
+    }
+
+    private void acknowledgeLeftOver(Message message) {
+      if (message instanceof FlushMessage && ((FlushMessage) message).acknowledged != null) {
+        completeWhenUploaded(((FlushMessage) message).acknowledged);
+      }
+    }
+
+    private void completeWhenUploaded(final CompletableFuture<Void> acknowledged) {
+      whenUploaded().whenComplete((ignored, error) -> acknowledged.complete(null));
+    }
+  }
+
+  /** An acknowledged flush, and the number of messages the looper had held when it took it. */
+  private static final class PendingFlush {
+    final CompletableFuture<Void> acknowledged;
+    final long held;
+
+    PendingFlush(CompletableFuture<Void> acknowledged, long held) {
+      this.acknowledged = acknowledged;
+      this.held = held;
+    }
+  }
+
+  /** Returns the spool addresses of {@code messages}, or null if none of them is spooled. */
+  private static long[] spoolAddresses(List<Message> messages) {
+    long[] addresses = null;
+    int count = 0;
+    for (Message message : messages) {
+      if (message instanceof EncodedMessage
+          && ((EncodedMessage) message).spoolAddress() != Spool.NO_ADDRESS) {
+        if (addresses == null) {
+          addresses = new long[messages.size()];
+        }
+        addresses[count++] = ((EncodedMessage) message).spoolAddress();
+      }
+    }
+    return addresses == null || count == addresses.length
+        ? addresses
+        : Arrays.copyOf(addresses, count);
+  }
+
+  /** Returns the users of {@code messages}, identified by their userId or else anonymousId. */
+  private static Set<String> orderingKeys(List<Message> messages) {
+    Set<String> keys = new HashSet<>();
+    for (Message message : messages) {
+      String key = message.userId() != null ? message.userId() : message.anonymousId();
+      if (key != null) {
+        keys.add(key);
+      }
+    }
+    return keys;
   }
 
   static class BatchUploadTask implements Runnable {
@@ -528,25 +1519,88 @@ public class AnalyticsClient {
     private final AnalyticsClient client;
     private final Backo backo;
     final Batch batch;
+    private final List<byte[]> encodedMessages;
     private final int maxRetries;
+    private final long createdNanos = System.nanoTime();
+    // Completed once the batch is uploaded or given up on.
+    final CompletableFuture<Void> finished = new CompletableFuture<>();
+    private long startNanos;
+    private RequestBody body;
+    // Retry state. Attempts of an asynchronous upload run one after another on different threads,
+    // each handed over by the dispatcher or the retry scheduler.
+    private int totalAttempts; // counts every HTTP attempt (for header and error message)
+    private int backoffAttempts; // counts attempts that consume backoff-based retries
+    private long firstFailureTime;
+    private long attemptStartNanos;
+    // The HTTP status of the last attempt, or 0 if it got no response.
+    private int statusCode;
+    // The endpoint of the last attempt, whether it failed on the host's side, and how many
+    // attempts were failed over to another endpoint without backing off.
+    private Endpoints.Endpoint endpoint;
+    private boolean endpointFailed;
+    private int failovers;
+    InFlightBatches.Permit permit;
+    // Addresses of the batch's messages in the spool, acknowledged once the batch is settled.
+    long[] spoolAddresses;
 
     static BatchUploadTask create(AnalyticsClient client, Batch batch, int maxRetries) {
-      return new BatchUploadTask(client, BACKO, batch, maxRetries);
+      return create(client, batch, null, maxRetries);
+    }
+
+    static BatchUploadTask create(
+        AnalyticsClient client, Batch batch, List<byte[]> encodedMessages, int maxRetries) {
+      return new BatchUploadTask(client, BACKO, batch, encodedMessages, maxRetries);
     }
 
     BatchUploadTask(AnalyticsClient client, Backo backo, Batch batch, int maxRetries) {
+      this(client, backo, batch, null, maxRetries);
+    }
+
+    /**
+     * @param encodedMessages the pre-encoded JSON of each message in {@code batch}, in the same
+     *     order, or {@code null} to let the {@link SegmentService} serialize the batch.
+     */
+    BatchUploadTask(
+        AnalyticsClient client,
+        Backo backo,
+        Batch batch,
+        List<byte[]> encodedMessages,
+        int maxRetries) {
       this.client = client;
       this.batch = batch;
       this.backo = backo;
+      this.encodedMessages = encodedMessages;
       this.maxRetries = maxRetries;
     }
 
-    private void notifyCallbacksWithException(Batch batch, Exception exception) {
-      for (Message message : batch.batch()) {
-        for (Callback callback : client.callbacks) {
-          callback.failure(message, exception);
+    /**
+     * Returns the request body for this batch, streamed from the pre-encoded messages and
+     * compressed if the client is configured to. The body is created once and reused across
+     * retries.
+     */
+    RequestBody body() throws IOException {
+      if (body == null) {
+        List<byte[]> encoded = encodedMessages;
+        if (encoded == null) {
+          encoded = new ArrayList<>(batch.batch().size());
+          for (Message message : batch.batch()) {
+            encoded.add(client.gsonInstance.toJson(message).getBytes(ENCODING));
+          }
         }
+        RequestBody json = new BatchRequestBody(client.gsonInstance, batch, encoded);
+        body = client.compression == Compression.GZIP ? GzipRequestBody.compress(json) : json;
       }
+      return body;
+    }
+
+    /** Returns the {@code Content-Encoding} of {@link #body()}, or null if it is uncompressed. */
+    private String contentEncoding() {
+      return client.compression == Compression.GZIP ? GzipRequestBody.CONTENT_ENCODING : null;
+    }
+
+    private void notifyCallbacksWithException(Batch batch, DropReason reason, Exception exception) {
+      client.metrics.messagesDropped(reason, batch.batch().size());
+      client.notifyFailure(batch, statusCode, totalAttempts, exception);
     }
 
     private enum RetryStrategy {
@@ -576,6 +1630,8 @@ public class AnalyticsClient {
      */
     UploadResult upload(int attempt) {
       client.log.print(VERBOSE, "Uploading batch %s.", batch.sequence());
+      attemptStartNanos = System.nanoTime();
+      endpoint = client.endpoints.select(endpointFailed ? endpoint : null);
 
       try {
         if (attempt > 1) {
@@ -583,71 +1639,95 @@ public class AnalyticsClient {
         } else {
           RETRY_COUNT.remove();
         }
-        Call<UploadResponse> call = client.service.upload(client.uploadUrl, batch);
-        Response<UploadResponse> response = call.execute();
-
-        if (response.isSuccessful()) {
-          client.log.print(VERBOSE, "Uploaded batch %s.", batch.sequence());
-
-          for (Message message : batch.batch()) {
-            for (Callback callback : client.callbacks) {
-              callback.success(message);
-            }
-          }
+        Call<UploadResponse> call;
+        if (client.encodedService == null
+            || (encodedMessages == null && client.compression == Compression.NONE)) {
+          call = client.service.upload(endpoint.url, batch);
+        } else {
+          call = client.encodedService.upload(endpoint.url, contentEncoding(), body());
+        }
+        return handle(call.execute());
+      } catch (Exception exception) {
+        return handle(exception);
+      }
+    }
 
-          return new UploadResult(RetryStrategy.NONE);
+    /** Returns what to do after the API answered an attempt with {@code response}. */
+    private UploadResult handle(Response<UploadResponse> response) throws IOException {
+      statusCode = response.code();
+      if (response.isSuccessful()) {
+        client.log.print(VERBOSE, "Uploaded batch %s.", batch.sequence());
+        if (totalAttempts == 1) {
+          client.onUploaded(batch.batch().size(), System.nanoTime() - attemptStartNanos);
         }
+        client.metrics.batchUploaded(batch.batch().size(), System.nanoTime() - startNanos);
+        client.onUploadAccepted();
+        client.notifySuccess(batch, statusCode, totalAttempts);
 
-        int status = response.code();
+        return new UploadResult(RetryStrategy.NONE);
+      }
 
-        if (isStatusRetryWithBackoff(status)) {
-          String retryAfterHeader = response.headers().get("Retry-After");
-          Long retryAfterSeconds = parseRetryAfterSeconds(retryAfterHeader);
-          if (retryAfterSeconds != null) {
-            client.log.print(
-                DEBUG,
-                "Could not upload batch %s due to status %s with Retry-After %s seconds. Retrying after delay.",
-                batch.sequence(),
-                status,
-                retryAfterSeconds);
-            return new UploadResult(RetryStrategy.RATE_LIMITED, retryAfterSeconds);
-          }
-          if (retryAfterHeader != null && !retryAfterHeader.trim().isEmpty()) {
-            client.log.print(
-                DEBUG,
-                "Status %s returned unparseable Retry-After header \"%s\" for batch %s. Using backoff.",
-                status,
-                retryAfterHeader,
-                batch.sequence());
-          } else {
-            client.log.print(
-                DEBUG,
-                "Status %s did not have a valid Retry-After header for batch %s. Using backoff.",
-                status,
-                batch.sequence());
-          }
-          return new UploadResult(RetryStrategy.BACKOFF);
+      int status = response.code();
+
+      if (isStatusRetryWithBackoff(status)) {
+        String retryAfterHeader = response.headers().get("Retry-After");
+        Long retryAfterSeconds = parseRetryAfterSeconds(retryAfterHeader);
+        if (status == 429 || retryAfterSeconds != null) {
+          client.onUploadRateLimited(attemptStartNanos);
+        }
+        if (retryAfterSeconds != null) {
+          client.log.print(
+              DEBUG,
+              "Could not upload batch %s due to status %s with Retry-After %s seconds. Retrying after delay.",
+              batch.sequence(),
+              status,
+              retryAfterSeconds);
+          return new UploadResult(RetryStrategy.RATE_LIMITED, retryAfterSeconds);
+        }
+        if (retryAfterHeader != null && !retryAfterHeader.trim().isEmpty()) {
+          client.log.print(
+              DEBUG,
+              "Status %s returned unparseable Retry-After header \"%s\" for batch %s. Using backoff.",
+              status,
+              retryAfterHeader,
+              batch.sequence());
+        } else {
+          client.log.print(
+              DEBUG,
+              "Status %s did not have a valid Retry-After header for batch %s. Using backoff.",
+              status,
+              batch.sequence());
         }
+        return new UploadResult(RetryStrategy.BACKOFF);
+      }
 
-        client.log.print(
-            DEBUG,
-            "Could not upload batch %s due to non-retryable status %s. Giving up.",
-            batch.sequence(),
-            status);
-        notifyCallbacksWithException(batch, new IOException(response.errorBody().string()));
+      client.log.print(
+          DEBUG,
+          "Could not upload batch %s due to non-retryable status %s. Giving up.",
+          batch.sequence(),
+          status);
+      notifyCallbacksWithException(
+          batch, DropReason.REJECTED, new IOException(response.errorBody().string()));
 
-        return new UploadResult(RetryStrategy.NONE);
-      } catch (IOException error) {
+      return new UploadResult(RetryStrategy.NONE);
+    }
+
+    /** Returns what to do after an attempt failed with {@code error} before a response arrived. */
+    private UploadResult handle(Throwable error) {
+      statusCode = 0;
+      if (error instanceof IOException) {
         client.log.print(DEBUG, error, "Could not upload batch %s. Retrying.", batch.sequence());
 
         return new UploadResult(RetryStrategy.BACKOFF);
-      } catch (Exception exception) {
-        client.log.print(DEBUG, "Could not upload batch %s. Giving up.", batch.sequence());
+      }
+      client.log.print(DEBUG, "Could not upload batch %s. Giving up.", batch.sequence());
 
-        notifyCallbacksWithException(batch, exception);
+      notifyCallbacksWithException(
+          batch,
+          DropReason.REJECTED,
+          error instanceof Exception ? (Exception) error : new Exception(error));
 
-        return new UploadResult(RetryStrategy.NONE);
-      }
+      return new UploadResult(RetryStrategy.NONE);
     }
 
     private static Long parseRetryAfterSeconds(String headerValue) {
@@ -682,75 +1762,219 @@ public class AnalyticsClient {
 
     @Override
     public void run() {
-      int totalAttempts = 0; // counts every HTTP attempt (for header and error message)
-      int backoffAttempts = 0; // counts attempts that consume backoff-based retries
-      int maxBackoffAttempts = maxRetries + 1; // preserve existing semantics
-      long firstFailureTime = 0;
+      startNanos = System.nanoTime();
+      if (client.retryScheduler != null) {
+        uploadAsync();
+        return;
+      }
+      try {
+        uploadWithRetries();
+      } finally {
+        finish();
+      }
+    }
 
-      while (true) {
-        totalAttempts++;
-        UploadResult result = upload(totalAttempts);
+    /** Records the upload and lets the looper submit another batch. */
+    private void finish() {
+      client.uploadMetrics.record(startNanos - createdNanos, System.nanoTime() - startNanos);
+      if (permit != null) {
+        client.inFlightBatches.release(permit);
+      }
+      client.uploads.remove(this);
+      finished.complete(null);
+    }
 
-        if (result.strategy == RetryStrategy.NONE) {
-          client.clearRateLimitState();
+    private void uploadWithRetries() {
+      while (true) {
+        if (!awaitCircuit()) {
+          return;
+        }
+        UploadResult result = upload(++totalAttempts);
+        long delayMillis = retryDelayMillis(result);
+        if (delayMillis < 0) {
           return;
         }
 
-        if (result.strategy == RetryStrategy.RATE_LIMITED) {
-          // Atomically set rate-limit state and check whether maxRateLimitDuration is exceeded.
-          boolean durationExceeded =
-              client.setRateLimitStateAndCheckDuration(
-                  result.retryAfterSeconds, client.maxRateLimitDurationMs);
-          if (durationExceeded) {
-            client.clearRateLimitState();
-            break;
-          }
-
-          // If maxRetries=0 the user wants no retries at all; respect that for Retry-After too.
-          if (maxBackoffAttempts <= 1) {
-            break;
-          }
-
-          try {
-            TimeUnit.SECONDS.sleep(result.retryAfterSeconds);
-          } catch (InterruptedException e) {
+        try {
+          TimeUnit.MILLISECONDS.sleep(delayMillis);
+        } catch (InterruptedException e) {
+          if (result.strategy == RetryStrategy.RATE_LIMITED) {
             client.log.print(
                 DEBUG,
                 "Thread interrupted while waiting for Retry-After for batch %s.",
                 batch.sequence());
             client.clearRateLimitState();
-            Thread.currentThread().interrupt();
-            return;
+          } else {
+            client.log.print(
+                DEBUG, "Thread interrupted while backing off for batch %s.", batch.sequence());
           }
-          // Retry-After does not count against maxRetries.
-          continue;
-        }
-
-        // BACKOFF strategy
-        if (firstFailureTime == 0) firstFailureTime = System.currentTimeMillis();
-        if (System.currentTimeMillis() - firstFailureTime > client.maxTotalBackoffDurationMs) {
-          break;
-        }
-
-        backoffAttempts++;
-        if (backoffAttempts >= maxBackoffAttempts) {
-          break;
+          Thread.currentThread().interrupt();
+          return;
         }
+      }
+    }
 
+    /** Blocks while the circuit is open, and returns false if the thread was interrupted. */
+    private boolean awaitCircuit() {
+      long waitNanos;
+      while ((waitNanos = client.acquireCircuit()) > 0) {
         try {
-          backo.sleep(backoffAttempts - 1);
+          TimeUnit.NANOSECONDS.sleep(waitNanos);
         } catch (InterruptedException e) {
           client.log.print(
-              DEBUG, "Thread interrupted while backing off for batch %s.", batch.sequence());
+              DEBUG,
+              "Thread interrupted while waiting for the circuit to close for batch %s.",
+              batch.sequence());
           Thread.currentThread().interrupt();
-          return;
+          return false;
+        }
+      }
+      return true;
+    }
+
+    /**
+     * Uploads the batch without blocking a thread: each attempt is handed to OkHttp's dispatcher
+     * with {@link Call#enqueue}, and each retry is scheduled on the client's retry scheduler
+     * instead of sleeping. {@link #finish()} runs once the batch is settled.
+     */
+    private void uploadAsync() {
+      long waitNanos = client.acquireCircuit();
+      if (waitNanos > 0) {
+        scheduleUploadAsync(waitNanos);
+        return;
+      }
+      client.log.print(VERBOSE, "Uploading batch %s.", batch.sequence());
+      final int attempt = ++totalAttempts;
+      attemptStartNanos = System.nanoTime();
+      endpoint = client.endpoints.select(endpointFailed ? endpoint : null);
+      Call<UploadResponse> call;
+      try {
+        if (client.encodedService == null) {
+          call = client.service.upload(endpoint.url, batch);
+        } else {
+          // The retry count travels as a header, as the dispatcher thread cannot see RETRY_COUNT.
+          call =
+              client.encodedService.upload(
+                  endpoint.url, contentEncoding(), attempt > 1 ? attempt - 1 : null, body());
+        }
+      } catch (Exception exception) {
+        retryAsync(handle(exception));
+        return;
+      }
+      call.enqueue(
+          new retrofit2.Callback<UploadResponse>() {
+            @Override
+            public void onResponse(Call<UploadResponse> call, Response<UploadResponse> response) {
+              UploadResult result;
+              try {
+                result = handle(response);
+              } catch (Exception exception) {
+                result = handle(exception);
+              }
+              retryAsync(result);
+            }
+
+            @Override
+            public void onFailure(Call<UploadResponse> call, Throwable error) {
+              retryAsync(handle(error));
+            }
+          });
+    }
+
+    private void retryAsync(UploadResult result) {
+      long delayMillis = retryDelayMillis(result);
+      if (delayMillis < 0) {
+        finish();
+        return;
+      }
+      scheduleUploadAsync(TimeUnit.MILLISECONDS.toNanos(delayMillis));
+    }
+
+    /** Schedules the next attempt in {@code delayNanos}, or gives up if the client is shut down. */
+    private void scheduleUploadAsync(long delayNanos) {
+      try {
+        client.retryScheduler.schedule(
+            new Runnable() {
+              @Override
+              public void run() {
+                uploadAsync();
+              }
+            },
+            delayNanos,
+            TimeUnit.NANOSECONDS);
+      } catch (RejectedExecutionException e) {
+        client.clearRateLimitState();
+        client.log.print(
+            ERROR, "Could not retry batch %s, the client is shut down.", batch.sequence());
+        notifyCallbacksWithException(
+            batch, DropReason.SHUTDOWN, new IOException("Client shut down before retry"));
+        finish();
+      }
+    }
+
+    /**
+     * Returns how long to wait before the next attempt after {@code result}, or -1 once the batch
+     * is settled: uploaded, rejected for good, or out of retries, in which case the callbacks have
+     * been notified.
+     */
+    private long retryDelayMillis(UploadResult result) {
+      // Only an attempt that got no response or a server error counts against the host; a
+      // rate-limited or otherwise retried attempt reached a host that is up.
+      endpointFailed =
+          result.strategy == RetryStrategy.BACKOFF && (statusCode == 0 || statusCode >= 500);
+      client.onAttemptFinished(endpoint, endpointFailed, System.nanoTime() - attemptStartNanos);
+      if (result.strategy == RetryStrategy.NONE) {
+        client.clearRateLimitState();
+        client.acknowledge(spoolAddresses);
+        return -1;
+      }
+
+      int maxBackoffAttempts = maxRetries + 1; // preserve existing semantics
+      if (result.strategy == RetryStrategy.RATE_LIMITED) {
+        // Atomically set rate-limit state and check whether maxRateLimitDuration is exceeded.
+        boolean durationExceeded =
+            client.setRateLimitStateAndCheckDuration(
+                result.retryAfterSeconds, client.maxRateLimitDurationMs);
+        // If maxRetries=0 the user wants no retries at all; respect that for Retry-After too.
+        if (durationExceeded || maxBackoffAttempts <= 1) {
+          return giveUp();
         }
+        // Retry-After does not count against maxRetries.
+        client.metrics.uploadRetried();
+        return TimeUnit.SECONDS.toMillis(result.retryAfterSeconds);
+      }
+
+      // BACKOFF strategy
+      client.onUploadFailed();
+      if (firstFailureTime == 0) firstFailureTime = System.currentTimeMillis();
+      if (System.currentTimeMillis() - firstFailureTime > client.maxTotalBackoffDurationMs) {
+        return giveUp();
       }
 
+      if (endpointFailed && maxBackoffAttempts > 1 && failovers < client.endpoints.size() - 1) {
+        // Try another endpoint at once; back off only once every endpoint failed.
+        failovers++;
+        client.metrics.uploadRetried();
+        return 0;
+      }
+
+      backoffAttempts++;
+      if (backoffAttempts >= maxBackoffAttempts) {
+        return giveUp();
+      }
+      client.metrics.uploadRetried();
+      return backo.backoff(backoffAttempts - 1);
+    }
+
+    private long giveUp() {
       client.clearRateLimitState();
       client.log.print(ERROR, "Could not upload batch %s. Retries exhausted.", batch.sequence());
+      client.giveUp(spoolAddresses);
       notifyCallbacksWithException(
-          batch, new IOException(Integer.toString(totalAttempts) + " retries exhausted"));
+          batch,
+          DropReason.RETRIES_EXHAUSTED,
+          new IOException(Integer.toString(totalAttempts) + " retries exhausted"));
+      return -1;
     }
 
     private static boolean isStatusRetryWithBackoff(int status) {
@@ -767,57 +1991,4 @@ public class AnalyticsClient {
       return false;
     }
   }
-
-  public static class BatchUtility {
-
-    /**
-     * Method to determine what is the expected default size of the batch regardless of messages
-     *
-     * <p>Sample batch:
-     * {"batch":[{"type":"alias","messageId":"fc9198f9-d827-47fb-96c8-095bd3405d93","timestamp":"Nov
-     * 18, 2021, 2:45:07
-     * PM","userId":"jorgen25","integrations":{"someKey":{"data":"aaaaa"}},"previousId":"foo"},{"type":"alias",
-     * "messageId":"3ce6f88c-36cb-4991-83f8-157e10261a89","timestamp":"Nov 18, 2021, 2:45:07
-     * PM","userId":"jorgen25",
-     * "integrations":{"someKey":{"data":"aaaaa"}},"previousId":"foo"},{"type":"alias",
-     * "messageId":"a328d339-899a-4a14-9835-ec91e303ac4d","timestamp":"Nov 18, 2021, 2:45:07 PM",
-     * "userId":"jorgen25","integrations":{"someKey":{"data":"aaaaa"}},"previousId":"foo"},{"type":"alias",
-     * "messageId":"57b0ceb4-a1cf-4599-9fba-0a44c7041004","timestamp":"Nov 18, 2021, 2:45:07 PM",
-     * "userId":"jorgen25","integrations":{"someKey":{"data":"aaaaa"}},"previousId":"foo"}],
-     * "sentAt":"Nov 18, 2021, 2:45:07 PM","context":{"library":{"name":"analytics-java",
-     * "version":"3.1.3"}},"sequence":1,"writeKey":"XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX"}
-     *
-     * <p>total size of batch : 932
-     *
-     * <p>BREAKDOWN: {"batch":[MESSAGE1,MESSAGE2,MESSAGE3,MESSAGE4],"sentAt":"MMM dd, yyyy, HH:mm:ss
-     * tt","context":CONTEXT,"sequence":1,"writeKey":"XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX"}
-     *
-     * <p>so we need to account for: 1 -message size: 189 * 4 = 756 2 -context object size = 55 in
-     * this sample -> 756 + 55 = 811 3 -Metadata (This has the sent data/sequence characters) +
-     * extra chars (these are chars like "batch":[] or "context": etc and will be pretty much the
-     * same length in every batch -> size is 73 --> 811 + 73 = 884 (well 72 actually, char 73 is the
-     * sequence digit which we account for in point 5) 4 -Commas between each message, the total
-     * number of commas is number_of_msgs - 1 = 3 -> 884 + 3 = 887 (sample is 886 because the hour
-     * in sentData this time happens to be 2:45 but it could be 12:45 5 -Sequence Number increments
-     * with every batch created
-     *
-     * <p>so formulae to determine the expected default size of the batch is
-     *
-     * @return: defaultSize = messages size + context size + metadata size + comma number + sequence
-     *     digits + writekey + buffer
-     * @return
-     */
-    private static int getBatchDefaultSize(int contextSize, int currentMessageNumber) {
-      // sample data: {"batch":[],"sentAt":"MMM dd, yyyy, HH:mm:ss tt","context":,"sequence":1,
-      //   "writeKey":"XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX"} - 119
-      // Don't need to squeeze everything possible into a batch, adding a buffer
-      int metadataExtraCharsSize = 119 + 1024;
-      int commaNumber = currentMessageNumber - 1;
-
-      return contextSize
-          + metadataExtraCharsSize
-          + commaNumber
-          + String.valueOf(Integer.MAX_VALUE).length();
-    }
-  }
 }
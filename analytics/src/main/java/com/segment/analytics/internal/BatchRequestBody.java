@@ -0,0 +1,80 @@
+package com.segment.analytics.internal;
+
+import com.google.gson.Gson;
+import com.segment.analytics.messages.Batch;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import okhttp3.MediaType;
+import okhttp3.RequestBody;
+import okio.BufferedSink;
+
+/**
+ * A {@link RequestBody} that streams a {@link Batch} envelope straight into the request sink from
+ * the pre-encoded JSON of each message.
+ *
+ * <p>The batch is never materialized as a single {@link String} or byte array: only the small
+ * envelope fields ({@code sentAt}, {@code context}, {@code sequence} and {@code writeKey}) are
+ * encoded up front. The body can be written any number of times, so retries reuse the same segments
+ * without re-encoding them.
+ */
+final class BatchRequestBody extends RequestBody {
+  static final MediaType JSON = MediaType.get("application/json; charset=UTF-8");
+
+  private static final byte[] BATCH_START = ascii("{\"batch\":[");
+  private static final byte COMMA = ',';
+
+  private final List<byte[]> encodedMessages;
+  private final byte[] envelopeEnd;
+  private final long contentLength;
+
+  BatchRequestBody(Gson gson, Batch batch, List<byte[]> encodedMessages) {
+    this.encodedMessages = encodedMessages;
+    this.envelopeEnd =
+        ("],\"sentAt\":"
+                + gson.toJson(batch.sentAt())
+                + ",\"context\":"
+                + gson.toJson(batch.context())
+                + ",\"sequence\":"
+                + batch.sequence()
+                + ",\"writeKey\":"
+                + gson.toJson(batch.writeKey())
+                + "}")
+            .getBytes(StandardCharsets.UTF_8);
+
+    long length = BATCH_START.length + envelopeEnd.length;
+    for (byte[] encoded : encodedMessages) {
+      length += encoded.length;
+    }
+    if (!encodedMessages.isEmpty()) {
+      length += encodedMessages.size() - 1; // separating commas
+    }
+    this.contentLength = length;
+  }
+
+  private static byte[] ascii(String value) {
+    return value.getBytes(StandardCharsets.US_ASCII);
+  }
+
+  @Override
+  public MediaType contentType() {
+    return JSON;
+  }
+
+  @Override
+  public long contentLength() {
+    return contentLength;
+  }
+
+  @Override
+  public void writeTo(BufferedSink sink) throws IOException {
+    sink.write(BATCH_START);
+    for (int i = 0, size = encodedMessages.size(); i < size; i++) {
+      if (i > 0) {
+        sink.writeByte(COMMA);
+      }
+      sink.write(encodedMessages.get(i));
+    }
+    sink.write(envelopeEnd);
+  }
+}
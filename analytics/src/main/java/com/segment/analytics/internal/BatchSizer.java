@@ -0,0 +1,126 @@
+package com.segment.analytics.internal;
+
+import com.google.gson.Gson;
+import com.segment.analytics.messages.Message;
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+import java.util.Map;
+
+/**
+ * Measures batches as they are filled, so the looper packs each one up to a byte limit without
+ * going over it.
+ *
+ * <p>A batch is encoded as {@code {"batch":[M1,M2,...],"sentAt":S,"context":C,"sequence":N,
+ * "writeKey":W}}, by {@link BatchRequestBody} or by Gson, which write the same bytes. The context
+ * and writeKey are the same for every batch of a client and are encoded once. The sentAt is that of
+ * the first message that has one, as in {@link com.segment.analytics.messages.Batch#create}, and
+ * otherwise the time of the upload, measured as the current time: ISO 8601 dates, as the client
+ * writes them, all have the same length. The sequence number is only assigned when the batch is
+ * created, so room is kept for the widest int.
+ */
+final class BatchSizer {
+  private static final int SEQUENCE_BYTES = String.valueOf(Integer.MIN_VALUE).length();
+
+  private final Gson gson;
+  private final int limitBytes;
+  // Everything but the messages, the commas between them and the sentAt.
+  private final int envelopeBytes;
+
+  BatchSizer(Gson gson, Map<String, ?> context, String writeKey, int limitBytes) {
+    this.gson = gson;
+    this.limitBytes = limitBytes;
+    this.envelopeBytes =
+        utf8Length(
+                "{\"batch\":[],\"sentAt\":,\"context\":"
+                    + gson.toJson(context)
+                    + ",\"sequence\":,\"writeKey\":"
+                    + gson.toJson(writeKey)
+                    + "}")
+            + SEQUENCE_BYTES;
+  }
+
+  /** Returns the number of bytes no batch is packed beyond. */
+  int limitBytes() {
+    return limitBytes;
+  }
+
+  /** Returns a new, empty batch. */
+  Tally newBatch() {
+    return new Tally();
+  }
+
+  private int sentAtBytes(Date sentAt) {
+    return utf8Length(gson.toJson(sentAt));
+  }
+
+  private static int utf8Length(String json) {
+    return json.getBytes(StandardCharsets.UTF_8).length;
+  }
+
+  /** The size of the batch being filled. */
+  final class Tally {
+    private int size;
+    private long messageBytes;
+    private int sentAtBytes = -1;
+    private boolean sentAtOfMessage;
+
+    /** Returns the number of messages added. */
+    int size() {
+      return size;
+    }
+
+    /** Returns the encoded bytes of the messages added, without the batch around them. */
+    long messageBytes() {
+      return messageBytes;
+    }
+
+    /** Returns the encoded size of a batch of the messages added, at most. */
+    long bytes() {
+      return bytesWith(0, 0, sentAtBytes());
+    }
+
+    /**
+     * Adds a message of {@code messageBytes} encoded bytes, unless it would take the batch over the
+     * limit. The first message of a batch is always added.
+     *
+     * @return whether the message was added.
+     */
+    boolean add(Message message, int messageBytes) {
+      int sentAtBytes = sentAtBytes();
+      boolean sentAtOfMessage = this.sentAtOfMessage;
+      if (!sentAtOfMessage && message.sentAt() != null) {
+        sentAtBytes = BatchSizer.this.sentAtBytes(message.sentAt());
+        sentAtOfMessage = true;
+      }
+      if (size > 0 && bytesWith(1, messageBytes, sentAtBytes) > limitBytes) {
+        return false;
+      }
+      size++;
+      this.messageBytes += messageBytes;
+      this.sentAtBytes = sentAtBytes;
+      this.sentAtOfMessage = sentAtOfMessage;
+      return true;
+    }
+
+    /** Empties the batch once it has been submitted. */
+    void clear() {
+      size = 0;
+      messageBytes = 0;
+      sentAtBytes = -1;
+      sentAtOfMessage = false;
+    }
+
+    private int sentAtBytes() {
+      if (sentAtBytes < 0) {
+        sentAtBytes = BatchSizer.this.sentAtBytes(new Date());
+      }
+      return sentAtBytes;
+    }
+
+    private long bytesWith(int messages, long messageBytes, int sentAtBytes) {
+      int count = size + messages;
+      long commas = count > 0 ? count - 1 : 0;
+      return envelopeBytes + sentAtBytes + this.messageBytes + messageBytes + commas;
+    }
+  }
+}
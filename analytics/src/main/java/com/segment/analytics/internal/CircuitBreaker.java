@@ -0,0 +1,124 @@
+package com.segment.analytics.internal;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Stops uploads to a host that keeps failing, so parallel batches do not all retry against it.
+ *
+ * <p>The circuit opens after {@code failureThreshold} upload attempts in a row failed without a
+ * response, or with a server error. While it is open, no attempt starts: the looper holds new
+ * batches back in memory or on disk, and batches already in flight wait before their next attempt.
+ * Once it has been open for {@code openNanos}, a single attempt is let through as a probe, and the
+ * circuit is half-open until it ends: it closes if the host answered, letting every batch through
+ * again, and opens for another {@code openNanos} otherwise.
+ */
+final class CircuitBreaker {
+  // How often batches waiting on a probe check whether it is over.
+  static final long PROBE_POLL_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+  private enum State {
+    CLOSED,
+    OPEN,
+    HALF_OPEN
+  }
+
+  private final int failureThreshold;
+  private final long openNanos;
+  private final LongSupplier nanoTime;
+  private State state = State.CLOSED;
+  private int failures;
+  private long openedAtNanos;
+
+  CircuitBreaker(int failureThreshold, long openNanos) {
+    this(failureThreshold, openNanos, System::nanoTime);
+  }
+
+  CircuitBreaker(int failureThreshold, long openNanos, LongSupplier nanoTime) {
+    if (failureThreshold < 1) {
+      throw new IllegalArgumentException("failureThreshold must not be less than 1.");
+    }
+    this.failureThreshold = failureThreshold;
+    this.openNanos = openNanos;
+    this.nanoTime = nanoTime;
+  }
+
+  /** Returns whether the circuit is closed. */
+  synchronized boolean isClosed() {
+    return state == State.CLOSED;
+  }
+
+  /**
+   * Returns whether a new batch may be submitted: the circuit is closed, or it has been open long
+   * enough for the batch to probe the host.
+   */
+  synchronized boolean allowsBatches() {
+    return state == State.CLOSED
+        || (state == State.OPEN && nanoTime.getAsLong() - openedAtNanos >= openNanos);
+  }
+
+  /**
+   * Returns how long until a new batch may be submitted: 0 while closed, until the probe while
+   * open, or how long to wait before checking again while the probe is in flight.
+   */
+  synchronized long heldBackNanos() {
+    switch (state) {
+      case CLOSED:
+        return 0;
+      case OPEN:
+        return Math.max(0, openedAtNanos + openNanos - nanoTime.getAsLong());
+      default:
+        return Math.min(openNanos, PROBE_POLL_NANOS);
+    }
+  }
+
+  /**
+   * Lets an upload attempt start, and returns 0, or returns how long to wait before asking again.
+   * The first attempt let through once the circuit has been open long enough is the probe.
+   */
+  synchronized long acquire() {
+    switch (state) {
+      case CLOSED:
+        return 0;
+      case OPEN:
+        long remaining = openedAtNanos + openNanos - nanoTime.getAsLong();
+        if (remaining > 0) {
+          return remaining;
+        }
+        state = State.HALF_OPEN;
+        return 0;
+      default:
+        return Math.min(openNanos, PROBE_POLL_NANOS);
+    }
+  }
+
+  /** Records an attempt the host answered, and returns true if that closed the circuit. */
+  synchronized boolean onSuccess() {
+    failures = 0;
+    if (state == State.CLOSED) {
+      return false;
+    }
+    state = State.CLOSED;
+    return true;
+  }
+
+  /** Records an attempt that failed, and returns true if that opened the circuit. */
+  synchronized boolean onFailure() {
+    switch (state) {
+      case CLOSED:
+        if (++failures < failureThreshold) {
+          return false;
+        }
+        break;
+      case OPEN:
+        // An attempt that started before the circuit opened.
+        return false;
+      default:
+        break;
+    }
+    state = State.OPEN;
+    openedAtNanos = nanoTime.getAsLong();
+    failures = 0;
+    return true;
+  }
+}
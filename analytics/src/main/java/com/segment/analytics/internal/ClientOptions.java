@@ -0,0 +1,184 @@
+package com.segment.analytics.internal;
+
+import com.segment.analytics.AnalyticsMetrics;
+import com.segment.analytics.BatchCallback;
+import com.segment.analytics.Compression;
+import com.segment.analytics.EndpointSelection;
+import com.segment.analytics.FsyncPolicy;
+import com.segment.analytics.QueueStrategy;
+import java.io.File;
+import java.util.Collections;
+import java.util.List;
+import okhttp3.HttpUrl;
+
+/**
+ * Optional behaviours of {@link AnalyticsClient}, configured through {@code Analytics.Builder}.
+ * Every option defaults to the client's original behaviour.
+ */
+public class ClientOptions {
+  boolean preEncodeMessages;
+  Compression compression = Compression.NONE;
+  QueueStrategy queueStrategy = QueueStrategy.LINKED_BLOCKING_QUEUE;
+  int maxInFlightBatches;
+  boolean preserveUserOrder;
+  File spoolDirectory;
+  long spoolMaxBytes;
+  FsyncPolicy spoolFsyncPolicy;
+  File overflowDirectory;
+  boolean asyncUploads;
+  long overflowMaxBytes;
+  int minBatchSize;
+  int maxBatchSize;
+  long lingerMillis;
+  double batchFillRatio = 1;
+  double maxUploadsPerSecond;
+  int circuitBreakerFailures;
+  long circuitBreakerOpenMillis;
+  List<HttpUrl> uploadUrls = Collections.emptyList();
+  EndpointSelection endpointSelection = EndpointSelection.WEIGHTED_ROUND_ROBIN;
+  AnalyticsMetrics metrics = AnalyticsMetrics.NONE;
+  List<BatchCallback> batchCallbacks = Collections.emptyList();
+
+  /**
+   * Serialize each message once when it is enqueued and reuse the encoded bytes for batching and
+   * upload, instead of serializing it again in the looper and in the HTTP converter.
+   */
+  public ClientOptions preEncodeMessages(boolean preEncodeMessages) {
+    this.preEncodeMessages = preEncodeMessages;
+    return this;
+  }
+
+  /** Compress batch upload bodies. */
+  public ClientOptions compression(Compression compression) {
+    this.compression = compression;
+    return this;
+  }
+
+  /** Select the queue implementation used by {@link AnalyticsClient#create}. */
+  public ClientOptions queueStrategy(QueueStrategy queueStrategy) {
+    this.queueStrategy = queueStrategy;
+    return this;
+  }
+
+  /** Limit the number of batches uploaded at once. 0, the default, means no limit. */
+  public ClientOptions maxInFlightBatches(int maxInFlightBatches) {
+    this.maxInFlightBatches = maxInFlightBatches;
+    return this;
+  }
+
+  /**
+   * Never upload two batches containing messages of the same user at once, so that a user's
+   * messages reach the API in the order they were enqueued.
+   */
+  public ClientOptions preserveUserOrder(boolean preserveUserOrder) {
+    this.preserveUserOrder = preserveUserOrder;
+    return this;
+  }
+
+  /**
+   * Persist every enqueued message to a disk spool in {@code directory} until its batch has been
+   * uploaded, and replay the messages left in the spool when the client is created.
+   *
+   * @param maxBytes the maximum disk space used by the spool. Once it is reached, further messages
+   *     are only kept in memory.
+   */
+  public ClientOptions spool(File directory, long maxBytes, FsyncPolicy fsyncPolicy) {
+    this.spoolDirectory = directory;
+    this.spoolMaxBytes = maxBytes;
+    this.spoolFsyncPolicy = fsyncPolicy;
+    return this;
+  }
+
+  /**
+   * While uploads are rate-limited, keep one batch of messages in memory and spill the rest to
+   * segment files in {@code directory}, instead of holding them on the heap. Spilled messages are
+   * uploaded in order once the rate limit is over.
+   *
+   * @param maxBytes the maximum disk space used. Messages that do not fit are failed.
+   */
+  public ClientOptions overflowToDisk(File directory, long maxBytes) {
+    this.overflowDirectory = directory;
+    this.overflowMaxBytes = maxBytes;
+    return this;
+  }
+
+  /**
+   * Upload batches with OkHttp's asynchronous calls and schedule retries on a timer, so that no
+   * thread is blocked while a batch waits on the network or on a retry.
+   */
+  public ClientOptions asyncUploads(boolean asyncUploads) {
+    this.asyncUploads = asyncUploads;
+    return this;
+  }
+
+  /**
+   * Adapt the number of messages per batch to upload times, between {@code min} and {@code max},
+   * instead of always batching the configured number. See {@link AdaptiveBatchSize}.
+   */
+  public ClientOptions adaptiveBatchSize(int min, int max) {
+    this.minBatchSize = min;
+    this.maxBatchSize = max;
+    return this;
+  }
+
+  /**
+   * Flush once the oldest buffered message has waited {@code lingerMillis}, or the batch is full,
+   * instead of on a fixed interval. 0, the default, keeps the fixed interval.
+   */
+  public ClientOptions linger(long lingerMillis) {
+    this.lingerMillis = lingerMillis;
+    return this;
+  }
+
+  /**
+   * Pack batches up to this fraction of the API's batch size limit, envelope included. 1, the
+   * default, fills batches up to the limit.
+   */
+  public ClientOptions batchFillRatio(double batchFillRatio) {
+    this.batchFillRatio = batchFillRatio;
+    return this;
+  }
+
+  /** Report queue and upload measurements to {@code metrics}. */
+  public ClientOptions metrics(AnalyticsMetrics metrics) {
+    this.metrics = metrics;
+    return this;
+  }
+
+  /** Call back {@code batchCallbacks} once per batch, after the per-message callbacks. */
+  public ClientOptions batchCallbacks(List<BatchCallback> batchCallbacks) {
+    this.batchCallbacks = batchCallbacks;
+    return this;
+  }
+
+  /**
+   * Pace batch uploads at up to {@code maxUploadsPerSecond}, slowing down when the API rate-limits
+   * them and speeding up again as it accepts them. 0, the default, submits batches right away. See
+   * {@link UploadPacer}.
+   */
+  public ClientOptions maxUploadsPerSecond(double maxUploadsPerSecond) {
+    this.maxUploadsPerSecond = maxUploadsPerSecond;
+    return this;
+  }
+
+  /**
+   * Stop uploading once {@code failures} attempts in a row failed, and probe the host with a single
+   * attempt every {@code openMillis} until it recovers. 0 failures, the default, always uploads.
+   * See {@link CircuitBreaker}.
+   */
+  public ClientOptions circuitBreaker(int failures, long openMillis) {
+    this.circuitBreakerFailures = failures;
+    this.circuitBreakerOpenMillis = openMillis;
+    return this;
+  }
+
+  /**
+   * Upload to {@code uploadUrls} instead of the client's single upload URL, picking one for each
+   * attempt with {@code selection} and failing over between them. See {@link Endpoints}.
+   */
+  public ClientOptions uploadUrls(List<HttpUrl> uploadUrls, EndpointSelection selection) {
+    this.uploadUrls = uploadUrls;
+    this.endpointSelection = selection;
+    return this;
+  }
+}
@@ -0,0 +1,190 @@
+package com.segment.analytics.internal;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * A first-in, first-out queue of encoded messages in segment files on disk, used by the looper to
+ * hold messages it cannot keep in memory while uploads are rate-limited.
+ *
+ * <p>Records are appended to the newest segment and read from the oldest, which is deleted once it
+ * has been read completely. Unlike the {@link Spool}, the queue does not survive the process: files
+ * left by a previous process are deleted when it is opened.
+ *
+ * <p>Only the looper thread may use this queue, except for {@link #isEmpty()}.
+ */
+final class DiskQueue implements Closeable {
+  static final int DEFAULT_SEGMENT_BYTES = 4 * 1024 * 1024;
+
+  private static final String SUFFIX = ".overflow";
+  // length (int), spool address (long)
+  private static final int HEADER_BYTES = 12;
+
+  /** A message read back from the queue. */
+  static final class Record {
+    final long spoolAddress;
+    final byte[] bytes;
+
+    Record(long spoolAddress, byte[] bytes) {
+      this.spoolAddress = spoolAddress;
+      this.bytes = bytes;
+    }
+  }
+
+  private final File directory;
+  private final int segmentBytes;
+  private final long maxBytes;
+  // Segments in the order they were written; the first is being read, the last is being written.
+  private final ArrayDeque<File> segments = new ArrayDeque<>();
+  private RandomAccessFile writer;
+  private long writePosition;
+  private RandomAccessFile reader;
+  private long readPosition;
+  private Record head;
+  private int nextId;
+  private long usedBytes;
+  private volatile int size;
+
+  private DiskQueue(File directory, int segmentBytes, long maxBytes) {
+    this.directory = directory;
+    this.segmentBytes = segmentBytes;
+    this.maxBytes = maxBytes;
+  }
+
+  /** Opens an empty queue in {@code directory}, deleting any segments left there. */
+  static DiskQueue open(File directory, int segmentBytes, long maxBytes) throws IOException {
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Could not create overflow directory " + directory);
+    }
+    File[] stale = directory.listFiles((dir, name) -> name.endsWith(SUFFIX));
+    if (stale != null) {
+      for (File file : stale) {
+        file.delete();
+      }
+    }
+    return new DiskQueue(directory, segmentBytes, maxBytes);
+  }
+
+  /** Returns true if the queue holds no records. May be called from any thread. */
+  boolean isEmpty() {
+    return size == 0;
+  }
+
+  int size() {
+    return size;
+  }
+
+  /** Returns the total size of the segment files. */
+  long usedBytes() {
+    return usedBytes;
+  }
+
+  /**
+   * Appends a record, and returns false if that would take the queue over its maximum size.
+   *
+   * @param spoolAddress the address of the message in the {@link Spool}, or {@link
+   *     Spool#NO_ADDRESS}.
+   */
+  boolean offer(long spoolAddress, byte[] bytes) throws IOException {
+    int recordBytes = HEADER_BYTES + bytes.length;
+    if (usedBytes + recordBytes > maxBytes) {
+      return false;
+    }
+    if (writer == null || writePosition + recordBytes > segmentBytes) {
+      if (writer != null) {
+        writer.close();
+      }
+      File file = new File(directory, nextId++ + SUFFIX);
+      writer = new RandomAccessFile(file, "rw");
+      writePosition = 0;
+      segments.addLast(file);
+    }
+
+    ByteBuffer record = ByteBuffer.allocate(recordBytes);
+    record.putInt(bytes.length).putLong(spoolAddress).put(bytes);
+    // Cast so the class also runs on Java 8, where flip() is only declared by Buffer.
+    ((Buffer) record).flip();
+    while (record.hasRemaining()) {
+      writer.getChannel().write(record, writePosition + record.position());
+    }
+    writePosition += recordBytes;
+    usedBytes += recordBytes;
+    size++;
+    return true;
+  }
+
+  /** Returns the oldest record without removing it, or null if the queue is empty. */
+  Record peek() throws IOException {
+    if (head == null && size > 0) {
+      head = read();
+    }
+    return head;
+  }
+
+  /** Removes and returns the oldest record, or returns null if the queue is empty. */
+  Record poll() throws IOException {
+    Record record = peek();
+    if (record == null) {
+      return null;
+    }
+    head = null;
+    size--;
+    if (size == 0) {
+      // Everything written has been read; start over with no files.
+      clear();
+    }
+    return record;
+  }
+
+  private Record read() throws IOException {
+    if (reader == null) {
+      reader = new RandomAccessFile(segments.peekFirst(), "r");
+      readPosition = 0;
+    }
+    if (readPosition + HEADER_BYTES > reader.length()) {
+      // The segment has been read completely; the next record is in the next one.
+      File finished = segments.pollFirst();
+      reader.close();
+      usedBytes -= finished.length();
+      finished.delete();
+      reader = new RandomAccessFile(segments.peekFirst(), "r");
+      readPosition = 0;
+    }
+    reader.seek(readPosition);
+    int length = reader.readInt();
+    long spoolAddress = reader.readLong();
+    byte[] bytes = new byte[length];
+    reader.readFully(bytes);
+    readPosition += HEADER_BYTES + length;
+    return new Record(spoolAddress, bytes);
+  }
+
+  private void clear() throws IOException {
+    if (reader != null) {
+      reader.close();
+      reader = null;
+    }
+    if (writer != null) {
+      writer.close();
+      writer = null;
+    }
+    for (File file : segments) {
+      file.delete();
+    }
+    segments.clear();
+    head = null;
+    size = 0;
+    usedBytes = 0;
+  }
+
+  /** Closes the queue and deletes its files, discarding any records left. */
+  @Override
+  public void close() throws IOException {
+    clear();
+  }
+}
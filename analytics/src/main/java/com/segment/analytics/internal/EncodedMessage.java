@@ -0,0 +1,106 @@
+package com.segment.analytics.internal;
+
+import com.segment.analytics.messages.Message;
+import jakarta.annotation.Nonnull;
+import jakarta.annotation.Nullable;
+import java.util.Date;
+import java.util.Map;
+
+/**
+ * A {@link Message} that carries its own UTF-8 JSON encoding. The message is serialized exactly
+ * once when it is enqueued, and the cached bytes are reused for size accounting in the looper and
+ * for writing the batch body on upload.
+ *
+ * <p>Callbacks are always handed the original {@link #message()}, never this wrapper.
+ */
+final class EncodedMessage implements Message {
+  private final Message message;
+  private final byte[] bytes;
+  private final long spoolAddress;
+
+  EncodedMessage(Message message, byte[] bytes) {
+    this(message, bytes, Spool.NO_ADDRESS);
+  }
+
+  EncodedMessage(Message message, byte[] bytes, long spoolAddress) {
+    this.message = message;
+    this.bytes = bytes;
+    this.spoolAddress = spoolAddress;
+  }
+
+  /** Returns the wrapped message. */
+  Message message() {
+    return message;
+  }
+
+  /** Returns the UTF-8 JSON encoding of the wrapped message. Must not be modified. */
+  byte[] bytes() {
+    return bytes;
+  }
+
+  /** Returns the address of this message in the {@link Spool}, or {@link Spool#NO_ADDRESS}. */
+  long spoolAddress() {
+    return spoolAddress;
+  }
+
+  /** Returns the message that {@code message} wraps, or {@code message} itself. */
+  static Message unwrap(Message message) {
+    if (message instanceof EncodedMessage) {
+      return ((EncodedMessage) message).message;
+    }
+    return message;
+  }
+
+  @Nonnull
+  @Override
+  public Type type() {
+    return message.type();
+  }
+
+  @Nonnull
+  @Override
+  public String messageId() {
+    return message.messageId();
+  }
+
+  @Nullable
+  @Override
+  public Date sentAt() {
+    return message.sentAt();
+  }
+
+  @Nonnull
+  @Override
+  public Date timestamp() {
+    return message.timestamp();
+  }
+
+  @Nullable
+  @Override
+  public Map<String, ?> context() {
+    return message.context();
+  }
+
+  @Nullable
+  @Override
+  public String anonymousId() {
+    return message.anonymousId();
+  }
+
+  @Nullable
+  @Override
+  public String userId() {
+    return message.userId();
+  }
+
+  @Nullable
+  @Override
+  public Map<String, Object> integrations() {
+    return message.integrations();
+  }
+
+  @Override
+  public String toString() {
+    return message.toString();
+  }
+}
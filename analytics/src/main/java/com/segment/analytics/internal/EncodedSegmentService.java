@@ -0,0 +1,50 @@
+package com.segment.analytics.internal;
+
+import com.segment.analytics.http.SegmentService;
+import com.segment.analytics.http.UploadResponse;
+import okhttp3.HttpUrl;
+import okhttp3.RequestBody;
+import retrofit2.Call;
+import retrofit2.http.Body;
+import retrofit2.http.Header;
+import retrofit2.http.POST;
+import retrofit2.http.Url;
+
+/**
+ * A {@link SegmentService} that also uploads batches whose JSON body has already been encoded, for
+ * pre-encoded messages, compression and asynchronous uploads.
+ *
+ * <p>These uploads are kept off the public {@link SegmentService}, so its implementations outside
+ * this library keep compiling. An {@link AnalyticsClient} given a {@link SegmentService} that is
+ * not an {@code EncodedSegmentService} uploads every batch with {@link
+ * SegmentService#upload(HttpUrl, com.segment.analytics.messages.Batch)}, uncompressed.
+ */
+public interface EncodedSegmentService extends SegmentService {
+  /**
+   * Upload a batch whose JSON body has already been encoded.
+   *
+   * @param contentEncoding the {@code Content-Encoding} of {@code batch}, or {@code null} if it is
+   *     not compressed.
+   */
+  @POST
+  Call<UploadResponse> upload(
+      @Url HttpUrl uploadUrl,
+      @Header("Content-Encoding") String contentEncoding,
+      @Body RequestBody batch);
+
+  /**
+   * Upload a batch whose JSON body has already been encoded, telling the API how often it was
+   * retried.
+   *
+   * @param contentEncoding the {@code Content-Encoding} of {@code batch}, or {@code null} if it is
+   *     not compressed.
+   * @param retryCount the number of earlier attempts to upload {@code batch}, or {@code null} on
+   *     the first attempt.
+   */
+  @POST
+  Call<UploadResponse> upload(
+      @Url HttpUrl uploadUrl,
+      @Header("Content-Encoding") String contentEncoding,
+      @Header("X-Retry-Count") Integer retryCount,
+      @Body RequestBody batch);
+}
@@ -0,0 +1,159 @@
+package com.segment.analytics.internal;
+
+import com.segment.analytics.EndpointSelection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+import okhttp3.HttpUrl;
+
+/**
+ * The upload URLs of a client, and how healthy each one has been, to pick one for each upload
+ * attempt. See {@link EndpointSelection}.
+ *
+ * <p>With a single URL, every attempt goes to it and nothing is tracked.
+ */
+final class Endpoints {
+  static final int EJECT_FAILURES = 3;
+  static final long EJECT_NANOS = TimeUnit.SECONDS.toNanos(30);
+  private static final int MAX_WEIGHT = 1 << EJECT_FAILURES;
+
+  private final Endpoint[] endpoints;
+  private final EndpointSelection selection;
+  private final LongSupplier nanoTime;
+
+  /** One upload URL and its health. Guarded by the enclosing {@link Endpoints}. */
+  static final class Endpoint {
+    final HttpUrl url;
+    // Failed attempts in a row.
+    private int failures;
+    private long ejectedUntilNanos;
+    private boolean ejected;
+    // The average latency of recent attempts that got an answer, or 0 before the first one.
+    private long latencyNanos;
+    // The smooth weighted round-robin counter.
+    private int currentWeight;
+
+    Endpoint(HttpUrl url) {
+      this.url = url;
+    }
+
+    private int weight() {
+      return MAX_WEIGHT >> Math.min(failures, EJECT_FAILURES);
+    }
+
+    private long effectiveLatency() {
+      if (latencyNanos == 0 && failures > 0) {
+        // Failed before it was ever measured: last resort.
+        return Long.MAX_VALUE;
+      }
+      return latencyNanos << Math.min(failures, EJECT_FAILURES);
+    }
+  }
+
+  Endpoints(List<HttpUrl> urls, EndpointSelection selection) {
+    this(urls, selection, System::nanoTime);
+  }
+
+  Endpoints(List<HttpUrl> urls, EndpointSelection selection, LongSupplier nanoTime) {
+    if (urls.isEmpty()) {
+      throw new IllegalArgumentException("urls must not be empty.");
+    }
+    this.endpoints = new Endpoint[urls.size()];
+    for (int i = 0; i < endpoints.length; i++) {
+      endpoints[i] = new Endpoint(urls.get(i));
+    }
+    this.selection = selection;
+    this.nanoTime = nanoTime;
+  }
+
+  /** Returns the number of upload URLs. */
+  int size() {
+    return endpoints.length;
+  }
+
+  /**
+   * Returns the endpoint for the next upload attempt, other than {@code previous} if another is
+   * available, where the last attempt of the same batch failed.
+   */
+  Endpoint select(Endpoint previous) {
+    if (endpoints.length == 1) {
+      return endpoints[0];
+    }
+    synchronized (this) {
+      long now = nanoTime.getAsLong();
+      Endpoint selected = select(previous, now, false);
+      if (selected == null) {
+        // Every other endpoint is ejected: pick among them anyway rather than wait.
+        selected = select(previous, now, true);
+      }
+      return selected == null ? previous : selected;
+    }
+  }
+
+  private Endpoint select(Endpoint previous, long now, boolean includeEjected) {
+    Endpoint selected = null;
+    int totalWeight = 0;
+    for (Endpoint endpoint : endpoints) {
+      if (endpoint == previous || (!includeEjected && isEjected(endpoint, now))) {
+        continue;
+      }
+      if (selection == EndpointSelection.LEAST_LATENCY) {
+        if (selected == null || endpoint.effectiveLatency() < selected.effectiveLatency()) {
+          selected = endpoint;
+        }
+      } else {
+        endpoint.currentWeight += endpoint.weight();
+        totalWeight += endpoint.weight();
+        if (selected == null || endpoint.currentWeight > selected.currentWeight) {
+          selected = endpoint;
+        }
+      }
+    }
+    if (selected != null) {
+      selected.currentWeight -= totalWeight;
+    }
+    return selected;
+  }
+
+  private static boolean isEjected(Endpoint endpoint, long now) {
+    if (endpoint.ejected && now - endpoint.ejectedUntilNanos >= 0) {
+      endpoint.ejected = false;
+    }
+    return endpoint.ejected;
+  }
+
+  /** Records an attempt {@code endpoint} answered after {@code latencyNanos}. */
+  void onAnswered(Endpoint endpoint, long latencyNanos) {
+    if (endpoints.length == 1) {
+      return;
+    }
+    synchronized (this) {
+      endpoint.failures = 0;
+      endpoint.ejected = false;
+      endpoint.latencyNanos =
+          endpoint.latencyNanos == 0
+              ? Math.max(1, latencyNanos)
+              : endpoint.latencyNanos + (latencyNanos - endpoint.latencyNanos) / 4;
+    }
+  }
+
+  /**
+   * Records an attempt that failed on {@code endpoint}, and returns true if that ejected it for
+   * {@link #EJECT_NANOS}.
+   */
+  boolean onFailed(Endpoint endpoint) {
+    if (endpoints.length == 1) {
+      return false;
+    }
+    synchronized (this) {
+      if (++endpoint.failures < EJECT_FAILURES || endpoint.ejected) {
+        return false;
+      }
+      endpoint.ejected = true;
+      endpoint.ejectedUntilNanos = nanoTime.getAsLong() + EJECT_NANOS;
+      // Back in turn right away once the ejection is over.
+      endpoint.currentWeight = 0;
+      return true;
+    }
+  }
+}
@@ -5,11 +5,28 @@ import jakarta.annotation.Nonnull;
 import jakarta.annotation.Nullable;
 import java.util.Date;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 
 class FlushMessage implements Message {
-  static final FlushMessage POISON = new FlushMessage();
+  static final FlushMessage POISON = new FlushMessage(null);
 
-  private FlushMessage() {}
+  /**
+   * Completed by the looper once every message queued ahead of this flush has been uploaded or
+   * given up on, or null for {@link #POISON}. Transient, so the size of a flush stays the same.
+   */
+  final transient CompletableFuture<Void> acknowledged;
+
+  private FlushMessage(CompletableFuture<Void> acknowledged) {
+    this.acknowledged = acknowledged;
+  }
+
+  /**
+   * Returns a flush whose {@link #acknowledged} future tells when the messages queued ahead of it
+   * are delivered. Unlike {@link #POISON} it takes a place in the queue like a message.
+   */
+  static FlushMessage acknowledged() {
+    return new FlushMessage(new CompletableFuture<Void>());
+  }
 
   @Nonnull
   @Override
@@ -0,0 +1,50 @@
+package com.segment.analytics.internal;
+
+import java.io.IOException;
+import okhttp3.MediaType;
+import okhttp3.RequestBody;
+import okio.Buffer;
+import okio.BufferedSink;
+import okio.ByteString;
+import okio.GzipSink;
+import okio.Okio;
+
+/**
+ * A gzip-compressed copy of another {@link RequestBody}. The delegate is compressed once, when this
+ * body is created, so the compressed length is known up front and sent as a real {@code
+ * Content-Length}, and retries write the cached bytes instead of compressing again.
+ */
+final class GzipRequestBody extends RequestBody {
+  static final String CONTENT_ENCODING = "gzip";
+
+  private final MediaType contentType;
+  private final ByteString compressed;
+
+  private GzipRequestBody(MediaType contentType, ByteString compressed) {
+    this.contentType = contentType;
+    this.compressed = compressed;
+  }
+
+  static GzipRequestBody compress(RequestBody body) throws IOException {
+    Buffer buffer = new Buffer();
+    BufferedSink gzipSink = Okio.buffer(new GzipSink(buffer));
+    body.writeTo(gzipSink);
+    gzipSink.close();
+    return new GzipRequestBody(body.contentType(), buffer.readByteString());
+  }
+
+  @Override
+  public MediaType contentType() {
+    return contentType;
+  }
+
+  @Override
+  public long contentLength() {
+    return compressed.size();
+  }
+
+  @Override
+  public void writeTo(BufferedSink sink) throws IOException {
+    sink.write(compressed);
+  }
+}
@@ -0,0 +1,227 @@
+package com.segment.analytics.internal;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Bounds the number of batches being uploaded at once, and optionally keeps batches that share an
+ * ordering key (a user) from being uploaded concurrently.
+ *
+ * <p>The looper acquires a permit before it hands a batch to the network executor, so a slow upload
+ * holds the looper back instead of letting batches pile up in the executor. A batch that shares a
+ * key with an earlier batch still in flight is parked instead: the looper goes on with the batches
+ * after it, and the parked batch is started once every earlier batch holding one of its keys has
+ * finished, including its retries. Parked batches count against the maximum, and are started in the
+ * order they were parked.
+ *
+ * <p>Once {@link #close() closed} on shutdown, the maximum no longer applies, so the looper hands
+ * its last batches over at once instead of being cancelled while it waits. Batches of a user are
+ * still uploaded one at a time.
+ */
+final class InFlightBatches {
+  /** A permit held by one batch. Releasing it more than once has no effect. */
+  static final class Permit {
+    private final Collection<String> keys;
+    private boolean released;
+
+    Permit(Collection<String> keys) {
+      this.keys = keys;
+    }
+  }
+
+  /** A parked batch's permit, and what starts the batch once it may be uploaded. */
+  private static final class Parked {
+    final Permit permit;
+    final Consumer<Permit> start;
+
+    Parked(Permit permit, Consumer<Permit> start) {
+      this.permit = permit;
+      this.start = start;
+    }
+  }
+
+  private final int maxInFlight;
+  // The keys of the batches being uploaded, parked batches excluded.
+  private final Map<String, Integer> inFlightKeys = new HashMap<>();
+  private final LinkedList<Parked> parked = new LinkedList<>();
+  // Parked batches, and those taken off the list that are still being started.
+  private int unstarted;
+  private int inFlight;
+  private boolean closed;
+
+  /** @param maxInFlight the maximum number of batches in flight, or 0 for no limit. */
+  InFlightBatches(int maxInFlight) {
+    if (maxInFlight < 0) {
+      throw new IllegalArgumentException("maxInFlight must not be negative.");
+    }
+    this.maxInFlight = maxInFlight;
+  }
+
+  /** Acquires a permit for a batch without ordering keys. */
+  Permit acquire() throws InterruptedException {
+    return acquire(Collections.<String>emptySet(), null);
+  }
+
+  /**
+   * Blocks until fewer than the maximum batches are in flight, or until closed, then acquires a
+   * permit holding {@code keys}. Returns the permit if no batch in flight or parked holds any of
+   * {@code keys}. Otherwise parks the batch and returns null; {@code start} is called with the
+   * permit, on the thread that releases the last conflicting permit, once the batch may be
+   * uploaded.
+   */
+  synchronized Permit acquire(Collection<String> keys, Consumer<Permit> start)
+      throws InterruptedException {
+    while (isFull() && !closed) {
+      wait();
+    }
+    inFlight++;
+    Permit permit = new Permit(keys);
+    if (holdsAny(keys) || parksAny(keys, parked.size())) {
+      parked.add(new Parked(permit, start));
+      unstarted++;
+      return null;
+    }
+    addKeys(keys);
+    return permit;
+  }
+
+  /** Releases {@code permit}, and starts the parked batches that may be uploaded now. */
+  void release(Permit permit) {
+    List<Parked> ready;
+    synchronized (this) {
+      if (permit.released) {
+        return;
+      }
+      permit.released = true;
+      inFlight--;
+      for (String key : permit.keys) {
+        Integer count = inFlightKeys.get(key);
+        if (count == 1) {
+          inFlightKeys.remove(key);
+        } else {
+          inFlightKeys.put(key, count - 1);
+        }
+      }
+      ready = unpark();
+      notifyAll();
+    }
+    if (ready.isEmpty()) {
+      return;
+    }
+    try {
+      for (Parked batch : ready) {
+        batch.start.accept(batch.permit);
+      }
+    } finally {
+      synchronized (this) {
+        unstarted -= ready.size();
+        notifyAll();
+      }
+    }
+  }
+
+  /** Removes the parked batches whose keys are no longer held by an earlier batch. */
+  private List<Parked> unpark() {
+    if (parked.isEmpty()) {
+      return Collections.emptyList();
+    }
+    List<Parked> ready = new ArrayList<>();
+    int index = 0;
+    for (Iterator<Parked> it = parked.iterator(); it.hasNext(); ) {
+      Parked batch = it.next();
+      if (!holdsAny(batch.permit.keys) && !parksAny(batch.permit.keys, index)) {
+        it.remove();
+        addKeys(batch.permit.keys);
+        ready.add(batch);
+      } else {
+        index++;
+      }
+    }
+    return ready;
+  }
+
+  /** Lifts the maximum from now on, waking those waiting for a permit. */
+  synchronized void close() {
+    closed = true;
+    notifyAll();
+  }
+
+  /**
+   * Blocks until every parked batch has been started or {@code timeoutMillis} have passed, and
+   * returns whether every parked batch has been started.
+   */
+  synchronized boolean awaitNoneParked(long timeoutMillis) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + timeoutMillis;
+    long remaining = timeoutMillis;
+    while (unstarted > 0 && remaining > 0) {
+      wait(remaining);
+      remaining = deadline - System.currentTimeMillis();
+    }
+    return unstarted == 0;
+  }
+
+  /**
+   * Blocks until no batch is in flight or {@code timeoutMillis} have passed, and returns whether no
+   * batch is in flight.
+   */
+  synchronized boolean awaitNoneInFlight(long timeoutMillis) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + timeoutMillis;
+    long remaining = timeoutMillis;
+    while (inFlight > 0 && remaining > 0) {
+      wait(remaining);
+      remaining = deadline - System.currentTimeMillis();
+    }
+    return inFlight == 0;
+  }
+
+  /** Returns the number of batches currently in flight, parked batches included. */
+  synchronized int inFlight() {
+    return inFlight;
+  }
+
+  private boolean isFull() {
+    return maxInFlight > 0 && inFlight >= maxInFlight;
+  }
+
+  private void addKeys(Collection<String> keys) {
+    for (String key : keys) {
+      Integer count = inFlightKeys.get(key);
+      inFlightKeys.put(key, count == null ? 1 : count + 1);
+    }
+  }
+
+  private boolean holdsAny(Collection<String> keys) {
+    if (inFlightKeys.isEmpty()) {
+      return false;
+    }
+    for (String key : keys) {
+      if (inFlightKeys.containsKey(key)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /** Returns whether any of the first {@code count} parked batches holds any of {@code keys}. */
+  private boolean parksAny(Collection<String> keys, int count) {
+    if (keys.isEmpty()) {
+      return false;
+    }
+    Iterator<Parked> it = parked.iterator();
+    for (int i = 0; i < count; i++) {
+      for (String key : it.next().permit.keys) {
+        if (keys.contains(key)) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+}
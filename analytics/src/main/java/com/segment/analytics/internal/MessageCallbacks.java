@@ -0,0 +1,34 @@
+package com.segment.analytics.internal;
+
+import com.segment.analytics.BatchCallback;
+import com.segment.analytics.Callback;
+import com.segment.analytics.messages.Batch;
+import com.segment.analytics.messages.Message;
+import java.util.List;
+
+/** Calls back each {@link Callback} for each message of a batch. */
+final class MessageCallbacks implements BatchCallback {
+  private final List<Callback> callbacks;
+
+  MessageCallbacks(List<Callback> callbacks) {
+    this.callbacks = callbacks;
+  }
+
+  @Override
+  public void success(Batch batch, int statusCode, int attempts) {
+    for (Message message : batch.batch()) {
+      for (Callback callback : callbacks) {
+        callback.success(message);
+      }
+    }
+  }
+
+  @Override
+  public void failure(Batch batch, int statusCode, int attempts, Throwable throwable) {
+    for (Message message : batch.batch()) {
+      for (Callback callback : callbacks) {
+        callback.failure(message, throwable);
+      }
+    }
+  }
+}
@@ -0,0 +1,306 @@
+package com.segment.analytics.internal;
+
+import com.segment.analytics.messages.Message;
+import java.util.AbstractQueue;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A bounded, lock-free multi-producer/single-consumer queue of messages backed by a ring buffer.
+ *
+ * <p>Producers claim a slot with a single CAS and never take a lock or allocate. Each slot carries
+ * a sequence number that tells the consumer when its element has been published (the bounded queue
+ * described by Dmitry Vyukov).
+ *
+ * <p>The {@link FlushMessage#POISON} and {@link StopMessage#STOP} control signals do not occupy
+ * slots. They are recorded on a side channel as a position in the ring, and handed to the consumer
+ * once every message offered before them has been consumed. This keeps their ordering relative to
+ * data identical to a FIFO queue, while concurrent flush requests collapse into a single signal.
+ *
+ * <p>Only the looper thread may consume from this queue.
+ */
+final class RingBufferQueue extends AbstractQueue<Message> implements BlockingQueue<Message> {
+  private static final long NO_SIGNAL = -1L;
+  private static final long PUT_BACKOFF_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+
+  private final int capacity;
+  private final int mask;
+  private final AtomicReferenceArray<Message> buffer;
+  private final AtomicLongArray sequences;
+  private final AtomicLong tail = new AtomicLong();
+  private final AtomicLong head = new AtomicLong();
+  private final AtomicLong flushAt = new AtomicLong(NO_SIGNAL);
+  private final AtomicLong stopAt = new AtomicLong(NO_SIGNAL);
+  private volatile Thread waiter;
+
+  /**
+   * @param capacity the number of slots, rounded up to the next power of two. The sequence scheme
+   *     needs at least two slots.
+   */
+  RingBufferQueue(int capacity) {
+    if (capacity < 1 || capacity > 1 << 30) {
+      throw new IllegalArgumentException("capacity must be between 1 and 2^30.");
+    }
+    this.capacity = capacity <= 2 ? 2 : Integer.highestOneBit(capacity - 1) << 1;
+    this.mask = this.capacity - 1;
+    this.buffer = new AtomicReferenceArray<>(this.capacity);
+    this.sequences = new AtomicLongArray(this.capacity);
+    for (int i = 0; i < this.capacity; i++) {
+      sequences.set(i, i);
+    }
+  }
+
+  int capacity() {
+    return capacity;
+  }
+
+  @Override
+  public boolean offer(Message message) {
+    if (message == null) {
+      throw new NullPointerException("Null message");
+    }
+    if (message == FlushMessage.POISON) {
+      signal(flushAt);
+      return true;
+    }
+    if (message == StopMessage.STOP) {
+      signal(stopAt);
+      return true;
+    }
+
+    long position = tail.get();
+    int index;
+    while (true) {
+      index = (int) position & mask;
+      long difference = sequences.get(index) - position;
+      if (difference == 0) {
+        if (tail.compareAndSet(position, position + 1)) {
+          break;
+        }
+        position = tail.get();
+      } else if (difference < 0) {
+        return false; // full
+      } else {
+        position = tail.get();
+      }
+    }
+    buffer.lazySet(index, message);
+    // A full volatile write, so it cannot be reordered with the read of the waiter below.
+    sequences.set(index, position + 1);
+    wakeConsumer();
+    return true;
+  }
+
+  /** Records a control signal for every message offered so far, coalescing with a pending one. */
+  private void signal(AtomicLong signal) {
+    long position = tail.get();
+    while (true) {
+      long current = signal.get();
+      if (current >= position || signal.compareAndSet(current, position)) {
+        break;
+      }
+    }
+    wakeConsumer();
+  }
+
+  private void wakeConsumer() {
+    Thread thread = waiter;
+    if (thread != null) {
+      LockSupport.unpark(thread);
+    }
+  }
+
+  /** Returns the control signal that is due at the consumer's position, if any. */
+  private Message dueSignal() {
+    long position = head.get();
+    long stop = stopAt.get();
+    if (stop != NO_SIGNAL && position >= stop && stopAt.compareAndSet(stop, NO_SIGNAL)) {
+      return StopMessage.STOP;
+    }
+    long flush = flushAt.get();
+    if (flush != NO_SIGNAL && position >= flush && flushAt.compareAndSet(flush, NO_SIGNAL)) {
+      return FlushMessage.POISON;
+    }
+    return null;
+  }
+
+  @Override
+  public Message poll() {
+    Message signal = dueSignal();
+    if (signal != null) {
+      return signal;
+    }
+
+    long position = head.get();
+    int index;
+    while (true) {
+      index = (int) position & mask;
+      long difference = sequences.get(index) - (position + 1);
+      if (difference == 0) {
+        if (head.compareAndSet(position, position + 1)) {
+          break;
+        }
+        position = head.get();
+      } else if (difference < 0) {
+        return null; // empty, or the next slot is claimed but not yet published
+      } else {
+        position = head.get();
+      }
+    }
+    Message message = buffer.get(index);
+    buffer.lazySet(index, null);
+    sequences.lazySet(index, position + capacity);
+    return message;
+  }
+
+  @Override
+  public Message take() throws InterruptedException {
+    while (true) {
+      Message message = poll();
+      if (message != null) {
+        return message;
+      }
+      awaitNanos(Long.MAX_VALUE);
+    }
+  }
+
+  @Override
+  public Message poll(long timeout, TimeUnit unit) throws InterruptedException {
+    long deadline = System.nanoTime() + unit.toNanos(timeout);
+    while (true) {
+      Message message = poll();
+      if (message != null) {
+        return message;
+      }
+      long remaining = deadline - System.nanoTime();
+      if (remaining <= 0) {
+        return null;
+      }
+      awaitNanos(remaining);
+    }
+  }
+
+  /** Parks the consumer until a producer publishes, a signal arrives or {@code nanos} elapse. */
+  private void awaitNanos(long nanos) throws InterruptedException {
+    waiter = Thread.currentThread();
+    try {
+      if (isReadable()) {
+        return;
+      }
+      if (nanos == Long.MAX_VALUE) {
+        LockSupport.park(this);
+      } else {
+        LockSupport.parkNanos(this, nanos);
+      }
+    } finally {
+      waiter = null;
+    }
+    if (Thread.interrupted()) {
+      throw new InterruptedException();
+    }
+  }
+
+  private boolean isReadable() {
+    long position = head.get();
+    if (sequences.get((int) position & mask) == position + 1) {
+      return true;
+    }
+    long flush = flushAt.get();
+    long stop = stopAt.get();
+    return (flush != NO_SIGNAL && position >= flush) || (stop != NO_SIGNAL && position >= stop);
+  }
+
+  @Override
+  public void put(Message message) throws InterruptedException {
+    while (!offer(message)) {
+      LockSupport.parkNanos(this, PUT_BACKOFF_NANOS);
+      if (Thread.interrupted()) {
+        throw new InterruptedException();
+      }
+    }
+  }
+
+  @Override
+  public boolean offer(Message message, long timeout, TimeUnit unit) throws InterruptedException {
+    long deadline = System.nanoTime() + unit.toNanos(timeout);
+    while (!offer(message)) {
+      if (System.nanoTime() - deadline >= 0) {
+        return false;
+      }
+      LockSupport.parkNanos(this, PUT_BACKOFF_NANOS);
+      if (Thread.interrupted()) {
+        throw new InterruptedException();
+      }
+    }
+    return true;
+  }
+
+  @Override
+  public int drainTo(Collection<? super Message> collection) {
+    return drainTo(collection, Integer.MAX_VALUE);
+  }
+
+  @Override
+  public int drainTo(Collection<? super Message> collection, int maxElements) {
+    if (collection == this) {
+      throw new IllegalArgumentException();
+    }
+    int drained = 0;
+    Message message;
+    while (drained < maxElements && (message = poll()) != null) {
+      collection.add(message);
+      drained++;
+    }
+    return drained;
+  }
+
+  @Override
+  public Message peek() {
+    long position = head.get();
+    int index = (int) position & mask;
+    if (sequences.get(index) != position + 1) {
+      return null;
+    }
+    return buffer.get(index);
+  }
+
+  /** Returns the number of messages in the ring. Pending control signals are not counted. */
+  @Override
+  public int size() {
+    while (true) {
+      long before = head.get();
+      long size = tail.get() - before;
+      if (head.get() == before) {
+        return (int) Math.max(0, Math.min(size, capacity));
+      }
+    }
+  }
+
+  @Override
+  public int remainingCapacity() {
+    return capacity - size();
+  }
+
+  /** Returns a weakly consistent snapshot of the messages currently in the ring. */
+  @Override
+  public Iterator<Message> iterator() {
+    List<Message> snapshot = new ArrayList<>();
+    long end = tail.get();
+    for (long position = head.get(); position < end; position++) {
+      int index = (int) position & mask;
+      Message message = buffer.get(index);
+      if (message != null && sequences.get(index) == position + 1) {
+        snapshot.add(message);
+      }
+    }
+    return snapshot.iterator();
+  }
+}
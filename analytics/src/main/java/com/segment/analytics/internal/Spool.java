@@ -0,0 +1,380 @@
+package com.segment.analytics.internal;
+
+import com.segment.analytics.FsyncPolicy;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only store of encoded messages on disk, so that messages which were enqueued but not
+ * uploaded survive a restart of the process.
+ *
+ * <p>Messages are appended to memory-mapped segment files of a fixed size. Each record is a header
+ * (length, state and CRC32 of the payload) followed by the payload. Acknowledging a record flips
+ * its state in place; once every record in a full segment is acknowledged, the segment file is
+ * deleted. When the spool is opened, the records of existing segments that were never acknowledged
+ * are returned by {@link #replay()}, and new records go to a new segment.
+ *
+ * <p>Records whose batch was {@link #giveUp(long) given up on} stay in the spool, to be replayed
+ * after a restart, but they do not pin it: once the spool is full, the oldest segment holding only
+ * such records is deleted to make room for new ones.
+ *
+ * <p>The spool locks its directory while it is open, so that a second client cannot use it.
+ *
+ * <p>A record is addressed by its segment number in the upper 32 bits and its offset in the lower
+ * 32 bits.
+ */
+final class Spool implements Closeable {
+  static final long NO_ADDRESS = -1L;
+  static final int DEFAULT_SEGMENT_BYTES = 4 * 1024 * 1024;
+
+  private static final Pattern SEGMENT_NAME = Pattern.compile("(\\d+)\\.spool");
+  private static final String LOCK_NAME = "spool.lock";
+  // length (int), state (byte), CRC32 of the payload (int)
+  private static final int HEADER_BYTES = 9;
+  private static final byte PENDING = 0;
+  private static final byte ACKNOWLEDGED = 1;
+
+  /** A record that was appended but not acknowledged before the spool was last closed. */
+  static final class Record {
+    final long address;
+    final byte[] bytes;
+
+    Record(long address, byte[] bytes) {
+      this.address = address;
+      this.bytes = bytes;
+    }
+  }
+
+  private static final class Segment {
+    final int id;
+    final File file;
+    final MappedByteBuffer buffer;
+    int position;
+    int pending;
+    // Pending records whose batch was given up on.
+    int givenUp;
+    boolean sealed;
+
+    Segment(int id, File file, MappedByteBuffer buffer) {
+      this.id = id;
+      this.file = file;
+      this.buffer = buffer;
+    }
+  }
+
+  private final File directory;
+  private final int segmentBytes;
+  private final long maxBytes;
+  private final FsyncPolicy fsyncPolicy;
+  private final Map<Integer, Segment> segments = new TreeMap<>();
+  private final CRC32 crc = new CRC32();
+  private final Set<Long> givenUp = new HashSet<>();
+  private final FileChannel lockChannel;
+  private List<Record> replay = new ArrayList<>();
+  private Segment active;
+  private int nextId;
+  private long usedBytes;
+
+  private Spool(
+      File directory,
+      int segmentBytes,
+      long maxBytes,
+      FsyncPolicy fsyncPolicy,
+      FileChannel lockChannel) {
+    this.directory = directory;
+    this.segmentBytes = segmentBytes;
+    this.maxBytes = maxBytes;
+    this.fsyncPolicy = fsyncPolicy;
+    this.lockChannel = lockChannel;
+  }
+
+  /**
+   * Opens the spool in {@code directory}, creating it if necessary, and loads the records that were
+   * not acknowledged.
+   *
+   * @param maxBytes the maximum size of all segment files together. Appends fail once it is
+   *     reached.
+   * @throws IOException if the directory cannot be used, or another spool has it open.
+   */
+  static Spool open(File directory, int segmentBytes, long maxBytes, FsyncPolicy fsyncPolicy)
+      throws IOException {
+    if (segmentBytes <= HEADER_BYTES || maxBytes < segmentBytes) {
+      throw new IllegalArgumentException("maxBytes must not be less than segmentBytes.");
+    }
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Could not create spool directory " + directory);
+    }
+    FileChannel lockChannel = lock(directory);
+    Spool spool = new Spool(directory, segmentBytes, maxBytes, fsyncPolicy, lockChannel);
+    try {
+      spool.load();
+    } catch (IOException e) {
+      lockChannel.close();
+      throw e;
+    }
+    return spool;
+  }
+
+  /** Locks {@code directory}, and returns the channel holding the lock. */
+  private static FileChannel lock(File directory) throws IOException {
+    FileChannel channel = new RandomAccessFile(new File(directory, LOCK_NAME), "rw").getChannel();
+    FileLock lock;
+    try {
+      lock = channel.tryLock();
+    } catch (OverlappingFileLockException e) {
+      lock = null; // held by another spool of this process
+    }
+    if (lock == null) {
+      channel.close();
+      throw new IOException("Spool directory " + directory + " is used by another client.");
+    }
+    return channel;
+  }
+
+  private void load() throws IOException {
+    File[] files = directory.listFiles();
+    Map<Integer, File> existing = new TreeMap<>();
+    if (files != null) {
+      for (File file : files) {
+        Matcher matcher = SEGMENT_NAME.matcher(file.getName());
+        if (matcher.matches()) {
+          existing.put(Integer.parseInt(matcher.group(1)), file);
+        }
+      }
+    }
+    for (Map.Entry<Integer, File> entry : existing.entrySet()) {
+      File file = entry.getValue();
+      Segment segment = new Segment(entry.getKey(), file, map(file, file.length()));
+      scan(segment);
+      segment.sealed = true;
+      nextId = segment.id + 1;
+      if (segment.pending == 0) {
+        delete(segment);
+      } else {
+        segments.put(segment.id, segment);
+        usedBytes += segment.buffer.capacity();
+      }
+    }
+  }
+
+  /** Reads the records of {@code segment} up to the first empty or corrupt one. */
+  private void scan(Segment segment) {
+    MappedByteBuffer buffer = segment.buffer;
+    int position = 0;
+    while (position + HEADER_BYTES <= buffer.capacity()) {
+      int length = buffer.getInt(position);
+      if (length <= 0 || position + HEADER_BYTES + length > buffer.capacity()) {
+        break;
+      }
+      byte state = buffer.get(position + 4);
+      int checksum = buffer.getInt(position + 5);
+      byte[] bytes = new byte[length];
+      ByteBuffer payload = buffer.duplicate();
+      // Cast so the class also runs on Java 8, where position() is only declared by Buffer.
+      ((Buffer) payload).position(position + HEADER_BYTES);
+      payload.get(bytes);
+      if (checksum != checksum(bytes)) {
+        break; // a record torn by a crash; nothing after it was written completely either
+      }
+      if (state == PENDING) {
+        replay.add(new Record(address(segment.id, position), bytes));
+        segment.pending++;
+      }
+      position += HEADER_BYTES + length;
+    }
+    segment.position = position;
+  }
+
+  /**
+   * Returns the records that were not acknowledged when the spool was last closed, in the order
+   * they were appended. May only be called once.
+   */
+  synchronized List<Record> replay() {
+    List<Record> records = replay;
+    replay = Collections.emptyList();
+    return records;
+  }
+
+  /**
+   * Appends {@code bytes} and returns the address of the new record, or {@link #NO_ADDRESS} if the
+   * spool has reached its maximum size.
+   */
+  synchronized long append(byte[] bytes) throws IOException {
+    int recordBytes = HEADER_BYTES + bytes.length;
+    if (recordBytes > segmentBytes) {
+      return NO_ADDRESS;
+    }
+    if (active == null || active.position + recordBytes > segmentBytes) {
+      if (active != null) {
+        seal(active);
+        active = null;
+      }
+      if (usedBytes + segmentBytes > maxBytes && !dropGivenUpSegment()) {
+        return NO_ADDRESS;
+      }
+      newSegment();
+    }
+
+    MappedByteBuffer buffer = active.buffer;
+    int position = active.position;
+    ByteBuffer payload = buffer.duplicate();
+    ((Buffer) payload).position(position + HEADER_BYTES);
+    payload.put(bytes);
+    buffer.putInt(position + 5, checksum(bytes));
+    buffer.put(position + 4, PENDING);
+    // The length is written last, so a record is only visible once it is complete.
+    buffer.putInt(position, bytes.length);
+    active.position += recordBytes;
+    active.pending++;
+    if (fsyncPolicy == FsyncPolicy.ALWAYS) {
+      buffer.force();
+    }
+    return address(active.id, position);
+  }
+
+  private void newSegment() throws IOException {
+    int id = nextId++;
+    File file = new File(directory, id + ".spool");
+    active = new Segment(id, file, map(file, segmentBytes));
+    segments.put(id, active);
+    usedBytes += segmentBytes;
+  }
+
+  private void seal(Segment segment) {
+    segment.sealed = true;
+    if (fsyncPolicy != FsyncPolicy.NEVER) {
+      segment.buffer.force();
+    }
+    deleteIfAcknowledged(segment);
+  }
+
+  /** Marks the record at {@code address} as delivered, so it is not replayed. */
+  synchronized void acknowledge(long address) {
+    Segment segment = segments.get((int) (address >>> 32));
+    if (segment == null) {
+      return;
+    }
+    int position = (int) address;
+    if (segment.buffer.get(position + 4) == ACKNOWLEDGED) {
+      return;
+    }
+    segment.buffer.put(position + 4, ACKNOWLEDGED);
+    segment.pending--;
+    if (givenUp.remove(address)) {
+      segment.givenUp--;
+    }
+    deleteIfAcknowledged(segment);
+  }
+
+  /**
+   * Marks the record at {@code address}, whose batch was given up on, as one that may be dropped
+   * once the spool is full. Until then it is kept, and replayed after a restart.
+   */
+  synchronized void giveUp(long address) {
+    Segment segment = segments.get((int) (address >>> 32));
+    if (segment == null
+        || segment.buffer.get((int) address + 4) == ACKNOWLEDGED
+        || !givenUp.add(address)) {
+      return;
+    }
+    segment.givenUp++;
+  }
+
+  /**
+   * Deletes the oldest full segment whose pending records were all given up on, and returns whether
+   * there was one.
+   */
+  private boolean dropGivenUpSegment() {
+    for (Segment segment : segments.values()) {
+      if (segment.sealed && segment.pending == segment.givenUp) {
+        for (Iterator<Long> it = givenUp.iterator(); it.hasNext(); ) {
+          if ((int) (it.next() >>> 32) == segment.id) {
+            it.remove();
+          }
+        }
+        segments.remove(segment.id);
+        usedBytes -= segment.buffer.capacity();
+        delete(segment);
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private void deleteIfAcknowledged(Segment segment) {
+    if (segment.sealed && segment.pending == 0) {
+      segments.remove(segment.id);
+      usedBytes -= segment.buffer.capacity();
+      delete(segment);
+    }
+  }
+
+  /** Forces appended records to disk if the fsync policy is {@link FsyncPolicy#ON_FLUSH}. */
+  synchronized void sync() {
+    if (fsyncPolicy == FsyncPolicy.ON_FLUSH && active != null) {
+      active.buffer.force();
+    }
+  }
+
+  /** Returns the total size of the segment files. */
+  synchronized long usedBytes() {
+    return usedBytes;
+  }
+
+  /**
+   * Forces appended records to disk, unless the fsync policy is never, and unlocks the directory.
+   */
+  @Override
+  public synchronized void close() {
+    if (active != null && fsyncPolicy != FsyncPolicy.NEVER) {
+      active.buffer.force();
+    }
+    try {
+      lockChannel.close();
+    } catch (IOException ignored) {
+      // the lock is released when the process exits
+    }
+  }
+
+  private int checksum(byte[] bytes) {
+    crc.reset();
+    crc.update(bytes, 0, bytes.length);
+    return (int) crc.getValue();
+  }
+
+  private static long address(int segment, int position) {
+    return ((long) segment << 32) | (position & 0xffffffffL);
+  }
+
+  private static MappedByteBuffer map(File file, long size) throws IOException {
+    try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+      // The mapping stays valid after the channel is closed.
+      return randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+    }
+  }
+
+  private static void delete(Segment segment) {
+    // The buffer is unmapped when it is garbage collected; on POSIX systems the file can be
+    // deleted while it is still mapped.
+    segment.file.delete();
+  }
+}
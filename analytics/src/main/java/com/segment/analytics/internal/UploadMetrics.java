@@ -0,0 +1,52 @@
+package com.segment.analytics.internal;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Timings of finished batch uploads. For each batch, the queue wait is the time between the looper
+ * creating the batch and a network thread starting to upload it: the time spent waiting for an
+ * in-flight permit and for a free thread. The upload time runs from there until the batch succeeded
+ * or was given up on, including retries.
+ */
+public final class UploadMetrics {
+  private final LongAdder batches = new LongAdder();
+  private final LongAdder queueWaitNanos = new LongAdder();
+  private final LongAdder uploadNanos = new LongAdder();
+  private final AtomicLong maxQueueWaitNanos = new AtomicLong();
+  private final AtomicLong maxUploadNanos = new AtomicLong();
+
+  void record(long queueWaitNanos, long uploadNanos) {
+    batches.increment();
+    this.queueWaitNanos.add(queueWaitNanos);
+    this.uploadNanos.add(uploadNanos);
+    updateMax(maxQueueWaitNanos, queueWaitNanos);
+    updateMax(maxUploadNanos, uploadNanos);
+  }
+
+  private static void updateMax(AtomicLong max, long value) {
+    long current;
+    while (value > (current = max.get()) && !max.compareAndSet(current, value)) {}
+  }
+
+  /** Returns the number of batches whose upload has finished, successfully or not. */
+  public long batches() {
+    return batches.sum();
+  }
+
+  public long totalQueueWaitNanos() {
+    return queueWaitNanos.sum();
+  }
+
+  public long maxQueueWaitNanos() {
+    return maxQueueWaitNanos.get();
+  }
+
+  public long totalUploadNanos() {
+    return uploadNanos.sum();
+  }
+
+  public long maxUploadNanos() {
+    return maxUploadNanos.get();
+  }
+}
@@ -0,0 +1,136 @@
+package com.segment.analytics.internal;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Paces batch uploads so they stay under the API's rate limit, instead of learning about it from
+ * rate-limited uploads that then have to be sent again.
+ *
+ * <p>Batches are spaced evenly at the current rate, which adapts like TCP's congestion window:
+ * additive increase, multiplicative decrease. Each batch accepted by the API raises the rate by one
+ * batch per second over a second's worth of batches, up to the maximum. Each rate-limited upload, a
+ * 429 or a Retry-After, halves the rate, down to {@value #MIN_RATE} batches per second; if fewer
+ * batches than the rate were sent in the last full second, it halves that number instead. Uploads
+ * attempted before the last decrease were sent at the old rate, so their rate limiting does not
+ * lower it again.
+ *
+ * <p>Once {@link #close() closed} on shutdown, batches are no longer paced.
+ */
+final class UploadPacer {
+  static final double MIN_RATE = 0.1;
+  private static final double DECREASE_FACTOR = 0.5;
+  private static final long NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+  private final double minRate;
+  private final double maxRate;
+  private final LongSupplier nanoTime;
+  private double rate;
+  // When the next batch may be submitted.
+  private long nextNanos;
+  private long decreasedAtNanos;
+  private boolean decreased;
+  // Batches submitted in the current one-second window, and in the one just before it.
+  private long windowStartNanos;
+  private int windowBatches;
+  private int previousWindowBatches;
+  private volatile long decreases;
+  private boolean closed;
+
+  UploadPacer(double maxRate) {
+    this(maxRate, System::nanoTime);
+  }
+
+  UploadPacer(double maxRate, LongSupplier nanoTime) {
+    if (!(maxRate > 0)) {
+      throw new IllegalArgumentException("maxRate must be greater than 0.");
+    }
+    this.maxRate = maxRate;
+    this.minRate = Math.min(MIN_RATE, maxRate);
+    this.nanoTime = nanoTime;
+    this.rate = maxRate;
+    long now = nanoTime.getAsLong();
+    this.nextNanos = now;
+    this.windowStartNanos = now;
+  }
+
+  /** Returns the number of batches per second uploads are paced at. */
+  synchronized double rate() {
+    return rate;
+  }
+
+  /** Returns how often the rate has been lowered. */
+  long decreases() {
+    return decreases;
+  }
+
+  /**
+   * Blocks until the next batch may be submitted, in turn with the batches before it, or until
+   * closed.
+   */
+  synchronized void acquire() throws InterruptedException {
+    if (closed) {
+      return;
+    }
+    long waitNanos = reserve();
+    long deadline = System.nanoTime() + waitNanos;
+    while (waitNanos > 0 && !closed) {
+      TimeUnit.NANOSECONDS.timedWait(this, waitNanos);
+      waitNanos = deadline - System.nanoTime();
+    }
+  }
+
+  /** Stops pacing, waking the batch waiting for its turn. */
+  synchronized void close() {
+    closed = true;
+    notifyAll();
+  }
+
+  /** Reserves the next slot, and returns how long to wait for it. */
+  synchronized long reserve() {
+    long now = nanoTime.getAsLong();
+    roll(now);
+    windowBatches++;
+    long start = nextNanos - now > 0 ? nextNanos : now;
+    nextNanos = start + (long) (NANOS_PER_SECOND / rate);
+    return start - now;
+  }
+
+  /** Records a batch the API accepted. */
+  synchronized void onAccepted() {
+    rate = Math.min(maxRate, rate + 1 / rate);
+  }
+
+  /**
+   * Records an upload attempt, started at {@code attemptStartNanos}, that the API rate-limited, and
+   * returns whether the rate was lowered.
+   */
+  synchronized boolean onRateLimited(long attemptStartNanos) {
+    if (decreased && attemptStartNanos - decreasedAtNanos < 0) {
+      return false;
+    }
+    long now = nanoTime.getAsLong();
+    roll(now);
+    double sent = previousWindowBatches > 0 ? Math.min(rate, previousWindowBatches) : rate;
+    double next = Math.max(minRate, sent * DECREASE_FACTOR);
+    decreased = true;
+    decreasedAtNanos = now;
+    if (next >= rate) {
+      return false;
+    }
+    rate = next;
+    // Space the next batch at the new rate.
+    nextNanos = decreasedAtNanos + (long) (NANOS_PER_SECOND / rate);
+    decreases++;
+    return true;
+  }
+
+  /** Starts a new window once the current one is a second old. */
+  private void roll(long now) {
+    if (now - windowStartNanos >= NANOS_PER_SECOND) {
+      previousWindowBatches = now - windowStartNanos < 2 * NANOS_PER_SECOND ? windowBatches : 0;
+      windowStartNanos = now;
+      windowBatches = 0;
+    }
+  }
+}
@@ -4,25 +4,42 @@ import static org.assertj.core.api.Assertions.assertThat;
 import static org.assertj.core.api.Assertions.fail;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotEquals;
+import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.verify;
 
 import com.google.gson.GsonBuilder;
+import com.segment.analytics.internal.AnalyticsClient;
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Field;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.mockito.Mockito;
 
 public class AnalyticsBuilderTest {
   Analytics.Builder builder;
 
+  @Rule public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
   @Before
   public void setUp() {
     builder = Analytics.builder("foo");
   }
 
+  private static Object messageQueue(Analytics analytics) throws Exception {
+    Field clientField = Analytics.class.getDeclaredField("client");
+    clientField.setAccessible(true);
+    Field queueField = AnalyticsClient.class.getDeclaredField("messageQueue");
+    queueField.setAccessible(true);
+    return queueField.get(clientField.get(analytics));
+  }
+
   @Test
   public void nullWriteKey() {
     try {
@@ -401,6 +418,34 @@ public class AnalyticsBuilderTest {
     }
   }
 
+  @Test
+  public void nullBatchCallback() {
+    try {
+      builder.batchCallback(null);
+      fail("Should fail for null batchCallback");
+    } catch (NullPointerException e) {
+      assertThat(e).hasMessage("Null batchCallback");
+    }
+  }
+
+  @Test
+  public void duplicateBatchCallback() {
+    BatchCallback callback = mock(BatchCallback.class);
+    try {
+      builder.batchCallback(callback).batchCallback(callback);
+      fail("Should fail for duplicate batchCallback");
+    } catch (IllegalStateException e) {
+      assertThat(e).hasMessage("BatchCallback is already registered.");
+    }
+  }
+
+  @Test
+  public void buildsWithBatchCallback() {
+    Analytics analytics = builder.batchCallback(mock(BatchCallback.class)).build();
+    assertThat(analytics).isNotNull();
+    analytics.shutdown();
+  }
+
   @Test
   public void buildsWithValidCallback() {
     Analytics analytics = builder.callback(mock(Callback.class)).build();
@@ -506,4 +551,464 @@ public class AnalyticsBuilderTest {
     Analytics analytics = builder.maxRateLimitDuration(1, TimeUnit.SECONDS).build();
     assertThat(analytics).isNotNull();
   }
+
+  @Test
+  public void nullCompression() {
+    try {
+      builder.compression(null);
+      fail("Should fail for null compression");
+    } catch (NullPointerException e) {
+      assertThat(e).hasMessage("Null compression");
+    }
+  }
+
+  @Test
+  public void buildsWithCompression() {
+    Analytics analytics = builder.compression(Compression.GZIP).build();
+    assertThat(analytics).isNotNull();
+  }
+
+  @Test
+  public void nullQueueStrategy() {
+    try {
+      builder.queueStrategy(null);
+      fail("Should fail for null queueStrategy");
+    } catch (NullPointerException e) {
+      assertThat(e).hasMessage("Null queueStrategy");
+    }
+  }
+
+  @Test
+  public void invalidRingBufferCapacity() {
+    builder.queueStrategy(QueueStrategy.RING_BUFFER).queueCapacity((1 << 24) + 1);
+    try {
+      builder.build();
+      fail("Should fail for a ring buffer capacity above 2^24");
+    } catch (IllegalArgumentException e) {
+      assertThat(e)
+          .hasMessage("queueCapacity must not be greater than 16777216 with a ring buffer.");
+    }
+  }
+
+  @Test
+  public void buildsWithRingBufferQueue() throws Exception {
+    Analytics analytics = builder.queueStrategy(QueueStrategy.RING_BUFFER).build();
+    assertThat(messageQueue(analytics).getClass().getSimpleName()).isEqualTo("RingBufferQueue");
+    assertThat(analytics).isNotNull();
+    analytics.shutdown();
+  }
+
+  @Test
+  public void invalidMaxInFlightBatches() {
+    try {
+      builder.maxInFlightBatches(0);
+      fail("Should fail for maxInFlightBatches less than 1");
+    } catch (IllegalArgumentException e) {
+      assertThat(e).hasMessage("maxInFlightBatches must be at least 1.");
+    }
+  }
+
+  @Test
+  public void buildsWithMaxInFlightBatchesAndUserOrder() {
+    Analytics analytics = builder.maxInFlightBatches(4).preserveUserOrder().build();
+    assertThat(analytics).isNotNull();
+    UploadStats stats = analytics.uploadStats();
+    assertThat(stats.batches()).isEqualTo(0);
+    assertThat(stats.inFlightBatches()).isEqualTo(0);
+    assertThat(stats.averageUploadTime(TimeUnit.MILLISECONDS)).isEqualTo(0);
+    analytics.shutdown();
+  }
+
+  @Test
+  public void invalidDeduplicate() {
+    try {
+      builder.deduplicate(0, 0.01);
+      fail("Should fail for maxMessageIds less than 1");
+    } catch (IllegalArgumentException e) {
+      assertThat(e).hasMessage("maxMessageIds must not be less than 1.");
+    }
+    for (double rate : new double[] {0, 1, Double.NaN}) {
+      try {
+        builder.deduplicate(1000, rate);
+        fail("Should fail for falsePositiveRate " + rate);
+      } catch (IllegalArgumentException e) {
+        assertThat(e).hasMessage("falsePositiveRate must be greater than 0 and less than 1.");
+      }
+    }
+  }
+
+  @Test
+  public void buildsWithDeduplicate() {
+    Analytics analytics = builder.deduplicate(1000, 0.01).build();
+    assertThat(analytics).isNotNull();
+    analytics.shutdown();
+  }
+
+  @Test
+  public void invalidEventSampleRate() {
+    for (String event : new String[] {null, ""}) {
+      try {
+        builder.eventSampleRate(event, 0.5);
+        fail("Should fail for null or empty event");
+      } catch (IllegalArgumentException e) {
+        assertThat(e).hasMessage("event cannot be null or empty.");
+      }
+    }
+    for (double rate : new double[] {-0.1, 1.1, Double.NaN}) {
+      try {
+        builder.eventSampleRate("foo", rate);
+        fail("Should fail for eventSampleRate " + rate);
+      } catch (IllegalArgumentException e) {
+        assertThat(e).hasMessage("eventSampleRate must not be less than 0 or greater than 1.");
+      }
+    }
+  }
+
+  @Test
+  public void invalidUserSampleRate() {
+    for (double rate : new double[] {0, 1.1, Double.NaN}) {
+      try {
+        builder.userSampleRate(rate);
+        fail("Should fail for userSampleRate " + rate);
+      } catch (IllegalArgumentException e) {
+        assertThat(e).hasMessage("userSampleRate must be greater than 0 and not greater than 1.");
+      }
+    }
+  }
+
+  @Test
+  public void invalidMaxEventsPerSecond() {
+    try {
+      builder.maxEventsPerSecond(0);
+      fail("Should fail for maxEventsPerSecond less than 1");
+    } catch (IllegalArgumentException e) {
+      assertThat(e).hasMessage("maxEventsPerSecond must not be less than 1.");
+    }
+  }
+
+  @Test
+  public void buildsWithSampling() {
+    Analytics analytics =
+        builder.eventSampleRate("foo", 0.5).userSampleRate(0.1).maxEventsPerSecond(1000).build();
+    assertThat(analytics).isNotNull();
+    assertThat(analytics.samplingStats().dropped()).isEqualTo(0);
+    analytics.shutdown();
+  }
+
+  @Test
+  public void invalidMaxUploadsPerSecond() {
+    for (double rate : new double[] {0, -1, Double.NaN}) {
+      try {
+        builder.maxUploadsPerSecond(rate);
+        fail("Should fail for maxUploadsPerSecond " + rate);
+      } catch (IllegalArgumentException e) {
+        assertThat(e).hasMessage("maxUploadsPerSecond must be greater than 0.");
+      }
+    }
+  }
+
+  @Test
+  public void buildsWithMaxUploadsPerSecond() {
+    Analytics analytics = builder.maxUploadsPerSecond(2.5).build();
+    assertThat(analytics).isNotNull();
+    analytics.shutdown();
+  }
+
+  @Test
+  public void invalidCircuitBreaker() {
+    try {
+      builder.circuitBreaker(0, 30, TimeUnit.SECONDS);
+      fail("Should fail for failureThreshold less than 1");
+    } catch (IllegalArgumentException e) {
+      assertThat(e).hasMessage("failureThreshold must not be less than 1.");
+    }
+    try {
+      builder.circuitBreaker(5, 30, null);
+      fail("Should fail for null unit");
+    } catch (NullPointerException e) {
+      assertThat(e).hasMessage("Null unit");
+    }
+    try {
+      builder.circuitBreaker(5, 999, TimeUnit.MICROSECONDS);
+      fail("Should fail for openDuration less than 1 millisecond");
+    } catch (IllegalArgumentException e) {
+      assertThat(e).hasMessage("openDuration must not be less than 1 millisecond.");
+    }
+  }
+
+  @Test
+  public void buildsWithCircuitBreaker() {
+    Analytics analytics = builder.circuitBreaker(5, 30, TimeUnit.SECONDS).build();
+    assertThat(analytics).isNotNull();
+    analytics.shutdown();
+  }
+
+  @Test
+  public void invalidUploadURLs() {
+    try {
+      builder.uploadURLs(null, "https://a.example.com/v1/import/");
+      fail("Should fail for null selection");
+    } catch (NullPointerException e) {
+      assertThat(e).hasMessage("Null selection");
+    }
+    try {
+      builder.uploadURLs(EndpointSelection.LEAST_LATENCY);
+      fail("Should fail for no uploadURLs");
+    } catch (IllegalArgumentException e) {
+      assertThat(e).hasMessage("uploadURLs must not be empty.");
+    }
+    try {
+      builder.uploadURLs(EndpointSelection.LEAST_LATENCY, "https://a.example.com/", " ");
+      fail("Should fail for empty uploadURL");
+    } catch (NullPointerException e) {
+      assertThat(e).hasMessage("Upload URL cannot be null or empty.");
+    }
+    try {
+      builder.uploadURLs(EndpointSelection.LEAST_LATENCY, "a.example.com");
+      fail("Should fail for invalid uploadURL");
+    } catch (IllegalArgumentException e) {
+      assertThat(e).hasMessage("Invalid upload URL: a.example.com");
+    }
+  }
+
+  @Test
+  public void buildsWithUploadURLs() {
+    Analytics analytics =
+        builder
+            .uploadURLs(
+                EndpointSelection.WEIGHTED_ROUND_ROBIN,
+                "https://a.example.com/v1/import/",
+                "https://b.example.com/v1/import/")
+            .build();
+    assertThat(analytics).isNotNull();
+    analytics.shutdown();
+  }
+
+  @Test
+  public void invalidAsyncIngest() {
+    try {
+      builder.asyncIngest(0);
+      fail("Should fail for workers < 1");
+    } catch (IllegalArgumentException e) {
+      assertThat(e).hasMessage("workers must not be less than 1.");
+    }
+  }
+
+  @Test
+  public void asyncIngestWorkersCannotPreserveUserOrder() {
+    builder.asyncIngest(2).preserveUserOrder();
+    try {
+      builder.build();
+      fail("Should fail for more than one ingest worker with preserveUserOrder");
+    } catch (IllegalArgumentException e) {
+      assertThat(e)
+          .hasMessage("asyncIngest must not use more than 1 worker with preserveUserOrder.");
+    }
+
+    Analytics analytics = builder.asyncIngest(1).build();
+    assertThat(analytics).isNotNull();
+    analytics.shutdown();
+  }
+
+  @Test
+  public void buildsWithAsyncIngest() {
+    Analytics analytics = builder.asyncIngest(2).build();
+    assertThat(analytics).isNotNull();
+    analytics.shutdown();
+  }
+
+  @Test
+  public void nullMetrics() {
+    try {
+      builder.metrics(null);
+      fail("Should fail for null metrics");
+    } catch (NullPointerException e) {
+      assertThat(e).hasMessage("Null metrics");
+    }
+  }
+
+  @Test
+  public void buildsWithMetrics() {
+    AnalyticsMetrics metrics = mock(AnalyticsMetrics.class);
+    Analytics analytics = builder.metrics(metrics).build();
+    verify(metrics).bind(any(AnalyticsMetrics.Gauges.class));
+    analytics.shutdown();
+  }
+
+  @Test
+  public void invalidBatchFillRatio() {
+    for (double ratio : new double[] {0, -0.5, 1.5, Double.NaN}) {
+      try {
+        builder.batchFillRatio(ratio);
+        fail("Should fail for batchFillRatio " + ratio);
+      } catch (IllegalArgumentException e) {
+        assertThat(e).hasMessage("batchFillRatio must be greater than 0 and not greater than 1.");
+      }
+    }
+  }
+
+  @Test
+  public void buildsWithBatchFillRatio() {
+    Analytics analytics = builder.batchFillRatio(0.8).build();
+    assertThat(analytics).isNotNull();
+    analytics.shutdown();
+  }
+
+  @Test
+  public void invalidAdaptiveFlushQueueSize() {
+    try {
+      builder.adaptiveFlushQueueSize(0, 10);
+      fail("Should fail for minFlushQueueSize less than 1");
+    } catch (IllegalArgumentException e) {
+      assertThat(e).hasMessage("minFlushQueueSize must not be less than 1.");
+    }
+    try {
+      builder.adaptiveFlushQueueSize(10, 9);
+      fail("Should fail for maxFlushQueueSize less than minFlushQueueSize");
+    } catch (IllegalArgumentException e) {
+      assertThat(e).hasMessage("maxFlushQueueSize must not be less than minFlushQueueSize.");
+    }
+  }
+
+  @Test
+  public void buildsWithAdaptiveFlushQueueSize() {
+    Analytics analytics = builder.flushQueueSize(50).adaptiveFlushQueueSize(10, 40).build();
+    UploadStats stats = analytics.uploadStats();
+    assertThat(stats.batchSizeLimit()).isEqualTo(40);
+    assertThat(stats.batchSizeIncreases()).isEqualTo(0);
+    analytics.shutdown();
+  }
+
+  @Test
+  public void invalidLinger() {
+    try {
+      builder.linger(0, TimeUnit.MILLISECONDS);
+      fail("Should fail for linger less than 1 millisecond");
+    } catch (IllegalArgumentException e) {
+      assertThat(e).hasMessage("linger must not be less than 1 millisecond.");
+    }
+  }
+
+  @Test
+  public void nullLingerUnit() {
+    try {
+      builder.linger(1, null);
+      fail("Should fail for null unit");
+    } catch (NullPointerException e) {
+      assertThat(e).hasMessage("Null unit");
+    }
+  }
+
+  @Test
+  public void buildsWithLinger() {
+    Analytics analytics = builder.linger(5, TimeUnit.MILLISECONDS).build();
+    assertThat(analytics).isNotNull();
+    analytics.shutdown();
+  }
+
+  @Test
+  public void nullSpoolDirectory() {
+    try {
+      builder.spool(null);
+      fail("Should fail for null directory");
+    } catch (NullPointerException e) {
+      assertThat(e).hasMessage("Null directory");
+    }
+  }
+
+  @Test
+  public void invalidSpoolMaxBytes() {
+    try {
+      builder.spoolMaxBytes(1024);
+      fail("Should fail for spoolMaxBytes less than 64 KB");
+    } catch (IllegalArgumentException e) {
+      assertThat(e).hasMessage("spoolMaxBytes must not be less than 65536.");
+    }
+  }
+
+  @Test
+  public void nullSpoolFsyncPolicy() {
+    try {
+      builder.spoolFsyncPolicy(null);
+      fail("Should fail for null fsyncPolicy");
+    } catch (NullPointerException e) {
+      assertThat(e).hasMessage("Null fsyncPolicy");
+    }
+  }
+
+  @Test
+  public void buildsWithSpool() throws IOException {
+    File directory = temporaryFolder.newFolder();
+    Analytics analytics =
+        builder
+            .spool(directory)
+            .spoolMaxBytes(1024 * 1024)
+            .spoolFsyncPolicy(FsyncPolicy.ALWAYS)
+            .build();
+    assertThat(analytics).isNotNull();
+    analytics.shutdown();
+  }
+
+  @Test
+  public void nullOverflowDirectory() {
+    try {
+      builder.overflowToDisk(null);
+      fail("Should fail for null directory");
+    } catch (NullPointerException e) {
+      assertThat(e).hasMessage("Null directory");
+    }
+  }
+
+  @Test
+  public void invalidOverflowMaxBytes() {
+    try {
+      builder.overflowMaxBytes(1024);
+      fail("Should fail for overflowMaxBytes less than 64 KB");
+    } catch (IllegalArgumentException e) {
+      assertThat(e).hasMessage("overflowMaxBytes must not be less than 65536.");
+    }
+  }
+
+  @Test
+  public void buildsWithOverflowToDisk() throws IOException {
+    File directory = temporaryFolder.newFolder();
+    Analytics analytics = builder.overflowToDisk(directory).overflowMaxBytes(1024 * 1024).build();
+    assertThat(analytics).isNotNull();
+    analytics.shutdown();
+  }
+
+  @Test
+  public void buildsWithVirtualThreads() {
+    Analytics analytics = builder.virtualThreads().build();
+    assertThat(analytics).isNotNull();
+    analytics.shutdown();
+  }
+
+  @Test
+  public void buildsWithAsyncUploads() {
+    Analytics analytics = builder.asyncUploads().build();
+    assertThat(analytics).isNotNull();
+    analytics.shutdown();
+  }
+
+  @Test
+  public void virtualThreadNetworkExecutorOnlyWhereSupported() throws Exception {
+    boolean supported;
+    try {
+      Thread.class.getMethod("ofVirtual");
+      supported = true;
+    } catch (NoSuchMethodException e) {
+      supported = false;
+    }
+
+    ExecutorService executor = Platform.get().virtualThreadNetworkExecutor();
+    if (!supported) {
+      assertThat(executor).isNull();
+      return;
+    }
+    Thread thread = executor.submit(Thread::currentThread).get();
+    assertThat(Thread.class.getMethod("isVirtual").invoke(thread)).isEqualTo(true);
+    assertThat(thread.getName()).isEqualTo(Platform.THREAD_NAME);
+    executor.shutdown();
+  }
 }
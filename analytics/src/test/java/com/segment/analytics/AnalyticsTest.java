@@ -1,6 +1,8 @@
 package com.segment.analytics;
 
+import static org.assertj.core.api.Assertions.assertThat;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.spy;
 import static org.mockito.Mockito.times;
@@ -12,17 +14,23 @@ import com.segment.analytics.TestUtils.MessageBuilderTest;
 import com.segment.analytics.internal.AnalyticsClient;
 import com.segment.analytics.messages.Message;
 import com.segment.analytics.messages.MessageBuilder;
+import com.segment.analytics.messages.TrackMessage;
 import com.squareup.burst.BurstJUnit4;
+import java.io.IOException;
 import java.lang.reflect.Field;
+import java.time.Duration;
 import java.time.LocalDateTime;
 import java.time.temporal.ChronoUnit;
 import java.util.Collections;
+import java.util.Date;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.atomic.AtomicInteger;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 
 @RunWith(BurstJUnit4.class)
@@ -31,18 +39,24 @@ public class AnalyticsTest {
   @Mock Log log;
   @Mock MessageTransformer messageTransformer;
   @Mock MessageInterceptor messageInterceptor;
+  Deliveries deliveries;
   Analytics analytics;
 
   @Before
   public void setUp() {
     initMocks(this);
 
+    deliveries = new Deliveries();
     analytics =
         new Analytics(
             client,
             Collections.singletonList(messageTransformer),
             Collections.singletonList(messageInterceptor),
-            log);
+            log,
+            deliveries,
+            null,
+            null,
+            null);
   }
 
   @Test
@@ -83,6 +97,91 @@ public class AnalyticsTest {
     verify(client, never()).enqueue(any(Message.class));
   }
 
+  @Test
+  public void enqueueAsyncCompletesWhenDelivered(MessageBuilderTest builder) {
+    MessageBuilder messageBuilder = builder.get().userId("prateek");
+    Message message = messageBuilder.build();
+    when(messageTransformer.transform(messageBuilder)).thenReturn(true);
+    when(messageInterceptor.intercept(any(Message.class))).thenReturn(message);
+
+    CompletableFuture<DeliveryResult> result = analytics.enqueueAsync(messageBuilder);
+
+    verify(client).enqueue(message);
+    assertThat(result).isNotDone();
+    deliveries.success(message);
+    assertThat(result.join().status()).isEqualTo(DeliveryResult.Status.DELIVERED);
+    assertThat(result.join().message()).isSameAs(message);
+  }
+
+  @Test
+  public void enqueueAsyncCompletesWhenFailed(MessageBuilderTest builder) {
+    MessageBuilder messageBuilder = builder.get().userId("prateek");
+    Message message = messageBuilder.build();
+    when(messageTransformer.transform(messageBuilder)).thenReturn(true);
+    when(messageInterceptor.intercept(any(Message.class))).thenReturn(message);
+    IOException error = new IOException("retries exhausted");
+
+    CompletableFuture<DeliveryResult> result = analytics.enqueueAsync(messageBuilder);
+    deliveries.failure(message, error);
+
+    assertThat(result.join().isDelivered()).isFalse();
+    assertThat(result.join().error()).isSameAs(error);
+  }
+
+  @Test
+  public void enqueueAsyncSkipsDroppedMessages(MessageBuilderTest builder) {
+    MessageBuilder messageBuilder = builder.get().userId("prateek");
+    when(messageTransformer.transform(messageBuilder)).thenReturn(false);
+
+    CompletableFuture<DeliveryResult> result = analytics.enqueueAsync(messageBuilder);
+
+    assertThat(result.join().status()).isEqualTo(DeliveryResult.Status.SKIPPED);
+    verify(client, never()).enqueue(any(Message.class));
+  }
+
+  @Test
+  public void enqueueAsyncFailsOversizedMessages(MessageBuilderTest builder) {
+    MessageBuilder messageBuilder = builder.get().userId("prateek");
+    Message message = messageBuilder.build();
+    when(messageTransformer.transform(messageBuilder)).thenReturn(true);
+    when(messageInterceptor.intercept(any(Message.class))).thenReturn(message);
+    doThrow(new IllegalArgumentException("Message was above individual limit."))
+        .when(client)
+        .enqueue(message);
+
+    CompletableFuture<DeliveryResult> result = analytics.enqueueAsync(messageBuilder);
+
+    assertThat(result.join().status()).isEqualTo(DeliveryResult.Status.FAILED);
+    assertThat(result.join().error()).isInstanceOf(IllegalArgumentException.class);
+  }
+
+  @Test
+  public void shutdownFailsUndeliveredMessages(MessageBuilderTest builder) {
+    MessageBuilder messageBuilder = builder.get().userId("prateek");
+    Message message = messageBuilder.build();
+    when(messageTransformer.transform(any(MessageBuilder.class))).thenReturn(true);
+    when(messageInterceptor.intercept(any(Message.class))).thenReturn(message);
+
+    CompletableFuture<DeliveryResult> pending = analytics.enqueueAsync(messageBuilder);
+    analytics.shutdown();
+    CompletableFuture<DeliveryResult> late = analytics.enqueueAsync(messageBuilder);
+
+    assertThat(pending.join().status()).isEqualTo(DeliveryResult.Status.FAILED);
+    assertThat(late.join().status()).isEqualTo(DeliveryResult.Status.FAILED);
+    assertThat(late.join().error()).hasMessage("Client shut down before the message was uploaded");
+  }
+
+  @Test
+  public void flushAndWaitWaitsForAcknowledgement() throws InterruptedException {
+    CompletableFuture<Void> acknowledged = new CompletableFuture<>();
+    when(client.flushWithAcknowledgement()).thenReturn(acknowledged);
+
+    assertThat(analytics.flushAndWait(Duration.ofMillis(10))).isFalse();
+
+    acknowledged.complete(null);
+    assertThat(analytics.flushAndWait(Duration.ofSeconds(1))).isTrue();
+  }
+
   @Test
   public void shutdownIsDispatched() {
     analytics.shutdown();
@@ -147,4 +246,188 @@ public class AnalyticsTest {
 
     verify(spy, times(counter.get())).enqueue(any(Message.class));
   }
+
+  @Test
+  public void dropsDuplicateMessageIds(MessageBuilderTest builder) {
+    analytics =
+        new Analytics(
+            client,
+            Collections.<MessageTransformer>emptyList(),
+            Collections.<MessageInterceptor>emptyList(),
+            log,
+            deliveries,
+            new DuplicateFilter(100, 0.01),
+            null,
+            null);
+    when(client.enqueue(any(Message.class))).thenReturn(true);
+
+    analytics.enqueue(builder.get().userId("prateek").messageId("a"));
+    analytics.enqueue(builder.get().userId("prateek").messageId("a"));
+    analytics.enqueue(builder.get().userId("prateek").messageId("b"));
+    analytics.enqueue(builder.get().userId("prateek"));
+
+    verify(client, times(3)).enqueue(any(Message.class));
+    assertThat(analytics.enqueueAsync(builder.get().userId("prateek").messageId("b")))
+        .isCompletedWithValue(DeliveryResult.skipped());
+  }
+
+  @Test
+  public void messageIdOfARejectedMessageCanBeEnqueuedAgain(MessageBuilderTest builder) {
+    analytics =
+        new Analytics(
+            client,
+            Collections.<MessageTransformer>emptyList(),
+            Collections.<MessageInterceptor>emptyList(),
+            log,
+            deliveries,
+            new DuplicateFilter(100, 0.01),
+            null,
+            null);
+    // The queue is full at first.
+    when(client.offer(any(Message.class))).thenReturn(false, true);
+
+    assertThat(analytics.offer(builder.get().userId("prateek").messageId("a"))).isFalse();
+    assertThat(analytics.offer(builder.get().userId("prateek").messageId("a"))).isTrue();
+    // Queued once, so it is a duplicate from now on.
+    assertThat(analytics.offer(builder.get().userId("prateek").messageId("a"))).isFalse();
+    verify(client, times(2)).offer(any(Message.class));
+  }
+
+  @Test
+  public void checksOnlyExplicitMessageIds(MessageBuilderTest builder) {
+    // A filter so full that it takes every messageId for one seen before.
+    DuplicateFilter filter = new DuplicateFilter(1000, 0.99);
+    for (int i = 0; i < 999; i++) {
+      filter.add("seen-" + i);
+    }
+    analytics =
+        new Analytics(
+            client,
+            Collections.<MessageTransformer>emptyList(),
+            Collections.<MessageInterceptor>emptyList(),
+            log,
+            deliveries,
+            filter,
+            null,
+            null);
+
+    analytics.enqueue(builder.get().userId("prateek").messageId("new"));
+    for (int i = 0; i < 20; i++) {
+      analytics.enqueue(builder.get().userId("prateek"));
+    }
+
+    verify(client, times(20)).enqueue(any(Message.class));
+  }
+
+  @Test
+  public void dropsSampledMessagesBeforeBuildingThem() {
+    analytics =
+        new Analytics(
+            client,
+            Collections.<MessageTransformer>emptyList(),
+            Collections.<MessageInterceptor>emptyList(),
+            log,
+            deliveries,
+            null,
+            new Sampler(Collections.singletonMap("noisy", 0.0), 1, 0),
+            null);
+
+    // Without a userId, building the message would throw.
+    analytics.enqueue(TrackMessage.builder("noisy"));
+    analytics.enqueue(TrackMessage.builder("quiet").userId("prateek"));
+
+    verify(client, times(1)).enqueue(any(Message.class));
+    assertThat(analytics.enqueueAsync(TrackMessage.builder("noisy")))
+        .isCompletedWithValue(DeliveryResult.skipped());
+    assertThat(analytics.samplingStats().droppedByEvent()).isEqualTo(2);
+    assertThat(analytics.samplingStats().dropped()).isEqualTo(2);
+  }
+
+  @Test
+  public void asyncIngestBuildsMessagesOffTheCallerThread(MessageBuilderTest builder)
+      throws Exception {
+    Thread caller = Thread.currentThread();
+    AtomicInteger builtOnCaller = new AtomicInteger();
+    analytics =
+        new Analytics(
+            client,
+            Collections.<MessageTransformer>singletonList(
+                messageBuilder -> {
+                  if (Thread.currentThread() == caller) {
+                    builtOnCaller.incrementAndGet();
+                  }
+                  // Built well after it was enqueued.
+                  try {
+                    Thread.sleep(20);
+                  } catch (InterruptedException e) {
+                    throw new AssertionError(e);
+                  }
+                  return true;
+                }),
+            Collections.<MessageInterceptor>emptyList(),
+            log,
+            deliveries,
+            null,
+            null,
+            new AsyncIngest(
+                2,
+                Integer.MAX_VALUE,
+                Executors.defaultThreadFactory(),
+                log,
+                AnalyticsMetrics.NONE));
+    when(client.flushWithAcknowledgement()).thenReturn(CompletableFuture.completedFuture(null));
+
+    MessageBuilder messageBuilder = builder.get().userId("prateek");
+    CompletableFuture<DeliveryResult> result = analytics.enqueueAsync(messageBuilder);
+    // Without a userId, building the message fails on a worker instead of throwing.
+    CompletableFuture<DeliveryResult> invalid = analytics.enqueueAsync(builder.get());
+    analytics.enqueue(builder.get().userId("prateek"));
+    Date enqueued = new Date();
+
+    assertThat(analytics.flushAndWait(Duration.ofSeconds(5))).isTrue();
+    ArgumentCaptor<Message> messages = ArgumentCaptor.forClass(Message.class);
+    verify(client, times(2)).enqueue(messages.capture());
+    for (Message message : messages.getAllValues()) {
+      assertThat(message.timestamp()).isBeforeOrEqualTo(enqueued);
+    }
+    assertThat(builtOnCaller.get()).isEqualTo(0);
+    assertThat(invalid.join().error()).isInstanceOf(IllegalArgumentException.class);
+    assertThat(result).isNotDone();
+
+    analytics.shutdown();
+    assertThat(result.join().status()).isEqualTo(DeliveryResult.Status.FAILED);
+  }
+
+  @Test
+  public void asyncIngestCallsBackForAnOfferedMessageTheQueueRejects(MessageBuilderTest builder)
+      throws Exception {
+    analytics =
+        new Analytics(
+            client,
+            Collections.<MessageTransformer>emptyList(),
+            Collections.<MessageInterceptor>emptyList(),
+            log,
+            deliveries,
+            null,
+            null,
+            new AsyncIngest(
+                1,
+                Integer.MAX_VALUE,
+                Executors.defaultThreadFactory(),
+                log,
+                AnalyticsMetrics.NONE));
+    when(client.flushWithAcknowledgement()).thenReturn(CompletableFuture.completedFuture(null));
+    when(client.offer(any(Message.class))).thenReturn(false);
+
+    assertThat(analytics.offer(builder.get().userId("prateek"))).isTrue();
+
+    assertThat(analytics.flushAndWait(Duration.ofSeconds(5))).isTrue();
+    verify(client).notifyDropped(any(Message.class), any(IllegalStateException.class));
+    analytics.shutdown();
+  }
+
+  @Test
+  public void samplingStatsAreEmptyWithoutSampling() {
+    assertThat(analytics.samplingStats().dropped()).isEqualTo(0);
+  }
 }
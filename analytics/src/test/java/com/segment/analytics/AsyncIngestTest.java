@@ -0,0 +1,111 @@
+package com.segment.analytics;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import com.segment.analytics.messages.MessageBuilder;
+import com.segment.analytics.messages.TrackMessage;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Test;
+
+public class AsyncIngestTest {
+  private final List<MessageBuilder> handled = new CopyOnWriteArrayList<>();
+  private final List<Thread> threads = new CopyOnWriteArrayList<>();
+  private AsyncIngest ingest;
+
+  @After
+  public void tearDown() {
+    if (ingest != null) {
+      ingest.shutdown();
+    }
+  }
+
+  private AsyncIngest start(int workers, int capacity, CountDownLatch release) {
+    ingest =
+        new AsyncIngest(
+            workers, capacity, Executors.defaultThreadFactory(), Log.NONE, AnalyticsMetrics.NONE);
+    ingest.start(
+        (builder, enqueuedAt, result, offer) -> {
+          threads.add(Thread.currentThread());
+          try {
+            release.await();
+          } catch (InterruptedException e) {
+            throw new AssertionError(e);
+          }
+          handled.add(builder);
+        });
+    return ingest;
+  }
+
+  @Test
+  public void handsBuildersToWorkers() throws Exception {
+    start(4, Integer.MAX_VALUE, new CountDownLatch(0));
+
+    for (int i = 0; i < 1000; i++) {
+      assertThat(ingest.append(TrackMessage.builder("foo").userId("user-" + i), null, false))
+          .isTrue();
+    }
+    ingest.barrier().get(5, TimeUnit.SECONDS);
+
+    assertThat(handled).hasSize(1000);
+    assertThat(threads).doesNotContain(Thread.currentThread());
+  }
+
+  @Test
+  public void barrierWaitsForBuildersAppendedBeforeIt() throws Exception {
+    CountDownLatch release = new CountDownLatch(1);
+    start(2, Integer.MAX_VALUE, release);
+
+    ingest.append(TrackMessage.builder("foo").userId("prateek"), null, false);
+    CompletableFuture<Void> barrier = ingest.barrier();
+
+    // The other worker takes the barrier while the first still holds the builder.
+    Thread.sleep(100);
+    assertThat(barrier).isNotDone();
+    release.countDown();
+    barrier.get(5, TimeUnit.SECONDS);
+    assertThat(handled).hasSize(1);
+  }
+
+  @Test
+  public void dropsBuildersOnceFull() throws Exception {
+    CountDownLatch release = new CountDownLatch(1);
+    start(1, 1, release);
+
+    ingest.append(TrackMessage.builder("foo").userId("prateek"), null, false);
+    // Wait for the worker to take the first builder, freeing up the buffer.
+    while (threads.isEmpty()) {
+      Thread.sleep(1);
+    }
+    assertThat(ingest.append(TrackMessage.builder("foo").userId("prateek"), null, false)).isTrue();
+    CompletableFuture<DeliveryResult> result = new CompletableFuture<>();
+    assertThat(ingest.append(TrackMessage.builder("foo").userId("prateek"), result, false))
+        .isFalse();
+
+    assertThat(result.join().status()).isEqualTo(DeliveryResult.Status.FAILED);
+    assertThat(result.join().error()).hasMessage("Ingest buffer is full.");
+    release.countDown();
+  }
+
+  @Test
+  public void shutdownHandsOverBufferedBuilders() {
+    CountDownLatch release = new CountDownLatch(0);
+    start(2, Integer.MAX_VALUE, release);
+
+    for (int i = 0; i < 100; i++) {
+      ingest.append(TrackMessage.builder("foo").userId("user-" + i), null, false);
+    }
+    ingest.shutdown();
+
+    assertThat(handled).hasSize(100);
+    CompletableFuture<DeliveryResult> late = new CompletableFuture<>();
+    assertThat(ingest.append(TrackMessage.builder("foo").userId("prateek"), late, false)).isFalse();
+    assertThat(late.join().error()).hasMessage("Client shut down before the message was uploaded");
+    assertThat(ingest.barrier()).isDone();
+  }
+}
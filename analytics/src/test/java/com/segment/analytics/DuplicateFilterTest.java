@@ -0,0 +1,86 @@
+package com.segment.analytics;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.UUID;
+import org.junit.Test;
+
+public class DuplicateFilterTest {
+  /** Looks {@code messageId} up, then adds it, as for a message that was queued. */
+  private static boolean enqueue(DuplicateFilter filter, String messageId) {
+    boolean seen = filter.mightContain(messageId);
+    filter.add(messageId);
+    return seen;
+  }
+
+  @Test
+  public void lookingUpDoesNotAdd() {
+    DuplicateFilter filter = new DuplicateFilter(1000, 0.01);
+
+    assertThat(filter.mightContain("a")).isFalse();
+    assertThat(filter.mightContain("a")).isFalse();
+    filter.add("a");
+    assertThat(filter.mightContain("a")).isTrue();
+  }
+
+  @Test
+  public void recognizesRepeatedMessageIds() {
+    DuplicateFilter filter = new DuplicateFilter(1000, 0.01);
+
+    assertThat(enqueue(filter, "a")).isFalse();
+    assertThat(enqueue(filter, "b")).isFalse();
+    assertThat(enqueue(filter, "a")).isTrue();
+    assertThat(enqueue(filter, "b")).isTrue();
+  }
+
+  @Test
+  public void remembersMessageIdsForAtLeastTheCapacity() {
+    DuplicateFilter filter = new DuplicateFilter(100, 0.01);
+    assertThat(enqueue(filter, "first")).isFalse();
+    for (int i = 0; i < 98; i++) {
+      enqueue(filter, UUID.randomUUID().toString());
+    }
+
+    // The current filter is full and rotated, but its messageIds are still in the previous one.
+    assertThat(enqueue(filter, "last")).isFalse();
+    assertThat(enqueue(filter, "first")).isTrue();
+    assertThat(enqueue(filter, "last")).isTrue();
+  }
+
+  @Test
+  public void forgetsMessageIdsAfterTwiceTheCapacity() {
+    DuplicateFilter filter = new DuplicateFilter(100, 0.01);
+    assertThat(enqueue(filter, "first")).isFalse();
+    for (int i = 0; i < 199; i++) {
+      enqueue(filter, "other-" + i);
+    }
+
+    assertThat(enqueue(filter, "first")).isFalse();
+  }
+
+  @Test
+  public void falsePositiveRateIsBounded() {
+    DuplicateFilter filter = new DuplicateFilter(10000, 0.01);
+    for (int i = 0; i < 10000; i++) {
+      enqueue(filter, "seen-" + i);
+    }
+
+    int falsePositives = 0;
+    for (int i = 0; i < 10000; i++) {
+      if (enqueue(filter, "new-" + i)) {
+        falsePositives++;
+      }
+    }
+    // The new messageIds are looked up in two full filters.
+    assertThat(falsePositives).isLessThan(400);
+  }
+
+  @Test
+  public void sizeFollowsCapacityAndFalsePositiveRate() {
+    // About 9.6 bits per messageId at 1%, in each of the two filters.
+    assertThat(new DuplicateFilter(1_000_000, 0.01).sizeInBytes())
+        .isBetween(2_390_000L, 2_400_000L);
+    assertThat(new DuplicateFilter(1_000_000, 0.001).sizeInBytes())
+        .isGreaterThan(new DuplicateFilter(1_000_000, 0.01).sizeInBytes());
+  }
+}
@@ -0,0 +1,113 @@
+package com.segment.analytics;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import com.segment.analytics.messages.TrackMessage;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import okhttp3.OkHttpClient;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import okhttp3.mockwebserver.SocketPolicy;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/** Uploads to several local endpoints, one of which goes down. */
+public class EndpointFailoverTest {
+  private final MockWebServer first = new MockWebServer();
+  private final MockWebServer second = new MockWebServer();
+  private Analytics analytics;
+
+  @Before
+  public void setUp() throws IOException {
+    for (MockWebServer server : new MockWebServer[] {first, second}) {
+      server.setDispatcher(
+          new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) {
+              return new MockResponse().setBody("{\"success\":true}");
+            }
+          });
+      server.start();
+    }
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    if (analytics != null) {
+      analytics.shutdown();
+    }
+    first.shutdown();
+    second.shutdown();
+  }
+
+  private Analytics.Builder builder(EndpointSelection selection) {
+    return Analytics.builder("writeKey")
+        .uploadURLs(selection, url(first), url(second))
+        .flushQueueSize(1)
+        .flushInterval(1, TimeUnit.HOURS);
+  }
+
+  private static String url(MockWebServer server) {
+    return server.url("/v1/import/").toString();
+  }
+
+  private void enqueueAndAwait(int messages) throws Exception {
+    List<CompletableFuture<DeliveryResult>> results = new ArrayList<>();
+    for (int i = 0; i < messages; i++) {
+      results.add(analytics.enqueueAsync(TrackMessage.builder("Event " + i).userId("prateek")));
+    }
+    for (CompletableFuture<DeliveryResult> result : results) {
+      assertThat(result.get(10, TimeUnit.SECONDS).isDelivered()).isTrue();
+    }
+  }
+
+  @Test
+  public void spreadsBatchesAcrossEndpoints() throws Exception {
+    analytics = builder(EndpointSelection.WEIGHTED_ROUND_ROBIN).build();
+
+    enqueueAndAwait(6);
+
+    assertThat(first.getRequestCount()).isEqualTo(3);
+    assertThat(second.getRequestCount()).isEqualTo(3);
+  }
+
+  @Test
+  public void keepsUploadingWhenAnEndpointIsKilled() throws Exception {
+    analytics = builder(EndpointSelection.WEIGHTED_ROUND_ROBIN).build();
+    enqueueAndAwait(2);
+
+    second.shutdown();
+    enqueueAndAwait(10);
+
+    // Every batch after the first made it, the ones sent to the dead endpoint by failing over.
+    assertThat(first.getRequestCount()).isEqualTo(11);
+  }
+
+  @Test
+  public void failsOverWhenAnEndpointTimesOut() throws Exception {
+    second.setDispatcher(
+        new Dispatcher() {
+          @Override
+          public MockResponse dispatch(RecordedRequest request) {
+            return new MockResponse().setSocketPolicy(SocketPolicy.NO_RESPONSE);
+          }
+        });
+    analytics =
+        builder(EndpointSelection.LEAST_LATENCY)
+            .client(new OkHttpClient.Builder().readTimeout(200, TimeUnit.MILLISECONDS).build())
+            .build();
+
+    enqueueAndAwait(5);
+    assertThat(analytics.flushAndWait(Duration.ofSeconds(5))).isTrue();
+
+    assertThat(first.getRequestCount()).isEqualTo(5);
+  }
+}
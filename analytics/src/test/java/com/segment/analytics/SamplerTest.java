@@ -0,0 +1,103 @@
+package com.segment.analytics;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import com.segment.analytics.messages.IdentifyMessage;
+import com.segment.analytics.messages.TrackMessage;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.Test;
+
+public class SamplerTest {
+  private static final Map<String, Double> NO_EVENT_RATES = Collections.emptyMap();
+
+  @Test
+  public void keepsEverythingByDefault() {
+    Sampler sampler = new Sampler(NO_EVENT_RATES, 1, 0);
+
+    for (int i = 0; i < 1000; i++) {
+      assertThat(sampler.sample(TrackMessage.builder("foo").userId("user-" + i))).isTrue();
+    }
+  }
+
+  @Test
+  public void samplesEventsByTheirRate() {
+    Sampler sampler = new Sampler(Collections.singletonMap("noisy", 0.0), 1, 0);
+
+    assertThat(sampler.sample(TrackMessage.builder("noisy").userId("prateek"))).isFalse();
+    assertThat(sampler.sample(TrackMessage.builder("quiet").userId("prateek"))).isTrue();
+    assertThat(sampler.sample(IdentifyMessage.builder().userId("prateek"))).isTrue();
+    assertThat(sampler.droppedByEvent()).isEqualTo(1);
+  }
+
+  @Test
+  public void samplesUsersDeterministically() {
+    Sampler sampler = new Sampler(NO_EVENT_RATES, 0.25, 0);
+    Sampler other = new Sampler(NO_EVENT_RATES, 0.25, 0);
+
+    int kept = 0;
+    for (int i = 0; i < 10000; i++) {
+      String userId = "user-" + i;
+      boolean keeps = sampler.sample(TrackMessage.builder("foo").userId(userId));
+      assertThat(sampler.sample(IdentifyMessage.builder().userId(userId))).isEqualTo(keeps);
+      assertThat(other.sample(TrackMessage.builder("bar").userId(userId))).isEqualTo(keeps);
+      if (keeps) {
+        kept++;
+      }
+    }
+
+    assertThat(kept).isBetween(2300, 2700);
+    assertThat(sampler.droppedByUser()).isEqualTo(2 * (10000 - kept));
+  }
+
+  @Test
+  public void samplesAnonymousUsersByTheirAnonymousId() {
+    Sampler sampler = new Sampler(NO_EVENT_RATES, 0.5, 0);
+
+    for (int i = 0; i < 100; i++) {
+      String id = "anonymous-" + i;
+      assertThat(sampler.sample(TrackMessage.builder("foo").anonymousId(id)))
+          .isEqualTo(sampler.sample(TrackMessage.builder("foo").userId(id)));
+    }
+  }
+
+  @Test
+  public void capsEventsPerSecond() {
+    AtomicLong now = new AtomicLong();
+    Sampler sampler = new Sampler(NO_EVENT_RATES, 1, 10, now::get);
+
+    // A full bucket lets a second's worth of events through at once.
+    for (int i = 0; i < 10; i++) {
+      assertThat(sampler.sample(TrackMessage.builder("foo").userId("prateek"))).isTrue();
+    }
+    assertThat(sampler.sample(TrackMessage.builder("foo").userId("prateek"))).isFalse();
+
+    // Then one every tenth of a second.
+    now.addAndGet(100_000_000L);
+    assertThat(sampler.sample(TrackMessage.builder("foo").userId("prateek"))).isTrue();
+    assertThat(sampler.sample(TrackMessage.builder("foo").userId("prateek"))).isFalse();
+
+    // The bucket never holds more than a second's worth.
+    now.addAndGet(60_000_000_000L);
+    for (int i = 0; i < 10; i++) {
+      assertThat(sampler.sample(TrackMessage.builder("foo").userId("prateek"))).isTrue();
+    }
+    assertThat(sampler.sample(TrackMessage.builder("foo").userId("prateek"))).isFalse();
+    assertThat(sampler.droppedByRateLimit()).isEqualTo(3);
+  }
+
+  @Test
+  public void countsEachMessageOnce() {
+    AtomicLong now = new AtomicLong();
+    Sampler sampler = new Sampler(Collections.singletonMap("noisy", 0.0), 0.5, 1, now::get);
+
+    for (int i = 0; i < 100; i++) {
+      sampler.sample(TrackMessage.builder("noisy").userId("user-" + i));
+    }
+
+    assertThat(sampler.droppedByEvent()).isEqualTo(100);
+    assertThat(sampler.droppedByUser()).isEqualTo(0);
+    assertThat(sampler.droppedByRateLimit()).isEqualTo(0);
+  }
+}
@@ -0,0 +1,139 @@
+package com.segment.analytics.internal;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
+
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+public class AdaptiveBatchSizeTest {
+  private static final long FAST = TimeUnit.MILLISECONDS.toNanos(100);
+
+  @Test
+  public void invalidBounds() {
+    try {
+      new AdaptiveBatchSize(10, 5, 8);
+      fail("Should fail for max less than min");
+    } catch (IllegalArgumentException e) {
+      assertThat(e).hasMessage("min must be at least 1 and not greater than max.");
+    }
+  }
+
+  @Test
+  public void startsWithinBounds() {
+    assertThat(new AdaptiveBatchSize(10, 100, 250).limit()).isEqualTo(100);
+    assertThat(new AdaptiveBatchSize(10, 100, 1).limit()).isEqualTo(10);
+  }
+
+  @Test
+  public void growsFullBatchesWhileOverheadDominates() {
+    AdaptiveBatchSize batchSize = new AdaptiveBatchSize(1, 200, 100);
+
+    batchSize.onUploaded(100, FAST);
+    assertThat(batchSize.limit()).isEqualTo(125);
+    batchSize.onUploaded(125, FAST + FAST / 2);
+    assertThat(batchSize.limit()).isEqualTo(156);
+    for (int i = 0; i < 10; i++) {
+      batchSize.onUploaded(batchSize.limit(), FAST);
+    }
+
+    assertThat(batchSize.limit()).isEqualTo(200);
+    assertThat(batchSize.increases()).isEqualTo(4);
+    assertThat(batchSize.decreases()).isZero();
+  }
+
+  @Test
+  public void doesNotGrowPartialBatches() {
+    AdaptiveBatchSize batchSize = new AdaptiveBatchSize(1, 200, 100);
+
+    batchSize.onUploaded(40, FAST);
+
+    assertThat(batchSize.limit()).isEqualTo(100);
+  }
+
+  @Test
+  public void holdsWhileTransferCostsAboutAsMuchAsTheRequest() {
+    AdaptiveBatchSize batchSize = new AdaptiveBatchSize(1, 200, 100);
+    batchSize.onUploaded(50, FAST);
+
+    for (int i = 0; i < 100; i++) {
+      batchSize.onUploaded(100, 3 * FAST);
+    }
+
+    assertThat(batchSize.limit()).isEqualTo(100);
+  }
+
+  @Test
+  public void shrinksWhenUploadsStaySlow() {
+    AdaptiveBatchSize batchSize = new AdaptiveBatchSize(10, 200, 100);
+    batchSize.onUploaded(50, FAST);
+
+    // The smoothed upload time needs a few slow uploads to pass four times the fastest one.
+    for (int i = 0; i < 10; i++) {
+      batchSize.onUploaded(100, 5 * FAST);
+    }
+    assertThat(batchSize.limit()).isEqualTo(100);
+    batchSize.onUploaded(100, 5 * FAST);
+
+    assertThat(batchSize.limit()).isEqualTo(50);
+    assertThat(batchSize.decreases()).isEqualTo(1);
+  }
+
+  @Test
+  public void aSlowOutlierAmongFastFullBatchesDoesNotShrink() {
+    AdaptiveBatchSize batchSize = new AdaptiveBatchSize(10, 100, 100);
+    for (int i = 0; i < 10; i++) {
+      batchSize.onUploaded(100, FAST);
+    }
+
+    // A new TLS handshake, or a GC pause.
+    batchSize.onUploaded(100, 50 * FAST);
+    for (int i = 0; i < 10; i++) {
+      batchSize.onUploaded(100, FAST);
+    }
+
+    assertThat(batchSize.limit()).isEqualTo(100);
+    assertThat(batchSize.decreases()).isZero();
+  }
+
+  @Test
+  public void smallBatchesDoNotSetTheFastestUpload() {
+    AdaptiveBatchSize batchSize = new AdaptiveBatchSize(10, 100, 100);
+    // Flushed on the interval, with a few messages.
+    batchSize.onUploaded(5, FAST / 10);
+
+    for (int i = 0; i < 100; i++) {
+      batchSize.onUploaded(100, FAST);
+    }
+
+    assertThat(batchSize.decreases()).isZero();
+  }
+
+  @Test
+  public void shrinksOnFailuresDownToMin() {
+    AdaptiveBatchSize batchSize = new AdaptiveBatchSize(10, 200, 100);
+
+    for (int i = 0; i < 5; i++) {
+      batchSize.onFailed();
+    }
+
+    assertThat(batchSize.limit()).isEqualTo(10);
+    assertThat(batchSize.decreases()).isEqualTo(4);
+  }
+
+  @Test
+  public void relearnsTheFastestUpload() {
+    AdaptiveBatchSize batchSize = new AdaptiveBatchSize(50, 1000, 100);
+    batchSize.onUploaded(100, FAST / 10);
+
+    // the network got slower for good: uploads are slow compared to the old fastest one
+    for (int i = 1; i < 2 * AdaptiveBatchSize.MIN_RTT_WINDOW; i++) {
+      batchSize.onUploaded(batchSize.limit(), FAST);
+    }
+    assertThat(batchSize.limit()).isEqualTo(50);
+    // until the window that saw the old fastest upload is followed by a full window without it
+    batchSize.onUploaded(50, FAST);
+
+    assertThat(batchSize.limit()).isEqualTo(62);
+  }
+}
@@ -3,12 +3,18 @@ package com.segment.analytics.internal;
 import static com.segment.analytics.internal.FlushMessage.POISON;
 import static com.segment.analytics.internal.StopMessage.STOP;
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
 import static org.mockito.ArgumentMatchers.anyLong;
 import static org.mockito.ArgumentMatchers.argThat;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.ArgumentMatchers.isNull;
+import static org.mockito.Mockito.after;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.spy;
 import static org.mockito.Mockito.timeout;
@@ -20,9 +26,18 @@ import static org.mockito.Mockito.when;
 import static org.mockito.MockitoAnnotations.openMocks;
 
 import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.segment.analytics.AnalyticsMetrics;
+import com.segment.analytics.AnalyticsMetrics.DropReason;
+import com.segment.analytics.BatchCallback;
 import com.segment.analytics.Callback;
+import com.segment.analytics.Compression;
+import com.segment.analytics.FsyncPolicy;
 import com.segment.analytics.Log;
+import com.segment.analytics.QueueStrategy;
 import com.segment.analytics.TestUtils.MessageBuilderTest;
+import com.segment.analytics.gson.AutoValueAdapterFactory;
+import com.segment.analytics.gson.ISO8601DateAdapter;
 import com.segment.analytics.http.SegmentService;
 import com.segment.analytics.http.UploadResponse;
 import com.segment.analytics.internal.AnalyticsClient.BatchUploadTask;
@@ -31,25 +46,35 @@ import com.segment.analytics.messages.Message;
 import com.segment.analytics.messages.TrackMessage;
 import com.segment.backo.Backo;
 import com.squareup.burst.BurstJUnit4;
+import java.io.File;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Queue;
 import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import okhttp3.ResponseBody;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.junit.runner.RunWith;
 import org.mockito.ArgumentCaptor;
 import org.mockito.ArgumentMatcher;
@@ -78,9 +103,11 @@ public class AnalyticsClientTest {
 
   Log log = Log.NONE;
 
+  @Rule public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
   ThreadFactory threadFactory;
   @Spy LinkedBlockingQueue<Message> messageQueue;
-  @Mock SegmentService segmentService;
+  @Mock EncodedSegmentService segmentService;
   @Mock ExecutorService networkExecutor;
   @Mock Callback callback;
   @Mock UploadResponse response;
@@ -104,6 +131,27 @@ public class AnalyticsClientTest {
     return newClient(DEFAULT_MAX_TOTAL_BACKOFF_DURATION_MS, DEFAULT_MAX_RATE_LIMIT_DURATION_MS);
   }
 
+  AnalyticsClient newClient(ClientOptions options) {
+    return new AnalyticsClient(
+        messageQueue,
+        null,
+        segmentService,
+        50,
+        TimeUnit.HOURS.toMillis(1),
+        0,
+        MAX_BATCH_SIZE,
+        log,
+        threadFactory,
+        networkExecutor,
+        Collections.singletonList(callback),
+        isShutDown,
+        writeKey,
+        new Gson(),
+        DEFAULT_MAX_TOTAL_BACKOFF_DURATION_MS,
+        DEFAULT_MAX_RATE_LIMIT_DURATION_MS,
+        options);
+  }
+
   AnalyticsClient newClient(long maxTotalBackoffDurationMs, long maxRateLimitDurationMs) {
     return new AnalyticsClient(
         messageQueue,
@@ -1227,7 +1275,8 @@ public class AnalyticsClientTest {
     client.shutdown();
     while (!isShutDown.get()) {}
 
-    verify(networkExecutor, times(8)).submit(any(Runnable.class));
+    // About 15 messages of 32kb fit in a 500kb batch.
+    verify(networkExecutor, times(7)).submit(any(Runnable.class));
   }
 
   @Test
@@ -1264,7 +1313,8 @@ public class AnalyticsClientTest {
     client.shutdown();
     while (!isShutDown.get()) {}
 
-    verify(networkExecutor, times(21)).submit(any(Runnable.class));
+    // 50 messages of 8kb stay below the batch limit, so batches are cut by count.
+    verify(networkExecutor, times(12)).submit(any(Runnable.class));
   }
 
   @Test
@@ -1513,11 +1563,13 @@ public class AnalyticsClientTest {
   }
 
   @Test
-  public void offerReturnsFalseWhenQueueFull() {
+  public void offerReturnsFalseWhenQueueFull() throws InterruptedException {
     AnalyticsClient client = newClient();
     TrackMessage first = TrackMessage.builder("first").userId("bar").build();
     TrackMessage second = TrackMessage.builder("second").userId("bar").build();
 
+    // Wait for the looper to block in take(), so it does not call the spy while it is stubbed
+    verify(messageQueue, timeout(1000)).take();
     // Stub the spy before the calls — doReturn avoids the eager real-method invocation
     doReturn(false).when(messageQueue).offer(eq(second));
 
@@ -1529,7 +1581,7 @@ public class AnalyticsClientTest {
 
   @Test
   public void offerTriggersFlushWhenByteBudgetExceeded() {
-    // 1-byte byte budget forces isBackPressuredAfterSize to trigger immediately
+    // 1-byte byte budget makes every message flush its batch
     AnalyticsClient client =
         new AnalyticsClient(
             messageQueue,
@@ -1553,8 +1605,83 @@ public class AnalyticsClientTest {
     boolean result = client.offer(message);
 
     assertThat(result).isTrue();
-    // offer() must have inserted POISON into the queue to trigger a flush
-    verify(messageQueue).offer(eq(FlushMessage.POISON));
+    // The looper must have submitted the message without waiting for the flush interval
+    verify(networkExecutor, timeout(1000)).submit(any(Runnable.class));
+  }
+
+  @Test
+  public void concurrentEnqueueFlushesExactlyOnEachByteThreshold() throws Exception {
+    Gson gson = new Gson();
+    final List<TrackMessage> sent = new ArrayList<>();
+    for (int i = 0; i < 8 * 2000; i++) {
+      // Sizes vary, so where the flushes fall depends on the order the messages are queued in.
+      sent.add(
+          TrackMessage.builder("foo")
+              .userId("bar")
+              .properties(Collections.singletonMap("data", generateDataOfSize(i % 97)))
+              .build());
+    }
+    int maximumQueueSizeInBytes = gson.toJson(sent.get(0)).length() * 20;
+    final AnalyticsClient client =
+        new AnalyticsClient(
+            messageQueue,
+            null,
+            segmentService,
+            Integer.MAX_VALUE,
+            TimeUnit.HOURS.toMillis(1),
+            0,
+            maximumQueueSizeInBytes,
+            log,
+            threadFactory,
+            networkExecutor,
+            Collections.singletonList(callback),
+            isShutDown,
+            writeKey,
+            gson,
+            DEFAULT_MAX_TOTAL_BACKOFF_DURATION_MS,
+            DEFAULT_MAX_RATE_LIMIT_DURATION_MS);
+
+    final int threads = 8;
+    final CountDownLatch start = new CountDownLatch(1);
+    ExecutorService producers = Executors.newFixedThreadPool(threads);
+    List<Future<?>> results = new ArrayList<>();
+    for (int t = 0; t < threads; t++) {
+      final List<TrackMessage> share = sent.subList(t * 2000, (t + 1) * 2000);
+      results.add(
+          producers.submit(
+              () -> {
+                start.await();
+                for (TrackMessage message : share) {
+                  client.enqueue(message);
+                }
+                return null;
+              }));
+    }
+    start.countDown();
+    for (Future<?> result : results) {
+      result.get(30, TimeUnit.SECONDS);
+    }
+    producers.shutdown();
+    client.shutdown();
+
+    ArgumentCaptor<Runnable> tasks = ArgumentCaptor.forClass(Runnable.class);
+    verify(networkExecutor, atLeastOnce()).submit(tasks.capture());
+    List<Message> uploaded = new ArrayList<>();
+    for (int i = 0; i < tasks.getAllValues().size(); i++) {
+      List<Message> batch = ((BatchUploadTask) tasks.getAllValues().get(i)).batch.batch();
+      long bytes = 0;
+      for (Message message : batch) {
+        // Each batch is flushed at the first message that takes it to the threshold, and only
+        // the last one, flushed on shutdown, may stay below it.
+        assertThat(bytes).isLessThan(maximumQueueSizeInBytes);
+        bytes += client.messageSizeInBytes(message);
+      }
+      if (i < tasks.getAllValues().size() - 1) {
+        assertThat(bytes).isGreaterThanOrEqualTo(maximumQueueSizeInBytes);
+      }
+      uploaded.addAll(batch);
+    }
+    assertThat(uploaded).containsExactlyInAnyOrderElementsOf(sent);
   }
 
   @Test
@@ -1737,4 +1864,1086 @@ public class AnalyticsClientTest {
     // Interrupt flag should be preserved
     assertThat(Thread.interrupted()).isTrue();
   }
+
+  @Test
+  public void preEncodedEnqueueSerializesOnce() throws InterruptedException {
+    AnalyticsClient client = newClient(new ClientOptions().preEncodeMessages(true));
+    TrackMessage message = TrackMessage.builder("foo").userId("bar").build();
+
+    client.enqueue(message);
+
+    ArgumentCaptor<Message> captor = ArgumentCaptor.forClass(Message.class);
+    verify(messageQueue).put(captor.capture());
+    assertThat(captor.getValue()).isInstanceOf(EncodedMessage.class);
+    EncodedMessage encoded = (EncodedMessage) captor.getValue();
+    assertThat(encoded.message()).isSameAs(message);
+    assertThat(new String(encoded.bytes(), StandardCharsets.UTF_8))
+        .isEqualTo(new Gson().toJson(message));
+    assertThat(client.messageSizeInBytes(encoded)).isEqualTo(encoded.bytes().length);
+  }
+
+  @Test
+  public void preEncodedFlushSubmitsOriginalMessages() {
+    messageQueue = new LinkedBlockingQueue<>();
+    AnalyticsClient client = newClient(new ClientOptions().preEncodeMessages(true));
+
+    TrackMessage first = TrackMessage.builder("foo").userId("bar").build();
+    TrackMessage second = TrackMessage.builder("qaz").userId("qux").build();
+    client.enqueue(first);
+    client.enqueue(second);
+    client.flush();
+    wait(messageQueue);
+
+    assertThat(captureBatch(networkExecutor).batch()).containsExactly(first, second);
+  }
+
+  @Test
+  public void preEncodedBodyMatchesBatchSerialization() throws IOException {
+    AnalyticsClient client = newClient();
+    Gson gson = new Gson();
+    TrackMessage first = TrackMessage.builder("foo").userId("bar").build();
+    TrackMessage second = TrackMessage.builder("qaz").userId("qux").build();
+    Batch batch =
+        Batch.create(
+            Collections.singletonMap("library", "analytics-java"),
+            Arrays.<Message>asList(first, second),
+            writeKey);
+    List<byte[]> encoded =
+        Arrays.asList(
+            gson.toJson(first).getBytes(StandardCharsets.UTF_8),
+            gson.toJson(second).getBytes(StandardCharsets.UTF_8));
+
+    BatchUploadTask task = new BatchUploadTask(client, BACKO, batch, encoded, DEFAULT_RETRIES);
+    okio.Buffer buffer = new okio.Buffer();
+    task.body().writeTo(buffer);
+
+    assertThat(buffer.readUtf8()).isEqualTo(gson.toJson(batch));
+    assertThat(task.body()).isSameAs(task.body());
+  }
+
+  @Test
+  public void preEncodedBatchUploadsEncodedBody() {
+    AnalyticsClient client = newClient();
+    TrackMessage trackMessage = TrackMessage.builder("foo").userId("bar").build();
+    Batch batch = batchFor(trackMessage);
+    List<byte[]> encoded =
+        Collections.singletonList(new Gson().toJson(trackMessage).getBytes(StandardCharsets.UTF_8));
+
+    Response<UploadResponse> failureResponse = Response.error(500, ResponseBody.create(null, ""));
+    when(segmentService.upload(isNull(), isNull(), any(okhttp3.RequestBody.class)))
+        .thenReturn(Calls.response(failureResponse))
+        .thenReturn(Calls.response(Response.success(200, response)));
+
+    new BatchUploadTask(client, BACKO, batch, encoded, DEFAULT_RETRIES).run();
+
+    verify(segmentService, times(2)).upload(isNull(), isNull(), any(okhttp3.RequestBody.class));
+    verify(segmentService, never()).upload(isNull(), any(Batch.class));
+    verify(callback).success(trackMessage);
+  }
+
+  @Test
+  public void gzipCompressionUploadsCompressedBodyOnce() throws IOException {
+    AnalyticsClient client = newClient(new ClientOptions().compression(Compression.GZIP));
+    TrackMessage trackMessage = TrackMessage.builder("foo").userId("bar").build();
+    Batch batch = batchFor(trackMessage);
+
+    Response<UploadResponse> failureResponse = Response.error(500, ResponseBody.create(null, ""));
+    when(segmentService.upload(isNull(), eq("gzip"), any(okhttp3.RequestBody.class)))
+        .thenReturn(Calls.response(failureResponse))
+        .thenReturn(Calls.response(Response.success(200, response)));
+
+    BatchUploadTask task = new BatchUploadTask(client, BACKO, batch, DEFAULT_RETRIES);
+    task.run();
+
+    ArgumentCaptor<okhttp3.RequestBody> bodies = ArgumentCaptor.forClass(okhttp3.RequestBody.class);
+    verify(segmentService, times(2)).upload(isNull(), eq("gzip"), bodies.capture());
+    verify(segmentService, never()).upload(isNull(), any(Batch.class));
+    assertThat(bodies.getAllValues().get(0)).isSameAs(bodies.getAllValues().get(1));
+
+    okio.Buffer compressed = new okio.Buffer();
+    bodies.getValue().writeTo(compressed);
+    assertThat(bodies.getValue().contentLength()).isEqualTo(compressed.size());
+    okio.BufferedSource source = okio.Okio.buffer(new okio.GzipSource(compressed));
+    assertThat(source.readUtf8()).isEqualTo(new Gson().toJson(batch));
+    verify(callback).success(trackMessage);
+  }
+
+  @Test
+  public void plainSegmentServiceUploadsBatchesAsIs() {
+    SegmentService plainService = mock(SegmentService.class);
+    AnalyticsClient client =
+        new AnalyticsClient(
+            messageQueue,
+            null,
+            plainService,
+            50,
+            TimeUnit.HOURS.toMillis(1),
+            0,
+            MAX_BATCH_SIZE,
+            log,
+            threadFactory,
+            networkExecutor,
+            Collections.singletonList(callback),
+            isShutDown,
+            writeKey,
+            new Gson(),
+            DEFAULT_MAX_TOTAL_BACKOFF_DURATION_MS,
+            DEFAULT_MAX_RATE_LIMIT_DURATION_MS,
+            new ClientOptions().compression(Compression.GZIP).preEncodeMessages(true));
+    TrackMessage trackMessage = TrackMessage.builder("foo").userId("bar").build();
+    Batch batch = batchFor(trackMessage);
+    when(plainService.upload(isNull(), any(Batch.class)))
+        .thenReturn(Calls.response(Response.success(200, response)));
+
+    BatchUploadTask task = new BatchUploadTask(client, BACKO, batch, DEFAULT_RETRIES);
+    task.run();
+
+    verify(plainService).upload(null, batch);
+    verify(callback).success(trackMessage);
+  }
+
+  @Test
+  public void newQueueSelectsStrategy() {
+    assertThat(AnalyticsClient.newQueue(QueueStrategy.LINKED_BLOCKING_QUEUE, 10))
+        .isInstanceOf(LinkedBlockingQueue.class);
+
+    BlockingQueue<Message> ring = AnalyticsClient.newQueue(QueueStrategy.RING_BUFFER, 1000);
+    assertThat(ring).isInstanceOf(RingBufferQueue.class);
+    assertThat(((RingBufferQueue) ring).capacity()).isEqualTo(1024);
+
+    RingBufferQueue unbounded =
+        (RingBufferQueue) AnalyticsClient.newQueue(QueueStrategy.RING_BUFFER, Integer.MAX_VALUE);
+    assertThat(unbounded.capacity()).isEqualTo(1 << 16);
+  }
+
+  @Test
+  public void ringBufferFlushSubmitsToExecutor() {
+    AnalyticsClient client =
+        new AnalyticsClient(
+            new RingBufferQueue(64),
+            null,
+            segmentService,
+            50,
+            TimeUnit.HOURS.toMillis(1),
+            0,
+            MAX_BATCH_SIZE,
+            log,
+            threadFactory,
+            networkExecutor,
+            Collections.singletonList(callback),
+            isShutDown,
+            writeKey,
+            new Gson(),
+            DEFAULT_MAX_TOTAL_BACKOFF_DURATION_MS,
+            DEFAULT_MAX_RATE_LIMIT_DURATION_MS);
+
+    TrackMessage first = TrackMessage.builder("foo").userId("bar").build();
+    TrackMessage second = TrackMessage.builder("qaz").userId("qux").build();
+    client.enqueue(first);
+    client.enqueue(second);
+    client.flush();
+
+    assertThat(captureBatch(networkExecutor).batch()).containsExactly(first, second);
+  }
+
+  @Test
+  public void ringBufferBatchesByCountAndFlushesOnShutdown() {
+    AnalyticsClient client =
+        new AnalyticsClient(
+            new RingBufferQueue(256),
+            null,
+            segmentService,
+            50,
+            TimeUnit.HOURS.toMillis(1),
+            0,
+            MAX_BATCH_SIZE,
+            log,
+            threadFactory,
+            networkExecutor,
+            Collections.singletonList(callback),
+            isShutDown,
+            writeKey,
+            new Gson(),
+            DEFAULT_MAX_TOTAL_BACKOFF_DURATION_MS,
+            DEFAULT_MAX_RATE_LIMIT_DURATION_MS);
+
+    for (int i = 0; i < 120; i++) {
+      client.enqueue(TrackMessage.builder("Event " + i).userId("bar").build());
+    }
+    client.shutdown();
+
+    ArgumentCaptor<Runnable> tasks = ArgumentCaptor.forClass(Runnable.class);
+    verify(networkExecutor, times(3)).submit(tasks.capture());
+    List<Integer> sizes = new ArrayList<>();
+    for (Runnable task : tasks.getAllValues()) {
+      sizes.add(((BatchUploadTask) task).batch.batch().size());
+    }
+    assertThat(sizes).containsExactly(50, 50, 20);
+  }
+
+  private AnalyticsClient newClient(ExecutorService executor, ClientOptions options) {
+    return new AnalyticsClient(
+        messageQueue,
+        null,
+        segmentService,
+        1,
+        TimeUnit.HOURS.toMillis(1),
+        0,
+        MAX_BATCH_SIZE,
+        log,
+        threadFactory,
+        executor,
+        Collections.singletonList(callback),
+        isShutDown,
+        writeKey,
+        new Gson(),
+        DEFAULT_MAX_TOTAL_BACKOFF_DURATION_MS,
+        DEFAULT_MAX_RATE_LIMIT_DURATION_MS,
+        options);
+  }
+
+  @Test
+  public void maxInFlightBatchesBoundsConcurrentUploads() throws Exception {
+    final AtomicInteger uploading = new AtomicInteger();
+    final AtomicInteger maxUploading = new AtomicInteger();
+    when(segmentService.upload(isNull(), any(Batch.class)))
+        .thenAnswer(
+            invocation -> {
+              maxUploading.accumulateAndGet(uploading.incrementAndGet(), Math::max);
+              Thread.sleep(20);
+              uploading.decrementAndGet();
+              return Calls.response(Response.success(200, response));
+            });
+    AnalyticsClient client =
+        newClient(Executors.newFixedThreadPool(8), new ClientOptions().maxInFlightBatches(2));
+
+    for (int i = 0; i < 12; i++) {
+      client.enqueue(TrackMessage.builder("Event " + i).userId("user " + i).build());
+    }
+    // Shutting down lifts the maximum, so wait for the uploads first.
+    client.flushWithAcknowledgement().get(10, TimeUnit.SECONDS);
+    client.shutdown();
+
+    assertThat(maxUploading.get()).isBetween(1, 2);
+    assertThat(client.uploadMetrics().batches()).isEqualTo(12);
+    assertThat(client.uploadMetrics().maxUploadNanos())
+        .isGreaterThanOrEqualTo(TimeUnit.MILLISECONDS.toNanos(20));
+    assertThat(client.inFlightBatches()).isEqualTo(0);
+    verify(callback, times(12)).success(any(Message.class));
+  }
+
+  @Test
+  public void shutdownSubmitsBatchesWithoutWaitingForUploadsInFlight() {
+    // The mock executor never runs the uploads, so their permits are never released.
+    AnalyticsClient client = newClient(networkExecutor, new ClientOptions().maxInFlightBatches(1));
+    TrackMessage first = TrackMessage.builder("foo").userId("a").build();
+    TrackMessage second = TrackMessage.builder("bar").userId("b").build();
+    client.enqueue(first);
+    client.enqueue(second);
+
+    long start = System.nanoTime();
+    client.shutdown();
+
+    assertThat(System.nanoTime() - start).isLessThan(TimeUnit.SECONDS.toNanos(5));
+    verify(networkExecutor, times(2)).submit(any(Runnable.class));
+    verify(callback, never()).failure(any(Message.class), any(Throwable.class));
+  }
+
+  @Test
+  public void messagesLeftQueuedWhenTheLooperStopsAreFailed() throws InterruptedException {
+    // Starts no looper, so the messages stay in the queue until one is run below.
+    isShutDown.set(true);
+    AnalyticsClient client = newClient(new ClientOptions());
+    TrackMessage first = TrackMessage.builder("foo").userId("bar").build();
+    TrackMessage second = TrackMessage.builder("qaz").userId("bar").build();
+    messageQueue.put(first);
+    messageQueue.put(StopMessage.STOP);
+    messageQueue.put(second);
+
+    // Interrupted before it takes the first message, as when shutdown() cancels it.
+    Thread.currentThread().interrupt();
+    try {
+      client.new Looper().run();
+    } finally {
+      Thread.interrupted();
+    }
+
+    verify(networkExecutor, never()).submit(any(Runnable.class));
+    verify(callback).failure(eq(first), any(IOException.class));
+    verify(callback).failure(eq(second), any(IOException.class));
+  }
+
+  @Test
+  public void preserveUserOrderUploadsBatchesOfAUserOneAtATime() {
+    final Map<String, AtomicInteger> uploading = new HashMap<>();
+    uploading.put("a", new AtomicInteger());
+    uploading.put("b", new AtomicInteger());
+    final AtomicInteger maxUploadingPerUser = new AtomicInteger();
+    final Map<String, List<String>> uploaded = new HashMap<>();
+    uploaded.put("a", Collections.synchronizedList(new ArrayList<String>()));
+    uploaded.put("b", Collections.synchronizedList(new ArrayList<String>()));
+    when(segmentService.upload(isNull(), any(Batch.class)))
+        .thenAnswer(
+            invocation -> {
+              Message message = invocation.<Batch>getArgument(1).batch().get(0);
+              AtomicInteger userUploads = uploading.get(message.userId());
+              maxUploadingPerUser.accumulateAndGet(userUploads.incrementAndGet(), Math::max);
+              Thread.sleep(5);
+              uploaded.get(message.userId()).add(message.messageId());
+              userUploads.decrementAndGet();
+              return Calls.response(Response.success(200, response));
+            });
+    AnalyticsClient client =
+        newClient(
+            Executors.newFixedThreadPool(4),
+            new ClientOptions().maxInFlightBatches(4).preserveUserOrder(true));
+
+    List<String> expectedA = new ArrayList<>();
+    List<String> expectedB = new ArrayList<>();
+    for (int i = 0; i < 10; i++) {
+      String user = i % 2 == 0 ? "a" : "b";
+      TrackMessage message =
+          TrackMessage.builder("Event " + i).userId(user).messageId("message " + i).build();
+      (i % 2 == 0 ? expectedA : expectedB).add(message.messageId());
+      client.enqueue(message);
+    }
+    client.shutdown();
+
+    assertThat(maxUploadingPerUser.get()).isEqualTo(1);
+    assertThat(uploaded.get("a")).containsExactlyElementsOf(expectedA);
+    assertThat(uploaded.get("b")).containsExactlyElementsOf(expectedB);
+  }
+
+  @Test
+  public void preserveUserOrderKeepsUploadingOtherUsersWhileAUserWaits() throws Exception {
+    final CountDownLatch unblock = new CountDownLatch(1);
+    final List<String> uploaded = Collections.synchronizedList(new ArrayList<String>());
+    when(segmentService.upload(isNull(), any(Batch.class)))
+        .thenAnswer(
+            invocation -> {
+              Message message = invocation.<Batch>getArgument(1).batch().get(0);
+              if (message.messageId().equals("a1")) {
+                unblock.await();
+              }
+              uploaded.add(message.messageId());
+              return Calls.response(Response.success(200, response));
+            });
+    AnalyticsClient client =
+        newClient(
+            Executors.newFixedThreadPool(4),
+            new ClientOptions().maxInFlightBatches(4).preserveUserOrder(true));
+
+    client.enqueue(TrackMessage.builder("Event").userId("a").messageId("a1").build());
+    client.enqueue(TrackMessage.builder("Event").userId("a").messageId("a2").build());
+    client.enqueue(TrackMessage.builder("Event").userId("b").messageId("b1").build());
+
+    verify(callback, timeout(1000)).success(argThat(message -> "b1".equals(message.messageId())));
+    assertThat(uploaded).containsExactly("b1");
+
+    unblock.countDown();
+    client.shutdown();
+    assertThat(uploaded).containsExactly("b1", "a1", "a2");
+  }
+
+  private AnalyticsClient newSpoolingClient(ExecutorService executor, File directory) {
+    return newDiskClient(
+        executor,
+        new LinkedBlockingQueue<Message>(),
+        new ClientOptions().spool(directory, 64 * 1024, FsyncPolicy.ON_FLUSH));
+  }
+
+  private AnalyticsClient newDiskClient(
+      ExecutorService executor, BlockingQueue<Message> queue, ClientOptions options) {
+    Gson gson =
+        new GsonBuilder()
+            .registerTypeAdapterFactory(new AutoValueAdapterFactory())
+            .registerTypeAdapter(Date.class, new ISO8601DateAdapter())
+            .create();
+    return new AnalyticsClient(
+        queue,
+        null,
+        segmentService,
+        50,
+        TimeUnit.HOURS.toMillis(1),
+        0,
+        MAX_BATCH_SIZE,
+        log,
+        threadFactory,
+        executor,
+        Collections.singletonList(callback),
+        new AtomicBoolean(false),
+        writeKey,
+        gson,
+        DEFAULT_MAX_TOTAL_BACKOFF_DURATION_MS,
+        DEFAULT_MAX_RATE_LIMIT_DURATION_MS,
+        options);
+  }
+
+  @Test
+  public void spooledMessagesAreReplayedByTheNextClient() throws IOException {
+    File directory = temporaryFolder.newFolder();
+    AnalyticsClient client = newSpoolingClient(networkExecutor, directory);
+    TrackMessage first = TrackMessage.builder("first").userId("bar").build();
+    TrackMessage second = TrackMessage.builder("second").userId("bar").build();
+    client.enqueue(first);
+    client.enqueue(second);
+    // the batch is handed to the executor but never uploaded
+    client.flush();
+    assertThat(captureBatch(networkExecutor).batch()).containsExactly(first, second);
+    client.shutdown();
+
+    ExecutorService restartedExecutor = mock(ExecutorService.class);
+    AnalyticsClient restarted = newSpoolingClient(restartedExecutor, directory);
+    restarted.flush();
+
+    List<Message> replayed = captureBatch(restartedExecutor).batch();
+    assertThat(replayed).hasSize(2);
+    assertThat(replayed.get(0)).isInstanceOf(TrackMessage.class);
+    assertThat(replayed.get(0).messageId()).isEqualTo(first.messageId());
+    assertThat(((TrackMessage) replayed.get(0)).event()).isEqualTo("first");
+    assertThat(replayed.get(0).timestamp()).isEqualTo(first.timestamp());
+    assertThat(replayed.get(1).messageId()).isEqualTo(second.messageId());
+  }
+
+  @Test
+  public void uploadedMessagesAreRemovedFromTheSpool() throws IOException {
+    when(segmentService.upload(isNull(), isNull(), any(okhttp3.RequestBody.class)))
+        .thenReturn(Calls.response(Response.success(200, response)));
+    File directory = temporaryFolder.newFolder();
+    AnalyticsClient client = newSpoolingClient(networkExecutor, directory);
+    TrackMessage message = TrackMessage.builder("foo").userId("bar").build();
+    client.enqueue(message);
+    client.flush();
+    captureTask(networkExecutor).run();
+    verify(callback).success(message);
+    client.shutdown();
+
+    ExecutorService restartedExecutor = mock(ExecutorService.class);
+    AnalyticsClient restarted = newSpoolingClient(restartedExecutor, directory);
+    restarted.flush();
+    restarted.shutdown();
+
+    verify(restartedExecutor, never()).submit(any(Runnable.class));
+  }
+
+  @Test
+  public void fullSpoolIsReportedAtMostOnceAMinute() throws IOException {
+    log = mock(Log.class);
+    AnalyticsClient client = newSpoolingClient(networkExecutor, temporaryFolder.newFolder());
+    Map<String, String> properties =
+        Collections.singletonMap("property", generateDataOfSize(20000));
+    for (int i = 0; i < 5; i++) {
+      client.enqueue(TrackMessage.builder("foo").userId("bar").properties(properties).build());
+    }
+    client.shutdown();
+
+    // three messages fill the 64 KB spool, and only the first one past it is reported
+    verify(log).print(Log.Level.ERROR, "Spool is full, %s message(s) are only kept in memory.", 1L);
+    verify(log, never())
+        .print(Log.Level.ERROR, "Spool is full, %s message(s) are only kept in memory.", 2L);
+  }
+
+  @Test
+  public void aSpoolDirectoryIsUsedByOneClientAtATime() throws IOException {
+    File directory = temporaryFolder.newFolder();
+    AnalyticsClient client = newSpoolingClient(networkExecutor, directory);
+    try {
+      newSpoolingClient(networkExecutor, directory);
+      fail("Should fail while another client uses the spool directory");
+    } catch (UncheckedIOException e) {
+      assertThat(e.getCause()).hasMessageContaining("is used by another client");
+    }
+    client.shutdown();
+
+    newSpoolingClient(networkExecutor, directory).shutdown();
+  }
+
+  private static BatchUploadTask captureTask(ExecutorService executor) {
+    ArgumentCaptor<Runnable> task = ArgumentCaptor.forClass(Runnable.class);
+    verify(executor, timeout(1000)).submit(task.capture());
+    return (BatchUploadTask) task.getValue();
+  }
+
+  @Test
+  public void rateLimitedMessagesOverflowToDiskAndAreUploadedInOrder()
+      throws IOException, InterruptedException {
+    File directory = temporaryFolder.newFolder();
+    LinkedBlockingQueue<Message> queue = new LinkedBlockingQueue<>();
+    AnalyticsClient client =
+        newDiskClient(
+            networkExecutor, queue, new ClientOptions().overflowToDisk(directory, 4 * 1024 * 1024));
+    client.setRateLimitState(60);
+
+    Map<String, String> properties = new HashMap<>();
+    properties.put("property", generateDataOfSize(20 * 1024));
+    List<String> enqueued = new ArrayList<>();
+    for (int i = 0; i < 40; i++) {
+      TrackMessage message =
+          TrackMessage.builder("Event " + i).userId("user").properties(properties).build();
+      enqueued.add(message.messageId());
+      client.enqueue(message);
+    }
+
+    // 800 KB do not fit one batch; the looper keeps one batch in memory and spills the rest
+    long deadline = System.currentTimeMillis() + 5000;
+    while ((!queue.isEmpty() || overflowFiles(directory).length == 0)
+        && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    assertThat(queue).isEmpty();
+    assertThat(overflowFiles(directory)).isNotEmpty();
+    verify(networkExecutor, never()).submit(any(Runnable.class));
+
+    client.clearRateLimitState();
+
+    ArgumentCaptor<Runnable> tasks = ArgumentCaptor.forClass(Runnable.class);
+    verify(networkExecutor, timeout(1000).times(2)).submit(tasks.capture());
+    List<String> uploaded = new ArrayList<>();
+    for (Runnable task : tasks.getAllValues()) {
+      for (Message message : ((BatchUploadTask) task).batch.batch()) {
+        uploaded.add(message.messageId());
+      }
+    }
+    assertThat(uploaded).containsExactlyElementsOf(enqueued);
+    assertThat(overflowFiles(directory)).isEmpty();
+    verify(callback, never()).failure(any(Message.class), any(Throwable.class));
+  }
+
+  private static File[] overflowFiles(File directory) {
+    return directory.listFiles((dir, name) -> name.endsWith(".overflow"));
+  }
+
+  @Test
+  public void asyncUploadsDoNotBlockTheNetworkThread() {
+    final List<retrofit2.Callback<UploadResponse>> pending =
+        Collections.synchronizedList(new ArrayList<retrofit2.Callback<UploadResponse>>());
+    @SuppressWarnings("unchecked")
+    final Call<UploadResponse> call = mock(Call.class);
+    doAnswer(
+            invocation -> {
+              pending.add(invocation.getArgument(0));
+              return null;
+            })
+        .when(call)
+        .enqueue(any());
+    when(segmentService.upload(isNull(), isNull(), any(), any(okhttp3.RequestBody.class)))
+        .thenReturn(call);
+    AnalyticsClient client =
+        newClient(Executors.newSingleThreadExecutor(), new ClientOptions().asyncUploads(true));
+
+    for (int i = 0; i < 20; i++) {
+      client.enqueue(TrackMessage.builder("Event " + i).userId("user").build());
+    }
+
+    // a single network thread starts every upload although none of them has been answered
+    verify(segmentService, timeout(1000).times(20))
+        .upload(isNull(), isNull(), isNull(), any(okhttp3.RequestBody.class));
+    assertThat(client.inFlightBatches()).isEqualTo(20);
+
+    for (retrofit2.Callback<UploadResponse> callback : new ArrayList<>(pending)) {
+      callback.onResponse(call, Response.success(200, response));
+    }
+    client.shutdown();
+
+    verify(callback, times(20)).success(any(Message.class));
+    assertThat(client.inFlightBatches()).isEqualTo(0);
+    assertThat(client.uploadMetrics().batches()).isEqualTo(20);
+  }
+
+  @Test
+  public void asyncUploadsRetryOnATimer() {
+    when(segmentService.upload(isNull(), isNull(), any(), any(okhttp3.RequestBody.class)))
+        .thenReturn(Calls.response(Response.error(503, ResponseBody.create(null, "Unavailable"))))
+        .thenReturn(Calls.response(Response.success(200, response)));
+    AnalyticsClient client =
+        new AnalyticsClient(
+            messageQueue,
+            null,
+            segmentService,
+            1,
+            TimeUnit.HOURS.toMillis(1),
+            1,
+            MAX_BATCH_SIZE,
+            log,
+            threadFactory,
+            Executors.newSingleThreadExecutor(),
+            Collections.singletonList(callback),
+            isShutDown,
+            writeKey,
+            new Gson(),
+            DEFAULT_MAX_TOTAL_BACKOFF_DURATION_MS,
+            DEFAULT_MAX_RATE_LIMIT_DURATION_MS,
+            new ClientOptions().asyncUploads(true));
+    TrackMessage message = TrackMessage.builder("foo").userId("bar").build();
+
+    client.enqueue(message);
+
+    verify(segmentService, timeout(3000))
+        .upload(isNull(), isNull(), eq(1), any(okhttp3.RequestBody.class));
+    verify(callback, timeout(1000)).success(message);
+    client.shutdown();
+    verify(segmentService, times(2))
+        .upload(isNull(), isNull(), any(), any(okhttp3.RequestBody.class));
+    verify(callback, never()).failure(any(Message.class), any(Throwable.class));
+  }
+
+  @Test
+  public void flushWithAcknowledgementWaitsForUploads() throws Exception {
+    final CountDownLatch uploading = new CountDownLatch(1);
+    final CountDownLatch respond = new CountDownLatch(1);
+    when(segmentService.upload(isNull(), any(Batch.class)))
+        .thenAnswer(
+            invocation -> {
+              uploading.countDown();
+              respond.await();
+              return Calls.response(Response.success(200, response));
+            });
+    AnalyticsClient client =
+        newClient(Executors.newSingleThreadExecutor(), new ClientOptions().maxInFlightBatches(2));
+    TrackMessage message = TrackMessage.builder("foo").userId("bar").build();
+
+    client.enqueue(message);
+    CompletableFuture<Void> acknowledged = client.flushWithAcknowledgement();
+
+    assertThat(uploading.await(5, TimeUnit.SECONDS)).isTrue();
+    assertThat(acknowledged).isNotDone();
+    respond.countDown();
+    acknowledged.get(5, TimeUnit.SECONDS);
+    verify(callback).success(message);
+    client.shutdown();
+  }
+
+  @Test
+  public void flushWithAcknowledgementWaitsForRateLimitedMessages() throws Exception {
+    when(segmentService.upload(isNull(), any(Batch.class)))
+        .thenReturn(Calls.response(Response.success(200, response)));
+    AnalyticsClient client =
+        newClient(Executors.newSingleThreadExecutor(), new ClientOptions().maxInFlightBatches(2));
+    client.setRateLimitState(1);
+    TrackMessage message = TrackMessage.builder("foo").userId("bar").build();
+
+    client.enqueue(message);
+    CompletableFuture<Void> acknowledged = client.flushWithAcknowledgement();
+
+    Thread.sleep(200);
+    // the looper holds the message until the rate limit is over
+    assertThat(acknowledged).isNotDone();
+    Thread.sleep(1000);
+    client.flush();
+    acknowledged.get(5, TimeUnit.SECONDS);
+    verify(callback).success(message);
+    client.shutdown();
+  }
+
+  @Test
+  public void flushWithAcknowledgementCompletesWhenIdle() throws Exception {
+    AnalyticsClient client =
+        newClient(Executors.newSingleThreadExecutor(), new ClientOptions().maxInFlightBatches(2));
+
+    client.flushWithAcknowledgement().get(5, TimeUnit.SECONDS);
+    client.shutdown();
+    client.flushWithAcknowledgement().get(5, TimeUnit.SECONDS);
+  }
+
+  @Test
+  public void adaptiveBatchSizeGrowsWhenUploadsAreFast() {
+    when(segmentService.upload(isNull(), any(Batch.class)))
+        .thenReturn(Calls.response(Response.success(200, response)));
+    AnalyticsClient client =
+        newClient(
+            Executors.newSingleThreadExecutor(), new ClientOptions().adaptiveBatchSize(1, 10));
+    assertThat(client.batchSizeLimit()).isEqualTo(1);
+
+    client.enqueue(TrackMessage.builder("foo").userId("bar").build());
+
+    verify(callback, timeout(1000)).success(any(Message.class));
+    assertThat(client.batchSizeLimit()).isEqualTo(2);
+    assertThat(client.adaptiveBatchSize().increases()).isEqualTo(1);
+    client.shutdown();
+  }
+
+  @Test
+  public void lingerFlushesOnceTheOldestMessageLingered() {
+    AnalyticsClient client = newClient(new ClientOptions().linger(50));
+
+    TrackMessage first = TrackMessage.builder("foo").userId("bar").build();
+    TrackMessage second = TrackMessage.builder("qaz").userId("qux").build();
+    client.enqueue(first);
+    client.enqueue(second);
+
+    // Well before the hour-long flush interval, and without a flush.
+    assertThat(captureBatch(networkExecutor).batch()).containsExactly(first, second);
+    client.shutdown();
+  }
+
+  @Test
+  public void lingerHoldsMessagesUntilTheyLingered() {
+    AnalyticsClient client = newClient(new ClientOptions().linger(TimeUnit.HOURS.toMillis(1)));
+
+    client.enqueue(TrackMessage.builder("foo").userId("bar").build());
+
+    verify(networkExecutor, after(200).never()).submit(any(Runnable.class));
+    client.shutdown();
+  }
+
+  @Test
+  public void batchesArePackedUpToTheFillRatio() {
+    AnalyticsClient client = newClient(new ClientOptions().batchFillRatio(0.5));
+    Map<String, String> properties = new HashMap<String, String>();
+    properties.put("property3", generateDataOfSize(MSG_MAX_CREATE_SIZE));
+
+    // Seven of these fit in half of the batch limit.
+    for (int i = 0; i < 8; i++) {
+      client.enqueue(
+          TrackMessage.builder("Big Event").userId("bar").properties(properties).build());
+    }
+    client.flush();
+
+    ArgumentCaptor<Runnable> tasks = ArgumentCaptor.forClass(Runnable.class);
+    verify(networkExecutor, timeout(1000).times(2)).submit(tasks.capture());
+    assertThat(((BatchUploadTask) tasks.getAllValues().get(0)).batch.batch()).hasSize(7);
+    assertThat(((BatchUploadTask) tasks.getAllValues().get(1)).batch.batch()).hasSize(1);
+    client.shutdown();
+  }
+
+  @Test
+  public void pacesBatchSubmissions() {
+    AnalyticsClient client = newClient(new ClientOptions().maxUploadsPerSecond(5));
+
+    long start = System.nanoTime();
+    for (int i = 0; i < 3; i++) {
+      client.enqueue(TrackMessage.builder("foo").userId("bar").build());
+      client.flush();
+    }
+
+    verify(networkExecutor, timeout(2000).times(3)).submit(any(Runnable.class));
+    assertThat(System.nanoTime() - start)
+        .isGreaterThanOrEqualTo(TimeUnit.MILLISECONDS.toNanos(380));
+    client.shutdown();
+  }
+
+  @Test
+  public void shutdownWakesTheLooperWaitingForItsTurn() {
+    AnalyticsClient client = newClient(new ClientOptions().maxUploadsPerSecond(0.1));
+    client.enqueue(TrackMessage.builder("foo").userId("bar").build());
+    client.flush();
+    verify(networkExecutor, timeout(1000)).submit(any(Runnable.class));
+    // the next batch waits ten seconds for its turn
+    client.enqueue(TrackMessage.builder("foo").userId("bar").build());
+    client.flush();
+
+    long start = System.nanoTime();
+    client.shutdown();
+
+    verify(networkExecutor, times(2)).submit(any(Runnable.class));
+    assertThat(System.nanoTime() - start).isLessThan(TimeUnit.SECONDS.toNanos(5));
+  }
+
+  @Test
+  public void metricsMeasureEnqueuedAndUploadedMessages() {
+    when(segmentService.upload(isNull(), any(Batch.class)))
+        .thenReturn(Calls.response(Response.success(200, response)));
+    AnalyticsMetrics metrics = mock(AnalyticsMetrics.class);
+    AnalyticsClient client =
+        newClient(Executors.newSingleThreadExecutor(), new ClientOptions().metrics(metrics));
+    verify(metrics).bind(client);
+
+    TrackMessage message = TrackMessage.builder("foo").userId("bar").build();
+    client.enqueue(message);
+
+    verify(callback, timeout(1000)).success(message);
+    verify(metrics).messageEnqueued(client.messageSizeInBytes(message));
+    verify(metrics).batchSubmitted(eq(1), anyLong());
+    verify(metrics, timeout(1000)).batchUploaded(eq(1), anyLong());
+    client.shutdown();
+    verify(metrics, never()).messagesDropped(any(DropReason.class), anyInt());
+  }
+
+  @Test
+  public void metricsCountRetriesAndDroppedMessages() {
+    when(segmentService.upload(isNull(), any(Batch.class)))
+        .thenAnswer(
+            invocation ->
+                Calls.response(Response.error(503, ResponseBody.create(null, "Unavailable"))));
+    AnalyticsMetrics metrics = mock(AnalyticsMetrics.class);
+    AnalyticsClient client =
+        new AnalyticsClient(
+            messageQueue,
+            null,
+            segmentService,
+            1,
+            TimeUnit.HOURS.toMillis(1),
+            1,
+            MAX_BATCH_SIZE,
+            log,
+            threadFactory,
+            Executors.newSingleThreadExecutor(),
+            Collections.singletonList(callback),
+            isShutDown,
+            writeKey,
+            new Gson(),
+            DEFAULT_MAX_TOTAL_BACKOFF_DURATION_MS,
+            DEFAULT_MAX_RATE_LIMIT_DURATION_MS,
+            new ClientOptions().metrics(metrics));
+
+    client.enqueue(TrackMessage.builder("foo").userId("bar").build());
+
+    verify(metrics, timeout(3000)).messagesDropped(DropReason.RETRIES_EXHAUSTED, 1);
+    verify(metrics).uploadRetried();
+    verify(metrics, never()).batchUploaded(anyInt(), anyLong());
+    client.shutdown();
+  }
+
+  @Test
+  public void metricsCountOversizedMessages() {
+    AnalyticsMetrics metrics = mock(AnalyticsMetrics.class);
+    AnalyticsClient client = newClient(new ClientOptions().metrics(metrics));
+    Map<String, String> properties = new HashMap<String, String>();
+    properties.put("property", generateDataOfSize(MAX_MSG_SIZE + 1));
+
+    assertThat(
+            client.offer(TrackMessage.builder("foo").userId("bar").properties(properties).build()))
+        .isFalse();
+
+    verify(metrics).messagesDropped(DropReason.TOO_LARGE, 1);
+    verify(metrics, never()).messageEnqueued(anyInt());
+    client.shutdown();
+  }
+
+  @Test
+  public void gaugesReadTheClientState() throws InterruptedException {
+    AnalyticsClient client = newClient(new ClientOptions());
+    client.shutdown();
+    messageQueue.put(TrackMessage.builder("foo").userId("bar").build());
+
+    assertThat(client.queueDepth()).isEqualTo(1);
+    assertThat(client.inFlightBatches()).isEqualTo(0);
+    assertThat(client.batchSizeLimit()).isEqualTo(50);
+    assertThat(client.spilledMessages()).isEqualTo(0);
+  }
+
+  @Test
+  public void queueSizeInBytesCountsTheMessagesWaitingInTheQueue() {
+    // Starts no looper, so the messages stay in the queue until one is run below.
+    isShutDown.set(true);
+    AnalyticsClient client = newClient(new ClientOptions());
+    isShutDown.set(false);
+    TrackMessage first = TrackMessage.builder("foo").userId("bar").build();
+    TrackMessage second = TrackMessage.builder("qaz").userId("bar").build();
+
+    client.enqueue(first);
+    client.offer(second);
+    client.flush();
+
+    assertThat(client.queueSizeInBytes())
+        .isEqualTo(client.messageSizeInBytes(first) + client.messageSizeInBytes(second));
+
+    client.enqueue(StopMessage.STOP);
+    client.new Looper().run();
+
+    assertThat(client.queueSizeInBytes()).isEqualTo(0);
+  }
+
+  @Test
+  public void batchCallbacksAreCalledOncePerBatch() {
+    when(segmentService.upload(isNull(), any(Batch.class)))
+        .thenReturn(Calls.response(Response.success(200, response)));
+    BatchCallback batchCallback = mock(BatchCallback.class);
+    AnalyticsClient client =
+        newClient(
+            Executors.newSingleThreadExecutor(),
+            new ClientOptions().batchCallbacks(Collections.singletonList(batchCallback)));
+    TrackMessage message = TrackMessage.builder("foo").userId("bar").build();
+
+    client.enqueue(message);
+
+    ArgumentCaptor<Batch> batch = ArgumentCaptor.forClass(Batch.class);
+    verify(batchCallback, timeout(1000)).success(batch.capture(), eq(200), eq(1));
+    assertThat(batch.getValue().batch()).containsExactly(message);
+    // The per-message callbacks are called back as well.
+    verify(callback, timeout(1000)).success(message);
+    client.shutdown();
+    verifyNoMoreInteractions(batchCallback);
+  }
+
+  @Test
+  public void batchCallbacksReceiveTheLastStatusAndAttempts() {
+    when(segmentService.upload(isNull(), any(Batch.class)))
+        .thenAnswer(
+            invocation ->
+                Calls.response(Response.error(503, ResponseBody.create(null, "Unavailable"))));
+    BatchCallback batchCallback = mock(BatchCallback.class);
+    AnalyticsClient client =
+        new AnalyticsClient(
+            messageQueue,
+            null,
+            segmentService,
+            1,
+            TimeUnit.HOURS.toMillis(1),
+            1,
+            MAX_BATCH_SIZE,
+            log,
+            threadFactory,
+            Executors.newSingleThreadExecutor(),
+            Collections.<Callback>emptyList(),
+            isShutDown,
+            writeKey,
+            new Gson(),
+            DEFAULT_MAX_TOTAL_BACKOFF_DURATION_MS,
+            DEFAULT_MAX_RATE_LIMIT_DURATION_MS,
+            new ClientOptions().batchCallbacks(Collections.singletonList(batchCallback)));
+
+    client.enqueue(TrackMessage.builder("foo").userId("bar").build());
+
+    verify(batchCallback, timeout(3000))
+        .failure(any(Batch.class), eq(503), eq(2), any(IOException.class));
+    client.shutdown();
+  }
+
+  @Test
+  public void holdsBatchesBackWhileTheCircuitIsOpen() {
+    when(segmentService.upload(isNull(), any(Batch.class)))
+        .thenAnswer(
+            invocation ->
+                Calls.response(Response.error(503, ResponseBody.create(null, "Unavailable"))));
+    AnalyticsClient client =
+        new AnalyticsClient(
+            messageQueue,
+            null,
+            segmentService,
+            1,
+            TimeUnit.HOURS.toMillis(1),
+            1,
+            MAX_BATCH_SIZE,
+            log,
+            threadFactory,
+            Executors.newCachedThreadPool(),
+            Collections.singletonList(callback),
+            isShutDown,
+            writeKey,
+            new Gson(),
+            DEFAULT_MAX_TOTAL_BACKOFF_DURATION_MS,
+            DEFAULT_MAX_RATE_LIMIT_DURATION_MS,
+            new ClientOptions().circuitBreaker(1, 2000));
+
+    client.enqueue(TrackMessage.builder("foo").userId("bar").build());
+    verify(segmentService, timeout(1000)).upload(isNull(), any(Batch.class));
+    client.enqueue(TrackMessage.builder("foo").userId("bar").build());
+
+    // Neither the retry of the first batch nor the second batch is uploaded while it is open.
+    verify(segmentService, after(1500).times(1)).upload(isNull(), any(Batch.class));
+    assertThat(client.isHeldBack()).isTrue();
+    client.shutdown();
+  }
+
+  @Test
+  public void probeClosesTheCircuitOnceTheHostRecovers() {
+    when(segmentService.upload(isNull(), any(Batch.class)))
+        .thenReturn(Calls.response(Response.error(503, ResponseBody.create(null, "Unavailable"))))
+        .thenAnswer(invocation -> Calls.response(Response.success(200, response)));
+    AnalyticsClient client =
+        new AnalyticsClient(
+            messageQueue,
+            null,
+            segmentService,
+            1,
+            TimeUnit.HOURS.toMillis(1),
+            3,
+            MAX_BATCH_SIZE,
+            log,
+            threadFactory,
+            Executors.newCachedThreadPool(),
+            Collections.singletonList(callback),
+            isShutDown,
+            writeKey,
+            new Gson(),
+            DEFAULT_MAX_TOTAL_BACKOFF_DURATION_MS,
+            DEFAULT_MAX_RATE_LIMIT_DURATION_MS,
+            new ClientOptions().circuitBreaker(1, 100));
+
+    TrackMessage first = TrackMessage.builder("foo").userId("bar").build();
+    client.enqueue(first);
+    verify(callback, timeout(3000)).success(first);
+    assertThat(client.isHeldBack()).isFalse();
+
+    TrackMessage second = TrackMessage.builder("foo").userId("bar").build();
+    client.enqueue(second);
+    verify(callback, timeout(1000)).success(second);
+    client.shutdown();
+  }
+
+  @Test
+  public void retryableClientErrorsDoNotOpenTheCircuit() {
+    when(segmentService.upload(isNull(), any(Batch.class)))
+        .thenReturn(Calls.response(Response.error(460, ResponseBody.create(null, "Retry"))))
+        .thenReturn(Calls.response(Response.error(408, ResponseBody.create(null, "Timeout"))))
+        .thenAnswer(invocation -> Calls.response(Response.success(200, response)));
+    AnalyticsClient client =
+        new AnalyticsClient(
+            messageQueue,
+            null,
+            segmentService,
+            1,
+            TimeUnit.HOURS.toMillis(1),
+            3,
+            MAX_BATCH_SIZE,
+            log,
+            threadFactory,
+            Executors.newCachedThreadPool(),
+            Collections.singletonList(callback),
+            isShutDown,
+            writeKey,
+            new Gson(),
+            DEFAULT_MAX_TOTAL_BACKOFF_DURATION_MS,
+            DEFAULT_MAX_RATE_LIMIT_DURATION_MS,
+            new ClientOptions().circuitBreaker(1, TimeUnit.MINUTES.toMillis(1)));
+
+    TrackMessage message = TrackMessage.builder("foo").userId("bar").build();
+    client.enqueue(message);
+
+    // The host answered each attempt, so the retries go ahead.
+    verify(callback, timeout(3000)).success(message);
+    assertThat(client.isHeldBack()).isFalse();
+    client.shutdown();
+  }
+
+  @Test
+  public void looperWaitsWhileTheCircuitIsOpenInsteadOfTakingBackAFullBatchsMessage() {
+    when(segmentService.upload(isNull(), any(Batch.class)))
+        .thenAnswer(
+            invocation ->
+                Calls.response(Response.error(503, ResponseBody.create(null, "Unavailable"))));
+    AnalyticsClient client =
+        new AnalyticsClient(
+            messageQueue,
+            null,
+            segmentService,
+            1,
+            TimeUnit.HOURS.toMillis(1),
+            0,
+            MAX_BATCH_SIZE,
+            log,
+            threadFactory,
+            Executors.newCachedThreadPool(),
+            Collections.singletonList(callback),
+            isShutDown,
+            writeKey,
+            new Gson(),
+            DEFAULT_MAX_TOTAL_BACKOFF_DURATION_MS,
+            DEFAULT_MAX_RATE_LIMIT_DURATION_MS,
+            new ClientOptions().circuitBreaker(1, 2000));
+    client.enqueue(TrackMessage.builder("foo").userId("bar").build());
+    verify(segmentService, timeout(1000)).upload(isNull(), any(Batch.class));
+
+    // More messages than a batch holds, so the one past it goes back on the queue.
+    Map<String, String> properties = new HashMap<>();
+    properties.put("property", generateDataOfSize(MSG_MAX_CREATE_SIZE));
+    for (int i = 0; i < 20; i++) {
+      client.enqueue(TrackMessage.builder("foo").userId("bar").properties(properties).build());
+    }
+
+    verify(messageQueue, after(500).atMost(2)).offer(any(Message.class));
+    assertThat(client.isHeldBack()).isTrue();
+    client.shutdown();
+  }
 }
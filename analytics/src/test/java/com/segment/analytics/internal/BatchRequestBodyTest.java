@@ -0,0 +1,95 @@
+package com.segment.analytics.internal;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import com.google.gson.Gson;
+import com.segment.analytics.messages.Batch;
+import com.segment.analytics.messages.Message;
+import com.segment.analytics.messages.TrackMessage;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import okio.Buffer;
+import org.junit.Test;
+
+public class BatchRequestBodyTest {
+  private final Gson gson = new Gson();
+
+  private Batch batchOf(List<Message> messages) {
+    Map<String, Object> context = new LinkedHashMap<>();
+    context.put("library", Collections.singletonMap("name", "analytics-java"));
+    return Batch.create(context, messages, "writeKey<>");
+  }
+
+  private List<byte[]> encode(List<Message> messages) {
+    List<byte[]> encoded = new ArrayList<>();
+    for (Message message : messages) {
+      encoded.add(gson.toJson(message).getBytes(StandardCharsets.UTF_8));
+    }
+    return encoded;
+  }
+
+  @Test
+  public void writesSameJsonAsGson() throws IOException {
+    List<Message> messages = new ArrayList<>();
+    for (int i = 0; i < 3; i++) {
+      messages.add(
+          TrackMessage.builder("Event " + i)
+              .userId("ünïcødé")
+              .properties(Collections.singletonMap("i", i))
+              .build());
+    }
+    Batch batch = batchOf(messages);
+
+    BatchRequestBody body = new BatchRequestBody(gson, batch, encode(messages));
+    Buffer buffer = new Buffer();
+    body.writeTo(buffer);
+
+    assertThat(buffer.readUtf8()).isEqualTo(gson.toJson(batch));
+  }
+
+  @Test
+  public void contentLengthIsExact() throws IOException {
+    List<Message> messages = new ArrayList<>();
+    messages.add(TrackMessage.builder("foo").userId("ünïcødé").build());
+    messages.add(TrackMessage.builder("bar").userId("bar").build());
+
+    BatchRequestBody body = new BatchRequestBody(gson, batchOf(messages), encode(messages));
+    Buffer buffer = new Buffer();
+    body.writeTo(buffer);
+
+    assertThat(body.contentLength()).isEqualTo(buffer.size());
+    assertThat(body.contentType()).isEqualTo(BatchRequestBody.JSON);
+  }
+
+  @Test
+  public void canBeWrittenRepeatedly() throws IOException {
+    List<Message> messages =
+        Collections.<Message>singletonList(TrackMessage.builder("foo").userId("bar").build());
+    BatchRequestBody body = new BatchRequestBody(gson, batchOf(messages), encode(messages));
+
+    Buffer first = new Buffer();
+    body.writeTo(first);
+    Buffer second = new Buffer();
+    body.writeTo(second);
+
+    assertThat(first.readByteString()).isEqualTo(second.readByteString());
+  }
+
+  @Test
+  public void emptyBatch() throws IOException {
+    List<Message> messages = Collections.emptyList();
+    Batch batch = batchOf(messages);
+    BatchRequestBody body = new BatchRequestBody(gson, batch, encode(messages));
+
+    Buffer buffer = new Buffer();
+    body.writeTo(buffer);
+
+    assertThat(buffer.size()).isEqualTo(body.contentLength());
+    assertThat(buffer.readUtf8()).isEqualTo(gson.toJson(batch));
+  }
+}
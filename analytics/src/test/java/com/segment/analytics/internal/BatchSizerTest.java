@@ -0,0 +1,126 @@
+package com.segment.analytics.internal;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.segment.analytics.gson.AutoValueAdapterFactory;
+import com.segment.analytics.gson.ISO8601DateAdapter;
+import com.segment.analytics.messages.Batch;
+import com.segment.analytics.messages.Message;
+import com.segment.analytics.messages.TrackMessage;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.Test;
+
+public class BatchSizerTest {
+  private static final String WRITE_KEY = "writeKey<>";
+
+  private final Gson gson =
+      new GsonBuilder()
+          .registerTypeAdapterFactory(new AutoValueAdapterFactory())
+          .registerTypeAdapter(Date.class, new ISO8601DateAdapter())
+          .create();
+  private final Map<String, Object> context = new LinkedHashMap<>();
+
+  {
+    context.put("library", Collections.singletonMap("name", "ünïcødé"));
+  }
+
+  private int bytes(Object value) {
+    return gson.toJson(value).getBytes(StandardCharsets.UTF_8).length;
+  }
+
+  private long encodedBytes(List<Message> messages) {
+    return bytes(Batch.create(context, messages, WRITE_KEY));
+  }
+
+  @Test
+  public void measuresTheEncodedBatch() {
+    BatchSizer.Tally tally = new BatchSizer(gson, context, WRITE_KEY, 500 * 1024).newBatch();
+    List<Message> messages = new ArrayList<>();
+    for (int i = 0; i < 5; i++) {
+      Message message =
+          TrackMessage.builder("Event " + i)
+              .userId("ünïcødé")
+              .properties(Collections.singletonMap("i", i))
+              .build();
+      assertThat(tally.add(message, bytes(message))).isTrue();
+      messages.add(message);
+
+      // Exact, apart from the room kept for the widest sequence number.
+      long encoded = encodedBytes(messages);
+      assertThat(tally.bytes()).isBetween(encoded, encoded + 10);
+    }
+    assertThat(tally.size()).isEqualTo(5);
+  }
+
+  @Test
+  public void measuresTheSentAtOfTheFirstMessageThatHasOne() {
+    // Gson's default date format, unlike ISO 8601, is longer for some dates than for others.
+    Gson plain = new Gson();
+    BatchSizer.Tally tally = new BatchSizer(plain, context, WRITE_KEY, 500 * 1024).newBatch();
+    Message first = TrackMessage.builder("foo").userId("bar").build();
+    tally.add(first, utf8Length(plain.toJson(first)));
+    long before = tally.bytes();
+
+    Date sentAt = new Date(1_700_000_000_000L);
+    Message second = TrackMessage.builder("foo").userId("bar").sentAt(sentAt).build();
+    int secondBytes = utf8Length(plain.toJson(second));
+    tally.add(second, secondBytes);
+
+    int sentAtDifference = utf8Length(plain.toJson(sentAt)) - utf8Length(plain.toJson(new Date()));
+    assertThat(tally.bytes()).isEqualTo(before + secondBytes + 1 + sentAtDifference);
+  }
+
+  private static int utf8Length(String json) {
+    return json.getBytes(StandardCharsets.UTF_8).length;
+  }
+
+  @Test
+  public void packsUpToTheLimitWithoutGoingOver() {
+    BatchSizer sizer = new BatchSizer(gson, context, WRITE_KEY, 2048);
+    BatchSizer.Tally tally = sizer.newBatch();
+    List<Message> messages = new ArrayList<>();
+    while (true) {
+      Message message = TrackMessage.builder("Event " + messages.size()).userId("bar").build();
+      if (!tally.add(message, bytes(message))) {
+        assertThat(tally.bytes() + bytes(message) + 1).isGreaterThan(2048);
+        break;
+      }
+      messages.add(message);
+    }
+
+    assertThat(tally.size()).isEqualTo(messages.size());
+    assertThat(tally.bytes()).isLessThanOrEqualTo(2048);
+    assertThat(encodedBytes(messages)).isLessThanOrEqualTo(2048);
+  }
+
+  @Test
+  public void alwaysAddsTheFirstMessage() {
+    BatchSizer.Tally tally = new BatchSizer(gson, context, WRITE_KEY, 10).newBatch();
+    Message message = TrackMessage.builder("foo").userId("bar").build();
+
+    assertThat(tally.add(message, bytes(message))).isTrue();
+    assertThat(tally.add(message, bytes(message))).isFalse();
+    assertThat(tally.size()).isEqualTo(1);
+  }
+
+  @Test
+  public void clearEmptiesTheBatch() {
+    BatchSizer.Tally tally = new BatchSizer(gson, context, WRITE_KEY, 500 * 1024).newBatch();
+    long empty = tally.bytes();
+    Message message = TrackMessage.builder("foo").userId("bar").build();
+    tally.add(message, bytes(message));
+
+    tally.clear();
+
+    assertThat(tally.size()).isEqualTo(0);
+    assertThat(tally.bytes()).isEqualTo(empty);
+  }
+}
@@ -0,0 +1,104 @@
+package com.segment.analytics.internal;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
+
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.Test;
+
+public class CircuitBreakerTest {
+  private static final long OPEN_NANOS = 1000;
+
+  private final AtomicLong now = new AtomicLong();
+  private final CircuitBreaker breaker = new CircuitBreaker(3, OPEN_NANOS, now::get);
+
+  @Test
+  public void invalidFailureThreshold() {
+    try {
+      new CircuitBreaker(0, OPEN_NANOS);
+      fail("Should fail for a threshold less than 1");
+    } catch (IllegalArgumentException e) {
+      assertThat(e).hasMessage("failureThreshold must not be less than 1.");
+    }
+  }
+
+  @Test
+  public void opensAfterConsecutiveFailures() {
+    assertThat(breaker.onFailure()).isFalse();
+    assertThat(breaker.onFailure()).isFalse();
+    assertThat(breaker.onSuccess()).isFalse();
+    assertThat(breaker.onFailure()).isFalse();
+    assertThat(breaker.onFailure()).isFalse();
+    assertThat(breaker.isClosed()).isTrue();
+
+    assertThat(breaker.onFailure()).isTrue();
+    assertThat(breaker.isClosed()).isFalse();
+    assertThat(breaker.allowsBatches()).isFalse();
+    assertThat(breaker.acquire()).isEqualTo(OPEN_NANOS);
+  }
+
+  @Test
+  public void letsASingleProbeThroughOnceOpenLongEnough() {
+    open();
+    now.addAndGet(OPEN_NANOS);
+
+    assertThat(breaker.allowsBatches()).isTrue();
+    assertThat(breaker.acquire()).isZero();
+    // Every other attempt waits for the probe.
+    assertThat(breaker.allowsBatches()).isFalse();
+    assertThat(breaker.acquire()).isEqualTo(OPEN_NANOS);
+  }
+
+  @Test
+  public void holdsBatchesBackUntilTheProbe() {
+    assertThat(breaker.heldBackNanos()).isZero();
+    open();
+    now.addAndGet(OPEN_NANOS / 4);
+    assertThat(breaker.heldBackNanos()).isEqualTo(OPEN_NANOS * 3 / 4);
+
+    now.addAndGet(OPEN_NANOS);
+    assertThat(breaker.heldBackNanos()).isZero();
+    breaker.acquire();
+    // While the probe is in flight, check again after a while.
+    assertThat(breaker.heldBackNanos()).isEqualTo(OPEN_NANOS);
+  }
+
+  @Test
+  public void closesWhenTheProbeSucceeds() {
+    open();
+    now.addAndGet(OPEN_NANOS);
+    breaker.acquire();
+
+    assertThat(breaker.onSuccess()).isTrue();
+    assertThat(breaker.isClosed()).isTrue();
+    assertThat(breaker.acquire()).isZero();
+    assertThat(breaker.acquire()).isZero();
+  }
+
+  @Test
+  public void opensAgainWhenTheProbeFails() {
+    open();
+    now.addAndGet(OPEN_NANOS);
+    breaker.acquire();
+
+    assertThat(breaker.onFailure()).isTrue();
+    assertThat(breaker.acquire()).isEqualTo(OPEN_NANOS);
+    now.addAndGet(OPEN_NANOS);
+    assertThat(breaker.acquire()).isZero();
+  }
+
+  @Test
+  public void ignoresFailuresOfAttemptsStartedBeforeItOpened() {
+    open();
+    now.addAndGet(OPEN_NANOS / 2);
+
+    assertThat(breaker.onFailure()).isFalse();
+    assertThat(breaker.acquire()).isEqualTo(OPEN_NANOS / 2);
+  }
+
+  private void open() {
+    for (int i = 0; i < 3; i++) {
+      breaker.onFailure();
+    }
+  }
+}
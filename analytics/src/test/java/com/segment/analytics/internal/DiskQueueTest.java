@@ -0,0 +1,108 @@
+package com.segment.analytics.internal;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class DiskQueueTest {
+  private static final int SEGMENT_BYTES = 1024;
+
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  private DiskQueue open() throws IOException {
+    return DiskQueue.open(folder.getRoot(), SEGMENT_BYTES, 4 * SEGMENT_BYTES);
+  }
+
+  private static byte[] bytes(String value) {
+    return value.getBytes(StandardCharsets.UTF_8);
+  }
+
+  private File[] segmentFiles() {
+    return folder.getRoot().listFiles((dir, name) -> name.endsWith(".overflow"));
+  }
+
+  @Test
+  public void pollsRecordsInOrderAcrossSegments() throws IOException {
+    DiskQueue queue = open();
+    assertThat(queue.isEmpty()).isTrue();
+    assertThat(queue.poll()).isNull();
+    for (int i = 0; i < 10; i++) {
+      assertThat(queue.offer(i, bytes(String.format("%0300d", i)))).isTrue();
+    }
+    assertThat(queue.size()).isEqualTo(10);
+    assertThat(segmentFiles().length).isGreaterThan(1);
+
+    for (int i = 0; i < 10; i++) {
+      DiskQueue.Record peeked = queue.peek();
+      DiskQueue.Record record = queue.poll();
+      assertThat(record).isSameAs(peeked);
+      assertThat(record.spoolAddress).isEqualTo(i);
+      assertThat(new String(record.bytes, StandardCharsets.UTF_8))
+          .isEqualTo(String.format("%0300d", i));
+    }
+    assertThat(queue.isEmpty()).isTrue();
+  }
+
+  @Test
+  public void deletesSegmentsOnceRead() throws IOException {
+    DiskQueue queue = open();
+    for (int i = 0; i < 6; i++) {
+      queue.offer(Spool.NO_ADDRESS, new byte[300]);
+    }
+    assertThat(segmentFiles()).hasSize(2);
+
+    for (int i = 0; i < 4; i++) {
+      queue.poll();
+    }
+    assertThat(segmentFiles()).hasSize(1);
+
+    queue.poll();
+    queue.poll();
+    assertThat(segmentFiles()).isEmpty();
+    assertThat(queue.usedBytes()).isEqualTo(0);
+
+    // the queue is usable again after it was drained
+    assertThat(queue.offer(Spool.NO_ADDRESS, bytes("again"))).isTrue();
+    assertThat(new String(queue.poll().bytes, StandardCharsets.UTF_8)).isEqualTo("again");
+  }
+
+  @Test
+  public void offerFailsOnceMaxBytesIsReached() throws IOException {
+    DiskQueue queue = open();
+    int offered = 0;
+    while (queue.offer(Spool.NO_ADDRESS, new byte[500])) {
+      offered++;
+    }
+    assertThat(offered).isEqualTo(4 * SEGMENT_BYTES / 512);
+    assertThat(queue.usedBytes()).isLessThanOrEqualTo(4 * SEGMENT_BYTES);
+
+    queue.poll();
+    assertThat(queue.offer(Spool.NO_ADDRESS, new byte[500])).isFalse();
+  }
+
+  @Test
+  public void deletesFilesLeftByAnEarlierProcess() throws IOException {
+    DiskQueue queue = open();
+    queue.offer(Spool.NO_ADDRESS, bytes("left behind"));
+    assertThat(segmentFiles()).hasSize(1);
+
+    DiskQueue reopened = open();
+    assertThat(segmentFiles()).isEmpty();
+    assertThat(reopened.isEmpty()).isTrue();
+  }
+
+  @Test
+  public void closeDeletesFiles() throws IOException {
+    DiskQueue queue = open();
+    queue.offer(Spool.NO_ADDRESS, bytes("discarded"));
+    queue.close();
+
+    assertThat(segmentFiles()).isEmpty();
+    assertThat(queue.isEmpty()).isTrue();
+  }
+}
@@ -0,0 +1,128 @@
+package com.segment.analytics.internal;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import com.segment.analytics.EndpointSelection;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import okhttp3.HttpUrl;
+import org.junit.Test;
+
+public class EndpointsTest {
+  private static final HttpUrl A = HttpUrl.parse("https://a.example.com/v1/import/");
+  private static final HttpUrl B = HttpUrl.parse("https://b.example.com/v1/import/");
+  private static final HttpUrl C = HttpUrl.parse("https://c.example.com/v1/import/");
+  private static final long MILLISECOND = TimeUnit.MILLISECONDS.toNanos(1);
+
+  private final AtomicLong now = new AtomicLong();
+
+  private Endpoints endpoints(EndpointSelection selection) {
+    return new Endpoints(Arrays.asList(A, B, C), selection, now::get);
+  }
+
+  private static Map<HttpUrl, Integer> spread(Endpoints endpoints, int attempts) {
+    Map<HttpUrl, Integer> counts = new HashMap<>();
+    for (int i = 0; i < attempts; i++) {
+      counts.merge(endpoints.select(null).url, 1, Integer::sum);
+    }
+    return counts;
+  }
+
+  @Test
+  public void singleEndpointIsAlwaysSelected() {
+    Endpoints endpoints = new Endpoints(Arrays.asList(A), EndpointSelection.LEAST_LATENCY);
+    Endpoints.Endpoint endpoint = endpoints.select(null);
+
+    assertThat(endpoint.url).isEqualTo(A);
+    assertThat(endpoints.onFailed(endpoint)).isFalse();
+    assertThat(endpoints.select(endpoint)).isSameAs(endpoint);
+  }
+
+  @Test
+  public void roundRobinSpreadsEvenly() {
+    Map<HttpUrl, Integer> counts = spread(endpoints(EndpointSelection.WEIGHTED_ROUND_ROBIN), 30);
+
+    assertThat(counts).containsEntry(A, 10).containsEntry(B, 10).containsEntry(C, 10);
+  }
+
+  @Test
+  public void roundRobinWeighsFailingEndpointsDown() {
+    Endpoints endpoints = endpoints(EndpointSelection.WEIGHTED_ROUND_ROBIN);
+    Endpoints.Endpoint a = endpoints.select(null);
+    assertThat(a.url).isEqualTo(A);
+    endpoints.onFailed(a);
+    endpoints.onFailed(a);
+
+    // A quarter of the weight of the others.
+    Map<HttpUrl, Integer> counts = spread(endpoints, 180);
+    assertThat(counts.get(A)).isBetween(19, 20);
+    assertThat(counts.get(B)).isBetween(80, 81);
+    assertThat(counts.get(C)).isBetween(80, 81);
+
+    endpoints.onAnswered(a, MILLISECOND);
+    counts = spread(endpoints, 30);
+    assertThat(counts.get(A)).isBetween(9, 11);
+  }
+
+  @Test
+  public void skipsEjectedEndpointsForAWhile() {
+    Endpoints endpoints = endpoints(EndpointSelection.WEIGHTED_ROUND_ROBIN);
+    Endpoints.Endpoint a = endpoints.select(null);
+    assertThat(endpoints.onFailed(a)).isFalse();
+    assertThat(endpoints.onFailed(a)).isFalse();
+    assertThat(endpoints.onFailed(a)).isTrue();
+
+    assertThat(spread(endpoints, 20)).doesNotContainKey(A);
+
+    now.addAndGet(Endpoints.EJECT_NANOS);
+    assertThat(spread(endpoints, 17)).containsEntry(A, 1);
+  }
+
+  @Test
+  public void avoidsTheEndpointThatJustFailed() {
+    Endpoints endpoints = endpoints(EndpointSelection.LEAST_LATENCY);
+    Endpoints.Endpoint a = endpoints.select(null);
+    endpoints.onFailed(a);
+
+    for (int i = 0; i < 10; i++) {
+      assertThat(endpoints.select(a)).isNotSameAs(a);
+    }
+  }
+
+  @Test
+  public void fallsBackToEjectedEndpointsWhenAllAre() {
+    Endpoints endpoints =
+        new Endpoints(Arrays.asList(A, B), EndpointSelection.WEIGHTED_ROUND_ROBIN, now::get);
+    Endpoints.Endpoint a = endpoints.select(null);
+    Endpoints.Endpoint b = endpoints.select(null);
+    for (int i = 0; i < 3; i++) {
+      endpoints.onFailed(a);
+      endpoints.onFailed(b);
+    }
+
+    assertThat(endpoints.select(a)).isSameAs(b);
+    assertThat(endpoints.select(b)).isSameAs(a);
+  }
+
+  @Test
+  public void leastLatencyMeasuresEachEndpointThenPicksTheFastest() {
+    Endpoints endpoints = endpoints(EndpointSelection.LEAST_LATENCY);
+    long[] latencies = {30 * MILLISECOND, 10 * MILLISECOND, 20 * MILLISECOND};
+    for (int i = 0; i < 3; i++) {
+      Endpoints.Endpoint endpoint = endpoints.select(null);
+      assertThat(endpoint.url).isEqualTo(Arrays.asList(A, B, C).get(i));
+      endpoints.onAnswered(endpoint, latencies[i]);
+    }
+
+    Endpoints.Endpoint b = endpoints.select(null);
+    assertThat(b.url).isEqualTo(B);
+
+    // A failure in a row doubles its latency, which leaves C the fastest.
+    endpoints.onFailed(b);
+    endpoints.onFailed(b);
+    assertThat(endpoints.select(null).url).isEqualTo(C);
+  }
+}
@@ -0,0 +1,56 @@
+package com.segment.analytics.internal;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.IOException;
+import okhttp3.MediaType;
+import okhttp3.RequestBody;
+import okio.Buffer;
+import okio.BufferedSink;
+import okio.GzipSource;
+import okio.Okio;
+import org.junit.Test;
+
+public class GzipRequestBodyTest {
+  private static final MediaType JSON = MediaType.get("application/json; charset=UTF-8");
+
+  @Test
+  public void compressesDelegate() throws IOException {
+    String json = "{\"batch\":[" + new String(new char[4096]).replace('\0', 'x') + "]}";
+    GzipRequestBody body = GzipRequestBody.compress(RequestBody.create(json, JSON));
+
+    Buffer buffer = new Buffer();
+    body.writeTo(buffer);
+
+    assertThat(body.contentType()).isEqualTo(JSON);
+    assertThat(body.contentLength()).isEqualTo(buffer.size()).isLessThan(json.length());
+    assertThat(Okio.buffer(new GzipSource(buffer)).readUtf8()).isEqualTo(json);
+  }
+
+  @Test
+  public void compressesOnlyOnce() throws IOException {
+    final int[] writes = {0};
+    RequestBody delegate =
+        new RequestBody() {
+          @Override
+          public MediaType contentType() {
+            return JSON;
+          }
+
+          @Override
+          public void writeTo(BufferedSink sink) throws IOException {
+            writes[0]++;
+            sink.writeUtf8("{}");
+          }
+        };
+
+    GzipRequestBody body = GzipRequestBody.compress(delegate);
+    Buffer first = new Buffer();
+    body.writeTo(first);
+    Buffer second = new Buffer();
+    body.writeTo(second);
+
+    assertThat(writes[0]).isEqualTo(1);
+    assertThat(first.readByteString()).isEqualTo(second.readByteString());
+  }
+}
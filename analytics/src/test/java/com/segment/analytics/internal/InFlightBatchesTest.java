@@ -0,0 +1,139 @@
+package com.segment.analytics.internal;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Test;
+
+public class InFlightBatchesTest {
+  private final ExecutorService executor = Executors.newSingleThreadExecutor();
+
+  @After
+  public void tearDown() {
+    executor.shutdownNow();
+  }
+
+  @Test
+  public void invalidMaxInFlight() {
+    try {
+      new InFlightBatches(-1);
+      fail("Should fail for negative maxInFlight");
+    } catch (IllegalArgumentException e) {
+      assertThat(e).hasMessage("maxInFlight must not be negative.");
+    }
+  }
+
+  @Test
+  public void unlimitedNeverBlocks() throws InterruptedException {
+    InFlightBatches batches = new InFlightBatches(0);
+    for (int i = 0; i < 100; i++) {
+      batches.acquire();
+    }
+    assertThat(batches.inFlight()).isEqualTo(100);
+  }
+
+  @Test
+  public void blocksAtMaxInFlightUntilReleased() throws Exception {
+    final InFlightBatches batches = new InFlightBatches(2);
+    InFlightBatches.Permit first = batches.acquire();
+    batches.acquire();
+
+    Future<InFlightBatches.Permit> third = executor.submit(() -> batches.acquire());
+    Thread.sleep(50);
+    assertThat(third.isDone()).isFalse();
+
+    batches.release(first);
+    assertThat(third.get(5, TimeUnit.SECONDS)).isNotNull();
+    assertThat(batches.inFlight()).isEqualTo(2);
+  }
+
+  @Test
+  public void sharedKeyIsParkedUntilEarlierBatchIsReleased() throws InterruptedException {
+    InFlightBatches batches = new InFlightBatches(0);
+    List<InFlightBatches.Permit> started = new ArrayList<>();
+    InFlightBatches.Permit first = batches.acquire(Arrays.asList("a", "b"), started::add);
+    InFlightBatches.Permit other = batches.acquire(Collections.singleton("c"), started::add);
+
+    assertThat(batches.acquire(Arrays.asList("b", "d"), started::add)).isNull();
+    // Parked behind the parked batch holding "d", though no batch in flight holds "d".
+    assertThat(batches.acquire(Collections.singleton("d"), started::add)).isNull();
+    assertThat(batches.acquire(Collections.singleton("e"), started::add)).isNotNull();
+    assertThat(started).isEmpty();
+
+    batches.release(other);
+    assertThat(started).isEmpty();
+    batches.release(first);
+    assertThat(started).hasSize(1);
+    batches.release(started.get(0));
+    assertThat(started).hasSize(2);
+  }
+
+  @Test
+  public void parkedBatchesCountAgainstTheMaximum() throws Exception {
+    final InFlightBatches batches = new InFlightBatches(2);
+    List<InFlightBatches.Permit> started = new ArrayList<>();
+    InFlightBatches.Permit first = batches.acquire(Collections.singleton("a"), started::add);
+    assertThat(batches.acquire(Collections.singleton("a"), started::add)).isNull();
+
+    Future<InFlightBatches.Permit> third = executor.submit(() -> batches.acquire());
+    Thread.sleep(50);
+    assertThat(third.isDone()).isFalse();
+
+    batches.release(first);
+    assertThat(started).hasSize(1);
+    batches.release(started.get(0));
+    assertThat(third.get(5, TimeUnit.SECONDS)).isNotNull();
+  }
+
+  @Test
+  public void closeLiftsTheMaximum() throws Exception {
+    final InFlightBatches batches = new InFlightBatches(1);
+    batches.acquire();
+
+    Future<InFlightBatches.Permit> second = executor.submit(() -> batches.acquire());
+    Thread.sleep(50);
+    assertThat(second.isDone()).isFalse();
+
+    batches.close();
+    assertThat(second.get(5, TimeUnit.SECONDS)).isNotNull();
+    batches.acquire();
+    assertThat(batches.inFlight()).isEqualTo(3);
+  }
+
+  @Test
+  public void releasingTwiceHasNoEffect() throws InterruptedException {
+    InFlightBatches batches = new InFlightBatches(2);
+    InFlightBatches.Permit permit = batches.acquire(Collections.singleton("a"), null);
+    batches.acquire(Collections.singleton("b"), null);
+
+    batches.release(permit);
+    batches.release(permit);
+
+    assertThat(batches.inFlight()).isEqualTo(1);
+  }
+
+  @Test
+  public void awaitNoneInFlightWaitsForRelease() throws Exception {
+    final InFlightBatches batches = new InFlightBatches(0);
+    final InFlightBatches.Permit permit = batches.acquire();
+    assertThat(batches.awaitNoneInFlight(10)).isFalse();
+
+    executor.submit(
+        () -> {
+          Thread.sleep(50);
+          batches.release(permit);
+          return null;
+        });
+
+    assertThat(batches.awaitNoneInFlight(5000)).isTrue();
+  }
+}
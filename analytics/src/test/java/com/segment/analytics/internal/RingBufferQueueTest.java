@@ -0,0 +1,211 @@
+package com.segment.analytics.internal;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
+
+import com.segment.analytics.messages.Message;
+import com.segment.analytics.messages.TrackMessage;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+public class RingBufferQueueTest {
+  private static Message message(String event) {
+    return TrackMessage.builder(event).userId("user").build();
+  }
+
+  @Test
+  public void roundsCapacityUpToPowerOfTwo() {
+    assertThat(new RingBufferQueue(1).capacity()).isEqualTo(2);
+    assertThat(new RingBufferQueue(5).capacity()).isEqualTo(8);
+    assertThat(new RingBufferQueue(64).capacity()).isEqualTo(64);
+  }
+
+  @Test
+  public void invalidCapacity() {
+    try {
+      new RingBufferQueue(0);
+      fail("Should fail for capacity less than 1");
+    } catch (IllegalArgumentException e) {
+      assertThat(e).hasMessage("capacity must be between 1 and 2^30.");
+    }
+  }
+
+  @Test
+  public void isFifoAndBounded() {
+    RingBufferQueue queue = new RingBufferQueue(4);
+    List<Message> messages = new ArrayList<>();
+    for (int i = 0; i < 4; i++) {
+      Message message = message("event " + i);
+      messages.add(message);
+      assertThat(queue.offer(message)).isTrue();
+    }
+
+    assertThat(queue.offer(message("overflow"))).isFalse();
+    assertThat(queue.size()).isEqualTo(4);
+    assertThat(queue.remainingCapacity()).isEqualTo(0);
+    assertThat(queue).containsExactlyElementsOf(messages);
+    assertThat(queue.peek()).isSameAs(messages.get(0));
+
+    for (Message message : messages) {
+      assertThat(queue.poll()).isSameAs(message);
+    }
+    assertThat(queue.poll()).isNull();
+    assertThat(queue.isEmpty()).isTrue();
+  }
+
+  @Test
+  public void wrapsAround() {
+    RingBufferQueue queue = new RingBufferQueue(2);
+    for (int i = 0; i < 10; i++) {
+      Message message = message("event " + i);
+      assertThat(queue.offer(message)).isTrue();
+      assertThat(queue.poll()).isSameAs(message);
+    }
+  }
+
+  @Test
+  public void controlSignalsKeepFifoOrderWithoutUsingSlots() {
+    RingBufferQueue queue = new RingBufferQueue(2);
+    Message first = message("first");
+    Message second = message("second");
+
+    queue.offer(first);
+    queue.offer(FlushMessage.POISON);
+    queue.offer(FlushMessage.POISON);
+    queue.offer(second);
+    queue.offer(StopMessage.STOP);
+
+    assertThat(queue.size()).isEqualTo(2);
+    assertThat(queue.poll()).isSameAs(first);
+    // concurrent flush requests collapse into one
+    assertThat(queue.poll()).isSameAs(FlushMessage.POISON);
+    assertThat(queue.poll()).isSameAs(second);
+    assertThat(queue.poll()).isSameAs(StopMessage.STOP);
+    assertThat(queue.poll()).isNull();
+  }
+
+  @Test
+  public void drainToIncludesSignals() {
+    RingBufferQueue queue = new RingBufferQueue(8);
+    Message first = message("first");
+    Message second = message("second");
+    queue.offer(first);
+    queue.offer(second);
+    queue.offer(FlushMessage.POISON);
+
+    List<Message> drained = new ArrayList<>();
+    assertThat(queue.drainTo(drained, 1)).isEqualTo(1);
+    assertThat(queue.drainTo(drained)).isEqualTo(2);
+
+    assertThat(drained).containsExactly(first, second, FlushMessage.POISON);
+  }
+
+  @Test
+  public void takeWaitsForProducer() throws Exception {
+    final RingBufferQueue queue = new RingBufferQueue(8);
+    final Message message = message("late");
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      Future<Message> taken = executor.submit(queue::take);
+      Thread.sleep(50);
+      assertThat(taken.isDone()).isFalse();
+
+      queue.offer(message);
+
+      assertThat(taken.get(5, TimeUnit.SECONDS)).isSameAs(message);
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void pollTimesOut() throws InterruptedException {
+    RingBufferQueue queue = new RingBufferQueue(8);
+    assertThat(queue.poll(10, TimeUnit.MILLISECONDS)).isNull();
+  }
+
+  @Test
+  public void putBlocksWhileFull() throws Exception {
+    final RingBufferQueue queue = new RingBufferQueue(2);
+    final Message first = message("first");
+    final Message second = message("second");
+    final Message third = message("third");
+    queue.put(first);
+    queue.put(second);
+    assertThat(queue.offer(third, 10, TimeUnit.MILLISECONDS)).isFalse();
+
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      Future<?> put =
+          executor.submit(
+              () -> {
+                queue.put(third);
+                return null;
+              });
+      Thread.sleep(50);
+      assertThat(put.isDone()).isFalse();
+
+      assertThat(queue.take()).isSameAs(first);
+      put.get(5, TimeUnit.SECONDS);
+      assertThat(queue.take()).isSameAs(second);
+      assertThat(queue.take()).isSameAs(third);
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void concurrentProducersLoseNothingAndKeepPerProducerOrder() throws Exception {
+    final int producers = 8;
+    final int perProducer = 20000;
+    final RingBufferQueue queue = new RingBufferQueue(1024);
+    final CountDownLatch start = new CountDownLatch(1);
+    ExecutorService executor = Executors.newFixedThreadPool(producers);
+    try {
+      for (int p = 0; p < producers; p++) {
+        final String userId = "producer-" + p;
+        executor.submit(
+            () -> {
+              start.await();
+              for (int i = 0; i < perProducer; i++) {
+                queue.put(
+                    TrackMessage.builder("event")
+                        .userId(userId)
+                        .messageId(userId + ":" + i)
+                        .build());
+                if (i % 1000 == 0) {
+                  queue.put(FlushMessage.POISON);
+                }
+              }
+              return null;
+            });
+      }
+      start.countDown();
+
+      Map<String, Integer> lastSeen = new HashMap<>();
+      int received = 0;
+      while (received < producers * perProducer) {
+        Message message = queue.poll(5, TimeUnit.SECONDS);
+        assertThat(message).isNotNull();
+        if (message == FlushMessage.POISON) {
+          continue;
+        }
+        int index = Integer.parseInt(message.messageId().split(":")[1]);
+        Integer previous = lastSeen.put(message.userId(), index);
+        assertThat(index).isEqualTo(previous == null ? 0 : previous + 1);
+        received++;
+      }
+      assertThat(queue.size()).isEqualTo(0);
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+}
@@ -0,0 +1,206 @@
+package com.segment.analytics.internal;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
+
+import com.segment.analytics.FsyncPolicy;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class SpoolTest {
+  private static final int SEGMENT_BYTES = 1024;
+
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  private Spool open() throws IOException {
+    return Spool.open(folder.getRoot(), SEGMENT_BYTES, 4 * SEGMENT_BYTES, FsyncPolicy.ALWAYS);
+  }
+
+  private static byte[] bytes(String value) {
+    return value.getBytes(StandardCharsets.UTF_8);
+  }
+
+  private static List<String> payloads(List<Spool.Record> records) {
+    List<String> payloads = new ArrayList<>();
+    for (Spool.Record record : records) {
+      payloads.add(new String(record.bytes, StandardCharsets.UTF_8));
+    }
+    return payloads;
+  }
+
+  private File[] segmentFiles() {
+    return folder.getRoot().listFiles((dir, name) -> name.endsWith(".spool"));
+  }
+
+  @Test
+  public void maxBytesMustHoldASegment() throws IOException {
+    try {
+      Spool.open(folder.getRoot(), SEGMENT_BYTES, SEGMENT_BYTES - 1, FsyncPolicy.NEVER);
+      fail("Should fail for maxBytes less than segmentBytes");
+    } catch (IllegalArgumentException e) {
+      assertThat(e).hasMessage("maxBytes must not be less than segmentBytes.");
+    }
+  }
+
+  @Test
+  public void replaysUnacknowledgedRecordsInOrder() throws IOException {
+    Spool spool = open();
+    assertThat(spool.replay()).isEmpty();
+    long first = spool.append(bytes("first"));
+    spool.append(bytes("second"));
+    spool.append(bytes("third"));
+    spool.acknowledge(first);
+    spool.close();
+
+    Spool reopened = open();
+    assertThat(payloads(reopened.replay())).containsExactly("second", "third");
+    // replay() hands the records out only once
+    assertThat(reopened.replay()).isEmpty();
+  }
+
+  @Test
+  public void replayedRecordsCanBeAcknowledged() throws IOException {
+    Spool spool = open();
+    spool.append(bytes("first"));
+    spool.close();
+
+    Spool reopened = open();
+    for (Spool.Record record : reopened.replay()) {
+      reopened.acknowledge(record.address);
+    }
+    reopened.close();
+
+    assertThat(open().replay()).isEmpty();
+    assertThat(segmentFiles()).isEmpty();
+  }
+
+  @Test
+  public void deletesSegmentsOnceFullAndAcknowledged() throws IOException {
+    Spool spool = open();
+    byte[] payload = new byte[300];
+    List<Long> addresses = new ArrayList<>();
+    for (int i = 0; i < 4; i++) {
+      addresses.add(spool.append(payload));
+    }
+    // three records fill the first segment, the fourth starts the second
+    assertThat(segmentFiles()).hasSize(2);
+    assertThat(spool.usedBytes()).isEqualTo(2 * SEGMENT_BYTES);
+
+    for (long address : addresses.subList(0, 3)) {
+      spool.acknowledge(address);
+    }
+    assertThat(segmentFiles()).hasSize(1);
+    assertThat(spool.usedBytes()).isEqualTo(SEGMENT_BYTES);
+
+    // the active segment is kept even when all of its records are acknowledged
+    spool.acknowledge(addresses.get(3));
+    assertThat(segmentFiles()).hasSize(1);
+  }
+
+  @Test
+  public void appendFailsOnceMaxBytesIsReached() throws IOException {
+    Spool spool = open();
+    byte[] payload = new byte[500];
+    List<Long> addresses = new ArrayList<>();
+    for (int i = 0; i < 8; i++) {
+      long address = spool.append(payload);
+      assertThat(address).isNotEqualTo(Spool.NO_ADDRESS);
+      addresses.add(address);
+    }
+    assertThat(spool.append(payload)).isEqualTo(Spool.NO_ADDRESS);
+
+    spool.acknowledge(addresses.get(0));
+    spool.acknowledge(addresses.get(1));
+    assertThat(spool.append(payload)).isNotEqualTo(Spool.NO_ADDRESS);
+  }
+
+  @Test
+  public void rejectsRecordsLargerThanASegment() throws IOException {
+    assertThat(open().append(new byte[SEGMENT_BYTES])).isEqualTo(Spool.NO_ADDRESS);
+  }
+
+  @Test
+  public void stopsReplayingAtATornRecord() throws IOException {
+    Spool spool = open();
+    spool.append(bytes("first"));
+    long second = spool.append(bytes("second"));
+    spool.append(bytes("third"));
+    spool.close();
+
+    // corrupt the payload of the second record, as a crash in the middle of a write would
+    try (RandomAccessFile file = new RandomAccessFile(segmentFiles()[0], "rw")) {
+      file.seek((int) second + 9);
+      file.write('X');
+    }
+
+    assertThat(payloads(open().replay())).containsExactly("first");
+  }
+
+  @Test
+  public void dropsTheOldestGivenUpSegmentOnceFull() throws IOException {
+    Spool spool = open();
+    byte[] payload = new byte[500];
+    List<Long> addresses = new ArrayList<>();
+    for (int i = 0; i < 8; i++) {
+      addresses.add(spool.append(payload));
+    }
+    assertThat(spool.append(payload)).isEqualTo(Spool.NO_ADDRESS);
+
+    // a segment with a record that was not given up on is kept
+    spool.giveUp(addresses.get(0));
+    assertThat(spool.append(payload)).isEqualTo(Spool.NO_ADDRESS);
+
+    spool.giveUp(addresses.get(1));
+    spool.giveUp(addresses.get(2));
+    spool.giveUp(addresses.get(3));
+    long address = spool.append(payload);
+    assertThat(address).isNotEqualTo(Spool.NO_ADDRESS);
+    assertThat(segmentFiles()).hasSize(4);
+    assertThat(spool.usedBytes()).isEqualTo(4 * SEGMENT_BYTES);
+    spool.close();
+
+    // records given up on but not dropped are replayed
+    assertThat(open().replay()).hasSize(7);
+  }
+
+  @Test
+  public void acknowledgedRecordsAreNoLongerGivenUpOn() throws IOException {
+    Spool spool = open();
+    byte[] payload = new byte[500];
+    List<Long> addresses = new ArrayList<>();
+    for (int i = 0; i < 8; i++) {
+      addresses.add(spool.append(payload));
+    }
+    spool.giveUp(addresses.get(0));
+    spool.acknowledge(addresses.get(0));
+    spool.giveUp(addresses.get(0));
+    spool.giveUp(addresses.get(1));
+    spool.giveUp(addresses.get(1));
+
+    // the first segment's one pending record was given up on, once, so the segment is dropped
+    assertThat(spool.append(payload)).isNotEqualTo(Spool.NO_ADDRESS);
+    assertThat(spool.append(payload)).isNotEqualTo(Spool.NO_ADDRESS);
+    assertThat(spool.append(payload)).isEqualTo(Spool.NO_ADDRESS);
+  }
+
+  @Test
+  public void locksTheDirectoryUntilClosed() throws IOException {
+    Spool spool = open();
+    try {
+      open();
+      fail("Should fail while another spool uses the directory");
+    } catch (IOException e) {
+      assertThat(e).hasMessageContaining("is used by another client");
+    }
+    spool.close();
+
+    open().close();
+  }
+}
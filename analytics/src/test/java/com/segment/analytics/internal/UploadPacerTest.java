@@ -0,0 +1,121 @@
+package com.segment.analytics.internal;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.Test;
+
+public class UploadPacerTest {
+  private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+  private final AtomicLong now = new AtomicLong();
+
+  @Test
+  public void invalidRate() {
+    try {
+      new UploadPacer(0);
+      fail("Should fail for a rate of 0");
+    } catch (IllegalArgumentException e) {
+      assertThat(e).hasMessage("maxRate must be greater than 0.");
+    }
+  }
+
+  @Test
+  public void spacesBatchesAtTheRate() {
+    UploadPacer pacer = new UploadPacer(4, now::get);
+
+    assertThat(pacer.reserve()).isEqualTo(0);
+    assertThat(pacer.reserve()).isEqualTo(SECOND / 4);
+    assertThat(pacer.reserve()).isEqualTo(SECOND / 2);
+
+    // After a quiet period, the next batch goes right away, but only one.
+    now.addAndGet(10 * SECOND);
+    assertThat(pacer.reserve()).isEqualTo(0);
+    assertThat(pacer.reserve()).isEqualTo(SECOND / 4);
+  }
+
+  @Test
+  public void halvesTheRateSentWhenRateLimited() {
+    UploadPacer pacer = new UploadPacer(100, now::get);
+    for (int i = 0; i < 20; i++) {
+      pacer.reserve();
+      now.addAndGet(SECOND / 10);
+    }
+
+    // Ten batches were sent in the last full second, far below the maximum.
+    assertThat(pacer.onRateLimited(now.get() - 1)).isTrue();
+    assertThat(pacer.rate()).isEqualTo(5);
+    assertThat(pacer.decreases()).isEqualTo(1);
+  }
+
+  @Test
+  public void ignoresRateLimitingOfUploadsSentBeforeTheLastDecrease() {
+    UploadPacer pacer = new UploadPacer(8, now::get);
+    long attempt = now.get();
+    pacer.reserve();
+    now.addAndGet(1);
+
+    assertThat(pacer.onRateLimited(attempt)).isTrue();
+    assertThat(pacer.onRateLimited(attempt)).isFalse();
+    assertThat(pacer.rate()).isEqualTo(4);
+
+    now.addAndGet(1);
+    assertThat(pacer.onRateLimited(now.get())).isTrue();
+    assertThat(pacer.rate()).isEqualTo(2);
+  }
+
+  @Test
+  public void growsBackAdditively() {
+    UploadPacer pacer = new UploadPacer(8, now::get);
+    pacer.reserve();
+    pacer.onRateLimited(now.get());
+    assertThat(pacer.rate()).isEqualTo(4);
+
+    // A second's worth of accepted batches adds about one batch per second.
+    for (int i = 0; i < 4; i++) {
+      pacer.onAccepted();
+    }
+    assertThat(pacer.rate()).isBetween(4.9, 5.0);
+
+    for (int i = 0; i < 100; i++) {
+      pacer.onAccepted();
+    }
+    assertThat(pacer.rate()).isEqualTo(8);
+  }
+
+  @Test
+  public void neverGoesBelowTheMinimum() {
+    UploadPacer pacer = new UploadPacer(1, now::get);
+    for (int i = 0; i < 10; i++) {
+      now.addAndGet(SECOND);
+      pacer.onRateLimited(now.get());
+    }
+
+    assertThat(pacer.rate()).isEqualTo(UploadPacer.MIN_RATE);
+  }
+
+  @Test
+  public void closeWakesTheBatchWaitingForItsTurn() throws InterruptedException {
+    UploadPacer pacer = new UploadPacer(UploadPacer.MIN_RATE);
+    pacer.acquire();
+    Thread waiting =
+        new Thread(
+            () -> {
+              try {
+                pacer.acquire();
+              } catch (InterruptedException ignored) {
+              }
+            });
+    waiting.start();
+    waiting.join(100);
+    assertThat(waiting.isAlive()).isTrue();
+
+    pacer.close();
+    waiting.join(1000);
+    assertThat(waiting.isAlive()).isFalse();
+    // Not paced from now on.
+    pacer.acquire();
+  }
+}